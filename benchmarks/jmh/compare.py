@@ -0,0 +1,60 @@
+#!/usr/bin/env python3
+"""Compare two JMH JSON result files (java -jar benchmarks.jar -rf json -rff <file>).
+
+    python3 compare.py results/0.1.0.json results/0.2.0.json [--threshold 0.10]
+
+Prints one row per benchmark/parameter set and exits 1 if any benchmark got slower
+than the threshold (relative, outside the combined error bars).
+"""
+import argparse
+import json
+import sys
+
+
+def load(path):
+    with open(path) as f:
+        runs = json.load(f)
+    out = {}
+    for r in runs:
+        params = ",".join(f"{k}={v}" for k, v in sorted((r.get("params") or {}).items()))
+        name = r["benchmark"].rsplit(".", 2)
+        key = ".".join(name[-2:]) + (f" [{params}]" if params else "")
+        m = r["primaryMetric"]
+        out[key] = (r["mode"], float(m["score"]), float(m.get("scoreError") or 0.0), m["scoreUnit"])
+    return out
+
+
+def main():
+    ap = argparse.ArgumentParser()
+    ap.add_argument("baseline")
+    ap.add_argument("candidate")
+    ap.add_argument("--threshold", type=float, default=0.10)
+    args = ap.parse_args()
+
+    old, new = load(args.baseline), load(args.candidate)
+    worse = []
+    print(f"{'benchmark':60s} {'baseline':>14s} {'candidate':>14s} {'change':>8s}")
+    for key in sorted(set(old) | set(new)):
+        if key not in old or key not in new:
+            print(f"{key:60s} {'-' if key not in old else '%.3f' % old[key][1]:>14s} "
+                  f"{'-' if key not in new else '%.3f' % new[key][1]:>14s}")
+            continue
+        mode, s0, e0, unit = old[key]
+        _, s1, e1, _ = new[key]
+        # time modes: lower is better; throughput: higher is better
+        rel = (s1 - s0) / s0 if s0 else 0.0
+        if mode == "thrpt":
+            rel = -rel
+        regressed = rel > args.threshold and abs(s1 - s0) > (e0 + e1)
+        flag = "  REGRESSION" if regressed else ""
+        print(f"{key:60s} {s0:11.3f} {unit:>2s} {s1:11.3f} {unit:>2s} {rel * 100:+7.1f}%{flag}")
+        if regressed:
+            worse.append(key)
+    if worse:
+        print(f"\n{len(worse)} benchmark(s) slower than {args.threshold:.0%}", file=sys.stderr)
+        return 1
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
@@ -0,0 +1,134 @@
+package com.leo.histomagnify.bench;
+
+import com.leo.histomagnify.ContourSet;
+import com.leo.histomagnify.LabelRuns;
+import com.leo.histomagnify.OverlayOps;
+import com.leo.histomagnify.ResultStack;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-pixel kernels of the result window at 1, 25 and 100 MP: building the ResultStack from a
+ * gray or RGB page (showResult) and flattening its label overlay (Flatten), label-to-mask
+ * (makeBinaryMaskFromLabel), and a contour file read into its vector overlay layer
+ * (contourLayer). The labelRuns* cases do the blend (CLI overlay PNG), mask and a
+ * quarter-size ROI mask on the run-length form (LabelRuns) of the same labels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class OverlayBench {
+
+    @Param({"1", "25", "100"})
+    public int megapixels;
+
+    private ByteProcessor labels;
+    private ByteProcessor gray;
+    private File contourFile;
+    private ContourSet contourSet;
+    private ColorProcessor background;
+    private ColorProcessor out;
+    private int[][] lut;
+    private LabelRuns runs;
+    private Rectangle quarter;
+    private ImagePlus result;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int w = Synthetic.width(megapixels), h = Synthetic.height(megapixels);
+        labels = Synthetic.labels(w, h, 6, 42L);
+        gray = Synthetic.gray(w, h, 7L);
+        contourFile = Synthetic.contours(w, h, 42L);
+        contourSet = ContourSet.read(contourFile, 0, 0);
+        background = Synthetic.background(w, h, 7L);
+        out = new ColorProcessor(w, h);
+        lut = OverlayOps.labelLut("20X");
+        runs = LabelRuns.encode(labels);
+        quarter = new Rectangle(w / 4, h / 4, w / 2, h / 2);
+        result = resultImage(new ResultStack(background, labels, lut));
+    }
+
+    // the result window as showResult() builds it, on the Overlay slice
+    private static ImagePlus resultImage(ResultStack stack) {
+        ImagePlus imp = new ImagePlus("result", stack);
+        Overlay ov = new Overlay();
+        ov.add(stack.labelRoi());
+        imp.setOverlay(ov);
+        imp.setSlice(2);
+        return imp;
+    }
+
+    @Benchmark
+    public ResultStack resultStackFromGray() {
+        return new ResultStack(gray, labels, lut);
+    }
+
+    @Benchmark
+    public ResultStack resultStackFromRgb() {
+        return new ResultStack(background, labels, lut);
+    }
+
+    @Benchmark
+    public ImagePlus resultStackFlatten() {
+        return result.flatten();
+    }
+
+    @Benchmark
+    public ImageProcessor labelMask() {
+        // labelMask() converts (copies) first, like makeBinaryMaskFromLabel on a freshly opened file
+        return OverlayOps.labelMask(labels, 2);
+    }
+
+    @Benchmark
+    public ImageProcessor labelMaskRoi() {
+        // crop + mask as makeBinaryMaskFromLabel does for an ROI
+        ByteProcessor ip = (ByteProcessor) labels.duplicate();
+        ip.setRoi(quarter);
+        return OverlayOps.labelMask(ip.crop(), 2);
+    }
+
+    @Benchmark
+    public ColorProcessor labelRunsBlend() {
+        runs.blend(out, background, lut, 0, out.getHeight());
+        return out;
+    }
+
+    @Benchmark
+    public ImageProcessor labelRunsMask() {
+        return runs.mask(2, null);
+    }
+
+    @Benchmark
+    public ImageProcessor labelRunsMaskRoi() {
+        return runs.mask(2, quarter);
+    }
+
+    @Benchmark
+    public long[] labelRunsAreas() {
+        return runs.areas(lut.length, null);
+    }
+
+    @Benchmark
+    public ContourSet contourRead() throws IOException {
+        return ContourSet.read(contourFile, 0, 0);
+    }
+
+    @Benchmark
+    public Roi contourOverlayRoi() {
+        return contourSet.overlayRoi(Color.YELLOW, 1.0f);
+    }
+}
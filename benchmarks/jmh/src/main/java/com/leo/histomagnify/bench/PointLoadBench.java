@@ -0,0 +1,106 @@
+package com.leo.histomagnify.bench;
+
+import com.leo.histomagnify.ColumnarTable;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading GBM thickness points (x, y, diameter): the previous CSV loop
+ * (readLine / split / parseDouble, unitsPerPixel per line) against the memory-mapped
+ * HMC1 columns. Point count is 0.5% of the plane, roughly a medial-axis skeleton.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PointLoadBench {
+
+    @Param({"1", "25", "100"})
+    public int megapixels;
+
+    private File csv;
+    private File cols;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        n = megapixels * 5000;
+        int w = Synthetic.width(megapixels), h = Synthetic.height(megapixels);
+        Random rnd = new Random(1);
+        int[] xs = new int[n], ys = new int[n];
+        float[] ds = new float[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = rnd.nextInt(w);
+            ys[i] = rnd.nextInt(h);
+            ds[i] = 2f + 20f * rnd.nextFloat();
+        }
+        csv = File.createTempFile("hm_points", ".csv");
+        cols = File.createTempFile("hm_points", ".hmc");
+        csv.deleteOnExit();
+        cols.deleteOnExit();
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(csv))) {
+            for (int i = 0; i < n; i++) bw.write(xs[i] + "," + ys[i] + "," + String.format("%.6f", ds[i]) + "\n");
+        }
+        writeColumns(cols, xs, ys, ds);
+    }
+
+    // same layout as src/core/columnar.py
+    private static void writeColumns(File f, int[] xs, int[] ys, float[] ds) throws IOException {
+        int n = xs.length;
+        ByteBuffer b = ByteBuffer.allocate(12 + 3 * 16 + 12 * n).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(new byte[]{'H', 'M', 'C', '1'}).putInt(n).putInt(3);
+        for (String spec : new String[]{"ix", "iy", "fdiam_px"}) {
+            byte[] name = new byte[16];
+            byte[] s = spec.getBytes("US-ASCII");
+            System.arraycopy(s, 0, name, 0, s.length);
+            b.put(name);
+        }
+        for (int v : xs) b.putInt(v);
+        for (int v : ys) b.putInt(v);
+        for (float v : ds) b.putFloat(v);
+        Files.write(f.toPath(), b.array());
+    }
+
+    private static double unitsPerPixel(double px, boolean expanded, double ef) {
+        return (expanded && ef > 0) ? px / ef : px;
+    }
+
+    @Benchmark
+    public void csvLegacy(Blackhole bh) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(csv))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] t = line.split(",");
+                if (t.length >= 2) {
+                    double x = Double.parseDouble(t[0]);
+                    double y = Double.parseDouble(t[1]);
+                    double upp = unitsPerPixel(0.25, true, 3.5);
+                    double v = (t.length >= 3) ? (Double.parseDouble(t[2]) * upp) : Double.NaN;
+                    bh.consume(new double[]{x, y, v});
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void columnar(Blackhole bh) throws IOException {
+        ColumnarTable tab = ColumnarTable.read(cols);
+        IntBuffer xs = tab.ints("x"), ys = tab.ints("y");
+        FloatBuffer ds = tab.floats("diam_px");
+        double upp = unitsPerPixel(0.25, true, 3.5);
+        for (int i = 0; i < tab.rows(); i++) {
+            bh.consume(new double[]{xs.get(i), ys.get(i), ds.get(i) * upp});
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.leo.histomagnify.bench;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Deterministic label / background planes and contour files for the benchmarks, 4:3 aspect. */
+final class Synthetic {
+
+    private Synthetic() {}
+
+    static int width(int megapixels) {
+        return (int) Math.round(Math.sqrt(megapixels * 1e6 * 4.0 / 3.0));
+    }
+
+    static int height(int megapixels) {
+        return (int) Math.round(megapixels * 1e6 / width(megapixels));
+    }
+
+    private static int hash(int x, int y, long seed) {
+        long h = seed ^ (x * 0x9E3779B97F4A7C15L) ^ (y * 0xC2B2AE3D27D4EB4FL);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & 0x7fffffff;
+    }
+
+    /** One disc per 48 px cell (about 40% coverage), class 1..nClasses-1, background 0. */
+    static ByteProcessor labels(int w, int h, int nClasses, long seed) {
+        byte[] px = new byte[w * h];
+        final int cell = 48;
+        for (int y = 0; y < h; y++) {
+            int cy = y / cell;
+            for (int x = 0; x < w; x++) {
+                int cx = x / cell;
+                int hv = hash(cx, cy, seed);
+                int r = 8 + hv % 14;
+                int dx = x - (cx * cell + cell / 2), dy = y - (cy * cell + cell / 2);
+                if (dx * dx + dy * dy <= r * r) px[y * w + x] = (byte) (1 + (hv >>> 8) % (nClasses - 1));
+            }
+        }
+        return new ByteProcessor(w, h, px);
+    }
+
+    /** Smooth gray gradient with a little hashed noise, packed RGB. */
+    static ColorProcessor background(int w, int h, long seed) {
+        int[] px = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int v = 90 + (x * 60) / w + (y * 60) / h + hash(x, y, seed) % 16;
+                px[y * w + x] = (v << 16) | (v << 8) | v;
+            }
+        }
+        return new ColorProcessor(w, h, px);
+    }
+
+    /** 8-bit gray version of {@link #background}. */
+    static ByteProcessor gray(int w, int h, long seed) {
+        byte[] px = new byte[w * h];
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++) px[y * w + x] = (byte) (90 + (x * 60) / w + (y * 60) / h + hash(x, y, seed) % 16);
+        return new ByteProcessor(w, h, px);
+    }
+
+    /**
+     * Contour file as metrics.py writes it (HMC1 columns obj, ring, x, y): one 24-vertex ring
+     * per disc of {@link #labels}, every fourth object with a hole.
+     */
+    static File contours(int w, int h, long seed) throws IOException {
+        final int cell = 48, n = 24;
+        List<float[]> rings = new ArrayList<>();
+        List<int[]> ids = new ArrayList<>();
+        int obj = 0;
+        for (int cy = 0; cy * cell < h; cy++) {
+            for (int cx = 0; cx * cell < w; cx++) {
+                int hv = hash(cx, cy, seed);
+                int r = 8 + hv % 14;
+                float ox = cx * cell + cell / 2f + 0.5f, oy = cy * cell + cell / 2f + 0.5f;
+                obj++;
+                for (int k = 0; k < (obj % 4 == 0 ? 2 : 1); k++) {
+                    float rr = k == 0 ? r : r / 3f;
+                    float[] xy = new float[2 * n];
+                    for (int v = 0; v < n; v++) {
+                        double a = 2 * Math.PI * v / n;
+                        xy[2 * v] = ox + (float) (rr * Math.cos(a));
+                        xy[2 * v + 1] = oy + (float) (rr * Math.sin(a));
+                    }
+                    rings.add(xy);
+                    ids.add(new int[]{obj, k});
+                }
+            }
+        }
+        int rows = rings.size() * n;
+        ByteBuffer b = ByteBuffer.allocate(12 + 4 * 16 + 4 * 4 * rows).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(new byte[]{'H', 'M', 'C', '1'}).putInt(rows).putInt(4);
+        String[] names = {"obj", "ring", "x", "y"};
+        for (int c = 0; c < names.length; c++)
+            b.put((byte) (c < 2 ? 'i' : 'f')).put(Arrays.copyOf(names[c].getBytes(StandardCharsets.US_ASCII), 15));
+        for (int c = 0; c < 4; c++) {
+            for (int k = 0; k < rings.size(); k++) {
+                for (int v = 0; v < n; v++) {
+                    if (c < 2) b.putInt(ids.get(k)[c]);
+                    else b.putFloat(rings.get(k)[2 * v + c - 2]);
+                }
+            }
+        }
+        File f = File.createTempFile("contours", ".hmc");
+        f.deleteOnExit();
+        Files.write(f.toPath(), b.array());
+        return f;
+    }
+}
@@ -0,0 +1,55 @@
+package com.leo.histomagnify.bench;
+
+import com.leo.histomagnify.OverlayOps;
+import ij.gui.Line;
+import ij.gui.OvalRoi;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * applyVisibility() on a large overlay: hide then show one group (e.g. thickness dots)
+ * while another large group (process lines) stays in the overlay.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VisibilityBench {
+
+    @Param({"1000", "5000", "20000"})
+    public int groupSize;
+
+    private Overlay overlay;
+    private List<Roi> dots;
+    private List<Roi> lines;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        overlay = new Overlay();
+        dots = new ArrayList<>(groupSize);
+        lines = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            Roi d = new OvalRoi(i % 4000, i / 4000, 2, 2);
+            Roi l = new Line(i % 4000, i / 4000, i % 4000 + 5, i / 4000 + 5);
+            overlay.add(d);
+            overlay.add(l);
+            dots.add(d);
+            lines.add(l);
+        }
+    }
+
+    @Benchmark
+    public Overlay hideAndShow() {
+        OverlayOps.setGroupVisible(overlay, dots, false);
+        OverlayOps.setGroupVisible(overlay, lines, true);
+        OverlayOps.setGroupVisible(overlay, dots, true);
+        return overlay;
+    }
+}
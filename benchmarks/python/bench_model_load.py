@@ -0,0 +1,84 @@
+#!/usr/bin/env python3
+"""Model load and first-tile latency: Keras model vs. the cached SavedModel/XLA graph.
+
+    python benchmarks/python/bench_model_load.py --model 20x --modeldir src/main/resources/models [--tiles 20]
+
+For each path: load time (build + load_weights, or deserialize + warm-up), the first predict()
+call and the median of the following ones. The export itself is timed separately (it happens
+once per weights file). Outputs of both paths are compared on the same random tiles.
+Run it from the HistoMagnify venv (needs tensorflow and the script requirements).
+"""
+import argparse
+import json
+import os
+import sys
+import tempfile
+import time
+
+import numpy as np
+
+SCRIPTS = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'src', 'main', 'resources', 'scripts')
+sys.path.insert(0, os.path.abspath(SCRIPTS))
+
+from segment import MODEL_MAP, MODEL_CHANNELS, MODEL_CLASSES, MODEL_PARAMS  # noqa: E402
+from src.core.model_archi import multi_unet_model_trans  # noqa: E402
+from src.core.backends import load_predictor  # noqa: E402
+
+
+def timed_predicts(model, tiles):
+    times, outs = [], []
+    for t in tiles:
+        t0 = time.perf_counter()
+        outs.append(model.predict(t, verbose=0)[0])
+        times.append(time.perf_counter() - t0)
+    return times, outs
+
+
+def main():
+    ap = argparse.ArgumentParser()
+    ap.add_argument('--model', choices=MODEL_MAP.keys(), required=True)
+    ap.add_argument('--modeldir', required=True)
+    ap.add_argument('--tiles', type=int, default=20)
+    ap.add_argument('--json', default=None, help='also write results here')
+    args = ap.parse_args()
+
+    params = MODEL_PARAMS[args.model]
+    shape = (params['MODEL_HEIGHT'], params['MODEL_WIDTH'], MODEL_CHANNELS[args.model])
+    weights = os.path.join(args.modeldir, MODEL_MAP[args.model])
+    cache = tempfile.mkdtemp(prefix='hm_bench_graph_')
+    rng = np.random.default_rng(0)
+    tiles = [rng.random((1,) + shape, dtype=np.float32) for _ in range(args.tiles)]
+
+    def build():
+        return multi_unet_model_trans(n_classes=MODEL_CLASSES[args.model], IMG_HEIGHT=shape[0],
+                                      IMG_WIDTH=shape[1], IMG_CHANNELS=shape[2])
+
+    rows, outputs = [], {}
+    for name, compiled in (('keras', False), ('export', True), ('savedmodel', True)):
+        t0 = time.perf_counter()
+        model = load_predictor('float32', build, weights, cache, args.model, input_shape=shape, compiled=compiled)
+        load_s = time.perf_counter() - t0
+        if name == 'export':
+            # first compiled load includes the one-time export; the next one is the normal case
+            rows.append(dict(path=name, load_s=round(load_s, 3)))
+            print(f"{name:>10}: {load_s:7.2f} s (one-time)")
+            continue
+        times, outs = timed_predicts(model, tiles)
+        outputs[name] = outs
+        row = dict(path=name, load_s=round(load_s, 3), first_tile_s=round(times[0], 4),
+                   median_tile_s=round(float(np.median(times[1:] or times)), 4))
+        rows.append(row)
+        print(f"{name:>10}: load {row['load_s']:7.2f} s, first tile {row['first_tile_s']:7.3f} s, "
+              f"median tile {row['median_tile_s']:7.3f} s")
+
+    diff = max(float(np.max(np.abs(a - b))) for a, b in zip(outputs['keras'], outputs['savedmodel']))
+    agree = float(np.mean([np.mean(a.argmax(-1) == b.argmax(-1))
+                           for a, b in zip(outputs['keras'], outputs['savedmodel'])]))
+    print(f"max |keras - savedmodel| = {diff:.2e}, argmax agreement {agree:.5f}")
+    if args.json:
+        with open(args.json, 'w') as f:
+            json.dump(dict(rows=rows, max_abs_diff=diff, argmax_agreement=agree), f, indent=2)
+
+
+if __name__ == '__main__':
+    main()
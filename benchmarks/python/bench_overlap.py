@@ -0,0 +1,100 @@
+#!/usr/bin/env python3
+"""Speed vs. seam quality of tile overlap / blending settings in run_patches.
+
+    python benchmarks/python/bench_overlap.py --tif slide.tif --model 20x \
+        --modeldir src/main/resources/models [--overlaps 0,0.125,0.25,0.5] [--blends cosine,uniform]
+
+Every setting is compared with the legacy configuration (50% overlap, uniform averaging).
+"Seam agreement" is the label agreement restricted to a band around the tile seams of the
+tested grid, where blending artefacts show up; "overall" covers the whole plane.
+Run it from the HistoMagnify venv (needs tensorflow and the script requirements).
+"""
+import argparse
+import json
+import os
+import sys
+import tempfile
+import time
+
+import numpy as np
+import tifffile
+
+SCRIPTS = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'src', 'main', 'resources', 'scripts')
+sys.path.insert(0, os.path.abspath(SCRIPTS))
+
+from segment import MODEL_MAP, MODEL_CHANNELS, MODEL_CLASSES, MODEL_PARAMS, read_page, to_gray8  # noqa: E402
+from src.core.model_archi import multi_unet_model_trans  # noqa: E402
+from src.core.segmentation import run_patches, tile_steps  # noqa: E402
+
+
+def seam_band(H, W, P_HEIGHT, P_WIDTH, step_h, step_w, half=8):
+    band = np.zeros((H, W), dtype=bool)
+    for edges, n, P, step, axis in ((range(0, H, step_h), H, P_HEIGHT, step_h, 0),
+                                     (range(0, W, step_w), W, P_WIDTH, step_w, 1)):
+        for start in edges:
+            for e in (start, start + P):
+                if 0 < e < n:
+                    lo, hi = max(0, e - half), min(n, e + half)
+                    if axis == 0:
+                        band[lo:hi, :] = True
+                    else:
+                        band[:, lo:hi] = True
+    return band
+
+
+def main():
+    ap = argparse.ArgumentParser()
+    ap.add_argument('--tif', required=True)
+    ap.add_argument('--page', type=int, default=0)
+    ap.add_argument('--model', choices=MODEL_MAP.keys(), required=True)
+    ap.add_argument('--modeldir', required=True)
+    ap.add_argument('--overlaps', default='0,0.125,0.25,0.375,0.5')
+    ap.add_argument('--blends', default='cosine,gaussian,uniform')
+    ap.add_argument('--json', default=None, help='also write results here')
+    args = ap.parse_args()
+
+    params = MODEL_PARAMS[args.model]
+    n_classes = MODEL_CLASSES[args.model]
+    model = multi_unet_model_trans(n_classes=n_classes, IMG_HEIGHT=params['MODEL_HEIGHT'],
+                                   IMG_WIDTH=params['MODEL_WIDTH'], IMG_CHANNELS=MODEL_CHANNELS[args.model])
+    model.load_weights(os.path.join(args.modeldir, MODEL_MAP[args.model]))
+
+    plane = to_gray8(read_page(args.tif, args.page))
+    tmp = tempfile.NamedTemporaryFile(suffix='.tif', delete=False).name
+    tifffile.imwrite(tmp, plane)
+
+    def run(overlap, blend):
+        t0 = time.perf_counter()
+        seg = run_patches(tmp, model, params['P_HEIGHT'], params['P_WIDTH'], n_classes,
+                          params['MODEL_WIDTH'], params['MODEL_HEIGHT'], overlap=overlap, blend=blend)
+        return seg, time.perf_counter() - t0
+
+    run(0.5, 'uniform')  # warm-up: graph tracing would otherwise be charged to the first setting
+    ref, ref_t = run(0.5, 'uniform')
+    H, W = ref.shape
+
+    rows = []
+    for blend in args.blends.split(','):
+        for overlap in (float(o) for o in args.overlaps.split(',')):
+            seg, t = run(overlap, blend)
+            sh, sw = tile_steps(params['P_HEIGHT'], params['P_WIDTH'], overlap)
+            band = seam_band(H, W, params['P_HEIGHT'], params['P_WIDTH'], sh, sw)
+            rows.append(dict(overlap=overlap, blend=blend, seconds=round(t, 3),
+                             speedup=round(ref_t / t, 2) if t > 0 else None,
+                             seam_agreement=round(float(np.mean(seg[band] == ref[band])), 5) if band.any() else None,
+                             overall_agreement=round(float(np.mean(seg == ref)), 5)))
+
+    print(f"reference: overlap 0.5 uniform, {ref_t:.2f} s, {W}x{H}")
+    print(f"{'blend':>9} {'overlap':>8} {'seconds':>9} {'speedup':>8} {'seam agr':>9} {'overall':>8}")
+    for r in rows:
+        seam = '-' if r['seam_agreement'] is None else f"{r['seam_agreement']:.4f}"
+        print(f"{r['blend']:>9} {r['overlap']:>8.3f} {r['seconds']:>9.2f} {r['speedup']:>8.2f} "
+              f"{seam:>9} {r['overall_agreement']:>8.4f}")
+    if args.json:
+        with open(args.json, 'w') as f:
+            json.dump(dict(image=args.tif, model=args.model, reference_seconds=ref_t, results=rows), f, indent=2)
+    os.unlink(tmp)
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,163 @@
+#!/usr/bin/env python3
+"""Scaling of sharded tile inference over 1-64 cores.
+
+    python benchmarks/python/bench_sharding.py [--tif slide.tif --model 20x --modeldir src/main/resources/models]
+        [--cores 1,2,4,8,16,32,64] [--resample tile] [--json out.json]
+
+For every core budget C (capped at the machine's core count) each split of C into
+K worker processes x T threads (K a power of two) segments the same plane. Each
+configuration runs in a fresh process, so thread settings never leak between runs.
+Reported: wall time, tiles/s, speedup and efficiency against 1 process x 1 thread, and
+label agreement with that run. Without --tif/--modeldir a synthetic 8192 x 8192 plane
+and a numpy stand-in model (per-class blurs, about as slow per tile as a small net) are used, which
+measures the sharding machinery rather than TensorFlow. Run it from the HistoMagnify venv.
+"""
+import argparse
+import functools
+import json
+import os
+import subprocess
+import sys
+import tempfile
+import time
+
+import numpy as np
+
+SCRIPTS = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'src', 'main', 'resources', 'scripts')
+sys.path.insert(0, os.path.abspath(SCRIPTS))
+
+from segment import MODEL_MAP, MODEL_CLASSES, MODEL_PARAMS, read_page, to_gray8, worker_model  # noqa: E402
+from src.core import sharding  # noqa: E402
+from src.core.segmentation import run_patches  # noqa: E402
+
+SYNTH_CLASSES = 3
+
+
+class SyntheticModel:
+    """predict() with the Keras signature; cost scales with the tile, threads via OpenCV."""
+
+    def __init__(self, threads):
+        import cv2
+        cv2.setNumThreads(threads)
+        self.cv2 = cv2
+
+    def predict(self, arr, verbose=0):
+        x = arr[0, ..., 0]
+        outs = [self.cv2.GaussianBlur(x, (0, 0), 1.0 + 2.0 * c) for c in range(SYNTH_CLASSES)]
+        dark = (1.0 - x)[..., None]
+        return (np.stack(outs, axis=-1) * dark)[None]
+
+
+def synthetic_factory(threads):
+    return SyntheticModel(threads)
+
+
+def synthetic_plane(size=8192, seed=0):
+    rng = np.random.default_rng(seed)
+    g = np.full((size, size), 220, dtype=np.uint8)
+    for _ in range(size // 16):
+        y, x = rng.integers(0, size, 2)
+        r = int(rng.integers(8, 40))
+        g[max(0, y - r):y + r, max(0, x - r):x + r] = rng.integers(40, 140)
+    return g
+
+
+def one(args):
+    """Runs one configuration in this process and writes {wall_s, tiles} + labels."""
+    workers, threads = args.one
+    if args.modeldir:
+        params, n_classes = MODEL_PARAMS[args.model], MODEL_CLASSES[args.model]
+        plane = to_gray8(read_page(args.tif, args.page))
+        weights = os.path.join(args.modeldir, MODEL_MAP[args.model])
+        factory = functools.partial(worker_model, 'float32', args.model, weights,
+                                    os.path.join(tempfile.gettempdir(), 'hm_bench_cache'), True, None)
+    else:
+        params = dict(P_HEIGHT=720, P_WIDTH=960, MODEL_HEIGHT=576, MODEL_WIDTH=768)
+        n_classes = SYNTH_CLASSES
+        plane = synthetic_plane()
+        factory = synthetic_factory
+    # in-process model for K = 1; K > 1 only uses it to create the cache before the workers start
+    model = factory(threads)
+
+    with sharding.worker_pool(factory, workers, threads) as shards:
+        if shards is not None:
+            # start the workers and load their models outside the timed section
+            list(shards.pool.map(time.sleep, [0.01] * workers))
+        t0 = time.perf_counter()
+        labels = run_patches(plane, model, params['P_HEIGHT'], params['P_WIDTH'], n_classes,
+                             params['MODEL_WIDTH'], params['MODEL_HEIGHT'], resample=args.resample,
+                             shards=shards)
+        wall = time.perf_counter() - t0
+    np.save(args.labels_out, labels)
+    with open(args.result_out, 'w') as f:
+        json.dump(dict(wall_s=wall), f)
+
+
+def splits(cores):
+    k = 1
+    while k <= cores:
+        yield k, cores // k
+        k *= 2
+
+
+def main():
+    ap = argparse.ArgumentParser()
+    ap.add_argument('--tif', default=None)
+    ap.add_argument('--page', type=int, default=0)
+    ap.add_argument('--model', choices=MODEL_MAP.keys(), default='20x')
+    ap.add_argument('--modeldir', default=None)
+    ap.add_argument('--cores', default='1,2,4,8,16,32,64')
+    ap.add_argument('--resample', default='tile')
+    ap.add_argument('--json', default=None, help='also write results here')
+    ap.add_argument('--one', type=int, nargs=2, default=None, help=argparse.SUPPRESS)
+    ap.add_argument('--labels_out', default=None, help=argparse.SUPPRESS)
+    ap.add_argument('--result_out', default=None, help=argparse.SUPPRESS)
+    args = ap.parse_args()
+    if args.modeldir and not args.tif:
+        ap.error('--modeldir needs --tif')
+    if args.one:
+        one(args)
+        return
+
+    avail = os.cpu_count() or 1
+    budgets = [c for c in (int(x) for x in args.cores.split(',')) if c <= avail]
+    skipped = [c for c in (int(x) for x in args.cores.split(',')) if c > avail]
+    if skipped:
+        print(f"Skipping {skipped} cores (this machine has {avail})")
+
+    tmp = tempfile.mkdtemp(prefix='hm_bench_shard_')
+    base_cmd = [sys.executable, os.path.abspath(__file__), '--model', args.model, '--resample', args.resample]
+    if args.modeldir:
+        base_cmd += ['--tif', args.tif, '--page', str(args.page), '--modeldir', args.modeldir]
+
+    rows, ref, ref_wall = [], None, None
+    for cores in budgets:
+        for workers, threads in splits(cores):
+            lab, res = os.path.join(tmp, f'{workers}x{threads}.npy'), os.path.join(tmp, f'{workers}x{threads}.json')
+            subprocess.run(base_cmd + ['--one', str(workers), str(threads), '--labels_out', lab,
+                                       '--result_out', res], check=True)
+            with open(res) as f:
+                wall = json.load(f)['wall_s']
+            labels = np.load(lab)
+            if ref is None:
+                ref, ref_wall = labels, wall
+            row = dict(cores=cores, workers=workers, threads=threads, wall_s=round(wall, 3),
+                       speedup=round(ref_wall / wall, 2), efficiency=round(ref_wall / wall / cores, 3),
+                       agreement=float(np.mean(labels == ref)))
+            rows.append(row)
+            print(f"{cores:>3} cores = {workers:>2} x {threads:>2}: {wall:8.2f} s  speedup {row['speedup']:6.2f}  "
+                  f"efficiency {row['efficiency']:5.2f}  agreement {row['agreement']:.5f}")
+
+    best = {}
+    for r in rows:
+        if r['cores'] not in best or r['wall_s'] < best[r['cores']]['wall_s']:
+            best[r['cores']] = r
+    print("Best split per core budget: " +
+          ", ".join(f"{c}: {r['workers']}x{r['threads']}" for c, r in sorted(best.items())))
+    if args.json:
+        with open(args.json, 'w') as f:
+            json.dump(rows, f, indent=2)
+
+
+if __name__ == '__main__':
+    main()
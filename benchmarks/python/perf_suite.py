@@ -0,0 +1,339 @@
+#!/usr/bin/env python3
+"""Offline performance regression suite for the Python stages.
+
+    python benchmarks/python/perf_suite.py                      # compare with baseline.json
+    python benchmarks/python/perf_suite.py --update-baseline    # record a new baseline
+    python benchmarks/python/perf_suite.py --stages gbm_thickness,ws_split --size large
+
+Every stage runs in its own subprocess on a generated phantom, so the reported peak RSS
+covers only that stage (plus its imports and phantom). Time is the median of --repeat
+runs of the stage call (imports and phantom generation excluded). The suite exits 1 when a stage is slower or
+larger than the stored baseline by more than the tolerances.
+
+Phantoms have known answers, which are checked too: membranes of known width for
+gbm_thickness (gbm_thickness_tiled also checks that it reproduces the single pass), blob
+fields of known count for nuc_rbc_count / ws_split / ws_split_tiled / labels_to_polygons
+(ws_split_tiled also counts blobs on a seam that came out as more than one object), evenly spaced blob
+pairs for proc_ws_nnd. run_patches uses a stand-in model (per-pixel threshold), so it
+measures tiling, resampling and blending, not TensorFlow.
+
+Run it from the HistoMagnify venv (segmentation.py imports keras; no weights are needed).
+"""
+import argparse
+import json
+import os
+import platform
+import resource
+import subprocess
+import sys
+import tempfile
+import time
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+SCRIPTS = os.path.abspath(os.path.join(HERE, '..', '..', 'src', 'main', 'resources', 'scripts'))
+BASELINE = os.path.join(HERE, 'baseline.json')
+
+SIZES = {'small': 1024, 'medium': 2048, 'large': 4096}
+STAGES = ('run_patches', 'ws_split', 'ws_split_tiled', 'nuc_rbc_count', 'proc_ws_nnd', 'gbm_thickness', 'gbm_thickness_tiled',
+          'labels_to_polygons')
+
+MEMBRANE_WIDTH = 12     # px, gbm_thickness phantom
+BLOB_RADIUS = 9         # px, blob-field phantoms
+BLOB_PITCH = 32         # px between blob centres
+PAIR_GAP = 12           # px between centres of the two blobs of a process pair
+
+
+# ---------------------------------------------------------------- phantoms
+
+def membrane_phantom(n, width=MEMBRANE_WIDTH):
+    """Horizontal wavy bands of constant vertical width; medial-axis diameter ~= width."""
+    import numpy as np
+    yy, xx = np.mgrid[0:n, 0:n]
+    m = np.zeros((n, n), dtype=bool)
+    for base in range(64, n - 64, 128):
+        centre = base + 6.0 * np.sin(xx / 90.0)
+        m |= np.abs(yy - centre) < width / 2.0
+    return m
+
+
+def blob_field(n, radius=BLOB_RADIUS, pitch=BLOB_PITCH, seed=0):
+    """Separate discs on a jittered grid. Returns (mask, count)."""
+    import numpy as np
+    rng = np.random.default_rng(seed)
+    m = np.zeros((n, n), dtype=bool)
+    yy, xx = np.mgrid[-radius:radius + 1, -radius:radius + 1]
+    disc = xx * xx + yy * yy <= radius * radius
+    count = 0
+    jitter = max(0, (pitch - 2 * radius - 2) // 2)
+    for cy in range(pitch // 2, n - pitch // 2, pitch):
+        for cx in range(pitch // 2, n - pitch // 2, pitch):
+            y = cy + int(rng.integers(-jitter, jitter + 1))
+            x = cx + int(rng.integers(-jitter, jitter + 1))
+            m[y - radius:y + radius + 1, x - radius:x + radius + 1] |= disc
+            count += 1
+    return m, count
+
+
+def pair_field(n, radius=4, gap=PAIR_GAP, pitch=48):
+    """Pairs of small discs `gap` px apart; nearest-neighbour distance is `gap`."""
+    import numpy as np
+    m = np.zeros((n, n), dtype=bool)
+    yy, xx = np.mgrid[-radius:radius + 1, -radius:radius + 1]
+    disc = xx * xx + yy * yy <= radius * radius
+    for cy in range(pitch // 2, n - pitch // 2, pitch):
+        for cx in range(pitch // 2, n - pitch // 2 - gap, pitch):
+            for x in (cx, cx + gap):
+                m[cy - radius:cy + radius + 1, x - radius:x + radius + 1] |= disc
+    return m
+
+
+def gray_plane(n, seed=0):
+    import numpy as np
+    rng = np.random.default_rng(seed)
+    m, _ = blob_field(n, seed=seed)
+    g = np.where(m, 70, 190).astype(np.float32) + rng.normal(0, 8, (n, n))
+    return np.clip(g, 0, 255).astype(np.uint8)
+
+
+class StandInModel:
+    """predict() with the Keras signature: dark pixels -> class 1, the rest -> class 0."""
+
+    def __init__(self, n_classes):
+        self.n_classes = n_classes
+
+    def predict(self, arr, verbose=0):
+        import numpy as np
+        x = arr[..., 0]
+        out = np.zeros(x.shape + (self.n_classes,), dtype=np.float32)
+        p = 1.0 / (1.0 + np.exp((x - 0.5) * 20.0))
+        out[..., 1] = p
+        out[..., 0] = 1.0 - p
+        return out
+
+
+# ---------------------------------------------------------------- stages (run in the child)
+
+def _stage(name, n, workdir):
+    """Returns (callable, check) where check(result) -> dict of accuracy fields."""
+    import numpy as np
+    import tifffile
+    sys.path.insert(0, SCRIPTS)
+    import metrics
+
+    def mask_file(m, fname):
+        p = os.path.join(workdir, fname)
+        tifffile.imwrite(p, (m.astype(np.uint8) * 255))
+        return p
+
+    out = lambda f: os.path.join(workdir, f)  # noqa: E731
+
+    if name == 'run_patches':
+        # imported here: segmentation.py pulls in keras, which would inflate every other stage's RSS
+        from src.core.segmentation import run_patches
+        plane = gray_plane(n)
+        model = StandInModel(6)
+
+        def run():
+            return run_patches(plane, model, 720, 960, 6, 768, 576, overlap=0.5, blend='cosine', resample='tile')
+
+        def check(lab):
+            truth = plane < 128
+            return {'agreement': float(np.mean((lab == 1) == truth))}
+        return run, check
+
+    if name == 'ws_split':
+        m, count = blob_field(n)
+
+        def run():
+            return metrics.ws_split(m.astype(np.uint8), 15.0, 0.3, 2.0)
+
+        def check(lab):
+            return {'expected': count, 'found': int(len(np.unique(lab)) - 1)}
+        return run, check
+
+    if name == 'ws_split_tiled':
+        # 4x4 tiles across processes; blobs straddle the seams, each must stay one object
+        from src.core.watershed import ws_split
+        m, count = blob_field(n)
+        tile = n // 4
+
+        def run():
+            return ws_split(m, 15.0, 0.3, 2.0, tile=tile)
+
+        def check(lab):
+            ref = ws_split(m, 15.0, 0.3, 2.0, tile=-1)   # after the RSS reading, see child()
+            seams = np.zeros(m.shape, dtype=bool)
+            seams[tile::tile, :] = True
+            seams[:, tile::tile] = True
+            on_seam = np.unique(ref[seams & (ref > 0)])
+            fg = ref > 0
+            pairs = np.unique(ref[fg].astype(np.int64) << 32 | lab[fg].astype(np.int64))
+            split = int(np.sum(np.bincount(pairs >> 32)[on_seam] > 1))
+            return {'expected': count, 'found': int(len(np.unique(lab)) - 1),
+                    'single_pass': int(len(np.unique(ref)) - 1), 'dtype': str(lab.dtype),
+                    'seam_objects': int(len(on_seam)), 'split_at_seam': int(split)}
+        return run, check
+
+    if name == 'nuc_rbc_count':
+        m, count = blob_field(n)
+        path = mask_file(m, 'blobs.tif')
+
+        def run():
+            metrics.nuc_rbc_count(path, 0.0, 0.0, 15.0, 0.3, 2.0, out('count.txt'))
+            with open(out('count.txt')) as f:
+                return int(f.read().strip())
+
+        def check(found):
+            return {'expected': count, 'found': found}
+        return run, check
+
+    if name == 'proc_ws_nnd':
+        path = mask_file(pair_field(n), 'pairs.tif')
+
+        def run():
+            metrics.proc_ws_nnd(path, 20.0, 3.28, 0.26, 0.0, out('proc.txt'), out_cols=out('proc.hmc'))
+            with open(out('proc.txt')) as f:
+                return float(f.read().strip())
+
+        def check(mean_px):
+            return {'expected_px': PAIR_GAP, 'measured_px': mean_px}
+        return run, check
+
+    if name == 'gbm_thickness':
+        path = mask_file(membrane_phantom(n), 'membrane.tif')
+
+        def run():
+            metrics.gbm_thickness(path, out('thick.txt'), out_cols=out('thick.hmc'))
+            with open(out('thick.txt')) as f:
+                return float(f.read().strip())
+
+        def check(mean_px):
+            return {'expected_px': MEMBRANE_WIDTH, 'measured_px': mean_px}
+        return run, check
+
+    if name == 'gbm_thickness_tiled':
+        # medial axis in 4x4 tiles across processes; must give exactly the single-pass points
+        from src.core.medial import medial_axis_points
+        m = membrane_phantom(n)
+
+        def run():
+            return medial_axis_points(m, tile=n // 4)
+
+        def check(pts):
+            ref = medial_axis_points(m, tile=-1)      # after the RSS reading, see child()
+            return {'identical': all(np.array_equal(a, b) for a, b in zip(pts, ref)), 'points': int(len(pts[0])),
+                    'expected_px': MEMBRANE_WIDTH, 'measured_px': float(np.mean(2.0 * pts[2]))}
+        return run, check
+
+    if name == 'labels_to_polygons':
+        from skimage.measure import label as sklabel
+        m, count = blob_field(n)
+        lab = sklabel(m, connectivity=2).astype(np.int32)
+
+        def run():
+            return metrics.labels_to_polygons(lab)
+
+        def check(cols):
+            obj = cols[0][2]
+            return {'expected': count, 'objects': int(len(np.unique(obj))), 'vertices': int(len(obj))}
+        return run, check
+
+    raise SystemExit(f"unknown stage {name}")
+
+
+def child(name, n, repeat):
+    with tempfile.TemporaryDirectory(prefix='hm_perf_') as workdir:
+        run, check = _stage(name, n, workdir)
+        times, result = [], None
+        for _ in range(repeat):
+            t0 = time.perf_counter()
+            result = run()
+            times.append(time.perf_counter() - t0)
+        times.sort()
+        rss = resource.getrusage(resource.RUSAGE_SELF).ru_maxrss
+        rss_mb = rss / (1024.0 * 1024.0) if sys.platform == 'darwin' else rss / 1024.0
+        print(json.dumps({'stage': name, 'seconds': times[len(times) // 2], 'rss_mb': rss_mb,
+                          'check': check(result)}))
+
+
+# ---------------------------------------------------------------- driver
+
+def run_stage(name, size, repeat):
+    cmd = [sys.executable, os.path.abspath(__file__), '--_child', name, '--size', size, '--repeat', str(repeat)]
+    p = subprocess.run(cmd, capture_output=True, text=True)
+    if p.returncode != 0:
+        raise RuntimeError(f"{name} failed:\n{p.stderr}")
+    return json.loads(p.stdout.strip().splitlines()[-1])
+
+
+def main():
+    ap = argparse.ArgumentParser()
+    ap.add_argument('--stages', default=','.join(STAGES))
+    ap.add_argument('--size', choices=SIZES.keys(), default='medium')
+    ap.add_argument('--repeat', type=int, default=3)
+    ap.add_argument('--baseline', default=BASELINE)
+    ap.add_argument('--update-baseline', action='store_true')
+    ap.add_argument('--time-tolerance', type=float, default=0.25, help='allowed relative slowdown')
+    ap.add_argument('--rss-tolerance', type=float, default=0.20, help='allowed relative peak-RSS growth')
+    ap.add_argument('--json', default=None, help='also write this run here')
+    ap.add_argument('--_child', default=None, help=argparse.SUPPRESS)
+    args = ap.parse_args()
+
+    if args._child:
+        child(args._child, SIZES[args.size], args.repeat)
+        return 0
+
+    stages = [s for s in args.stages.split(',') if s]
+    results = {}
+    for s in stages:
+        r = run_stage(s, args.size, args.repeat)
+        results[s] = r
+        print(f"{s:20s} {r['seconds']:8.3f} s  {r['rss_mb']:8.1f} MB  {json.dumps(r['check'])}")
+
+    run = {'size': args.size, 'python': platform.python_version(), 'machine': platform.machine(),
+           'stages': {k: {'seconds': v['seconds'], 'rss_mb': v['rss_mb']} for k, v in results.items()}}
+    if args.json:
+        with open(args.json, 'w') as f:
+            json.dump(run, f, indent=2)
+
+    if args.update_baseline:
+        base = {}
+        if os.path.isfile(args.baseline):
+            with open(args.baseline) as f:
+                base = json.load(f)
+        base[args.size] = run
+        with open(args.baseline, 'w') as f:
+            json.dump(base, f, indent=2, sort_keys=True)
+        print(f"Baseline for '{args.size}' written to {args.baseline}")
+        return 0
+
+    if not os.path.isfile(args.baseline):
+        print(f"No baseline at {args.baseline}; run with --update-baseline first.", file=sys.stderr)
+        return 2
+    with open(args.baseline) as f:
+        base = json.load(f).get(args.size, {}).get('stages', {})
+
+    failed = []
+    for s, r in results.items():
+        b = base.get(s)
+        if b is None:
+            print(f"{s:20s} no baseline entry, skipped")
+            continue
+        dt = r['seconds'] / b['seconds'] - 1.0 if b['seconds'] > 0 else 0.0
+        dm = r['rss_mb'] / b['rss_mb'] - 1.0 if b['rss_mb'] > 0 else 0.0
+        bad = []
+        if dt > args.time_tolerance:
+            bad.append(f"time {dt:+.0%}")
+        if dm > args.rss_tolerance:
+            bad.append(f"rss {dm:+.0%}")
+        print(f"{s:20s} time {dt:+7.1%}  rss {dm:+7.1%}" + ("  REGRESSION: " + ", ".join(bad) if bad else ""))
+        if bad:
+            failed.append(s)
+    if failed:
+        print(f"\nRegressed: {', '.join(failed)}", file=sys.stderr)
+        return 1
+    return 0
+
+
+if __name__ == '__main__':
+    sys.exit(main())
@@ -0,0 +1,143 @@
+package com.leo.histomagnify;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.stream.IntStream;
+
+/**
+ * Contrast-limited adaptive histogram equalisation, following OpenCV's {@code CLAHE::apply}
+ * step for step so the result matches {@code cv2.createCLAHE(clipLimit, tileGridSize)} as used
+ * by {@code clahe_first_page} in segment.py: BORDER_REFLECT_101 padding to a multiple of the grid,
+ * integer clip limit with uniform + strided residual redistribution, per-tile LUTs and float
+ * bilinear interpolation between tile centres. Tile LUTs and output rows run in parallel.
+ */
+public final class Clahe {
+    public static final double DEFAULT_CLIP = 2.0;
+    public static final int DEFAULT_TILES = 8;
+
+    private Clahe() {}
+
+    public static ByteProcessor apply(ByteProcessor ip) {
+        return apply(ip, DEFAULT_CLIP, DEFAULT_TILES, DEFAULT_TILES);
+    }
+
+    public static ByteProcessor apply(ByteProcessor ip, double clipLimit, int tilesX, int tilesY) {
+        int w = ip.getWidth(), h = ip.getHeight();
+        byte[] src = (byte[]) ip.getPixels();
+        int[] px = new int[src.length];
+        for (int i = 0; i < px.length; i++) px[i] = src[i] & 0xff;
+        int[] res = run(px, w, h, 256, clipLimit, tilesX, tilesY);
+        byte[] out = new byte[res.length];
+        for (int i = 0; i < out.length; i++) out[i] = (byte) res[i];
+        return new ByteProcessor(w, h, out);
+    }
+
+    public static ShortProcessor apply(ShortProcessor ip, double clipLimit, int tilesX, int tilesY) {
+        int w = ip.getWidth(), h = ip.getHeight();
+        short[] src = (short[]) ip.getPixels();
+        int[] px = new int[src.length];
+        for (int i = 0; i < px.length; i++) px[i] = src[i] & 0xffff;
+        int[] res = run(px, w, h, 65536, clipLimit, tilesX, tilesY);
+        short[] out = new short[res.length];
+        for (int i = 0; i < out.length; i++) out[i] = (short) res[i];
+        return new ShortProcessor(w, h, out, null);
+    }
+
+    /** segment.py's enhancement: to_gray8, then 8x8 / clip 2.0 CLAHE. */
+    public static ByteProcessor enhanceForModel(ImageProcessor ip) {
+        return apply(TiledSegmenter.toGray8(ip));
+    }
+
+    private static int[] run(int[] src, int w, int h, int histSize, double clip, int tilesX, int tilesY) {
+        // OpenCV pads whenever either side is not a multiple of the grid, by a full tile on an even side
+        int ew = w, eh = h;
+        if (w % tilesX != 0 || h % tilesY != 0) {
+            ew = w + tilesX - (w % tilesX);
+            eh = h + tilesY - (h % tilesY);
+        }
+        final int tw = ew / tilesX, th = eh / tilesY;
+        final int tileTotal = tw * th;
+        final float lutScale = (float) (histSize - 1) / tileTotal;
+        int cl = 0;
+        if (clip > 0.0) cl = Math.max((int) (clip * tileTotal / histSize), 1);
+        final int clipLimit = cl;
+        final int maxVal = histSize - 1;
+
+        final int[][] luts = new int[tilesX * tilesY][];
+        IntStream.range(0, luts.length).parallel().forEach(t -> {
+            int tx = t % tilesX, ty = t / tilesX;
+            int[] hist = new int[histSize];
+            for (int y = ty * th; y < (ty + 1) * th; y++) {
+                int row = reflect101(y, h) * w;
+                for (int x = tx * tw; x < (tx + 1) * tw; x++) hist[src[row + reflect101(x, w)]]++;
+            }
+            if (clipLimit > 0) {
+                int clipped = 0;
+                for (int i = 0; i < histSize; i++) {
+                    if (hist[i] > clipLimit) {
+                        clipped += hist[i] - clipLimit;
+                        hist[i] = clipLimit;
+                    }
+                }
+                int redist = clipped / histSize;
+                int residual = clipped - redist * histSize;
+                for (int i = 0; i < histSize; i++) hist[i] += redist;
+                if (residual != 0) {
+                    int step = Math.max(histSize / residual, 1);
+                    for (int i = 0; i < histSize && residual > 0; i += step, residual--) hist[i]++;
+                }
+            }
+            int[] lut = new int[histSize];
+            int sum = 0;
+            for (int i = 0; i < histSize; i++) {
+                sum += hist[i];
+                lut[i] = saturate(sum * lutScale, maxVal);
+            }
+            luts[t] = lut;
+        });
+
+        final float invTw = 1.0f / tw, invTh = 1.0f / th;
+        final int[] tx1 = new int[w], tx2 = new int[w];
+        final float[] xa = new float[w];
+        for (int x = 0; x < w; x++) {
+            float txf = x * invTw - 0.5f;
+            int t1 = (int) Math.floor(txf);
+            xa[x] = txf - t1;
+            tx1[x] = Math.max(t1, 0);
+            tx2[x] = Math.min(t1 + 1, tilesX - 1);
+        }
+
+        final int[] dst = new int[w * h];
+        IntStream.range(0, h).parallel().forEach(y -> {
+            float tyf = y * invTh - 0.5f;
+            int t1 = (int) Math.floor(tyf);
+            float ya = tyf - t1, ya1 = 1.0f - ya;
+            int ty1 = Math.max(t1, 0), ty2 = Math.min(t1 + 1, tilesY - 1);
+            int r1 = ty1 * tilesX, r2 = ty2 * tilesX;
+            int row = y * w;
+            for (int x = 0; x < w; x++) {
+                int v = src[row + x];
+                float xa0 = xa[x], xa1 = 1.0f - xa0;
+                float res = (luts[r1 + tx1[x]][v] * xa1 + luts[r1 + tx2[x]][v] * xa0) * ya1
+                        + (luts[r2 + tx1[x]][v] * xa1 + luts[r2 + tx2[x]][v] * xa0) * ya;
+                dst[row + x] = saturate(res, maxVal);
+            }
+        });
+        return dst;
+    }
+
+    // saturate_cast: round half to even, clamp
+    private static int saturate(float v, int maxVal) {
+        int r = (int) Math.rint(v);
+        return r < 0 ? 0 : (r > maxVal ? maxVal : r);
+    }
+
+    // BORDER_REFLECT_101 (gfedcb|abcdefgh|gfedcba)
+    private static int reflect101(int i, int n) {
+        if (n == 1) return 0;
+        while (i < 0 || i >= n) i = (i < 0) ? -i : 2 * n - 2 - i;
+        return i;
+    }
+}
@@ -0,0 +1,115 @@
+package com.leo.histomagnify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reader for the HMC1 column files written by {@code src/core/columnar.py}: a small
+ * header followed by one little-endian int32/float32 array per column. The file is
+ * memory-mapped and columns are exposed as buffer views, so nothing is parsed or copied.
+ * {@link #writeInts} writes int32-only files for the Python side.
+ */
+public final class ColumnarTable {
+    private static final byte[] MAGIC = {'H', 'M', 'C', '1'};
+
+    private final int rows;
+    private final Map<String, ByteBuffer> columns = new LinkedHashMap<>();
+    private final Map<String, Character> types = new LinkedHashMap<>();
+
+    private ColumnarTable(MappedByteBuffer buf) throws IOException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        for (byte b : MAGIC) {
+            if (buf.get() != b) throw new IOException("Not an HMC1 column file");
+        }
+        rows = buf.getInt();
+        int ncols = buf.getInt();
+        if (rows < 0 || ncols < 0) throw new IOException("Corrupt HMC1 header");
+        byte[] name = new byte[15];
+        char[] kinds = new char[ncols];
+        String[] names = new String[ncols];
+        for (int c = 0; c < ncols; c++) {
+            kinds[c] = (char) buf.get();
+            buf.get(name);
+            int n = 0;
+            while (n < name.length && name[n] != 0) n++;
+            names[c] = new String(name, 0, n, StandardCharsets.US_ASCII);
+        }
+        int offset = 12 + 16 * ncols;
+        long need = offset + 4L * rows * ncols;
+        if (buf.capacity() < need) throw new IOException("Truncated HMC1 file");
+        for (int c = 0; c < ncols; c++) {
+            buf.limit(offset + 4 * rows).position(offset);
+            columns.put(names[c], buf.slice().order(ByteOrder.LITTLE_ENDIAN));
+            types.put(names[c], kinds[c]);
+            buf.limit(buf.capacity());
+            offset += 4 * rows;
+        }
+    }
+
+    public static ColumnarTable read(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+             FileChannel ch = raf.getChannel()) {
+            // the mapping stays valid after the channel is closed
+            return new ColumnarTable(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    /** Writes int32 columns of equal length, in order. */
+    public static void writeInts(File f, String[] names, int[][] cols) throws IOException {
+        int rows = cols.length == 0 ? 0 : cols[0].length;
+        ByteBuffer head = ByteBuffer.allocate(12 + 16 * cols.length).order(ByteOrder.LITTLE_ENDIAN);
+        head.put(MAGIC).putInt(rows).putInt(cols.length);
+        for (int c = 0; c < cols.length; c++) {
+            if (cols[c].length != rows) throw new IOException("Column '" + names[c] + "' has " + cols[c].length + " rows, expected " + rows);
+            byte[] name = Arrays.copyOf(names[c].getBytes(StandardCharsets.US_ASCII), 15);
+            head.put((byte) 'i').put(name);
+        }
+        head.flip();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw");
+             FileChannel ch = raf.getChannel()) {
+            raf.setLength(0);
+            while (head.hasRemaining()) ch.write(head);
+            ByteBuffer data = ByteBuffer.allocate(4 * Math.max(rows, 1)).order(ByteOrder.LITTLE_ENDIAN);
+            for (int[] col : cols) {
+                data.clear();
+                data.asIntBuffer().put(col);
+                data.limit(4 * rows);
+                while (data.hasRemaining()) ch.write(data);
+            }
+        }
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public boolean has(String name) {
+        return columns.containsKey(name);
+    }
+
+    public IntBuffer ints(String name) throws IOException {
+        return column(name, 'i').asIntBuffer();
+    }
+
+    public FloatBuffer floats(String name) throws IOException {
+        return column(name, 'f').asFloatBuffer();
+    }
+
+    private ByteBuffer column(String name, char kind) throws IOException {
+        ByteBuffer b = columns.get(name);
+        if (b == null) throw new IOException("No column '" + name + "'");
+        if (types.get(name) != kind) throw new IOException("Column '" + name + "' is not of type " + kind);
+        return b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
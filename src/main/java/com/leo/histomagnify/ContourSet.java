@@ -0,0 +1,114 @@
+package com.leo.histomagnify;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+
+import java.awt.Color;
+import java.awt.geom.Path2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Object boundary polygons written by metrics.py (labels_to_polygons): HMC1 columns obj, ring,
+ * x, y with one row per vertex, rings of an object contiguous. Kept as flat float arrays with
+ * ring offsets, so memory follows the number of vertices rather than the image area. The
+ * overlay draws a whole layer as one vector shape; objectRois() gives one ROI per object for
+ * the ROI Manager.
+ */
+public final class ContourSet {
+
+    private final float[] xs, ys;
+    private final int[] ringStart;   // ringCount + 1 offsets into xs/ys
+    private final int[] ringObj;
+
+    private ContourSet(float[] xs, float[] ys, int[] ringStart, int[] ringObj) {
+        this.xs = xs;
+        this.ys = ys;
+        this.ringStart = ringStart;
+        this.ringObj = ringObj;
+    }
+
+    /** Reads {@code f}, shifting every vertex by (dx, dy), e.g. to the ROI the metric ran on. */
+    public static ContourSet read(File f, double dx, double dy) throws IOException {
+        ColumnarTable t = ColumnarTable.read(f);
+        int n = t.rows();
+        IntBuffer obj = t.ints("obj"), ring = t.ints("ring");
+        FloatBuffer fx = t.floats("x"), fy = t.floats("y");
+        float[] xs = new float[n], ys = new float[n];
+        int[] starts = new int[Math.max(1, n / 3) + 1];
+        int[] objs = new int[starts.length];
+        int rings = 0;
+        for (int i = 0; i < n; i++) {
+            xs[i] = (float) (fx.get(i) + dx);
+            ys[i] = (float) (fy.get(i) + dy);
+            if (i == 0 || obj.get(i) != obj.get(i - 1) || ring.get(i) != ring.get(i - 1)) {
+                if (rings + 1 >= starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                    objs = Arrays.copyOf(objs, starts.length);
+                }
+                starts[rings] = i;
+                objs[rings] = obj.get(i);
+                rings++;
+            }
+        }
+        starts[rings] = n;
+        return new ContourSet(xs, ys, Arrays.copyOf(starts, rings + 1), Arrays.copyOf(objs, rings));
+    }
+
+    public int ringCount() {
+        return ringObj.length;
+    }
+
+    public int objectCount() {
+        int n = 0;
+        for (int r = 0; r < ringObj.length; r++) if (r == 0 || ringObj[r] != ringObj[r - 1]) n++;
+        return n;
+    }
+
+    /** All rings as one stroked vector shape; null when there are none. */
+    public Roi overlayRoi(Color color, float strokeWidth) {
+        if (ringObj.length == 0) return null;
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD, xs.length + ringObj.length);
+        for (int r = 0; r < ringObj.length; r++) appendRing(path, r);
+        ShapeRoi roi = new ShapeRoi(path);
+        roi.setStrokeColor(color);
+        roi.setStrokeWidth(strokeWidth);
+        return roi;
+    }
+
+    /** One ROI per object named {@code prefix-id}: a polygon, or a shape when the object has holes. */
+    public List<Roi> objectRois(String prefix) {
+        List<Roi> out = new ArrayList<>();
+        int r = 0;
+        while (r < ringObj.length) {
+            int end = r + 1;
+            while (end < ringObj.length && ringObj[end] == ringObj[r]) end++;
+            Roi roi;
+            if (end - r == 1) {
+                int s = ringStart[r], n = ringStart[r + 1] - s;
+                roi = new PolygonRoi(Arrays.copyOfRange(xs, s, s + n), Arrays.copyOfRange(ys, s, s + n), n, Roi.POLYGON);
+            } else {
+                Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+                for (int k = r; k < end; k++) appendRing(path, k);
+                roi = new ShapeRoi(path);
+            }
+            roi.setName(prefix + "-" + ringObj[r]);
+            out.add(roi);
+            r = end;
+        }
+        return out;
+    }
+
+    private void appendRing(Path2D.Float path, int r) {
+        int s = ringStart[r], e = ringStart[r + 1];
+        path.moveTo(xs[s], ys[s]);
+        for (int i = s + 1; i < e; i++) path.lineTo(xs[i], ys[i]);
+        path.closePath();
+    }
+}
@@ -0,0 +1,369 @@
+package com.leo.histomagnify;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.gui.Line;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless batch runner: segments image files and runs the metrics of their magnification
+ * through {@link HistoMagnifyEngine}, writing per image {@code <name>_labels.tif},
+ * {@code <name>_overlay.png} and point tables, and one {@code metrics.csv} for the batch.
+ *
+ * <pre>
+ * java -Djava.awt.headless=true -cp "Fiji.app/jars/*:Fiji.app/plugins/*" com.leo.histomagnify.HistoMagnifyCli \
+ *      --config run.properties --out results --threads 4 slide1.tif slide2.tif
+ * </pre>
+ *
+ * Settings come from a properties file (see {@link #usage()}); --magnification, --page and
+ * --metrics override it. --threads images are processed at once, each with an equal share of
+ * the cores. --debug logs the raw Python output. Exit code 0 when every image succeeded, 1 when any failed, 2 on bad arguments.
+ */
+public final class HistoMagnifyCli {
+
+    private static final String[] METRICS_20X = {"nuc", "rbc"};
+    private static final String[] METRICS_40X = {"thickness", "proc"};
+
+    private HistoMagnifyCli() {}
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        Properties conf = new Properties();
+        Properties overrides = new Properties();
+        Path outDir = null;
+        int threads = 1;
+        List<String> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                switch (a) {
+                    case "-h":
+                    case "--help":
+                        System.out.println(usage());
+                        return 0;
+                    case "--config":
+                        try (InputStream in = Files.newInputStream(Paths.get(args[++i]))) {
+                            conf.load(in);
+                        }
+                        break;
+                    case "--out":
+                        outDir = Paths.get(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--debug":
+                        PythonRuntime.debugOutput = true;
+                        break;
+                    case "--magnification":
+                    case "--page":
+                    case "--metrics":
+                        overrides.setProperty(a.substring(2), args[++i]);
+                        break;
+                    default:
+                        if (a.startsWith("--")) throw new IllegalArgumentException("Unknown option " + a);
+                        inputs.add(a);
+                }
+            }
+            conf.putAll(overrides);
+            if (outDir == null || inputs.isEmpty()) throw new IllegalArgumentException("--out and at least one image are required");
+            Files.createDirectories(outDir);
+        } catch (Exception e) {
+            System.err.println("[HistoMagnify] " + e.getMessage());
+            System.err.println(usage());
+            return 2;
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int share = Math.max(1, cores / threads);
+        HistoMagnifyEngine.Params base;
+        try {
+            base = params(conf).threads(share).workers(share).build();
+        } catch (Exception e) {
+            System.err.println("[HistoMagnify] Bad config: " + e.getMessage());
+            return 2;
+        }
+
+        List<Map<String, String>> rows = new ArrayList<>();
+        boolean failed = false;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (HistoMagnifyEngine engine = HistoMagnifyEngine.open()) {
+            List<Future<Map<String, String>>> jobs = new ArrayList<>();
+            final Path out = outDir;
+            List<String> stems = stems(inputs);
+            for (int i = 0; i < inputs.size(); i++) {
+                File in = new File(inputs.get(i));
+                String stem = stems.get(i);
+                jobs.add(pool.submit(() -> processImage(engine, in, stem, out, base, conf)));
+            }
+            for (Future<Map<String, String>> f : jobs) {
+                Map<String, String> row = f.get();
+                failed |= !"ok".equals(row.get("status"));
+                rows.add(row);
+            }
+            writeTable(outDir.resolve("metrics.csv"), rows);
+        } catch (Exception e) {
+            System.err.println("[HistoMagnify] " + e);
+            return 1;
+        } finally {
+            pool.shutdownNow();
+        }
+        IJ.log("[HistoMagnify] " + rows.size() + " image(s) done, results in " + outDir.toAbsolutePath());
+        return failed ? 1 : 0;
+    }
+
+    private static Map<String, String> processImage(HistoMagnifyEngine engine, File file, String stem, Path outDir,
+                                                    HistoMagnifyEngine.Params base, Properties conf) {
+        Map<String, String> row = new LinkedHashMap<>();
+        row.put("image", file.getPath());
+        long t0 = System.nanoTime();
+        try {
+            ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+            if (imp == null) throw new IOException("Could not open " + file);
+            int page = Integer.parseInt(conf.getProperty("page", "0"));
+            ImageProcessor ip = imp.getStack().getProcessor(Math.min(Math.max(0, page), imp.getStackSize() - 1) + 1);
+
+            String mag = conf.getProperty("magnification", "auto");
+            if ("auto".equalsIgnoreCase(mag)) {
+                mag = HistoMagnify_Plugin.detectMagnification(imp);
+                if (mag == null || "60X".equals(mag)) mag = "40X";
+            }
+            HistoMagnifyEngine.Params p = base.toBuilder().magnification(mag).build();
+            row.put("magnification", p.magnification);
+            row.put("width", String.valueOf(ip.getWidth()));
+            row.put("height", String.valueOf(ip.getHeight()));
+            imp.close();
+
+            IJ.log("[HistoMagnify] " + file.getName() + ": segmenting (" + p.magnification + ")...");
+            HistoMagnifyEngine.Segmentation seg = engine.segment(ip, p);
+            ip = null;
+            row.put("engine", seg.engine);
+            save(seg.labels, outDir.resolve(stem + "_labels.tif"));
+            seg.runs.write(outDir.resolve(stem + "_labels" + LabelRuns.SUFFIX).toFile());
+            long[] area = seg.areas(OverlayOps.labelLut(p.magnification).length);
+            for (int k = 1; k < area.length; k++) row.put("class" + k + "_area_px", String.valueOf(area[k]));
+
+            double unitsPerPx = Double.parseDouble(conf.getProperty("pixel_size", "0"))
+                    / Double.parseDouble(conf.getProperty("expansion_factor", "1"));
+            String unit = conf.getProperty("unit", "um");
+            Overlay ov = new Overlay();
+            for (String m : metrics(conf, p.magnification)) {
+                IJ.log("[HistoMagnify] " + file.getName() + ": " + m + "...");
+                switch (m) {
+                    case "nuc":
+                    case "rbc": {
+                        HistoMagnifyEngine.Count c = engine.count(seg.mask("nuc".equals(m) ? 1 : 2), m, p);
+                        row.put(m + "_count", String.valueOf(c.count));
+                        Color col = "rbc".equals(m) ? Color.WHITE : new Color(255, 255, 0);
+                        addContours(ov, c.outerContours, col, 2);
+                        addContours(ov, c.contours, col, 2);
+                        break;
+                    }
+                    case "thickness": {
+                        HistoMagnifyEngine.Thickness t = engine.thickness(seg.mask(1), p);
+                        putValue(row, "gbm_thickness", t.meanPx, unitsPerPx, unit);
+                        try (PrintWriter w = writer(outDir.resolve(stem + "_thickness_points.csv"))) {
+                            w.println("x,y,diam_px");
+                            for (int i = 0; i < t.x.length; i++) w.printf(Locale.ROOT, "%d,%d,%.6f%n", t.x[i], t.y[i], t.diameterPx[i]);
+                        }
+                        for (int i = 0; i < t.x.length; i++) {
+                            Roi dot = new Roi(t.x[i], t.y[i], 1, 1);
+                            dot.setFillColor(Color.YELLOW);
+                            ov.add(dot);
+                        }
+                        break;
+                    }
+                    case "proc": {
+                        HistoMagnifyEngine.ProcessNnd n = engine.processNnd(seg.mask(2), p);
+                        putValue(row, "proc_nnd", n.meanPx, unitsPerPx, unit);
+                        try (PrintWriter w = writer(outDir.resolve(stem + "_proc_pairs.csv"))) {
+                            w.println("x0,y0,x1,y1");
+                            for (int i = 0; i < n.x0.length; i++)
+                                w.printf(Locale.ROOT, "%.3f,%.3f,%.3f,%.3f%n", n.x0[i], n.y0[i], n.x1[i], n.y1[i]);
+                        }
+                        Color col = new Color(255, 240, 6);
+                        addContours(ov, n.outerContours, col, 1);
+                        addContours(ov, n.contours, col, 1);
+                        for (int i = 0; i < n.x0.length; i++) {
+                            Line ln = new Line(n.x0[i], n.y0[i], n.x1[i], n.y1[i]);
+                            ln.setStrokeColor(Color.RED);
+                            ov.add(ln);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalArgumentException("Unknown metric " + m);
+                }
+            }
+            saveOverlay(seg, p.magnification, ov, outDir.resolve(stem + "_overlay.png"));
+            row.put("status", "ok");
+        } catch (Throwable e) {
+            IJ.log("[HistoMagnify] " + file.getName() + " failed: " + e);
+            row.put("status", "error: " + e.getMessage());
+        }
+        row.put("seconds", String.format(Locale.ROOT, "%.1f", (System.nanoTime() - t0) / 1e9));
+        return row;
+    }
+
+    static HistoMagnifyEngine.Builder params(Properties c) {
+        HistoMagnifyEngine.Builder b = HistoMagnifyEngine.Params.builder();
+        if (c.containsKey("enhance")) b.enhance(Boolean.parseBoolean(c.getProperty("enhance")));
+        if (c.containsKey("engine")) b.engine(c.getProperty("engine"));
+        if (c.containsKey("backend")) b.backend(c.getProperty("backend"));
+        if (c.containsKey("skip_blank")) b.skipBlank(Boolean.parseBoolean(c.getProperty("skip_blank")));
+        if (c.containsKey("overlap")) b.overlap(Double.parseDouble(c.getProperty("overlap")));
+        if (c.containsKey("blend")) b.blend(c.getProperty("blend"));
+        if (c.containsKey("resample")) b.resample(c.getProperty("resample"));
+        if (c.containsKey("memory_budget_mb")) b.memoryBudgetMb(Integer.parseInt(c.getProperty("memory_budget_mb")));
+        if (c.containsKey("max_pair_px")) b.maxPairPx(Double.parseDouble(c.getProperty("max_pair_px")));
+        b.proc(watershed(c, "proc", HistoMagnifyEngine.Watershed.PROC));
+        b.nuc(watershed(c, "nuc", HistoMagnifyEngine.Watershed.NUC));
+        b.rbc(watershed(c, "rbc", HistoMagnifyEngine.Watershed.RBC));
+        return b;
+    }
+
+    private static HistoMagnifyEngine.Watershed watershed(Properties c, String k, HistoMagnifyEngine.Watershed d) {
+        return new HistoMagnifyEngine.Watershed(
+                Double.parseDouble(c.getProperty(k + ".min_dist", String.valueOf(d.minDist))),
+                Double.parseDouble(c.getProperty(k + ".thresh_rel", String.valueOf(d.threshRel))),
+                Double.parseDouble(c.getProperty(k + ".sigma", String.valueOf(d.sigma))),
+                Double.parseDouble(c.getProperty(k + ".keep_low", String.valueOf(d.keepLow))),
+                Double.parseDouble(c.getProperty(k + ".keep_high", String.valueOf(d.keepHigh))));
+    }
+
+    // the requested metrics that apply to this magnification, all of them by default
+    private static List<String> metrics(Properties c, String mag) {
+        List<String> valid = Arrays.asList("20X".equals(mag) ? METRICS_20X : METRICS_40X);
+        String req = c.getProperty("metrics", "all").trim();
+        if (req.isEmpty() || "none".equalsIgnoreCase(req)) return new ArrayList<>();
+        if ("all".equalsIgnoreCase(req)) return valid;
+        List<String> out = new ArrayList<>();
+        for (String m : req.split(",")) {
+            m = m.trim().toLowerCase(Locale.ROOT);
+            if (valid.contains(m)) out.add(m);
+        }
+        return out;
+    }
+
+    private static void putValue(Map<String, String> row, String key, double px, double unitsPerPx, String unit) {
+        row.put(key + "_px", Double.isNaN(px) ? "" : String.format(Locale.ROOT, "%.6f", px));
+        if (unitsPerPx > 0)
+            row.put(key + "_" + unit, Double.isNaN(px) ? "" : String.format(Locale.ROOT, "%.6f", px * unitsPerPx));
+    }
+
+    private static void addContours(Overlay ov, ContourSet cs, Color color, float width) {
+        Roi r = cs.overlayRoi(color, width);
+        if (r != null) ov.add(r);
+    }
+
+    // labels blended over the model input, vector overlay burnt in
+    private static void saveOverlay(HistoMagnifyEngine.Segmentation seg, String mag, Overlay ov, Path out) throws IOException {
+        ColorProcessor bg = (ColorProcessor) seg.enhanced.convertToRGB();
+        ColorProcessor rgb = new ColorProcessor(bg.getWidth(), bg.getHeight());
+        seg.runs.blend(rgb, bg, OverlayOps.labelLut(mag), 0, bg.getHeight());
+        ImagePlus imp = new ImagePlus("overlay", rgb);
+        if (ov.size() > 0) {
+            imp.setOverlay(ov);
+            imp = imp.flatten();
+        }
+        if (!new FileSaver(imp).saveAsPng(out.toString())) throw new IOException("Could not write " + out);
+    }
+
+    private static void save(ByteProcessor ip, Path out) throws IOException {
+        if (!new FileSaver(new ImagePlus(out.getFileName().toString(), ip)).saveAsTiff(out.toString()))
+            throw new IOException("Could not write " + out);
+    }
+
+    private static PrintWriter writer(Path p) throws IOException {
+        return new PrintWriter(Files.newBufferedWriter(p, StandardCharsets.UTF_8));
+    }
+
+    // union of the columns in first-seen order; missing values left empty
+    private static void writeTable(Path out, List<Map<String, String>> rows) throws IOException {
+        Set<String> cols = new LinkedHashSet<>();
+        for (Map<String, String> r : rows) cols.addAll(r.keySet());
+        try (PrintWriter w = writer(out)) {
+            w.println(String.join(",", cols));
+            for (Map<String, String> r : rows) {
+                List<String> cells = new ArrayList<>();
+                for (String c : cols) cells.add(csv(r.getOrDefault(c, "")));
+                w.println(String.join(",", cells));
+            }
+        }
+    }
+
+    private static String csv(String v) {
+        return v.contains(",") || v.contains("\"") || v.contains("\n") ? "\"" + v.replace("\"", "\"\"") + "\"" : v;
+    }
+
+    static String stem(File f) {
+        String n = f.getName();
+        int dot = n.lastIndexOf('.');
+        if (dot > 0) n = n.substring(0, dot);
+        return n.toLowerCase(Locale.ROOT).endsWith(".ome") ? n.substring(0, n.length() - 4) : n;
+    }
+
+    /**
+     * Output name per input, in order: the file's stem, with _2, _3, ... on later inputs whose stem
+     * is taken (same name in another folder), so concurrent jobs never write the same files.
+     */
+    static List<String> stems(List<String> inputs) {
+        // compared ignoring case, as on Windows and macOS file systems
+        List<String> out = new ArrayList<>();
+        Set<String> own = new HashSet<>(), used = new HashSet<>();
+        for (String in : inputs) own.add(stem(new File(in)).toLowerCase(Locale.ROOT));
+        for (String in : inputs) {
+            String stem = stem(new File(in)), unique = stem;
+            for (int k = 2; used.contains(unique.toLowerCase(Locale.ROOT))
+                    || (k > 2 && own.contains(unique.toLowerCase(Locale.ROOT))); k++) {
+                unique = stem + "_" + k;
+            }
+            used.add(unique.toLowerCase(Locale.ROOT));
+            if (!unique.equals(stem)) IJ.log("[HistoMagnify] " + in + ": writing as " + unique + " (name taken by another input)");
+            out.add(unique);
+        }
+        return out;
+    }
+
+    static String usage() {
+        return "Usage: HistoMagnifyCli --out DIR [--config FILE] [--threads N] [--magnification 20X|40X|auto]\n" +
+                "                      [--page N] [--metrics all|none|nuc,rbc,thickness,proc] [--debug] IMAGE...\n" +
+                "Config (Java properties, all optional):\n" +
+                "  magnification=auto  page=0  metrics=all  enhance=true  engine=auto|python|onnx  backend=float32\n" +
+                "  skip_blank=false  overlap=0.5  blend=cosine  resample=tile  memory_budget_mb=0\n" +
+                "  pixel_size=0 (units per pixel, adds *_<unit> columns)  unit=um  expansion_factor=1\n" +
+                "  max_pair_px=20  {proc,nuc,rbc}.{min_dist,thresh_rel,sigma,keep_low,keep_high}";
+    }
+}
@@ -0,0 +1,517 @@
+package com.leo.histomagnify;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Segmentation and metrics without the plugin's windows, dialogs or static settings, for
+ * scripts and pipelines. Inputs are ImageProcessors (or byte arrays), settings an immutable
+ * {@link Params}, results plain objects in pixels. One engine can be shared by any number of
+ * threads: every call works in its own temp directory, and the venv, the extracted scripts
+ * and the native models are set up once and then only read.
+ *
+ * <pre>
+ * engine = HistoMagnifyEngine.open()
+ * p = HistoMagnifyEngine.Params.builder().magnification("20X").build()
+ * seg = engine.segment(imp.getProcessor(), p)
+ * nuclei = engine.count(seg.mask(1), "nuc", p)
+ * </pre>
+ *
+ * Metrics run in the Python venv (~/.histomagnify/venv, created on first use); segmentation
+ * runs on ONNX Runtime when it and the exported model are available, else in Python.
+ */
+public final class HistoMagnifyEngine implements AutoCloseable {
+
+    public static final String ENGINE_AUTO = "auto";
+    public static final String ENGINE_PYTHON = "python";
+    public static final String ENGINE_ONNX = "onnx";
+
+    private static final Map<String, String> BF_MODELS = new HashMap<>();
+    static {
+        BF_MODELS.put("20x", "/models/20x.hdf5");
+        BF_MODELS.put("40x", "/models/40x.hdf5");
+    }
+
+    private final Object setupLock = new Object();
+    private Path resourcesDir;                         // scripts + Keras models, extracted once
+    private String python;
+    private final Map<String, TileModel> nativeModels = new HashMap<>();
+    private final Map<String, Boolean> nativeMissing = new HashMap<>();
+    private volatile boolean closed;
+
+    private HistoMagnifyEngine() {}
+
+    /** Nothing is set up until the first call that needs it. */
+    public static HistoMagnifyEngine open() {
+        return new HistoMagnifyEngine();
+    }
+
+    // ---------------------------------------------------------------- parameters
+
+    /** Watershed split and size filter for one object type; mirrors the Settings fields. */
+    public static final class Watershed {
+        public static final Watershed PROC = new Watershed(3.28, 0.26, 2.0, 0.20, 0.02);
+        public static final Watershed NUC = new Watershed(40.0, 0.30, 2.0, 0.40, 0.00);
+        public static final Watershed RBC = new Watershed(15.0, 0.30, 2.0, 0.40, 0.00);
+
+        public final double minDist, threshRel, sigma;
+        /** Fractions of the smallest / largest objects dropped, 0 = keep all. */
+        public final double keepLow, keepHigh;
+
+        public Watershed(double minDist, double threshRel, double sigma, double keepLow, double keepHigh) {
+            this.minDist = minDist;
+            this.threshRel = threshRel;
+            this.sigma = sigma;
+            this.keepLow = keepLow;
+            this.keepHigh = keepHigh;
+        }
+    }
+
+    public static final class Params {
+        public final String magnification;
+        /** CLAHE before the model (in Java); false for standard-processed images. */
+        public final boolean enhance;
+        public final String engine, backend;
+        public final boolean skipBlank;
+        public final double overlap;
+        public final String blend, resample;
+        /** ONNX intra-op threads per call. */
+        public final int threads;
+        /** Python worker processes for tiled metrics, 0 = all cores. */
+        public final int workers;
+        public final int memoryBudgetMb;
+        public final Watershed proc, nuc, rbc;
+        public final double maxPairPx;
+
+        private Params(Builder b) {
+            magnification = b.magnification;
+            enhance = b.enhance;
+            engine = b.engine;
+            backend = b.backend;
+            skipBlank = b.skipBlank;
+            overlap = b.overlap;
+            blend = b.blend;
+            resample = b.resample;
+            threads = b.threads;
+            workers = b.workers;
+            memoryBudgetMb = b.memoryBudgetMb;
+            proc = b.proc;
+            nuc = b.nuc;
+            rbc = b.rbc;
+            maxPairPx = b.maxPairPx;
+        }
+
+        public static Params defaults() {
+            return builder().build();
+        }
+
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        public Builder toBuilder() {
+            Builder b = new Builder();
+            b.magnification = magnification; b.enhance = enhance; b.engine = engine; b.backend = backend;
+            b.skipBlank = skipBlank; b.overlap = overlap; b.blend = blend; b.resample = resample;
+            b.threads = threads; b.workers = workers; b.memoryBudgetMb = memoryBudgetMb;
+            b.proc = proc; b.nuc = nuc; b.rbc = rbc; b.maxPairPx = maxPairPx;
+            return b;
+        }
+
+        ModelSpec spec() {
+            return ModelSpec.forMagnification(magnification);
+        }
+
+        Watershed watershed(String mode) {
+            switch (mode) {
+                case "nuc": return nuc;
+                case "rbc": return rbc;
+                default: return proc;
+            }
+        }
+    }
+
+    public static final class Builder {
+        private String magnification = "40X";
+        private boolean enhance = true;
+        private String engine = ENGINE_AUTO, backend = "float32";
+        private boolean skipBlank = false;
+        private double overlap = 0.5;
+        private String blend = "cosine", resample = "tile";
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int workers = 0;
+        private int memoryBudgetMb = 0;
+        private Watershed proc = Watershed.PROC, nuc = Watershed.NUC, rbc = Watershed.RBC;
+        private double maxPairPx = 20.0;
+
+        private Builder() {}
+
+        public Builder magnification(String v) {
+            String m = v.trim().toUpperCase(Locale.ROOT);
+            if (!"20X".equals(m) && !"40X".equals(m)) throw new IllegalArgumentException("magnification must be 20X or 40X: " + v);
+            magnification = m;
+            return this;
+        }
+        public Builder enhance(boolean v) { enhance = v; return this; }
+        public Builder engine(String v) {
+            if (!ENGINE_AUTO.equals(v) && !ENGINE_PYTHON.equals(v) && !ENGINE_ONNX.equals(v))
+                throw new IllegalArgumentException("engine must be auto, python or onnx: " + v);
+            engine = v;
+            return this;
+        }
+        public Builder backend(String v) { backend = v; return this; }
+        public Builder skipBlank(boolean v) { skipBlank = v; return this; }
+        public Builder overlap(double v) { overlap = v; return this; }
+        public Builder blend(String v) { blend = v; return this; }
+        public Builder resample(String v) { resample = v; return this; }
+        public Builder threads(int v) { threads = Math.max(1, v); return this; }
+        public Builder workers(int v) { workers = Math.max(0, v); return this; }
+        public Builder memoryBudgetMb(int v) { memoryBudgetMb = Math.max(0, v); return this; }
+        public Builder proc(Watershed v) { proc = v; return this; }
+        public Builder nuc(Watershed v) { nuc = v; return this; }
+        public Builder rbc(Watershed v) { rbc = v; return this; }
+        public Builder maxPairPx(double v) { maxPairPx = v; return this; }
+
+        public Params build() {
+            return new Params(this);
+        }
+    }
+
+    // ---------------------------------------------------------------- results
+
+    public static final class Segmentation {
+        /** Class per pixel, see the LUTs in the README. */
+        public final ByteProcessor labels;
+        /** The same labels as runs; masks and areas are taken from these. */
+        public final LabelRuns runs;
+        /** The model input (CLAHE output, or the 8-bit page when not enhanced). */
+        public final ByteProcessor enhanced;
+        public final String engine;
+
+        Segmentation(ByteProcessor labels, LabelRuns runs, ByteProcessor enhanced, String engine) {
+            this.labels = labels;
+            this.runs = runs;
+            this.enhanced = enhanced;
+            this.engine = engine;
+        }
+
+        /** 255 where the label is {@code classId}, else 0; GBM = 1 and process = 2 at 40X, nuclei = 1 and RBC = 2 at 20X. */
+        public ByteProcessor mask(int classId) {
+            return runs.mask(classId, null);
+        }
+
+        /** Pixels per class 0..nClasses-1. */
+        public long[] areas(int nClasses) {
+            return runs.areas(nClasses, null);
+        }
+    }
+
+    /** Medial-axis points of the GBM: x, y and the local diameter in px. */
+    public static final class Thickness {
+        public final double meanPx;
+        public final int[] x, y;
+        public final float[] diameterPx;
+
+        Thickness(double meanPx, int[] x, int[] y, float[] diameterPx) {
+            this.meanPx = meanPx;
+            this.x = x;
+            this.y = y;
+            this.diameterPx = diameterPx;
+        }
+    }
+
+    /** Nearest-neighbour pairs of process centroids (x0, y0) -> (x1, y1). */
+    public static final class ProcessNnd {
+        public final double meanPx;
+        public final float[] x0, y0, x1, y1;
+        public final ContourSet contours, outerContours;
+
+        ProcessNnd(double meanPx, float[] x0, float[] y0, float[] x1, float[] y1,
+                   ContourSet contours, ContourSet outerContours) {
+            this.meanPx = meanPx;
+            this.x0 = x0; this.y0 = y0; this.x1 = x1; this.y1 = y1;
+            this.contours = contours;
+            this.outerContours = outerContours;
+        }
+    }
+
+    public static final class Count {
+        public final int count;
+        /** Split objects, and unsplit objects kept by the size filter. */
+        public final ContourSet contours, outerContours;
+
+        Count(int count, ContourSet contours, ContourSet outerContours) {
+            this.count = count;
+            this.contours = contours;
+            this.outerContours = outerContours;
+        }
+    }
+
+    // ---------------------------------------------------------------- segmentation
+
+    public Segmentation segment(byte[] gray, int width, int height, Params p) throws Exception {
+        return segment(new ByteProcessor(width, height, gray), p);
+    }
+
+    /** Any bit depth; converted to 8-bit gray as the plugin does. */
+    public Segmentation segment(ImageProcessor page, Params p) throws Exception {
+        checkOpen();
+        ModelSpec spec = p.spec();
+        ByteProcessor g8 = TiledSegmenter.toGray8(page);
+        ByteProcessor input = p.enhance ? Clahe.apply(g8) : g8;
+
+        TileModel model = ENGINE_PYTHON.equals(p.engine) ? null : nativeModel(spec, p);
+        if (model == null && ENGINE_ONNX.equals(p.engine))
+            throw new IOException("ONNX Runtime or " + spec.key + ".onnx is not available (see scripts/export_onnx.py)");
+        if (model != null) {
+            TiledSegmenter.Options opt = new TiledSegmenter.Options();
+            opt.skipBlank = p.skipBlank;
+            opt.tissueRef = g8;
+            opt.overlap = p.overlap;
+            opt.blend = p.blend;
+            opt.resample = p.resample;
+            ByteProcessor labels = TiledSegmenter.segment(input, model, spec, opt).labels;
+            return new Segmentation(labels, LabelRuns.encode(labels), input, ENGINE_ONNX);
+        }
+
+        Path dir = Files.createTempDirectory("histomagnify_engine_");
+        try {
+            File raw = save(g8, dir.resolve("page.tif"));
+            File out = dir.resolve("seg.tif").toFile();
+            List<String> cmd = new ArrayList<>(Arrays.asList(
+                    python(), resources().resolve("segment.py").toString(),
+                    "--tif", raw.getAbsolutePath(),
+                    "--page", "0",
+                    "--model", spec.key,
+                    "--modeldir", resources().toString(),
+                    "--output", out.getAbsolutePath(),
+                    "--enhance", p.enhance ? "1" : "0",
+                    "--backend", p.backend,
+                    "--cache_dir", PythonRuntime.cacheDir().toString(),
+                    "--skip_blank", p.skipBlank ? "1" : "0",
+                    "--overlap", String.valueOf(p.overlap),
+                    "--blend", p.blend,
+                    "--resample", p.resample,
+                    "--mem_budget_mb", String.valueOf(p.memoryBudgetMb)));
+            if (p.enhance) cmd.addAll(Arrays.asList("--model_input", save(input, dir.resolve("enhanced.tif")).getAbsolutePath()));
+            exec(cmd, "[engine:segment] ", dir);
+            if (!out.isFile()) throw new IOException("Segmentation failed. See the Log window for details.");
+            ImagePlus seg = IJ.openImage(out.getAbsolutePath());
+            ByteProcessor labels = seg.getProcessor().convertToByteProcessor(false);
+            seg.close();
+            File runs = LabelRuns.pathFor(out);
+            return new Segmentation(labels, runs.isFile() ? LabelRuns.read(runs) : LabelRuns.encode(labels), input, ENGINE_PYTHON);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    // ---------------------------------------------------------------- metrics
+
+    public Thickness thickness(byte[] mask, int width, int height, Params p) throws Exception {
+        return thickness(new ByteProcessor(width, height, mask), p);
+    }
+
+    /** GBM thickness of a mask (non-zero = GBM), e.g. {@code seg.mask(1)} of a 40X segmentation. */
+    public Thickness thickness(ImageProcessor mask, Params p) throws Exception {
+        checkOpen();
+        Path dir = Files.createTempDirectory("histomagnify_engine_");
+        try {
+            File txt = dir.resolve("thickness.txt").toFile();
+            File cols = dir.resolve("thickness_points.hmc").toFile();
+            exec(metrics(dir, mask, "thickness", p,
+                    "--out_txt", txt.getAbsolutePath(),
+                    "--out_cols", cols.getAbsolutePath()), "[engine:thick] ", dir);
+            ColumnarTable tab = ColumnarTable.read(cols);
+            int n = tab.rows();
+            int[] xs = new int[n], ys = new int[n];
+            float[] ds = new float[n];
+            IntBuffer bx = tab.ints("x"), by = tab.ints("y");
+            FloatBuffer bd = tab.floats("diam_px");
+            bx.get(xs); by.get(ys); bd.get(ds);
+            return new Thickness(readNumber(txt), xs, ys, ds);
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    public ProcessNnd processNnd(byte[] mask, int width, int height, Params p) throws Exception {
+        return processNnd(new ByteProcessor(width, height, mask), p);
+    }
+
+    /** Process nearest-neighbour distance of a mask (non-zero = process), e.g. {@code seg.mask(2)} at 40X. */
+    public ProcessNnd processNnd(ImageProcessor mask, Params p) throws Exception {
+        checkOpen();
+        Path dir = Files.createTempDirectory("histomagnify_engine_");
+        try {
+            File txt = dir.resolve("proc.txt").toFile();
+            File cols = dir.resolve("proc_pairs.hmc").toFile();
+            File edges = dir.resolve("proc_contours.hmc").toFile();
+            File outer = dir.resolve("proc_outer_contours.hmc").toFile();
+            exec(metrics(dir, mask, "proc", p,
+                    "--max_pair_px", String.valueOf(p.maxPairPx),
+                    "--out_contours", edges.getAbsolutePath(),
+                    "--out_outer_contours", outer.getAbsolutePath(),
+                    "--out_txt", txt.getAbsolutePath(),
+                    "--out_cols", cols.getAbsolutePath()), "[engine:proc] ", dir);
+            ColumnarTable tab = ColumnarTable.read(cols);
+            int n = tab.rows();
+            float[] x0 = new float[n], y0 = new float[n], x1 = new float[n], y1 = new float[n];
+            tab.floats("x0").get(x0); tab.floats("y0").get(y0);
+            tab.floats("x1").get(x1); tab.floats("y1").get(y1);
+            return new ProcessNnd(readNumber(txt), x0, y0, x1, y1,
+                    ContourSet.read(edges, 0, 0), ContourSet.read(outer, 0, 0));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    public Count count(byte[] mask, int width, int height, String mode, Params p) throws Exception {
+        return count(new ByteProcessor(width, height, mask), mode, p);
+    }
+
+    /** Nuclei ({@code "nuc"}) or RBC ({@code "rbc"}) count of a mask, e.g. {@code seg.mask(1)} / {@code seg.mask(2)} at 20X. */
+    public Count count(ImageProcessor mask, String mode, Params p) throws Exception {
+        checkOpen();
+        if (!"nuc".equals(mode) && !"rbc".equals(mode)) throw new IllegalArgumentException("mode must be nuc or rbc: " + mode);
+        Path dir = Files.createTempDirectory("histomagnify_engine_");
+        try {
+            File txt = dir.resolve(mode + "_count.txt").toFile();
+            File edges = dir.resolve(mode + "_contours.hmc").toFile();
+            File outer = dir.resolve(mode + "_outer_contours.hmc").toFile();
+            exec(metrics(dir, mask, mode, p,
+                    "--out_txt", txt.getAbsolutePath(),
+                    "--out_contours", edges.getAbsolutePath(),
+                    "--out_outer_contours", outer.getAbsolutePath()), "[engine:" + mode + "] ", dir);
+            return new Count((int) readNumber(txt), ContourSet.read(edges, 0, 0), ContourSet.read(outer, 0, 0));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (setupLock) {
+            closed = true;
+            for (TileModel m : nativeModels.values()) m.close();
+            nativeModels.clear();
+            if (resourcesDir != null) deleteTree(resourcesDir);
+            resourcesDir = null;
+        }
+    }
+
+    // ---------------------------------------------------------------- internals
+
+    private List<String> metrics(Path dir, ImageProcessor mask, String task, Params p, String... outputs) throws Exception {
+        File maskTif = save(binary(mask), dir.resolve("mask.tif"));
+        List<String> cmd = new ArrayList<>(Arrays.asList(
+                python(), resources().resolve("metrics.py").toString(),
+                "--task", task,
+                "--mask", maskTif.getAbsolutePath(),
+                "--workers", String.valueOf(p.workers)));
+        if (!"thickness".equals(task)) {
+            Watershed ws = p.watershed(task);
+            cmd.addAll(Arrays.asList(
+                    "--ws_min_dist", String.valueOf(ws.minDist),
+                    "--ws_thresh_rel", String.valueOf(ws.threshRel),
+                    "--ws_sigma", String.valueOf(ws.sigma),
+                    "--keep_low", String.valueOf(ws.keepLow),
+                    "--keep_high", String.valueOf(ws.keepHigh)));
+        }
+        cmd.addAll(Arrays.asList(outputs));
+        return cmd;
+    }
+
+    // non-zero -> 255, whatever the bit depth
+    private static ByteProcessor binary(ImageProcessor ip) {
+        int w = ip.getWidth(), h = ip.getHeight();
+        byte[] out = new byte[w * h];
+        for (int i = 0; i < out.length; i++) if (ip.getf(i) != 0) out[i] = (byte) 255;
+        return new ByteProcessor(w, h, out);
+    }
+
+    private void exec(List<String> cmd, String prefix, Path dir) throws IOException, InterruptedException {
+        int code = PythonRuntime.run(cmd.toArray(new String[0]), prefix, dir.toFile(), null);
+        if (code != 0) throw new IOException(prefix.trim() + " exited with code " + code + ". See the Log window for details.");
+    }
+
+    private String python() throws IOException, InterruptedException {
+        synchronized (setupLock) {
+            if (python == null) python = PythonRuntime.pythonIn(PythonRuntime.ensureVenv());
+            return python;
+        }
+    }
+
+    private Path resources() throws IOException {
+        synchronized (setupLock) {
+            if (resourcesDir == null) {
+                Path dir = Files.createTempDirectory("histomagnify_engine_res_");
+                PythonRuntime.extractFolder(dir, "scripts/");
+                for (Map.Entry<String, String> e : BF_MODELS.entrySet())
+                    PythonRuntime.extractResource(dir, e.getValue(), e.getKey() + ".hdf5");
+                resourcesDir = dir;
+            }
+            return resourcesDir;
+        }
+    }
+
+    // one session per model, shared: OnnxTileModel.predict allocates per call and ORT sessions are thread-safe
+    private TileModel nativeModel(ModelSpec spec, Params p) throws Exception {
+        synchronized (setupLock) {
+            TileModel m = nativeModels.get(spec.key);
+            if (m != null || Boolean.TRUE.equals(nativeMissing.get(spec.key))) return m;
+            Path onnx = NativeEngine.runtimeAvailable() ? NativeEngine.findModel(spec) : null;
+            if (onnx == null) {
+                nativeMissing.put(spec.key, true);
+                return null;
+            }
+            m = NativeEngine.open(onnx, spec, p.threads);
+            nativeModels.put(spec.key, m);
+            return m;
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("engine is closed");
+    }
+
+    private static File save(ImageProcessor ip, Path path) throws IOException {
+        File f = path.toFile();
+        if (!new FileSaver(new ImagePlus(f.getName(), ip)).saveAsTiff(f.getAbsolutePath()))
+            throw new IOException("Could not write " + f);
+        return f;
+    }
+
+    private static double readNumber(File txt) throws IOException {
+        String s = new String(Files.readAllBytes(txt.toPath())).trim();
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static void deleteTree(Path dir) {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(q -> q.toFile().delete());
+        } catch (IOException ignored) {}
+    }
+}
@@ -6,18 +6,16 @@ import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.*;
 import java.io.*;
-import java.net.URL;
-import java.net.URLDecoder;
 import java.nio.file.*;
 import java.util.*;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.function.Consumer;
 
 import ij.gui.Overlay;
 import ij.gui.Roi;
@@ -25,17 +23,18 @@ import ij.gui.Roi;
 
 import ij.gui.ImageRoi;
 import ij.gui.TextRoi;
+import ij.plugin.frame.RoiManager;
 import ij.measure.Calibration;
 
 public class HistoMagnify_Plugin implements PlugIn {
     private static final String SCRIPTS_ROOT = "scripts/";
     private static final String SRC_ROOT     = "src/";
-    private static final String REQ_RESOURCE = "/scripts/requirements.txt";
 
     private static Path lastTmpDir;
     private static Map<String, File> lastSegFiles;
     private static Set<String> lastModelsRan = new HashSet<>();
     private static ImagePlus lastResult;
+    private static Frame lastOverview;
 
     //visibility toggles
     private static boolean showLegend = true;
@@ -71,6 +70,7 @@ public class HistoMagnify_Plugin implements PlugIn {
     private static List<Roi> procContourItems = new ArrayList<>();
     private static List<Roi> rbcContourItems = new ArrayList<>();
     private static List<Roi> nucContourItems = new ArrayList<>();
+    private static final Map<String, ContourSet> lastContours = new LinkedHashMap<>();  // layer -> per-object polygons
     private static List<Roi> statsBannerItems = new ArrayList<>();
 
     private static boolean showRbcContours = true;
@@ -79,8 +79,6 @@ public class HistoMagnify_Plugin implements PlugIn {
     //remember which magnification the last result was built with
     private static String lastEffMag = null;
 
-    private static boolean isWin = System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("win");
-
     private static double wsProcMinDist   = 3.28;
     private static double wsProcThreshRel = 0.26;
     private static double wsProcSigma     = 2.0;
@@ -134,12 +132,41 @@ public class HistoMagnify_Plugin implements PlugIn {
     private static String autoMagnification = null;
     private static String userMagnification = null;           // if user overrides, store here
 
+    // float32 = Keras graph; fp16 / int8 = cached TFLite export (see scripts/src/core/backends.py)
+    private static final String[] INFERENCE_BACKENDS = {"float32", "fp16", "int8"};
+    private static String inferenceBackend = "float32";
+
+    private static final String ENGINE_PYTHON = "Python (Keras)";
+    private static final String ENGINE_NATIVE = "Java (ONNX)";
+    private static String inferenceEngine = ENGINE_PYTHON;
+    private static boolean skipBlankTiles = false;
+    private static double tileOverlap = 0.5;
+    private static final String[] BLEND_MODES = {"cosine", "gaussian", "uniform"};
+    private static String tileBlend = "cosine";
+    private static final double PREVIEW_SCALE = 0.25;
+    private static final String[] RESAMPLE_MODES = {"tile", "plane", "plane-nearest"};
+    private static String tileResample = "tile";
+    private static boolean progressivePreview = false;
+    private static boolean javaClahe = false;
+    private static boolean exportPointCsv = false;
+    private static boolean showTimings = true;
+    private static int memoryBudgetMb = 0;       // 0 = available heap (Fiji) / half the RAM (Python)
+    private static int inferenceWorkers = 1;     // Python inference processes, 0 = one per 4 cores
+    private static int inferenceThreads = 0;     // intra-op threads per process, 0 = cores / processes
+    private static double overviewMinMp = 25;    // open the overview window from this many megapixels, 0 = never
+    private static boolean resultProvisional = false;
+
     private static File lastSeg20x;
     private static File lastSeg40x;
     private static File lastEnhanced;
+    private static ImageProcessor lastRawPage;   // the segmented page, shared with the source image
+
+    // stage timings of the command currently running (null outside one)
+    private StageTimer timer;
 
 
     @Override
+    @SuppressWarnings("try")
     public void run(String arg) {
         if ("settings".equalsIgnoreCase(arg)) {
             openSettingsDialog();
@@ -156,39 +183,54 @@ public class HistoMagnify_Plugin implements PlugIn {
 //        }
 
         if ("thickness_full".equalsIgnoreCase(arg) || "thickness/full".equalsIgnoreCase(arg)) {
-            runThicknessMenu(false);
+            timed("thickness", () -> runThicknessMenu(false));
             return;
         }
         if ("thickness_roi".equalsIgnoreCase(arg) || "thickness/roi".equalsIgnoreCase(arg)) {
-            runThicknessMenu(true);
+            timed("thickness", () -> runThicknessMenu(true));
             return;
         }
 
         if ("proc_full".equalsIgnoreCase(arg) || "process_full".equalsIgnoreCase(arg) || "proc/full".equalsIgnoreCase(arg)) {
-            runProcessMenu(false);
+            timed("process", () -> runProcessMenu(false));
             return;
         }
         if ("proc_roi".equalsIgnoreCase(arg) || "process_roi".equalsIgnoreCase(arg) || "proc/roi".equalsIgnoreCase(arg)) {
-            runProcessMenu(true);
+            timed("process", () -> runProcessMenu(true));
             return;
         }
 
 
 
+        if ("enhance_preview".equalsIgnoreCase(arg)) {
+            runEnhancePreview();
+            return;
+        }
+
+        if ("backend_check".equalsIgnoreCase(arg)) {
+            runBackendCheck();
+            return;
+        }
+
+        if ("contours_export".equalsIgnoreCase(arg)) {
+            exportContours();
+            return;
+        }
+
         if ("nuc_full".equalsIgnoreCase(arg)) {
-            runCountMenu("nuc", false);
+            timed("nuc", () -> runCountMenu("nuc", false));
             return;
         }
         if ("nuc_roi".equalsIgnoreCase(arg))  {
-            runCountMenu("nuc", true);
+            timed("nuc", () -> runCountMenu("nuc", true));
             return;
         }
         if ("rbc_full".equalsIgnoreCase(arg)) {
-            runCountMenu("rbc", false);
+            timed("rbc", () -> runCountMenu("rbc", false));
             return;
         }
         if ("rbc_roi".equalsIgnoreCase(arg))  {
-            runCountMenu("rbc", true);
+            timed("rbc", () -> runCountMenu("rbc", true));
             return;
         }
 
@@ -279,344 +321,518 @@ public class HistoMagnify_Plugin implements PlugIn {
 
 
 
+        timer = new StageTimer("segment").put("magnification", effMag)
+                .put("width", original.getWidth()).put("height", original.getHeight());
         try {
-            // ensure venv
-            Path home = Paths.get(System.getProperty("user.home"));
-            Path baseCache = home.resolve(".histomagnify");
-            Path venvDir = baseCache.resolve("venv");
-            String pyInVenv = venvDir.resolve(isWin ? "Scripts\\python.exe" : "bin/python").toString();
-
-            boolean needCreate = true;
-            if (Files.exists(venvDir)) {
-                if (Files.exists(Paths.get(pyInVenv))) {
-                    needCreate = false;
-                    IJ.log("[HistoMagnify] Using venv at " + venvDir);
-                } else {
-                    IJ.log("[HistoMagnify] Detected incomplete venv, recreating…");
-                    try {
-                        Files.walk(venvDir).sorted(Comparator.reverseOrder())
-                                .forEach(p -> { try { Files.deleteIfExists(p); } catch (IOException ignored) {} });
-                    } catch (IOException ignored) {}
+            ModelSpec spec = ModelSpec.forMagnification(effMag);
+            Path onnx = null;
+            if (ENGINE_NATIVE.equals(inferenceEngine)) {
+                if (!NativeEngine.runtimeAvailable()) {
+                    IJ.log("[HistoMagnify] ONNX Runtime not on the classpath; using the Python engine.");
+                } else if ((onnx = NativeEngine.findModel(spec)) == null) {
+                    IJ.log("[HistoMagnify] No " + spec.key + ".onnx in " + NativeEngine.modelsDir()
+                            + " (see scripts/export_onnx.py); using the Python engine.");
                 }
             }
+            boolean nativeSeg = onnx != null;
+            timer.put("engine", nativeSeg ? "onnx" : "python").put("backend", nativeSeg ? null : inferenceBackend)
+                    .put("resample", tileResample).put("overlap", tileOverlap);
+
+            boolean claheInJava = (nativeSeg || javaClahe) && !standardProcessed;
+            MemoryPlanner.Plan plan = MemoryPlanner.plan(original.getWidth(), original.getHeight(), spec, tileResample,
+                    nativeSeg, claheInJava, progressivePreview, memoryBudgetMb);
+            IJ.log("[HistoMagnify] Memory plan: " + plan.describe());
+            for (String note : plan.notes) IJ.log("[HistoMagnify]   " + note);
+            if (!plan.fits()) {
+                IJ.showMessage("HistoMagnify",
+                        "Not enough memory for a " + original.getWidth() + " x " + original.getHeight() + " plane.\n" +
+                                "Needs ~" + MemoryPlanner.mb(plan.peakBytes()) + " MB, " +
+                                MemoryPlanner.mb(plan.budgetBytes) + " MB available.\n\n" +
+                                "Increase Edit > Options > Memory & Threads, raise the memory budget in Settings,\n" +
+                                "or crop the image first.");
+                return;
+            }
 
-            if (needCreate) {
-                Files.createDirectories(baseCache);
-
-                String[] pyLauncher = choosePythonLauncher();
-                if (pyLauncher == null) {
-                    IJ.showMessage("HistoMagnify",
-                            "Python 3.8+ wasn’t found on this system.\n\n" +
-                                    "Install Python 3.8+ (recommended via python.org),\n" +
-                                    "then re-run this command.\n\n" +
-                                    "Recommended source https://www.python.org/downloads/");
-                    return;
+            Path venvDir = null;
+            if (!nativeSeg) {
+                try (StageTimer.Stage st = stage("venv_probe")) {
+                    venvDir = ensureVenv();
                 }
+                if (venvDir == null) return;
+            }
 
-                int vcode = runAndGetExit(cat(pyLauncher, "-m", "venv", venvDir.toString()),
-                        "[venv] ", null);
-                if (vcode != 0) {
-                    IJ.showMessage("HistoMagnify",
-                            "Failed to create a Python virtual environment.\n" +
-                                    "Please ensure Python 3.8+ is installed and try again.");
-                    return;
-                }
+            Path tmpDir = Workspace.newSession("seg", sessionsInUse());
 
-                // write requirements and install
-                Path req = baseCache.resolve("requirements.txt");
-                try (InputStream in = getClass().getResourceAsStream(REQ_RESOURCE);
-                     OutputStream os = Files.newOutputStream(req)) {
-                    if (in == null) throw new FileNotFoundException("Missing " + REQ_RESOURCE + " in plugin JAR");
-                    byte[] buf = new byte[8192]; int r;
-                    while ((r = in.read(buf)) > 0) os.write(buf, 0, r);
-                }
+            // the page as ImageJ holds it; Python reads the source file itself when there is one
+            ImageProcessor rawPage;
+            try (StageTimer.Stage st = stage("decode")) {
+                rawPage = pageProcessor(original, pageIndex0);
+            }
+            String[] source = sourceArgs(original, pageIndex0);
 
-                runAndGetExit(new String[]{pyInVenv, "-m", "pip", "install", "--upgrade", "pip"}, "[pip] ", null);
-                int pcode = runAndGetExit(new String[]{pyInVenv, "-m", "pip", "install", "-r", req.toString()},
-                        "[pip] ", null);
-                if (pcode != 0) {
-                    IJ.showMessage("HistoMagnify",
-                            "Python was found, but psackage installation failed.\n" +
-                                    "Open the Log window for details and check internet access.");
-                    return;
-                }
+            // metrics scripts are needed either way
+            try (StageTimer.Stage st = stage("extract_resources")) {
+                extractFolder(tmpDir, SCRIPTS_ROOT);
             }
 
+            File segOut = tmpDir.resolve(effMag.equals("20X") ? "seg_20x.tif" : "seg_40x.tif").toFile();
+            File enhOut = tmpDir.resolve("enhanced.tif").toFile();
 
-            Path tmpDir = Files.createTempDirectory("histomagnify_");
+            ProgressiveView progress = plan.progressive ? new ProgressiveView(effMag, enhOut, rawPage) : null;
 
-            File rawPageSnap = exportSinglePageRAW(original, pageIndex0, tmpDir);
+            // model input; enhanced here unless Python is asked to do it
+            ByteProcessor g8 = null, modelInput = null;
+            if (nativeSeg || (javaClahe && !standardProcessed)) {
+                try (StageTimer.Stage st = stage("gray8")) {
+                    g8 = TiledSegmenter.toGray8(rawPage);
+                }
+                modelInput = g8;
+                if (!standardProcessed) {
+                    try (StageTimer.Stage st = stage("clahe")) {
+                        modelInput = Clahe.apply(g8);
+                    }
+                    try (StageTimer.Stage st = stage("enhanced_export")) {
+                        new ij.io.FileSaver(new ImagePlus("enhanced", modelInput)).saveAsTiff(enhOut.getAbsolutePath());
+                    }
+                }
+            }
 
+            if (nativeSeg) {
+                IJ.log("[HistoMagnify] Running segmentation in Java ("+effMag+", "+onnx.getFileName()+")...");
+                TiledSegmenter.Options opt = new TiledSegmenter.Options();
+                opt.skipBlank = skipBlankTiles;
+                opt.tissueRef = g8;
+                opt.overlap = tileOverlap;
+                opt.blend = tileBlend;
+                opt.resample = plan.resample;
+                opt.strips = plan.strips;
+                TileModel loaded;
+                try (StageTimer.Stage st = stage("model_load")) {
+                    loaded = NativeEngine.open(onnx, spec, Runtime.getRuntime().availableProcessors());
+                }
+                try (TileModel model = timer.timed("inference", loaded)) {
+                    if (progress != null) {
+                        try (StageTimer.Stage st = stage("preview").excluding("inference")) {
+                            progress.showPreview(TiledSegmenter.preview(modelInput,
+                                    timer.timed("inference", "preview", loaded), spec, PREVIEW_SCALE));
+                        }
+                    }
+                    TiledSegmenter.Result res;
+                    try (StageTimer.Stage st = stage("stitching").excluding("inference")) {
+                        res = TiledSegmenter.segment(modelInput, model, spec, opt);
+                    }
+                    if (skipBlankTiles)
+                        IJ.log("[HistoMagnify] Skipped " + res.skipped + " of " + res.tiles + " tiles (no tissue)");
+                    try (StageTimer.Stage st = stage("mask_export")) {
+                        new ij.io.FileSaver(new ImagePlus("seg", res.labels)).saveAsTiff(segOut.getAbsolutePath());
+                        LabelRuns.encode(res.labels).write(LabelRuns.pathFor(segOut));
+                    }
+                }
+            } else {
+                if (source == null) {
+                    try (StageTimer.Stage st = stage("page_export")) {
+                        source = new String[]{"--tif", exportPage(rawPage, tmpDir).getAbsolutePath(), "--page", "0"};
+                    }
+                }
 
-            String origPath = guessTifPath(original);
-            String tifPath = (origPath != null) ? origPath : rawPageSnap.getAbsolutePath();
+                String modelRes = BF_MODELS.get(effMag.equals("20X") ? "20X" : "40X");
+                if (modelRes == null) modelRes = BF_MODELS.get("40X");
+                String modelName = Paths.get(modelRes).getFileName().toString();
+                try (StageTimer.Stage st = stage("extract_resources")) {
+                    extractResource(tmpDir, modelRes, modelName);
+                }
 
-            String modelRes = BF_MODELS.get(effMag.equals("20X") ? "20X" : "40X");
-            if (modelRes == null) modelRes = BF_MODELS.get("40X");
-            String modelName = Paths.get(modelRes).getFileName().toString();
-            File modelFile = extractResource(tmpDir, modelRes, modelName);
+                // run segmentation
+                String py  = pythonIn(venvDir);
 
-            extractFolder(tmpDir, SCRIPTS_ROOT);
+                String enhanced = "1";
+                if (standardProcessed){
+                    enhanced = "0";
+                }
 
-            // run segmentation
-            String py  = venvDir.resolve(isWin ? "Scripts\\python.exe" : "bin/python").toString();
-            File segOut = tmpDir.resolve(effMag.equals("20X") ? "seg_20x.tif" : "seg_40x.tif").toFile();
-            File enhOut = tmpDir.resolve("enhanced.tif").toFile();
 
-            String enhanced = "1";
-            if (standardProcessed){
-                enhanced = "0";
+                List<String> cmd = new ArrayList<>(Arrays.asList(py, tmpDir.resolve("segment.py").toString()));
+                cmd.addAll(Arrays.asList(source));
+                cmd.addAll(Arrays.asList(
+                        "--model", effMag.equals("20X") ? "20x" : "40x",
+                        "--modeldir", tmpDir.toString(),
+                        "--output", segOut.getAbsolutePath(),
+                        "--save_enhanced", enhOut.getAbsolutePath(),
+                        "--enhance", enhanced,
+                        "--backend", inferenceBackend,
+                        "--cache_dir", cacheDir().toString(),
+                        "--skip_blank", skipBlankTiles ? "1" : "0",
+                        "--overlap", String.valueOf(tileOverlap),
+                        "--blend", tileBlend,
+                        "--resample", tileResample,
+                        "--mem_budget_mb", String.valueOf(memoryBudgetMb),
+                        "--workers", String.valueOf(inferenceWorkers),
+                        "--threads", String.valueOf(inferenceThreads)
+                ));
+                if (modelInput != null && !standardProcessed) {
+                    // already enhanced above; Python still reads the page for the tissue pre-pass
+                    cmd.addAll(Arrays.asList("--model_input", enhOut.getAbsolutePath()));
+                }
+                if (progress != null) {
+                    cmd.addAll(Arrays.asList("--progress_dir", tmpDir.resolve("progress").toString(),
+                            "--preview_scale", String.valueOf(PREVIEW_SCALE)));
+                }
+                IJ.log("[HistoMagnify] Running segmentation ("+effMag+")...");
+                try (StageTimer.Stage st = stage("python_process")) {
+                    runWithLogging(cmd.toArray(new String[0]), "[HistoMagnify] ", tmpDir.toFile(),
+                            progress != null ? timer.andThen(progress) : timer);
+                }
             }
-
-
-            List<String> cmd = new ArrayList<>(Arrays.asList(
-                    py, tmpDir.resolve("segment.py").toString(),
-                    "--tif", tifPath,
-                    "--page", String.valueOf(pageIndex0),
-                    "--model", effMag.equals("20X") ? "20x" : "40x",
-                    "--modeldir", tmpDir.toString(),
-                    "--output", segOut.getAbsolutePath(),
-                    "--save_enhanced", enhOut.getAbsolutePath(),
-                    "--enhance", enhanced
-            ));
-            IJ.log("[HistoMagnify] Running segmentation ("+effMag+")...");
-            runWithLogging(cmd.toArray(new String[0]), "[HistoMagnify] ", tmpDir.toFile());
             if (!segOut.isFile()) {
-                IJ.showMessage("HistoMagnify","Segmentation failed.");
+                IJ.showMessage("HistoMagnify","Segmentation failed. See the Log window for details.");
                 return;
             }
+            // the planes are on disk now; let the result window have the heap
+            g8 = null;
+            modelInput = null;
 
             //for secondary tools
             if ("20X".equals(effMag)) lastSeg20x = segOut; else lastSeg40x = segOut;
             lastEnhanced = enhOut.isFile() ? enhOut : null;
             lastTmpDir = tmpDir;
+            lastRawPage = rawPage;
 
-            // 2-slice result: [Background, Overlay]
-            ColorProcessor bgRGB;
-            if (showEnhancedBackground && lastEnhanced != null && lastEnhanced.isFile()) {
-                ImagePlus enh = IJ.openImage(lastEnhanced.getAbsolutePath());
-                bgRGB = toRGB(enh.getProcessor());
-                enh.close();
-            } else {
-                File rawFile = tmpDir.resolve("input_page_raw.tif").toFile();
-                ImagePlus rawImp = IJ.openImage(rawFile.getAbsolutePath());
-                bgRGB = toRGB(rawImp.getProcessor());
-                rawImp.close();
+            ImageProcessor lbl;
+            try (StageTimer.Stage st = stage("mask_load")) {
+                ImagePlus seg = IJ.openImage(segOut.getAbsolutePath());
+                lbl = seg.getProcessor().convertToByteProcessor();
+                seg.close();
             }
 
+            if (progress == null || !progress.finish(lbl)) {
+                showResult(loadBackground(lastEnhanced, rawPage), lbl, effMag);
+            }
+            showOverview(false);
+            Workspace.attach(tmpDir, lastResult);
+            Workspace.evict(sessionsInUse());
 
-            ImagePlus seg = IJ.openImage(segOut.getAbsolutePath());
-            ImageProcessor lbl = seg.getProcessor().convertToByteProcessor();
-            seg.close();
+            lastModelsRan = new HashSet<>(Collections.singletonList(effMag)); // remember which mag we ran
 
-            int w = bgRGB.getWidth();
-            int h = bgRGB.getHeight();
-            ColorProcessor out = (ColorProcessor) bgRGB.duplicate();
-
-
-            int[][] lut20 = new int[][]{
-                    {  0,  0,130},
-                    {  91, 24,199},
-                    {  242,91,96},
-                    {240,203, 73},
-                    {89,195,  71},
-                    {76,  98,  246}
-            };
-
-            int[][] lut40 = new int[][] {
-                    {105,105,105},
-                    {255,  0,255},
-                    {  0,255,255}
-            };
-
-            int[][] lut = "20X".equals(effMag) ? lut20 : lut40;
-            float alpha = 0.45f;
-
-            for (int y=0; y<h; y++) {
-                for (int x=0; x<w; x++) {
-                    int lab = lbl.get(x,y) & 0xff;
-                    if (lab <= 0 || lab >= lut.length) continue;
-                    int[] c = lut[lab];
-                    int p  = out.get(x,y);
-                    int r=(p>>16)&255, g=(p>>8)&255, b=p&255;
-                    int nr = (int)(r*(1-alpha) + c[0]*alpha);
-                    int ng = (int)(g*(1-alpha) + c[1]*alpha);
-                    int nb = (int)(b*(1-alpha) + c[2]*alpha);
-                    out.set(x,y, ((nr&255)<<16)|((ng&255)<<8)|(nb&255));
-                }
-            }
+        } catch (Exception e) {
+            IJ.handleException(e);
+        } finally {
+            // a run that fails after its preview never reaches finish()
+            resultProvisional = false;
+            finishTimer();
+        }
 
-            ij.ImageStack st = new ij.ImageStack(w,h);
-            st.addSlice("Background", bgRGB);
-            st.addSlice("Overlay", out);
-            ImagePlus result = new ImagePlus("HistoMagnify – Result ("+effMag+")", st);
-
-            //Build legend
-            Overlay ov = new Overlay();
-            legendItems.clear();
-            int x0 = 25, y0 = 25, box = 36;
-            Font f = new Font("SansSerif", Font.PLAIN, 28);
-            String[] lbls20 = {"Background","Nucleus","RBC","Tube","Glomerulus","GBM"};
-            String[] lbls40 = {"Background","GBM","Podocyte foot processes"};
-            String[] labels = "20X".equals(effMag) ? lbls20 : lbls40;
-
-
-            int nItems = Math.min(lut.length, labels.length) - 1;
-            int maxText = 0;
-            for (int i = 1; i <= nItems; i++) {
-                TextRoi tmp = new TextRoi(0, 0, labels[i], f);
-                maxText = Math.max(maxText, (int)Math.round(tmp.getFloatWidth()));
-            }
-            int pad = 12;
-            int totalH = nItems * box + (nItems - 1) * 14 + pad * 2;
-            int panelW = box + 16 + maxText + pad * 2;
-            int panelX = x0 - pad;
-            int panelY = y0 - pad;
-
-            ImageRoi legendBg = makeBackdrop(panelX, panelY, panelW, totalH, 0.35f);
-            ov.add(legendBg);
-            legendItems.add(legendBg);
-
-            //egend swatches/labels
-            int yy = y0;
-            for (int i = 1; i <= nItems; i++) {
-                int[] c = lut[i];
-                Roi r = new Roi(x0, yy, box, box);
-                Color cc = new Color(c[0], c[1], c[2]);
-                r.setFillColor(cc);
-                r.setStrokeColor(cc);
-                ov.add(r);
-                legendItems.add(r);
-
-                TextRoi t = new TextRoi(x0 + box + 16, yy, labels[i], f);
-                t.setStrokeColor(Color.WHITE);
-                ov.add(t);
-                legendItems.add(t);
-
-                yy += box + 14;
-            }
-            // reset, apply visibility
-            axisDotItems.clear();
-            axisBarItems.clear();
-            procLineItems.clear();
-            procBarItems.clear();
-            procContourItems.clear();
-            rbcContourItems.clear();
-            nucContourItems.clear();
-
-            lastNucCount = null;
-            lastRbcCount = null;
-            lastGbmThicknessUm = null;
-            lastProcNndUm = null;
-
-            //bottom stats banner
-            rebuildStatsBanner(ov);
+    }
 
+    // run folders the secondary tools still read from
+    private static List<Path> sessionsInUse() {
+        List<Path> inUse = new ArrayList<>();
+        inUse.add(lastTmpDir);
+        for (File f : new File[]{lastSeg20x, lastSeg40x, lastEnhanced}) {
+            if (f != null) inUse.add(f.getParentFile().toPath());
+        }
+        return inUse;
+    }
 
-            applyVisibility(ov);
-            result.setOverlay(ov);
-            result.show();
-            result.setSlice(2);
+    // null-safe: try-with-resources skips a null resource. Stages are only opened and closed, never
+    // referenced in their block, hence @SuppressWarnings("try") on the methods that time stages.
+    private StageTimer.Stage stage(String name) {
+        return timer != null ? timer.start(name) : null;
+    }
 
+    private void finishTimer() {
+        if (timer == null) return;
+        if (!timer.records().isEmpty()) timer.finish(showTimings);
+        timer = null;
+    }
 
-            lastResult = result;
-            lastModelsRan = new HashSet<>(Collections.singletonList(effMag)); // remember which mag we ran
-            lastEffMag = effMag; // for  refreshResultFromSettings() yto pivk the right LUT/seg
+    private void timed(String command, Runnable body) {
+        timer = new StageTimer(command);
+        try {
+            body.run();
+        } finally {
+            finishTimer();
+        }
+    }
 
+    private static Path cacheDir() {
+        return PythonRuntime.cacheDir();
+    }
+
+    private static String pythonIn(Path venvDir) {
+        return PythonRuntime.pythonIn(venvDir);
+    }
+
+    // Metrics still run in Python; with the native engine the venv may not exist yet.
+    private String metricsPython() {
+        try {
+            Path venvDir = ensureVenv();
+            return (venvDir != null) ? pythonIn(venvDir) : null;
         } catch (Exception e) {
             IJ.handleException(e);
+            return null;
         }
+    }
 
+    // Creates ~/.histomagnify/venv on first use; returns null (after telling the user) on failure.
+    private Path ensureVenv() throws IOException, InterruptedException {
+        try {
+            return PythonRuntime.ensureVenv();
+        } catch (PythonRuntime.SetupException e) {
+            IJ.showMessage("HistoMagnify", e.getMessage());
+            return null;
+        }
     }
 
     private void extractFolder(Path tmpDir, String folderName) throws IOException {
-        URL srcUrl = getClass().getProtectionDomain()
-                .getCodeSource().getLocation();
-        String jarPath = URLDecoder.decode(srcUrl.getPath(), "UTF-8");
-        try (JarFile jar = new JarFile(jarPath)) {
-            for (JarEntry entry : Collections.list(jar.entries())) {
-                String name = entry.getName();
-                if (!name.startsWith(folderName)) continue;
-                String rel = name.substring(folderName.length());
-                if (rel.isEmpty()) continue;
-                File out = tmpDir.resolve(rel).toFile();
-                if (entry.isDirectory()) out.mkdirs();
-                else {
-                    out.getParentFile().mkdirs();
-                    try (InputStream in = jar.getInputStream(entry);
-                         OutputStream os = new FileOutputStream(out)) {
-                        byte[] buf = new byte[8192]; int r;
-                        while ((r=in.read(buf))>0) os.write(buf,0,r);
-                    }
-                    if (rel.endsWith(".py")) out.setExecutable(true,false);
-                }
-            }
-        }
+        PythonRuntime.extractFolder(tmpDir, folderName);
     }
 
     private File extractResource(Path tmpDir, String resPath, String name) throws IOException {
-        try (InputStream in = getClass().getResourceAsStream(resPath)) {
-            if (in==null) throw new FileNotFoundException(resPath);
-            File out = tmpDir.resolve(name).toFile();
-            out.getParentFile().mkdirs();
-            try (OutputStream os = new FileOutputStream(out)) {
-                byte[] buf = new byte[8192]; int len;
-                while ((len=in.read(buf))>0) os.write(buf,0,len);
-            }
-            return out;
-        }
+        return PythonRuntime.extractResource(tmpDir, resPath, name);
     }
 
 
+    // Python stage timings go to the running command's timer
     private void runWithLogging(String[] cmd, String prefix, File workDir)
             throws IOException, InterruptedException {
-        Process p = Runtime.getRuntime().exec(cmd, null, workDir);
-        Thread outG = new StreamGobbler(p.getInputStream(),prefix);
-        Thread errG = new StreamGobbler(p.getErrorStream(), prefix);
-        outG.start();
-        errG.start();
-        p.waitFor();
-        outG.join();
-        errG.join();
+        runWithLogging(cmd, prefix, workDir, timer);
     }
 
-    private static class StreamGobbler extends Thread {
-        private final InputStream is;
-        private final String prefix;
-        StreamGobbler(InputStream is, String prefix) {
-            this.is = is; this.prefix = prefix;
+    // lines starting with @@HM go to `events` instead of the Log
+    private void runWithLogging(String[] cmd, String prefix, File workDir, Consumer<String> events)
+            throws IOException, InterruptedException {
+        Workspace.touch(workDir.toPath());
+        PythonRuntime.run(cmd, prefix, workDir, events);
+    }
+
+    // Value of a top-level string/number field in the flat JSON objects segment.py emits.
+    static String eventField(String json, String key) {
+        java.util.regex.Matcher m = java.util.regex.Pattern
+                .compile("\"" + java.util.regex.Pattern.quote(key) + "\"\\s*:\\s*(\"((?:[^\"\\\\]|\\\\.)*)\"|[-+0-9.eE]+)")
+                .matcher(json);
+        if (!m.find()) return null;
+        if (m.group(2) == null) return m.group(1);
+        return m.group(2).replace("\\\"", "\"").replace("\\\\", "\\").replace("\\/", "/");
+    }
+
+    /**
+     * Provisional result window for progressive runs: the coarse preview is shown first,
+     * finished row bands are written into its label plane, finish() swaps in the final labels.
+     */
+    private final class ProgressiveView implements Consumer<String> {
+        private final String effMag;
+        private final File enhanced;
+        private final ImageProcessor rawPage;   // this run's page; lastRawPage is only set once it succeeds
+        private ImagePlus window;
+
+        ProgressiveView(String effMag, File enhanced, ImageProcessor rawPage) {
+            this.effMag = effMag; this.enhanced = enhanced; this.rawPage = rawPage;
         }
+
         @Override
-        public void run() {
-            try (BufferedReader r = new BufferedReader(new InputStreamReader(is))) {
-                String line;
-                while ((line = r.readLine())!=null) {
-                    IJ.log(prefix + line);
+        public void accept(String json) {
+            try {
+                String ev = eventField(json, "event");
+                String path = eventField(json, "path");
+                if (path == null) return;
+                ImagePlus imp = IJ.openImage(path);
+                if (imp == null) return;
+                ImageProcessor ip = imp.getProcessor();
+                imp.close();
+                if ("preview".equals(ev)) {
+                    showPreview(ip);
+                } else if ("rows".equals(ev)) {
+                    updateRows(Integer.parseInt(eventField(json, "y0")), ip);
                 }
-            } catch (IOException ignored) {}
+                new File(path).delete();
+            } catch (Exception e) {
+                IJ.log("[HistoMagnify] Progressive update skipped: " + e.getMessage());
+            }
+        }
+
+        synchronized void showPreview(ImageProcessor coarse) throws IOException {
+            resultProvisional = true;
+            // showResult scales the coarse labels up to the page
+            window = showResult(loadBackground(enhanced, rawPage), coarse, effMag);
+        }
+
+        synchronized void updateRows(int y0, ImageProcessor strip) {
+            if (!isOpen()) return;
+            ((ResultStack) window.getStack()).setRows(y0, strip);
+            window.updateAndDraw();
+        }
+
+        // false when there is no provisional window to finish (never shown or closed)
+        @SuppressWarnings("try")
+        synchronized boolean finish(ImageProcessor finalLabels) {
+            resultProvisional = false;
+            if (!isOpen()) return false;
+            try (StageTimer.Stage st = stage("overlay_build")) {
+                ((ResultStack) window.getStack()).setLabels(finalLabels);
+                rebuildStatsBanner(window.getOverlay());
+                applyVisibility(window.getOverlay());
+            }
+            try (StageTimer.Stage st = stage("render")) {
+                window.updateAndDraw();
+            }
+            return true;
+        }
+
+        private boolean isOpen() {
+            return window != null && window.getWindow() != null && lastResult == window
+                    && window.getStack() instanceof ResultStack;
+        }
+    }
+
+    // pyramid of the final result for large sections; rebuildOnly refreshes an open overview and opens none
+    @SuppressWarnings("try")
+    private void showOverview(boolean rebuildOnly) {
+        boolean wasOpen = lastOverview != null && lastOverview.isDisplayable();
+        if (lastOverview != null) { lastOverview.dispose(); lastOverview = null; }
+        if (rebuildOnly && !wasOpen) return;
+        if (lastResult == null || !(lastResult.getStack() instanceof ResultStack)) return;
+        if (overviewMinMp <= 0 || (double) lastResult.getWidth() * lastResult.getHeight() < overviewMinMp * 1e6) return;
+        try (StageTimer.Stage st = stage("overview_build")) {
+            OverviewPyramid pyramid = OverviewPyramid.build((ResultStack) lastResult.getStack());
+            lastOverview = pyramid.show(lastResult, "HistoMagnify – Overview (" + lastEffMag + ")");
+        }
+    }
+
+    // background as loaded (8-bit stays 8-bit); ResultStack keeps it as is
+    @SuppressWarnings("try")
+    private ImageProcessor loadBackground(File enhanced, ImageProcessor rawPage) {
+        try (StageTimer.Stage st = stage("background_load")) {
+            if (!(showEnhancedBackground && enhanced != null && enhanced.isFile())) return rawPage.duplicate();
+            ImagePlus imp = IJ.openImage(enhanced.getAbsolutePath());
+            ImageProcessor ip = imp.getProcessor();
+            imp.close();
+            return ip;
+        }
+    }
+
+    // 2-slice result: [Background, Overlay] with legend and stats banner
+    @SuppressWarnings("try")
+    private ImagePlus showResult(ImageProcessor bg, ImageProcessor lbl, String effMag) {
+        StageTimer.Stage build = stage("overlay_build");
+        int[][] lut = OverlayOps.labelLut(effMag);
+        ResultStack st = new ResultStack(bg, lbl, lut);
+        ImagePlus result = new ImagePlus("HistoMagnify – Result ("+effMag+")", st);
+
+        // labels first so legend and contours draw on top; nothing in the result overlay is meant to be picked up
+        Overlay ov = new Overlay();
+        ov.add(st.labelRoi());
+        ov.selectable(false);
+
+        //Build legend
+        legendItems.clear();
+        int x0 = 25, y0 = 25, box = 36;
+        Font f = new Font("SansSerif", Font.PLAIN, 28);
+        String[] lbls20 = {"Background","Nucleus","RBC","Tube","Glomerulus","GBM"};
+        String[] lbls40 = {"Background","GBM","Podocyte foot processes"};
+        String[] labels = "20X".equals(effMag) ? lbls20 : lbls40;
+
+
+        int nItems = Math.min(lut.length, labels.length) - 1;
+        int maxText = 0;
+        for (int i = 1; i <= nItems; i++) {
+            TextRoi tmp = new TextRoi(0, 0, labels[i], f);
+            maxText = Math.max(maxText, (int)Math.round(tmp.getFloatWidth()));
+        }
+        int pad = 12;
+        int totalH = nItems * box + (nItems - 1) * 14 + pad * 2;
+        int panelW = box + 16 + maxText + pad * 2;
+        int panelX = x0 - pad;
+        int panelY = y0 - pad;
+
+        ImageRoi legendBg = makeBackdrop(panelX, panelY, panelW, totalH, 0.35f);
+        ov.add(legendBg);
+        legendItems.add(legendBg);
+
+        //egend swatches/labels
+        int yy = y0;
+        for (int i = 1; i <= nItems; i++) {
+            int[] c = lut[i];
+            Roi r = new Roi(x0, yy, box, box);
+            Color cc = new Color(c[0], c[1], c[2]);
+            r.setFillColor(cc);
+            r.setStrokeColor(cc);
+            ov.add(r);
+            legendItems.add(r);
+
+            TextRoi t = new TextRoi(x0 + box + 16, yy, labels[i], f);
+            t.setStrokeColor(Color.WHITE);
+            ov.add(t);
+            legendItems.add(t);
+
+            yy += box + 14;
+        }
+        // reset, apply visibility
+        axisDotItems.clear();
+        axisBarItems.clear();
+        procLineItems.clear();
+        procBarItems.clear();
+        procContourItems.clear();
+        rbcContourItems.clear();
+        nucContourItems.clear();
+        lastContours.clear();
+
+        lastNucCount = null;
+        lastRbcCount = null;
+        lastGbmThicknessUm = null;
+        lastProcNndUm = null;
+
+        lastResult = result;
+        lastEffMag = effMag; // for  refreshResultFromSettings() yto pivk the right LUT/seg
+
+        //bottom stats banner
+        rebuildStatsBanner(ov);
+
+
+        applyVisibility(ov);
+        result.setOverlay(ov);
+        if (build != null) build.close();
+
+        try (StageTimer.Stage shown = stage("render")) {
+            result.show();
+            result.setSlice(2);
         }
+        return result;
     }
 
 
 
 
+    // metrics.py --mask arguments for one class: read from the runs file next to the label TIFF
+    // (cropped there, no mask file written) or, for runs written before it existed, a mask TIFF
+    private String[] maskArgs(File labelTif, Roi roi, int labelVal, File outTif) throws IOException {
+        File runsFile = LabelRuns.pathFor(labelTif);
+        if (!runsFile.isFile()) {
+            makeBinaryMaskFromLabel(labelTif, roi, labelVal, outTif);
+            return new String[]{"--mask", outTif.getAbsolutePath()};
+        }
+        LabelRuns runs = LabelRuns.read(runsFile);
+        Rectangle crop = new Rectangle(0, 0, runs.width, runs.height);
+        if (roi != null) crop = crop.intersection(roi.getBounds());
+        long area = runs.areas(labelVal + 1, crop)[labelVal];
+        IJ.log(String.format(Locale.ROOT, "[HistoMagnify] Class %d area: %d px (%.1f%% of the %s)", labelVal, area,
+                100.0 * area / Math.max(1L, (long) crop.width * crop.height), roi != null ? "ROI" : "image"));
+        String[] args = {"--mask", runsFile.getAbsolutePath(), "--mask_class", String.valueOf(labelVal)};
+        if (roi == null) return args;
+        return cat(args, "--mask_crop", crop.x + "," + crop.y + "," + crop.width + "," + crop.height);
+    }
+
     private void makeBinaryMaskFromLabel(File labelTif, Roi roi, int labelVal, File outTif) throws IOException {
         ImagePlus imp = IJ.openImage(labelTif.getAbsolutePath());
         if (imp == null) throw new IOException("Open failed: "+labelTif);
         if (roi != null) imp.setRoi(roi);
-        ImageProcessor ip = (roi != null ? imp.getProcessor().crop() : imp.getProcessor()).convertToByteProcessor();
-        int w = ip.getWidth(), h = ip.getHeight();
-        byte[] pix = (byte[]) ip.getPixels();
-        for (int i=0;i<w*h;i++) {
-            int v = pix[i] & 0xff;
-            pix[i] = (byte)((v==labelVal)?255:0);
-        }
+        ImageProcessor ip = OverlayOps.labelMask(roi != null ? imp.getProcessor().crop() : imp.getProcessor(), labelVal);
         new ij.io.FileSaver(new ImagePlus("mask", ip)).saveAsTiff(outTif.getAbsolutePath());
         imp.close();
     }
 
 
 
+    @SuppressWarnings("try")
     private void runThicknessMenu(boolean useROI) {
         //basic guard
         if (lastSeg40x == null || !lastSeg40x.isFile()) {
@@ -665,26 +881,31 @@ public class HistoMagnify_Plugin implements PlugIn {
 
         File gbmMask  = lastTmpDir.resolve("gbm_mask.tif").toFile();
         File thickTxt = lastTmpDir.resolve("thickness.txt").toFile();
-        File thickCsv = lastTmpDir.resolve("thickness_points.csv").toFile();
-        try {
-            makeBinaryMaskFromLabel(gbmSeg, roi, gbmLabel, gbmMask);
+        File thickCols = lastTmpDir.resolve("thickness_points.hmc").toFile();
+        String[] maskT;
+        try (StageTimer.Stage st = stage("mask_export")) {
+            maskT = maskArgs(gbmSeg, roi, gbmLabel, gbmMask);
         } catch (IOException ex) {
             IJ.handleException(ex); return;
         }
 
-        Path venvDir = Paths.get(System.getProperty("user.home")).resolve(".histomagnify").resolve("venv");
-        String pyExe = venvDir.resolve(isWin ? "Scripts\\python.exe" : "bin/python").toString();
+        String pyExe;
+        try (StageTimer.Stage st = stage("venv_probe")) {
+            pyExe = metricsPython();
+        }
+        if (pyExe == null) return;
 
         File metricsPy = lastTmpDir.resolve("metrics.py").toFile();
 
         String[] cmdT = new String[]{
                 pyExe, metricsPy.getAbsolutePath(),
                 "--task","thickness",
-                "--mask", gbmMask.getAbsolutePath(),
                 "--out_txt", thickTxt.getAbsolutePath(),
-                "--out_csv", thickCsv.getAbsolutePath()
+                "--out_cols", thickCols.getAbsolutePath()
         };
-        try {
+        cmdT = cat(cmdT, maskT);
+        cmdT = withCsvExport(cmdT, "thickness_points.csv");
+        try (StageTimer.Stage st = stage("python_process")) {
             IJ.log("[MagnifySeg] Computing GBM thickness...");
             runWithLogging(cmdT, "[metrics:thick] ", lastTmpDir.toFile());
 
@@ -705,29 +926,24 @@ public class HistoMagnify_Plugin implements PlugIn {
 
         double val = Double.NaN;
         List<double[]> pts = new ArrayList<>();
-        try {
+        try (StageTimer.Stage st = stage("points_load")) {
             try {
                 String s = new String(java.nio.file.Files.readAllBytes(thickTxt.toPath())).trim();
                 double unitsPerPixel = unitsPerPixel(userPixelSizeUnitsPerPixel, expanded, EF_val);
                 val = Double.parseDouble(s) * unitsPerPixel;   // px -> units
             } catch (Exception ignore) {}
 
-            try (BufferedReader br = new BufferedReader(new FileReader(thickCsv))) {
-                String line;
-                java.awt.Rectangle b = (roi != null) ? roi.getBounds() : new java.awt.Rectangle(0,0,0,0);
-                while ((line = br.readLine()) != null) {
-                    String[] t = line.split(",");
-                    if (t.length >= 2) {
-                        double x = Double.parseDouble(t[0]) + b.x;
-                        double y = Double.parseDouble(t[1]) + b.y;
-                        double unitsPerPixel = unitsPerPixel(userPixelSizeUnitsPerPixel, expanded, EF_val);
-                        double tvUnits = (t.length >= 3) ? (Double.parseDouble(t[2]) * unitsPerPixel) : Double.NaN;
-                        pts.add(new double[]{x, y, tvUnits});
-                    }
-                }
+            ColumnarTable tab = ColumnarTable.read(thickCols);
+            java.nio.IntBuffer xs = tab.ints("x"), ys = tab.ints("y");
+            java.nio.FloatBuffer ds = tab.floats("diam_px");
+            java.awt.Rectangle b = (roi != null) ? roi.getBounds() : new java.awt.Rectangle(0,0,0,0);
+            double unitsPerPixel = unitsPerPixel(userPixelSizeUnitsPerPixel, expanded, EF_val);
+            for (int i = 0; i < tab.rows(); i++) {
+                pts.add(new double[]{xs.get(i) + b.x, ys.get(i) + b.y, ds.get(i) * unitsPerPixel});
             }
         } catch (Exception ignore) {}
 
+        StageTimer.Stage build = stage("overlay_build");
         if (!pts.isEmpty()) {
             double vmin = Double.POSITIVE_INFINITY, vmax = Double.NEGATIVE_INFINITY;
             boolean haveVals = false;
@@ -755,7 +971,7 @@ public class HistoMagnify_Plugin implements PlugIn {
                 axisDotItems.add(dot);
             }
             List<Roi> bar = makeColorBar(ov2,
-                    (int)(lastResult.getWidth()-110), 40, 20, Math.max(120, lastResult.getHeight()/4),
+                    lastResult.getWidth()-110, 40, 20, Math.max(120, lastResult.getHeight()/4),
                     vmin, vmax, "Thickness (" + userPixelUnit + ")", "viridis");
             axisBarItems.addAll(bar);
         }
@@ -765,11 +981,15 @@ public class HistoMagnify_Plugin implements PlugIn {
 
         rebuildStatsBanner(ov2);
         applyVisibility(ov2);
-        lastResult.updateAndDraw();
+        if (build != null) build.close();
+        try (StageTimer.Stage st = stage("render")) {
+            lastResult.updateAndDraw();
+        }
         IJ.showMessage("MagnifySeg", "Avg GBM thickness: " + val + " " + userPixelUnit);
     }
 
 
+    @SuppressWarnings("try")
     private void runProcessMenu(boolean useROI)  {
         if (lastSeg40x == null || !lastSeg40x.isFile()) {
             IJ.showMessage("MagnifySeg",
@@ -819,21 +1039,24 @@ public class HistoMagnify_Plugin implements PlugIn {
         File procSrc = lastSeg40x;
         File procMask = lastTmpDir.resolve("proc_mask.tif").toFile();
         File procTxt  = lastTmpDir.resolve("proc.txt").toFile();
-        File procCsv  = lastTmpDir.resolve("proc_pairs.csv").toFile();
+        File procCols = lastTmpDir.resolve("proc_pairs.hmc").toFile();
         File procLabels = lastTmpDir.resolve("proc_labels.tif").toFile();
-        File procEdges  = lastTmpDir.resolve("proc_contours.tif").toFile();
-        File procOuter  = lastTmpDir.resolve("proc_outer_contours.tif").toFile();
+        File procEdges  = lastTmpDir.resolve("proc_contours.hmc").toFile();
+        File procOuter  = lastTmpDir.resolve("proc_outer_contours.hmc").toFile();
 
-        try {
-            makeBinaryMaskFromLabel(procSrc, roi, 2, procMask);
+        String[] maskP;
+        try (StageTimer.Stage st = stage("mask_export")) {
+            maskP = maskArgs(procSrc, roi, 2, procMask);
         } catch (IOException ex) {
             IJ.handleException(ex); return;
         }
 
         //metrics.py
-        Path venvDir = Paths.get(System.getProperty("user.home"))
-                .resolve(".histomagnify").resolve("venv");
-        String pyExe = venvDir.resolve(isWin ? "Scripts\\python.exe" : "bin/python").toString();
+        String pyExe;
+        try (StageTimer.Stage st = stage("venv_probe")) {
+            pyExe = metricsPython();
+        }
+        if (pyExe == null) return;
 
         File metricsPy = lastTmpDir.resolve("metrics.py").toFile();
 
@@ -842,7 +1065,6 @@ public class HistoMagnify_Plugin implements PlugIn {
         String[] cmdP = new String[]{
                 pyExe, metricsPy.getAbsolutePath(),
                 "--task","proc",
-                "--mask", procMask.getAbsolutePath(),
                 "--max_pair_px", String.valueOf(maxPairPx),
 
                 "--ws_min_dist",   String.valueOf(wsProcMinDist),
@@ -857,10 +1079,12 @@ public class HistoMagnify_Plugin implements PlugIn {
                 "--out_outer_contours", procOuter.getAbsolutePath(),
 
                 "--out_txt", procTxt.getAbsolutePath(),
-                "--out_csv", procCsv.getAbsolutePath()
+                "--out_cols", procCols.getAbsolutePath()
         };
+        cmdP = cat(cmdP, maskP);
+        cmdP = withCsvExport(cmdP, "proc_pairs.csv");
 
-        try {
+        try (StageTimer.Stage st = stage("python_process")) {
             IJ.log("[MagnifySeg] Computing process NND...");
             runWithLogging(cmdP, "[metrics:proc] ", lastTmpDir.toFile());
         } catch (Exception ex) {
@@ -868,6 +1092,7 @@ public class HistoMagnify_Plugin implements PlugIn {
         }
 
         //verlay + colorbar
+        StageTimer.Stage build = stage("overlay_build");
         Overlay ov2 = lastResult.getOverlay();
         if (ov2 == null) { ov2 = new Overlay(); lastResult.setOverlay(ov2); }
 
@@ -881,17 +1106,11 @@ public class HistoMagnify_Plugin implements PlugIn {
         try {
             java.awt.Rectangle b = (roi != null) ? roi.getBounds() : new java.awt.Rectangle(0,0,0,0);
 
-            Roi edgesOuter = makeColoredMaskRoi(procOuter, new Color(255, 240, 6), 1.0f, 1);
-            edgesOuter.setPosition(2);
-            if (roi != null) edgesOuter.setLocation(b.x, b.y);
-            ov2.add(edgesOuter);
-            procContourItems.add(edgesOuter);
+            Roi edgesOuter = contourLayer("proc-parent", procOuter, new Color(255, 240, 6), 1, b);
+            if (edgesOuter != null) { ov2.add(edgesOuter); procContourItems.add(edgesOuter); }
 
-            Roi edgesSplit = makeColoredMaskRoi(procEdges, new Color(255, 240, 6), 1.0f, 1);
-            edgesSplit.setPosition(2);
-            if (roi != null) edgesSplit.setLocation(b.x, b.y);
-            ov2.add(edgesSplit);
-            procContourItems.add(edgesSplit);
+            Roi edgesSplit = contourLayer("proc", procEdges, new Color(255, 240, 6), 1, b);
+            if (edgesSplit != null) { ov2.add(edgesSplit); procContourItems.add(edgesSplit); }
 
         } catch (IOException ignore) {
             IJ.log("[MagnifySeg] No process contours produced.");
@@ -907,22 +1126,16 @@ public class HistoMagnify_Plugin implements PlugIn {
                 val = Double.parseDouble(s) * unitsPerPixel;   // px -> units
 
             } catch (Exception ignore) {}
-            try (BufferedReader br = new BufferedReader(new FileReader(procCsv))) {
-                String line;
-                java.awt.Rectangle b = (roi != null) ? roi.getBounds() : new java.awt.Rectangle(0,0,0,0);
-                while ((line = br.readLine()) != null) {
-                    String[] t = line.split(",");
-                    if (t.length >= 4) {
-                        double px0 = Double.parseDouble(t[0]) + b.x;
-                        double py0 = Double.parseDouble(t[1]) + b.y;
-                        double px1 = Double.parseDouble(t[2]) + b.x;
-                        double py1 = Double.parseDouble(t[3]) + b.y;
-                        Pair p = new Pair();
-                        p.x0=px0; p.y0=py0; p.x1=px1; p.y1=py1;
-                        p.distPx = Math.hypot(px1-px0, py1-py0);
-                        pairs.add(p);
-                    }
-                }
+            ColumnarTable tab = ColumnarTable.read(procCols);
+            java.nio.FloatBuffer x0s = tab.floats("x0"), y0s = tab.floats("y0");
+            java.nio.FloatBuffer x1s = tab.floats("x1"), y1s = tab.floats("y1");
+            java.awt.Rectangle b = (roi != null) ? roi.getBounds() : new java.awt.Rectangle(0,0,0,0);
+            for (int i = 0; i < tab.rows(); i++) {
+                Pair p = new Pair();
+                p.x0 = x0s.get(i) + b.x; p.y0 = y0s.get(i) + b.y;
+                p.x1 = x1s.get(i) + b.x; p.y1 = y1s.get(i) + b.y;
+                p.distPx = Math.hypot(p.x1-p.x0, p.y1-p.y0);
+                pairs.add(p);
             }
         } catch (Exception ignore) {}
 
@@ -950,7 +1163,7 @@ public class HistoMagnify_Plugin implements PlugIn {
             }
 
             List<Roi> bar = makeColorBar(ov2,
-                    (int)(lastResult.getWidth()-110), Math.max(120, lastResult.getHeight()/4)+100, 20, Math.max(120, lastResult.getHeight()/4),
+                    lastResult.getWidth()-110, Math.max(120, lastResult.getHeight()/4)+100, 20, Math.max(120, lastResult.getHeight()/4),
                     dmin, dmax, "Proc dist (" + userPixelUnit + ")", "hot");
             procBarItems.addAll(bar);
         }
@@ -958,11 +1171,22 @@ public class HistoMagnify_Plugin implements PlugIn {
         lastProcNndUm = Double.isNaN(val) ? null : val;
         rebuildStatsBanner(ov2);
         applyVisibility(ov2);
-        lastResult.updateAndDraw();
+        if (build != null) build.close();
+        try (StageTimer.Stage st = stage("render")) {
+            lastResult.updateAndDraw();
+        }
 
         IJ.showMessage("MagnifySeg", "Process mean nearest-neighbor distance: " + val + " " + userPixelUnit);
     }
 
+    // adds --out_csv <tmp>/<name> when CSV export is switched on in Settings
+    private String[] withCsvExport(String[] cmd, String name) {
+        if (!exportPointCsv) return cmd;
+        File csv = lastTmpDir.resolve(name).toFile();
+        IJ.log("[MagnifySeg] Exporting per-point CSV to " + csv.getAbsolutePath());
+        return cat(cmd, "--out_csv", csv.getAbsolutePath());
+    }
+
     private void openSettingsDialog() { openSettingsDialog(false); }
 
 
@@ -1044,6 +1268,24 @@ public class HistoMagnify_Plugin implements PlugIn {
         L.gridy++;
         Checkbox cbExpanded = new Checkbox("Image is expanded (apply EF)", expanded);
         left.add(indent(cbExpanded, 14), L);
+        L.gridy++;
+        Checkbox cbSkipBlank = new Checkbox("Skip blank (glass) tiles during inference", skipBlankTiles);
+        left.add(indent(cbSkipBlank, 14), L);
+        L.gridy++;
+        Checkbox cbProgressive = new Checkbox("Progressive preview (coarse overlay first, then refine)", progressivePreview);
+        left.add(indent(cbProgressive, 14), L);
+        L.gridy++;
+        Checkbox cbJavaClahe = new Checkbox("Enhance (CLAHE) in Java instead of Python", javaClahe);
+        left.add(indent(cbJavaClahe, 14), L);
+        L.gridy++;
+        Checkbox cbExportCsv = new Checkbox("Also export per-point metrics as CSV", exportPointCsv);
+        left.add(indent(cbExportCsv, 14), L);
+        L.gridy++;
+        Checkbox cbTimings = new Checkbox("Show stage timing table after each run", showTimings);
+        left.add(indent(cbTimings, 14), L);
+        L.gridy++;
+        Checkbox cbDebugLog = new Checkbox("Debug log (all raw Python output)", PythonRuntime.debugOutput);
+        left.add(indent(cbDebugLog, 14), L);
 
         if (autoPixelSizeUnitsPerPixel != null) {
             L.gridy++;
@@ -1089,6 +1331,54 @@ public class HistoMagnify_Plugin implements PlugIn {
         G.gridy++;
         addRow(generalInputs, "Expansion factor (EF):", tfEF, G);
 
+        Choice chBackend = new Choice();
+        for (String b : INFERENCE_BACKENDS) chBackend.add(b);
+        chBackend.select(inferenceBackend);
+        G.gridy++;
+        addRow(generalInputs, "Inference precision:", chBackend, G);
+
+        Choice chEngine = new Choice();
+        chEngine.add(ENGINE_PYTHON); chEngine.add(ENGINE_NATIVE);
+        chEngine.select(inferenceEngine);
+        G.gridy++;
+        addRow(generalInputs, "Inference engine:", chEngine, G);
+
+        TextField tfOverlap = new TextField(String.valueOf(tileOverlap), 10);
+        G.gridy++;
+        addRow(generalInputs, "Tile overlap (0-0.5):", tfOverlap, G);
+
+        Choice chBlend = new Choice();
+        for (String b : BLEND_MODES) chBlend.add(b);
+        chBlend.select(tileBlend);
+        G.gridy++;
+        addRow(generalInputs, "Tile blending:", chBlend, G);
+
+        Choice chResample = new Choice();
+        for (String r : RESAMPLE_MODES) chResample.add(r);
+        chResample.select(tileResample);
+        G.gridy++;
+        addRow(generalInputs, "Resampling:", chResample, G);
+
+        TextField tfMemBudget = new TextField(String.valueOf(memoryBudgetMb), 10);
+        G.gridy++;
+        addRow(generalInputs, "Memory budget (MB, 0 = auto):", tfMemBudget, G);
+
+        TextField tfWorkers = new TextField(String.valueOf(inferenceWorkers), 10);
+        G.gridy++;
+        addRow(generalInputs, "Inference processes (0 = auto):", tfWorkers, G);
+
+        TextField tfThreads = new TextField(String.valueOf(inferenceThreads), 10);
+        G.gridy++;
+        addRow(generalInputs, "Threads per process (0 = auto):", tfThreads, G);
+
+        TextField tfOverviewMp = new TextField(String.valueOf(overviewMinMp), 10);
+        G.gridy++;
+        addRow(generalInputs, "Overview window from (MP, 0 = off):", tfOverviewMp, G);
+
+        TextField tfWorkCap = new TextField(String.valueOf(Workspace.capMb), 10);
+        G.gridy++;
+        addRow(generalInputs, "Workspace size cap (MB):", tfWorkCap, G);
+
         right.add(generalInputs, R);
 
         R.gridy++;
@@ -1209,6 +1499,12 @@ public class HistoMagnify_Plugin implements PlugIn {
         showRbcContours      = cbRbcContours.getState();
         showNucContours      = cbNucContours.getState();
         boolean expandedNew  = cbExpanded.getState();
+        skipBlankTiles       = cbSkipBlank.getState();
+        progressivePreview   = cbProgressive.getState();
+        javaClahe            = cbJavaClahe.getState();
+        exportPointCsv       = cbExportCsv.getState();
+        showTimings          = cbTimings.getState();
+        PythonRuntime.debugOutput = cbDebugLog.getState();
 
         boolean doResetToAuto = false;
         for (Component c : left.getComponents()) {
@@ -1219,6 +1515,16 @@ public class HistoMagnify_Plugin implements PlugIn {
         }
 
         userMagnification = chDefaultMag.getSelectedItem();
+        inferenceBackend = chBackend.getSelectedItem();
+        inferenceEngine = chEngine.getSelectedItem();
+        tileOverlap = Math.min(0.5, Math.max(0.0, parseDoubleSafe(tfOverlap.getText(), tileOverlap)));
+        tileBlend = chBlend.getSelectedItem();
+        tileResample = chResample.getSelectedItem();
+        memoryBudgetMb = (int) Math.max(0, parseDoubleSafe(tfMemBudget.getText(), memoryBudgetMb));
+        inferenceWorkers = (int) Math.max(0, parseDoubleSafe(tfWorkers.getText(), inferenceWorkers));
+        inferenceThreads = (int) Math.max(0, parseDoubleSafe(tfThreads.getText(), inferenceThreads));
+        overviewMinMp = Math.max(0, parseDoubleSafe(tfOverviewMp.getText(), overviewMinMp));
+        Workspace.capMb = (long) Math.max(0, parseDoubleSafe(tfWorkCap.getText(), Workspace.capMb));
 
         String unitIn = tfUnit.getText().trim();
         double pxIn   = parseDoubleSafe(tfPxSize.getText(), Double.NaN);
@@ -1305,19 +1611,7 @@ public class HistoMagnify_Plugin implements PlugIn {
     }
 
     private void setGroupVisible(Overlay ov, List<Roi> group, boolean visible) {
-        if (ov == null || group == null || group.isEmpty()) return;
-
-        if (!visible) {
-            for (int i = ov.size() - 1; i >= 0; i--) {
-                Roi r = ov.get(i);
-                if (group.contains(r)) ov.remove(i);
-            }
-            return;
-        }
-
-        for (Roi r : group) {
-            if (!overlayContains(ov, r)) ov.add(r);
-        }
+        OverlayOps.setGroupVisible(ov, group, visible);
     }
 
     private static int[] turbo(double t) {
@@ -1399,7 +1693,9 @@ public class HistoMagnify_Plugin implements PlugIn {
                 ? (formatVal(lastProcNndUm) + " " + userPixelUnit) : "N/A";
 
         String line;
-        if ("40X".equalsIgnoreCase(String.valueOf(lastEffMag))) {
+        if (resultProvisional) {
+            line = " PROVISIONAL (refining at full resolution...)";
+        } else if ("40X".equalsIgnoreCase(String.valueOf(lastEffMag))) {
             line = " GBM thickness: " + sThk + "   |   Process NND: " + sNnd;
         } else if ("20X".equalsIgnoreCase(String.valueOf(lastEffMag))) {
             line = " Nuclei count: " + sNuc + "   |   RBC count: " + sRbc;
@@ -1533,65 +1829,35 @@ public class HistoMagnify_Plugin implements PlugIn {
     }
 
 
-    private ColorProcessor toRGB(ImageProcessor ip) {
-        if (ip == null) {
-            return null;
-        }
-        if (ip instanceof ColorProcessor) {
-            return (ColorProcessor) ip.duplicate();
-        } else {
-            ImageProcessor g = ip.convertToByteProcessor();
-            int w = g.getWidth(), h = g.getHeight();
-            byte[] p = (byte[]) g.getPixelsCopy();
-            ColorProcessor cp = new ColorProcessor(w, h);
-            cp.setRGB(p, p, p);
-            return cp;
-        }
+    // vector overlay for one contour layer (null when empty); offset is the ROI the metric ran on
+    private Roi contourLayer(String layer, File hmc, Color color, float width, java.awt.Rectangle offset) throws IOException {
+        ContourSet cs = ContourSet.read(hmc, offset.x, offset.y);
+        lastContours.put(layer, cs);
+        Roi r = cs.overlayRoi(color, width);
+        if (r != null) r.setPosition(2);
+        return r;
     }
 
-    private Roi makeColoredMaskRoi(File tif, Color color, float alpha, int thicknessPx) throws IOException {
-        ImagePlus imp = IJ.openImage(tif.getAbsolutePath());
-        if (imp == null) throw new IOException("Open failed: " + tif);
-        ImageProcessor ip = imp.getProcessor().convertToByteProcessor();
-        int w = ip.getWidth(), h = ip.getHeight();
-        byte[] src = (byte[]) ip.getPixels();
-        boolean[] mask = new boolean[w*h];
-        for (int i = 0; i < mask.length; i++) mask[i] = (src[i] & 0xff) != 0;
-
-        int dilations = Math.max(0, thicknessPx - 1);
-        for (int iter = 0; iter < dilations; iter++) {
-            boolean[] dst = Arrays.copyOf(mask, mask.length);
-            for (int y = 0; y < h; y++) {
-                int row = y * w;
-                for (int x = 0; x < w; x++) {
-                    if (!mask[row + x]) continue;
-                    for (int dy = -1; dy <= 1; dy++) {
-                        int yy = y + dy;
-                        if (yy < 0 || yy >= h) continue;
-                        int base = yy * w;
-                        for (int dx = -1; dx <= 1; dx++) {
-                            int xx = x + dx; if (xx < 0 || xx >= w) continue;
-                            dst[base + xx] = true;
-                        }
-                    }
-                }
+    // per-object contours of the current result into the ROI Manager (measure / save from there)
+    private void exportContours() {
+        if (lastContours.isEmpty()) {
+            IJ.showMessage("HistoMagnify", "No contours yet. Run a process distance, nuclei or RBC count first.");
+            return;
+        }
+        RoiManager rm = RoiManager.getRoiManager();
+        int n = 0;
+        for (Map.Entry<String, ContourSet> e : lastContours.entrySet()) {
+            for (Roi r : e.getValue().objectRois(e.getKey())) {
+                rm.addRoi(r);
+                n++;
             }
-            mask = dst;
         }
-
-        ColorProcessor cp = new ColorProcessor(w, h);
-        int packed = ((color.getRed() & 255) << 16) | ((color.getGreen() & 255) << 8) | (color.getBlue() & 255);
-        for (int i = 0; i < w*h; i++) if (mask[i]) cp.set(i % w, i / w, packed);
-
-        ImageRoi roi = new ImageRoi(0, 0, cp);
-        roi.setZeroTransparent(true);
-        roi.setOpacity(alpha);
-        imp.close();
-        return roi;
+        IJ.log("[HistoMagnify] Added " + n + " contours to the ROI Manager (" + String.join(", ", lastContours.keySet()) + ").");
     }
 
 
-    private String detectMagnification(ImagePlus imp) {
+    // 20X/40X/60X from the image info or title; null when neither says
+    static String detectMagnification(ImagePlus imp) {
         Object infoObj = imp.getProperty("Info");
         if (infoObj instanceof String) {
             String info = ((String) infoObj).toLowerCase(Locale.ROOT);
@@ -1606,11 +1872,13 @@ public class HistoMagnify_Plugin implements PlugIn {
         return null;
     }
 
-    private String guessTifPath(ImagePlus imp) {
+    // file segment.py can read the page from directly (see src/core/pages.py)
+    private static String guessSourcePath(ImagePlus imp) {
         FileInfo fi = imp.getOriginalFileInfo();
         if (fi != null && fi.directory != null && fi.fileName != null) {
             String path = fi.directory + fi.fileName;
-            if (path.toLowerCase(Locale.ROOT).endsWith(".tif") || path.toLowerCase(Locale.ROOT).endsWith(".tiff")) {
+            String lower = path.toLowerCase(Locale.ROOT);
+            if (lower.endsWith(".tif") || lower.endsWith(".tiff") || lower.endsWith(".nd2")) {
                 File f = new File(path);
                 if (f.isFile()) return f.getAbsolutePath();
             }
@@ -1619,6 +1887,7 @@ public class HistoMagnify_Plugin implements PlugIn {
     }
 
 
+    @SuppressWarnings("try")
     private void runCountMenu(String mode, boolean useROI) {
         if (lastSeg20x == null || !lastSeg20x.isFile() || lastTmpDir == null) {
             IJ.showMessage("HistoMagnify",
@@ -1651,27 +1920,30 @@ public class HistoMagnify_Plugin implements PlugIn {
         }
 
         File mask = lastTmpDir.resolve(mode+"_mask.tif").toFile();
-        try {
-            makeBinaryMaskFromLabel(lastSeg20x, roi, classId, mask);
+        String[] maskC;
+        try (StageTimer.Stage st = stage("mask_export")) {
+            maskC = maskArgs(lastSeg20x, roi, classId, mask);
         } catch (IOException e) {
             IJ.handleException(e); return;
         }
 
-        Path venvDir = Paths.get(System.getProperty("user.home")).resolve(".histomagnify").resolve("venv");
-        String py = venvDir.resolve(isWin ? "Scripts\\python.exe" : "bin/python").toString();
+        String py;
+        try (StageTimer.Stage st = stage("venv_probe")) {
+            py = metricsPython();
+        }
+        if (py == null) return;
         File metrics = lastTmpDir.resolve("metrics.py").toFile();
         File outTxt = lastTmpDir.resolve(mode+"_count.txt").toFile();
         File outLabels = lastTmpDir.resolve(mode+"_labels.tif").toFile();
-        File outSplitContours = lastTmpDir.resolve(mode+"_contours.tif").toFile();
-        File outUnsplitContours = lastTmpDir.resolve(mode+"_outer_contours.tif").toFile();
+        File outSplitContours = lastTmpDir.resolve(mode+"_contours.hmc").toFile();
+        File outUnsplitContours = lastTmpDir.resolve(mode+"_outer_contours.hmc").toFile();
 
 
-        try {
+        try (StageTimer.Stage st = stage("python_process")) {
             double px = (expanded && EF_val > 0) ? (userPixelSizeUnitsPerPixel / EF_val) : userPixelSizeUnitsPerPixel;
             List<String> args = new ArrayList<>(Arrays.asList(
                     py, metrics.getAbsolutePath(),
                     "--task", mode,
-                    "--mask", mask.getAbsolutePath(),
                     "--ws_min_dist", String.valueOf("rbc".equals(mode) ? wsRbcMinDist : wsNucMinDist),
                     "--ws_thresh_rel", String.valueOf("rbc".equals(mode) ? wsRbcThreshRel : wsNucThreshRel),
                     "--ws_sigma", String.valueOf("rbc".equals(mode) ? wsRbcSigma : wsNucSigma),
@@ -1682,15 +1954,17 @@ public class HistoMagnify_Plugin implements PlugIn {
                     "--out_contours", outSplitContours.getAbsolutePath(), // split
                     "--out_outer_contours", outUnsplitContours.getAbsolutePath()// unsplit
             ));
+            args.addAll(Arrays.asList(maskC));
             runWithLogging(args.toArray(new String[0]), "[metrics:"+mode+"] ", lastTmpDir.toFile());
         } catch (Exception e) {
             IJ.handleException(e);
             return;
         }
         File lbls = lastTmpDir.resolve(mode+"_labels.tif").toFile();
-        File splitContours = lastTmpDir.resolve(mode+"_contours.tif").toFile();
-        File unsplitContours = lastTmpDir.resolve(mode+"_outer_contours.tif").toFile();
+        File splitContours = outSplitContours;
+        File unsplitContours = outUnsplitContours;
 
+        StageTimer.Stage build = stage("overlay_build");
         Overlay ov = lastResult.getOverlay();
         if (ov == null) { ov = new Overlay(); lastResult.setOverlay(ov); }
 
@@ -1701,29 +1975,27 @@ public class HistoMagnify_Plugin implements PlugIn {
         bucket.clear();
 
         Color col = "rbc".equals(mode) ? Color.WHITE : new Color(255,255,0); // RBC=white, Nuc=yellow
-        float alpha = 1.0f;
 
         java.awt.Rectangle b = (roi != null) ? roi.getBounds() : new java.awt.Rectangle(0,0,0,0);
 
         try {
-            Roi uns = makeColoredMaskRoi(unsplitContours, col, alpha, 2);
-            uns.setPosition(2);
-            if (roi != null) uns.setLocation(b.x, b.y);
-            ov.add(uns); bucket.add(uns);
+            Roi uns = contourLayer(mode + "-parent", unsplitContours, col, 2, b);
+            if (uns != null) { ov.add(uns); bucket.add(uns); }
         } catch (IOException ignore) {
             IJ.log("[MagnifySeg] No unsplit contours for " + mode);
         }
         try {
-            Roi spl = makeColoredMaskRoi(splitContours, col, alpha, 2);
-            spl.setPosition(2);
-            if (roi != null) spl.setLocation(b.x, b.y);
-            ov.add(spl); bucket.add(spl);
+            Roi spl = contourLayer(mode, splitContours, col, 2, b);
+            if (spl != null) { ov.add(spl); bucket.add(spl); }
         } catch (IOException ignore) {
             IJ.log("[MagnifySeg] No split contours for " + mode);
         }
 
         applyVisibility(ov);
-        lastResult.updateAndDraw();
+        if (build != null) build.close();
+        try (StageTimer.Stage st = stage("render")) {
+            lastResult.updateAndDraw();
+        }
 
         // read and show
         try {
@@ -1740,45 +2012,145 @@ public class HistoMagnify_Plugin implements PlugIn {
         }
     }
 
-    private File exportSinglePageRAW(ImagePlus imp, int page0, Path tmpDir) throws IOException {
-        int zSaved = imp.getZ();
-        int  cSaved = imp.getC();
-        int tSaved = imp.getT();
+    // Shows the current plane as the model would see it (to_gray8 + CLAHE), without Python.
+    private void runEnhancePreview() {
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if (imp == null) {
+            IJ.showMessage("HistoMagnify", "No images open.");
+            return;
+        }
+        long t0 = System.nanoTime();
+        ByteProcessor enh = Clahe.enhanceForModel(imp.getProcessor());
+        IJ.log("[HistoMagnify] CLAHE in Java: " + (System.nanoTime() - t0) / 1000000 + " ms");
+        ImagePlus out = new ImagePlus(imp.getShortTitle() + " (enhanced)", enh);
+        out.setCalibration(imp.getCalibration());
+        out.show();
+    }
+
+    // Segments one page with float32 and with a reduced-precision backend, reports per-class Dice.
+    private void runBackendCheck() {
+        int count = WindowManager.getImageCount();
+        if (count == 0) {
+            IJ.showMessage("HistoMagnify", "Open a reference image first.");
+            return;
+        }
+        String[] titles = new String[count];
+        for (int i = 0; i < count; i++) titles[i] = WindowManager.getImage(i + 1).getTitle();
+
+        String[] reduced = {"fp16", "int8"};
+        GenericDialog gd = new GenericDialog("HistoMagnify – Check inference backend");
+        gd.addChoice("Reference image:", titles, titles[0]);
+        gd.addNumericField("TIFF page (0-based):", lastPageSelected != null ? lastPageSelected : 0, 0);
+        String autoMag = detectMagnification(WindowManager.getImage(titles[0]));
+        gd.addChoice("Magnification:", new String[]{"20X", "40X"}, "20X".equals(autoMag) ? "20X" : "40X");
+        gd.addChoice("Compare float32 against:", reduced, "int8".equals(inferenceBackend) ? "int8" : "fp16");
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+
+        ImagePlus ref = WindowManager.getImage(gd.getNextChoice());
+        int page0 = (int) gd.getNextNumber();
+        String mag = gd.getNextChoice();
+        String backend = gd.getNextChoice();
+        if (ref == null) return;
+
+        Path tmpDir = null;
         try {
-            int zPages = Math.max(1, imp.getNSlices());
-            int z = Math.min(Math.max(0, page0), zPages - 1);
-            imp.setPosition(1, z + 1, tSaved);
-            ImageProcessor ip = imp.getProcessor().duplicate();
-            File out = tmpDir.resolve("input_page_raw.tif").toFile();
-            new ij.io.FileSaver(new ImagePlus("page", ip)).saveAsTiff(out.getAbsolutePath());
-            return out;
+            Path venvDir = ensureVenv();
+            if (venvDir == null) return;
+
+            tmpDir = Workspace.newSession("check", sessionsInUse());
+            String[] source = sourceArgs(ref, page0);
+            if (source == null) {
+                source = new String[]{"--tif", exportPage(pageProcessor(ref, page0), tmpDir).getAbsolutePath(), "--page", "0"};
+            }
+
+            String modelRes = BF_MODELS.get(mag);
+            extractResource(tmpDir, modelRes, Paths.get(modelRes).getFileName().toString());
+            extractFolder(tmpDir, SCRIPTS_ROOT);
+
+            File report = tmpDir.resolve("backend_check.txt").toFile();
+            List<String> cmd = new ArrayList<>(Arrays.asList(pythonIn(venvDir), tmpDir.resolve("segment.py").toString()));
+            cmd.addAll(Arrays.asList(source));
+            cmd.addAll(Arrays.asList(
+                    "--model", "20X".equals(mag) ? "20x" : "40x",
+                    "--modeldir", tmpDir.toString(),
+                    "--output", tmpDir.resolve("unused.tif").toString(),
+                    "--enhance", standardProcessed ? "0" : "1",
+                    "--backend", backend,
+                    "--cache_dir", cacheDir().toString(),
+                    "--check_backend", report.getAbsolutePath()
+            ));
+            IJ.log("[HistoMagnify] Checking " + backend + " against float32 (" + mag + ")...");
+            runWithLogging(cmd.toArray(new String[0]), "[check] ", tmpDir.toFile());
+            if (!report.isFile()) {
+                IJ.showMessage("HistoMagnify", "Backend check failed. See the Log window.");
+                return;
+            }
+            String text = new String(Files.readAllBytes(report.toPath())).trim();
+            IJ.showMessage("HistoMagnify – Backend check", text);
+        } catch (Exception e) {
+            IJ.handleException(e);
         } finally {
-            imp.setPosition(cSaved, zSaved, tSaved);
+            if (tmpDir != null) Workspace.discard(tmpDir);
         }
     }
 
+    // first channel of slice page0 at the current frame, straight from the stack (no copy; a virtual stack decodes it once)
+    private static ImageProcessor pageProcessor(ImagePlus imp, int page0) {
+        return imp.getStack().getProcessor(pageStackIndex(imp, page0));
+    }
+
+    private static int pageStackIndex(ImagePlus imp, int page0) {
+        int zPages = Math.max(1, imp.getNSlices());
+        int z = Math.min(Math.max(0, page0), zPages - 1);
+        return imp.getStackIndex(1, z + 1, imp.getT());
+    }
+
+    /**
+     * segment.py arguments that read the plane {@link #pageProcessor} returns straight from the
+     * source file: the same TIFF page, or the same ND2 (v, t, z, c). Null when the file can't be
+     * used (unsaved, edited, other formats, or one position of a multi-position ND2, which
+     * Bio-Formats opens as "file.nd2 - series" without telling which position it is).
+     */
+    static String[] sourceArgs(ImagePlus imp, int page0) {
+        String path = imp.changes ? null : guessSourcePath(imp);
+        if (path == null) return null;
+        int index = pageStackIndex(imp, page0);
+        if (!path.toLowerCase(Locale.ROOT).endsWith(".nd2")) {
+            // ImageJ keeps a TIFF's pages in stack order
+            return new String[]{"--tif", path, "--page", String.valueOf(index - 1)};
+        }
+        if (!imp.getTitle().equals(imp.getOriginalFileInfo().fileName)) return null;
+        int[] czt = imp.convertIndexToPosition(index);
+        return new String[]{"--tif", path, "--frame", "0," + (czt[2] - 1) + "," + (czt[1] - 1) + "," + (czt[0] - 1)};
+    }
+
+    // single-page TIFF for Python when the source file can't be read directly (unsaved, edited, other formats)
+    private static File exportPage(ImageProcessor ip, Path tmpDir) {
+        File out = tmpDir.resolve("input_page_raw.tif").toFile();
+        new ij.io.FileSaver(new ImagePlus("page", ip)).saveAsTiff(out.getAbsolutePath());
+        return out;
+    }
+
     private void refreshResultFromSettings() {
         if (lastResult == null) return;
 
         try {
-            // Choose background source and keep it in RGB
-            ColorProcessor bgRGB;
+            // Choose background source
+            ImageProcessor bg;
             if (showEnhancedBackground && lastEnhanced != null && lastEnhanced.isFile()) {
                 ImagePlus enh = IJ.openImage(lastEnhanced.getAbsolutePath());
-                bgRGB = toRGB(enh.getProcessor());
+                bg = enh.getProcessor();
                 enh.close();
             } else {
-                File raw = (lastTmpDir != null) ? lastTmpDir.resolve("input_page_raw.tif").toFile() : null;
-                if (raw == null || !raw.isFile()) {
-                    IJ.log("[MagnifySeg] Raw page snapshot not found; re-run segmentation to toggle background.");
+                if (lastRawPage == null) {
+                    IJ.log("[MagnifySeg] Raw page not found; re-run segmentation to toggle background.");
                     return;
                 }
-                ImagePlus rawImp = IJ.openImage(raw.getAbsolutePath());
-                bgRGB = toRGB(rawImp.getProcessor());
-                rawImp.close();
+                bg = lastRawPage.duplicate();
             }
 
-            // Rebuild the two-slice stack using current LUT and last segmentation
+            // Refresh the two-slice result from the last segmentation
             File segFile = ("20X".equals(lastEffMag) ? lastSeg20x : lastSeg40x);
             if (segFile == null || !segFile.isFile()) return;
 
@@ -1786,43 +2158,22 @@ public class HistoMagnify_Plugin implements PlugIn {
             ImageProcessor lbl = seg.getProcessor().convertToByteProcessor();
             seg.close();
 
-            int w = bgRGB.getWidth(), h = bgRGB.getHeight();
-            ColorProcessor out = (ColorProcessor) bgRGB.duplicate();
-
-            int[][] lut20 = new int[][]{
-                    {  0,  0,130},
-                    { 91, 24,199},
-                    {242, 91, 96},
-                    {240,203, 73},
-                    { 89,195, 71},
-                    { 76, 98,246}
-            };
-            int[][] lut40 = new int[][]{
-                    {105,105,105},
-                    {255,  0,255},
-                    {  0,255,255}
-            };
-            int[][] lut = "20X".equals(lastEffMag) ? lut20 : lut40;
-
-            float alpha = 0.45f;
-            for (int y=0; y<h; y++) for (int x=0; x<w; x++) {
-                int lab = lbl.get(x,y) & 0xff;
-                if (lab <= 0 || lab >= lut.length) continue;
-                int[] c = lut[lab];
-                int p = out.get(x,y);
-                int r=(p>>16)&255, g=(p>>8)&255, b0=p&255;
-                int nr = (int)(r*(1-alpha) + c[0]*alpha);
-                int ng = (int)(g*(1-alpha) + c[1]*alpha);
-                int nb = (int)(b0*(1-alpha) + c[2]*alpha);
-                out.set(x,y, ((nr&255)<<16)|((ng&255)<<8)|(nb&255));
-            }
-
-            ij.ImageStack st = new ij.ImageStack(w,h);
-            st.addSlice("Background", bgRGB);
-            st.addSlice("Overlay", out);
-
             Overlay ov = lastResult.getOverlay();
-            lastResult.setStack(st);
+            ij.ImageStack cur = lastResult.getStack();
+            if (cur instanceof ResultStack && cur.getWidth() == bg.getWidth() && cur.getHeight() == bg.getHeight()) {
+                ResultStack st = (ResultStack) cur;
+                st.setBackground(bg);
+                st.setLabels(lbl);
+                lastResult.setStack(st); // background may have switched between 8-bit and RGB
+            } else {
+                ResultStack st = new ResultStack(bg, lbl, OverlayOps.labelLut(lastEffMag));
+                lastResult.setStack(st);
+                if (ov == null) ov = new Overlay();
+                Roi[] keep = ov.toArray();
+                ov.clear();
+                ov.add(st.labelRoi());
+                for (Roi r : keep) if (!(r instanceof ImageRoi && "labels".equals(r.getName()))) ov.add(r);
+            }
             lastResult.setOverlay(ov);
 
             rebuildStatsBanner(ov);
@@ -1830,6 +2181,7 @@ public class HistoMagnify_Plugin implements PlugIn {
 
             lastResult.setSlice(2);
             lastResult.updateAndDraw();
+            showOverview(true);
         } catch (Exception ex) {
             IJ.handleException(ex);
         }
@@ -1842,14 +2194,6 @@ public class HistoMagnify_Plugin implements PlugIn {
         return u.isEmpty() || "pixel".equals(u) || "pixels".equals(u) || "px".equals(u);
     }
 
-    private boolean overlayContains(Overlay ov, Roi target) {
-        if (ov == null || target == null) return false;
-        for (int i = 0; i < ov.size(); i++) {
-            if (ov.get(i) == target) return true;
-        }
-        return false;
-    }
-
     private ImageRoi makeBackdrop(int x, int y, int w, int h, float opacity) {
         ColorProcessor cp = new ColorProcessor(w, h);
         int packedBlack = 0; // 0x000000
@@ -1868,6 +2212,8 @@ public class HistoMagnify_Plugin implements PlugIn {
 
     // Thin and rounded border panel to group sections
     private static class BorderedPanel extends Panel {
+        private static final long serialVersionUID = 1L;
+
         BorderedPanel(LayoutManager lm) { super(lm); }
         @Override public void paint(Graphics g) {
             super.paint(g);
@@ -1929,58 +2275,8 @@ public class HistoMagnify_Plugin implements PlugIn {
         }
     }
 
-    private int runAndGetExit(String[] cmd, String prefix, File workDir)
-            throws IOException, InterruptedException {
-        Process p = Runtime.getRuntime().exec(cmd, null, workDir);
-        Thread outG = (prefix == null) ? null : new StreamGobbler(p.getInputStream(), prefix);
-        Thread errG = (prefix == null) ? null : new StreamGobbler(p.getErrorStream(), prefix);
-        if (outG != null) outG.start();
-        if (errG != null) errG.start();
-        int code = p.waitFor();
-        if (outG != null) outG.join();
-        if (errG != null) errG.join();
-        return code;
-    }
-
-
-    private boolean commandWorks(String... probeCmd) {
-        try {
-            return runAndGetExit(probeCmd, null, null) == 0;
-        } catch (Exception e) {
-            return false;
-        }
-    }
-
-
-    private boolean pythonOK(String... launcher) {
-        //must be 3.8+ and have the venv module
-        String versionCheck = "import sys,importlib.util; " +
-                "sys.exit(0 if sys.version_info[:2]>=(3,8) and importlib.util.find_spec('venv') else 1)";
-        try {
-            return runAndGetExit(cat(launcher, "-c", versionCheck), null, null) == 0;
-        } catch (Exception e) {
-            return false;
-        }
-    }
-
-    private String[] choosePythonLauncher() {
-        if (isWin) {
-            if (pythonOK("py","-3"))          return new String[]{"py","-3"};
-            if (pythonOK("py"))               return new String[]{"py"};
-            if (pythonOK("python"))           return new String[]{"python"};
-            if (pythonOK("python3"))          return new String[]{"python3"};
-        } else {
-            if (pythonOK("python3"))          return new String[]{"python3"};
-            if (pythonOK("python"))           return new String[]{"python"};
-        }
-        return null;
-    }
-
-
     private static String[] cat(String[] a, String... b) {
-        String[] out = Arrays.copyOf(a, a.length + b.length);
-        System.arraycopy(b, 0, out, a.length, b.length);
-        return out;
+        return PythonRuntime.cat(a, b);
     }
 
 
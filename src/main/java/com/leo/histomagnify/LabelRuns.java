@@ -0,0 +1,201 @@
+package com.leo.histomagnify;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Run-length encoded label map, the {@code .hmr} file written next to each segmentation by
+ * {@code segment.py} ({@code src/core/rle.py}) and by the native engine.
+ *
+ * On disk it is an HMC1 column file ({@link ColumnarTable}) with int32 columns y, x, len and
+ * label: one row per run of equal labels, row-major, never crossing the end of an image row.
+ * Runs cover every pixel, background included. Class masks, area totals, rectangle crops and
+ * the overlay blend walk the runs of the rows they need, so their cost follows the number of
+ * label boundaries rather than the number of pixels.
+ */
+public final class LabelRuns {
+
+    public static final String SUFFIX = ".hmr";
+    private static final String[] COLUMNS = {"y", "x", "len", "label"};
+
+    public final int width, height;
+    private final int[] x, len, label;
+    private final int[] rowStart;   // runs of row y are [rowStart[y], rowStart[y + 1])
+
+    private LabelRuns(int width, int height, int[] y, int[] x, int[] len, int[] label) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.x = x;
+        this.len = len;
+        this.label = label;
+        rowStart = new int[height + 1];
+        int r = 0;
+        for (int row = 0; row < height; row++) {
+            rowStart[row] = r;
+            int covered = 0;
+            while (r < y.length && y[r] == row) {
+                if (x[r] != covered || len[r] <= 0) throw new IOException("Corrupt run at row " + row);
+                covered += len[r++];
+            }
+            if (covered != width) throw new IOException("Runs of row " + row + " cover " + covered + " of " + width + " px");
+        }
+        if (r != y.length) throw new IOException("Runs are not in row order");
+        rowStart[height] = r;
+    }
+
+    /** seg_20x.tif -> seg_20x.hmr */
+    public static File pathFor(File labelTif) {
+        String name = labelTif.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(labelTif.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + SUFFIX);
+    }
+
+    public static LabelRuns encode(ImageProcessor labels) throws IOException {
+        ImageProcessor ip = labels instanceof ByteProcessor ? labels : labels.convertToByteProcessor(false);
+        int w = ip.getWidth(), h = ip.getHeight();
+        byte[] pix = (byte[]) ip.getPixels();
+        int n = 0;
+        int[] y = new int[Math.max(16, 2 * h)], x = new int[y.length], len = new int[y.length], lab = new int[y.length];
+        for (int row = 0; row < h; row++) {
+            int off = row * w, start = 0;
+            for (int c = 1; c <= w; c++) {
+                if (c < w && pix[off + c] == pix[off + start]) continue;
+                if (n == y.length) {
+                    int cap = n * 2;
+                    y = Arrays.copyOf(y, cap); x = Arrays.copyOf(x, cap);
+                    len = Arrays.copyOf(len, cap); lab = Arrays.copyOf(lab, cap);
+                }
+                y[n] = row; x[n] = start; len[n] = c - start; lab[n] = pix[off + start] & 0xff;
+                n++;
+                start = c;
+            }
+        }
+        return new LabelRuns(w, h, Arrays.copyOf(y, n), Arrays.copyOf(x, n), Arrays.copyOf(len, n), Arrays.copyOf(lab, n));
+    }
+
+    public static LabelRuns read(File f) throws IOException {
+        ColumnarTable t = ColumnarTable.read(f);
+        int n = t.rows();
+        if (n == 0) throw new IOException(f + " holds no runs");
+        int[] y = ints(t, "y", n), x = ints(t, "x", n), len = ints(t, "len", n), lab = ints(t, "label", n);
+        int w = 0;
+        for (int r = 0; r < n && y[r] == 0; r++) w += len[r];
+        return new LabelRuns(w, y[n - 1] + 1, y, x, len, lab);
+    }
+
+    private static int[] ints(ColumnarTable t, String name, int n) throws IOException {
+        int[] a = new int[n];
+        IntBuffer b = t.ints(name);
+        b.get(a);
+        return a;
+    }
+
+    /** Writes the runs next to their TIFF; a reader never sees a partial file. */
+    public void write(File f) throws IOException {
+        int n = runs();
+        int[] y = new int[n];
+        for (int row = 0; row < height; row++) Arrays.fill(y, rowStart[row], rowStart[row + 1], row);
+        File tmp = new File(f.getPath() + ".part");
+        ColumnarTable.writeInts(tmp, COLUMNS, new int[][]{y, x, len, label});
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int runs() {
+        return rowStart[height];
+    }
+
+    /** Pixels per label 0..nLabels-1, inside {@code crop} (clipped to the map) or everywhere when null. */
+    public long[] areas(int nLabels, Rectangle crop) {
+        Rectangle c = clip(crop);
+        long[] out = new long[nLabels];
+        for (int row = c.y; row < c.y + c.height; row++) {
+            for (int r = firstRun(row, c.x), end = rowStart[row + 1]; r < end && x[r] < c.x + c.width; r++) {
+                int lab = label[r];
+                if (lab >= nLabels) continue;
+                out[lab] += Math.min(x[r] + len[r], c.x + c.width) - Math.max(x[r], c.x);
+            }
+        }
+        return out;
+    }
+
+    /** 255 where the label is {@code labelVal}, else 0; the size of {@code crop} (clipped to the map), or the whole map when null. */
+    public ByteProcessor mask(int labelVal, Rectangle crop) {
+        Rectangle c = clip(crop);
+        ByteProcessor out = new ByteProcessor(c.width, c.height);
+        byte[] pix = (byte[]) out.getPixels();
+        for (int row = c.y; row < c.y + c.height; row++) {
+            int off = (row - c.y) * c.width - c.x;
+            for (int r = firstRun(row, c.x), end = rowStart[row + 1]; r < end && x[r] < c.x + c.width; r++) {
+                if (label[r] != labelVal) continue;
+                Arrays.fill(pix, off + Math.max(x[r], c.x), off + Math.min(x[r] + len[r], c.x + c.width), (byte) 255);
+            }
+        }
+        return out;
+    }
+
+    /** The full label plane. */
+    public ByteProcessor toProcessor() {
+        ByteProcessor out = new ByteProcessor(width, height);
+        byte[] pix = (byte[]) out.getPixels();
+        for (int row = 0; row < height; row++) {
+            for (int r = rowStart[row]; r < rowStart[row + 1]; r++) {
+                Arrays.fill(pix, row * width + x[r], row * width + x[r] + len[r], (byte) label[r]);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * out = bg with label colours alpha-blended ({@link OverlayOps#LABEL_ALPHA}), rows [y0, y1) only:
+     * the result window's label overlay flattened. Background runs are copied as whole row spans.
+     */
+    public void blend(ColorProcessor out, ColorProcessor bg, int[][] lut, int y0, int y1) {
+        float alpha = OverlayOps.LABEL_ALPHA;
+        int[] dst = (int[]) out.getPixels();
+        int[] src = (int[]) bg.getPixels();
+        for (int row = y0; row < y1; row++) {
+            int off = row * width;
+            System.arraycopy(src, off, dst, off, width);
+            for (int r = rowStart[row]; r < rowStart[row + 1]; r++) {
+                int lab = label[r];
+                if (lab <= 0 || lab >= lut.length) continue;
+                int[] c = lut[lab];
+                float cr = c[0] * alpha, cg = c[1] * alpha, cb = c[2] * alpha;
+                for (int i = off + x[r], e = i + len[r]; i < e; i++) {
+                    int p = src[i];
+                    int nr = (int) (((p >> 16) & 255) * (1 - alpha) + cr);
+                    int ng = (int) (((p >> 8) & 255) * (1 - alpha) + cg);
+                    int nb = (int) ((p & 255) * (1 - alpha) + cb);
+                    dst[i] = ((nr & 255) << 16) | ((ng & 255) << 8) | (nb & 255);
+                }
+            }
+        }
+    }
+
+    private Rectangle clip(Rectangle crop) {
+        Rectangle all = new Rectangle(0, 0, width, height);
+        if (crop == null) return all;
+        Rectangle c = crop.intersection(all);
+        if (c.isEmpty()) c.setBounds(0, 0, 0, 0);
+        return c;
+    }
+
+    // first run of the row that ends after column x0
+    private int firstRun(int row, int x0) {
+        int lo = rowStart[row], hi = rowStart[row + 1] - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (x[mid] <= x0) lo = mid; else hi = mid - 1;
+        }
+        return lo;
+    }
+}
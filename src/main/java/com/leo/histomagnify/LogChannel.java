@@ -0,0 +1,133 @@
+package com.leo.histomagnify;
+
+import ij.IJ;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What a Python subprocess says, on its way to the Log window.
+ *
+ * Structured {@code @@HM} events are handled here: {@code progress} goes to the status bar and
+ * progress bar, {@code warning} is logged once per distinct message (with a repeat count at the
+ * end), and {@code result} is logged as a line. Free-form stdout is coalesced (a line repeated
+ * back to back is logged once with a count) and rate limited; progress-bar redraws are dropped.
+ * stderr is held back and only logged if the process fails. In debug mode every raw line is
+ * logged as it arrives, the way it used to be.
+ */
+final class LogChannel {
+
+    static final int MAX_LINES_PER_SEC = 20;
+    static final int STDERR_TAIL = 60;
+
+    private final String prefix;
+    private final boolean debug;
+
+    private String lastLine;
+    private int repeats;
+    private long windowStart;
+    private int windowLines;
+    private int suppressed;
+    private final ArrayDeque<String> errTail = new ArrayDeque<>();
+    private final LinkedHashMap<String, Integer> warnings = new LinkedHashMap<>();
+
+    LogChannel(String prefix, boolean debug) {
+        this.prefix = prefix;
+        this.debug = debug;
+        this.windowStart = System.nanoTime() - 2_000_000_000L;
+    }
+
+    /** A plain stdout line. */
+    synchronized void out(String line) {
+        if (debug) { IJ.log(prefix + line); return; }
+        if (isProgressBar(line)) return;
+        if (line.equals(lastLine)) { repeats++; return; }
+        flushRepeats();
+        lastLine = line;
+        emit(line);
+    }
+
+    /** A stderr line. */
+    synchronized void err(String line) {
+        if (debug) { IJ.log(prefix + line); return; }
+        if (isProgressBar(line)) return;
+        if (errTail.size() == STDERR_TAIL) errTail.removeFirst();
+        errTail.addLast(line);
+    }
+
+    /** A structured event (the JSON after the prefix). */
+    synchronized void event(String json) {
+        String ev = HistoMagnify_Plugin.eventField(json, "event");
+        if ("progress".equals(ev)) {
+            int done = (int) number(json, "done"), total = (int) number(json, "total");
+            if (total > 0) {
+                IJ.showProgress(done, total);
+                String what = HistoMagnify_Plugin.eventField(json, "stage");
+                IJ.showStatus("HistoMagnify: " + (what != null ? what + " " : "") + done + "/" + total);
+            }
+        } else if ("warning".equals(ev)) {
+            String msg = HistoMagnify_Plugin.eventField(json, "message");
+            if (msg == null) return;
+            Integer n = warnings.get(msg);
+            warnings.put(msg, n == null ? 1 : n + 1);
+            if (n == null) IJ.log(prefix + "Warning: " + msg);
+        } else if ("result".equals(ev)) {
+            String msg = HistoMagnify_Plugin.eventField(json, "message");
+            if (msg != null) IJ.log(prefix + msg);
+        } else if (debug) {
+            IJ.log(prefix + PythonRuntime.EVENT_PREFIX + json);
+        }
+    }
+
+    /** Logs what was held back; stderr only when the process failed. */
+    synchronized void close(int exitCode) {
+        flushRepeats();
+        if (suppressed > 0) IJ.log(prefix + "(" + suppressed + " more lines not shown)");
+        suppressed = 0;
+        for (Map.Entry<String, Integer> w : warnings.entrySet()) {
+            if (w.getValue() > 1) IJ.log(prefix + "Warning repeated " + w.getValue() + " times: " + w.getKey());
+        }
+        warnings.clear();
+        if (exitCode != 0 && !errTail.isEmpty()) {
+            IJ.log(prefix + "Process exited with code " + exitCode + "; last error output:");
+            for (String l : errTail) IJ.log(prefix + l);
+        }
+        errTail.clear();
+        IJ.showProgress(1.0);
+    }
+
+    private void flushRepeats() {
+        if (repeats > 0) emit("(previous line repeated " + repeats + " times)");
+        repeats = 0;
+    }
+
+    private void emit(String line) {
+        long now = System.nanoTime();
+        if (now - windowStart > 1_000_000_000L) {
+            if (suppressed > 0) IJ.log(prefix + "(" + suppressed + " lines not shown)");
+            windowStart = now;
+            windowLines = 0;
+            suppressed = 0;
+        }
+        if (windowLines++ < MAX_LINES_PER_SEC) IJ.log(prefix + line);
+        else suppressed++;
+    }
+
+    // Keras/tqdm-style bars: carriage returns, backspaces, "12/340 [====>...]" or block characters
+    static boolean isProgressBar(String line) {
+        if (line.indexOf('\r') >= 0 || line.indexOf('\b') >= 0) return true;
+        if (line.indexOf('━') >= 0 || line.indexOf('█') >= 0) return true;
+        return line.matches("^\\s*\\d+/\\d+\\s*\\[[=>.\\s]*\\].*");
+    }
+
+    private static double number(String json, String key) {
+        String v = HistoMagnify_Plugin.eventField(json, key);
+        if (v == null) return 0;
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.leo.histomagnify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Estimates the Fiji heap a segmentation run needs before it starts, from the plane size,
+ * class count and settings, and picks the first layout that fits the budget: the settings as
+ * they are, then without the progressive preview window (native engine: it is alive during
+ * segmentation), then tile strips (same labels as full tile mode, one tile row of
+ * probabilities). Full-plane layouts whose accumulator is longer than a Java array are skipped
+ * whatever the budget. If nothing fits the caller reports the numbers instead of running out of
+ * heap halfway. Python plans its own process the same way (src/core/memplan.py).
+ */
+public final class MemoryPlanner {
+
+    private MemoryPlanner() {}
+
+    public static final class Plan {
+        public final String resample;
+        public final boolean strips, progressive;
+        public final long enhanceBytes, segmentBytes, compositeBytes, budgetBytes;
+        public final List<String> notes;
+
+        Plan(String resample, boolean strips, boolean progressive, long enhanceBytes, long segmentBytes,
+             long compositeBytes, long budgetBytes, List<String> notes) {
+            this.resample = resample;
+            this.strips = strips;
+            this.progressive = progressive;
+            this.enhanceBytes = enhanceBytes;
+            this.segmentBytes = segmentBytes;
+            this.compositeBytes = compositeBytes;
+            this.budgetBytes = budgetBytes;
+            this.notes = notes;
+        }
+
+        public long peakBytes() {
+            // the native engine segments while the preview window is open
+            long during = segmentBytes + (progressive && segmentBytes > 0 ? compositeBytes : 0);
+            return Math.max(enhanceBytes, Math.max(during, compositeBytes));
+        }
+
+        public boolean fits() {
+            return peakBytes() <= budgetBytes;
+        }
+
+        public String describe() {
+            return String.format(Locale.ROOT,
+                    "resample=%s%s%s, CLAHE ~%d MB, segmentation ~%d MB, result window ~%d MB, peak ~%d MB, budget %d MB",
+                    resample, strips ? " (strips)" : "", progressive ? ", progressive" : "", mb(enhanceBytes),
+                    mb(segmentBytes), mb(compositeBytes), mb(peakBytes()), mb(budgetBytes));
+        }
+    }
+
+    /**
+     * @param nativeSeg   segmentation runs in this JVM (ONNX engine); otherwise only compositing is planned here
+     * @param javaClahe   the plane is enhanced in this JVM
+     * @param progressive progressive preview is switched on
+     * @param budgetMb    user budget, 0 = whatever heap is available now
+     */
+    public static Plan plan(int W, int H, ModelSpec spec, String resample, boolean nativeSeg, boolean javaClahe,
+                            boolean progressive, long budgetMb) {
+        long budget = budgetMb > 0 ? Math.min(budgetMb << 20, availableHeap()) : availableHeap();
+        return planWithin(W, H, spec, resample, nativeSeg, javaClahe, progressive, budget);
+    }
+
+    static Plan planWithin(int W, int H, ModelSpec spec, String resample, boolean nativeSeg, boolean javaClahe,
+                           boolean progressive, long budget) {
+        long enhance = javaClahe ? claheBytes(W, H) : 0;
+        long composite = compositeBytes(W, H);
+        String mode = resample == null ? "tile" : resample;
+        List<String> notes = new ArrayList<>();
+        if (!nativeSeg) return new Plan(mode, false, progressive, enhance, 0, composite, budget, notes);
+
+        long full = segmentBytes(W, H, spec, mode, false);
+        long strips = segmentBytes(W, H, spec, "tile", true);
+        Plan[] ladder = {
+                new Plan(mode, false, progressive, enhance, full, composite, budget, notes),
+                new Plan(mode, false, false, enhance, full, composite, budget, notes),
+                new Plan("tile", true, progressive, enhance, strips, composite, budget, notes),
+                new Plan("tile", true, false, enhance, strips, composite, budget, notes)
+        };
+        boolean fullArray = TiledSegmenter.accumulatorLength(W, H, spec, mode, false) <= TiledSegmenter.MAX_ARRAY;
+        Plan chosen = ladder[ladder.length - 1];
+        for (Plan p : ladder) {
+            if (p.fits() && (p.strips || fullArray)) { chosen = p; break; }
+        }
+        if (!fullArray)
+            notes.add(String.format(Locale.ROOT, "%s accumulator is longer than a Java array; using tile strips (~%d MB)",
+                    "tile".equals(mode) ? "full-plane" : mode, mb(strips)));
+        else if (chosen.strips && !"tile".equals(mode))
+            notes.add(String.format(Locale.ROOT, "%s accumulators need ~%d MB; using tile strips (~%d MB)",
+                    mode, mb(full), mb(strips)));
+        else if (chosen.strips)
+            notes.add(String.format(Locale.ROOT, "full-plane accumulator needs ~%d MB; using tile strips (~%d MB)",
+                    mb(full), mb(strips)));
+        if (progressive && !chosen.progressive)
+            notes.add("progressive preview off for this run (its window would be open during segmentation)");
+        return chosen;
+    }
+
+    /** Heap that can still be allocated: max heap minus what live objects use now. */
+    public static long availableHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+    }
+
+    // 8-bit input and output plus Clahe's int working copies
+    static long claheBytes(int W, int H) {
+        return (long) W * H * (1 + 1 + 4 + 4);
+    }
+
+    // ResultStack: background (RGB pages 4 B/px, 8-bit 1) and its label plane, plus the label file being loaded
+    static long compositeBytes(int W, int H) {
+        long px = (long) W * H;
+        return px * (4 + 1 + 1);
+    }
+
+    // native segmentation working set on top of the 8-bit model input and tissue reference
+    static long segmentBytes(int W, int H, ModelSpec spec, String resample, boolean strips) {
+        long px = (long) W * H;
+        int N = spec.numClasses;
+        long resident = 2 * px;
+        long perTile = 4L * spec.patchWidth * spec.patchHeight * (N + 2) + 4L * spec.modelWidth * spec.modelHeight * (N + 1);
+        if ("tile".equals(resample)) {
+            long rows = strips ? Math.min(spec.patchHeight, H) : H;
+            return resident + 4L * W * rows * N + (strips ? px : 0) + px + perTile;
+        }
+        long Hm = Math.round(H * (double) spec.modelHeight / spec.patchHeight);
+        long Wm = Math.round(W * (double) spec.modelWidth / spec.patchWidth);
+        long pm = Hm * Wm;
+        // float copy of the plane while it is shrunk, then model-scale accumulators
+        long build = 4 * px + 4 * pm;
+        long acc = 4 * pm * (N + 2);
+        long upsample = "plane-nearest".equals(resample) ? pm + px : 4 * pm + 8 * px + px;
+        return resident + Math.max(build, acc + upsample) + perTile;
+    }
+
+    static long mb(long bytes) {
+        return (bytes + (1 << 20) - 1) >> 20;
+    }
+}
@@ -0,0 +1,25 @@
+package com.leo.histomagnify;
+
+/** Tiling geometry of the bundled brightfield models; mirrors MODEL_PARAMS in segment.py. */
+public final class ModelSpec {
+    public static final ModelSpec BF_20X = new ModelSpec("20x", 720, 960, 576, 768, 6);
+    public static final ModelSpec BF_40X = new ModelSpec("40x", 576, 768, 576, 768, 3);
+
+    public final String key;
+    public final int patchHeight, patchWidth;
+    public final int modelHeight, modelWidth;
+    public final int numClasses;
+
+    private ModelSpec(String key, int patchHeight, int patchWidth, int modelHeight, int modelWidth, int numClasses) {
+        this.key = key;
+        this.patchHeight = patchHeight;
+        this.patchWidth = patchWidth;
+        this.modelHeight = modelHeight;
+        this.modelWidth = modelWidth;
+        this.numClasses = numClasses;
+    }
+
+    public static ModelSpec forMagnification(String mag) {
+        return "20X".equalsIgnoreCase(mag) ? BF_20X : BF_40X;
+    }
+}
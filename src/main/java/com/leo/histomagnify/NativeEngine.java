@@ -0,0 +1,53 @@
+package com.leo.histomagnify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Locates exported ONNX graphs of the brightfield models and opens them through
+ * {@code OnnxTileModel}, which is only compiled with the {@code onnx} Maven profile.
+ * The runtime is looked up reflectively so the plugin still loads without onnxruntime.jar.
+ */
+final class NativeEngine {
+    private static final String IMPL = "com.leo.histomagnify.OnnxTileModel";
+
+    private NativeEngine() {}
+
+    static Path modelsDir() {
+        return Paths.get(System.getProperty("user.home")).resolve(".histomagnify").resolve("models");
+    }
+
+    static boolean runtimeAvailable() {
+        try {
+            Class.forName(IMPL);
+            Class.forName("ai.onnxruntime.OrtEnvironment");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /** ~/.histomagnify/models/&lt;key&gt;.onnx, or a copy of /models/&lt;key&gt;.onnx from the JAR; null if neither exists. */
+    static Path findModel(ModelSpec spec) throws IOException {
+        Path user = modelsDir().resolve(spec.key + ".onnx");
+        if (Files.isRegularFile(user)) return user;
+        try (InputStream in = NativeEngine.class.getResourceAsStream("/models/" + spec.key + ".onnx")) {
+            if (in == null) return null;
+            Files.createDirectories(user.getParent());
+            Path part = user.resolveSibling(user.getFileName() + ".part");
+            Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(part, user, StandardCopyOption.REPLACE_EXISTING);
+            return user;
+        }
+    }
+
+    static TileModel open(Path onnx, ModelSpec spec, int threads) throws Exception {
+        Class<?> c = Class.forName(IMPL);
+        return (TileModel) c.getConstructor(Path.class, int.class, int.class, int.class, int.class)
+                .newInstance(onnx, spec.modelHeight, spec.modelWidth, spec.numClasses, threads);
+    }
+}
@@ -0,0 +1,86 @@
+package com.leo.histomagnify;
+
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.image.IndexColorModel;
+import java.util.List;
+
+/**
+ * Pixel and overlay kernels behind the result window: label LUT and colour model, label
+ * masks and overlay group visibility. Kept free of plugin state so they can be
+ * benchmarked (benchmarks/jmh) and reused outside the dialog code.
+ */
+public final class OverlayOps {
+
+    public static final float LABEL_ALPHA = 0.45f;
+
+    private OverlayOps() {}
+
+    public static int[][] labelLut(String effMag) {
+        if ("20X".equals(effMag)) {
+            return new int[][]{
+                    {  0,  0,130},
+                    { 91, 24,199},
+                    {242, 91, 96},
+                    {240,203, 73},
+                    { 89,195, 71},
+                    { 76, 98,246}
+            };
+        }
+        return new int[][]{
+                {105,105,105},
+                {255,  0,255},
+                {  0,255,255}
+        };
+    }
+
+    /** 8-bit colour model for a label plane: LUT colours, opaque; label 0 and unknown labels transparent. */
+    public static IndexColorModel labelColorModel(int[][] lut) {
+        byte[] r = new byte[256], g = new byte[256], b = new byte[256], a = new byte[256];
+        for (int i = 1; i < lut.length && i < 256; i++) {
+            r[i] = (byte) lut[i][0];
+            g[i] = (byte) lut[i][1];
+            b[i] = (byte) lut[i][2];
+            a[i] = (byte) 255;
+        }
+        return new IndexColorModel(8, 256, r, g, b, a);
+    }
+
+    /** 8-bit copy of {@code labels} with 255 where the label equals {@code labelVal}, else 0. */
+    public static ImageProcessor labelMask(ImageProcessor labels, int labelVal) {
+        ImageProcessor ip = labels.convertToByteProcessor();
+        int w = ip.getWidth(), h = ip.getHeight();
+        byte[] pix = (byte[]) ip.getPixels();
+        for (int i=0;i<w*h;i++) {
+            int v = pix[i] & 0xff;
+            pix[i] = (byte)((v==labelVal)?255:0);
+        }
+        return ip;
+    }
+
+    public static void setGroupVisible(Overlay ov, List<Roi> group, boolean visible) {
+        if (ov == null || group == null || group.isEmpty()) return;
+
+        if (!visible) {
+            for (int i = ov.size() - 1; i >= 0; i--) {
+                Roi r = ov.get(i);
+                if (group.contains(r)) ov.remove(i);
+            }
+            return;
+        }
+
+        for (Roi r : group) {
+            if (!overlayContains(ov, r)) ov.add(r);
+        }
+    }
+
+    public static boolean overlayContains(Overlay ov, Roi target) {
+        if (ov == null || target == null) return false;
+        for (int i = 0; i < ov.size(); i++) {
+            if (ov.get(i) == target) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,269 @@
+package com.leo.histomagnify;
+
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Frame;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Downsampled copies of the composited result for navigating large sections. Level 0 is the
+ * result shrunk 4x (each pixel the mean of a 4x4 block of blended pixels); every further level
+ * halves the previous one until the longer side is at most MIN_SIDE. The overview window draws
+ * from the coarsest level that still has a level pixel per screen pixel, so a repaint costs about
+ * one screen of pixels however large the section is. A click shows that spot at 100% in the
+ * result window.
+ */
+public final class OverviewPyramid {
+
+    static final int FIRST_FACTOR = 4;
+    static final int MIN_SIDE = 512;
+
+    private final int width, height;
+    private final BufferedImage[] levels;
+    private final int[] factors;
+
+    private OverviewPyramid(int width, int height, BufferedImage[] levels, int[] factors) {
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+        this.factors = factors;
+    }
+
+    public static OverviewPyramid build(ResultStack result) {
+        int W = result.getWidth(), H = result.getHeight();
+        int w = (W + FIRST_FACTOR - 1) / FIRST_FACTOR, h = (H + FIRST_FACTOR - 1) / FIRST_FACTOR;
+        int[] px = firstLevel(result.background(), result.labels(), result.lut(), W, H, w, h);
+
+        List<BufferedImage> levels = new ArrayList<>();
+        List<Integer> factors = new ArrayList<>();
+        int f = FIRST_FACTOR;
+        while (true) {
+            levels.add(toImage(px, w, h));
+            factors.add(f);
+            if (Math.max(w, h) <= MIN_SIDE) break;
+            int w2 = (w + 1) / 2, h2 = (h + 1) / 2;
+            px = halve(px, w, h, w2, h2);
+            w = w2; h = h2; f *= 2;
+        }
+        return new OverviewPyramid(W, H, levels.toArray(new BufferedImage[0]),
+                factors.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    public int levelCount() { return levels.length; }
+
+    /** Coarsest level with at least one pixel per screen pixel at {@code scale} (screen px per image px). */
+    int levelFor(double scale) {
+        int k = 0;
+        while (k + 1 < levels.length && 1.0 / factors[k + 1] >= scale) k++;
+        return k;
+    }
+
+    // blend as LabelRuns.blend, then average each f x f block
+    private static int[] firstLevel(ImageProcessor bg, byte[] labels, int[][] lut, int W, int H, int w, int h) {
+        final int f = FIRST_FACTOR;
+        final float alpha = OverlayOps.LABEL_ALPHA;
+        final byte[] gray = bg instanceof ColorProcessor ? null : (byte[]) bg.getPixels();
+        final int[] rgb = bg instanceof ColorProcessor ? (int[]) bg.getPixels() : null;
+        int[] out = new int[w * h];
+        IntStream.range(0, h).parallel().forEach(oy -> {
+            int y0 = oy * f, y1 = Math.min(H, y0 + f);
+            for (int ox = 0; ox < w; ox++) {
+                int x0 = ox * f, x1 = Math.min(W, x0 + f);
+                int sr = 0, sg = 0, sb = 0, n = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        int i = y * W + x;
+                        int r, g, b;
+                        if (rgb != null) {
+                            int p = rgb[i];
+                            r = (p >> 16) & 255; g = (p >> 8) & 255; b = p & 255;
+                        } else {
+                            r = g = b = gray[i] & 255;
+                        }
+                        int lab = labels[i] & 255;
+                        if (lab > 0 && lab < lut.length) {
+                            int[] c = lut[lab];
+                            r = (int) (r * (1 - alpha) + c[0] * alpha);
+                            g = (int) (g * (1 - alpha) + c[1] * alpha);
+                            b = (int) (b * (1 - alpha) + c[2] * alpha);
+                        }
+                        sr += r; sg += g; sb += b; n++;
+                    }
+                }
+                out[oy * w + ox] = ((sr / n) << 16) | ((sg / n) << 8) | (sb / n);
+            }
+        });
+        return out;
+    }
+
+    private static int[] halve(int[] src, int w, int h, int w2, int h2) {
+        int[] out = new int[w2 * h2];
+        IntStream.range(0, h2).parallel().forEach(oy -> {
+            int y0 = 2 * oy, y1 = Math.min(h, y0 + 2);
+            for (int ox = 0; ox < w2; ox++) {
+                int x0 = 2 * ox, x1 = Math.min(w, x0 + 2);
+                int sr = 0, sg = 0, sb = 0, n = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        int p = src[y * w + x];
+                        sr += (p >> 16) & 255; sg += (p >> 8) & 255; sb += p & 255; n++;
+                    }
+                }
+                out[oy * w2 + ox] = ((sr / n) << 16) | ((sg / n) << 8) | (sb / n);
+            }
+        });
+        return out;
+    }
+
+    private static BufferedImage toImage(int[] px, int w, int h) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        img.getRaster().setDataElements(0, 0, w, h, px);
+        return img;
+    }
+
+    /** Opens the overview next to {@code detail}; closing it is independent of the result window. */
+    public Frame show(ImagePlus detail, String title) {
+        Frame frame = new Frame(title);
+        View view = new View(detail);
+        frame.add(view);
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        double fit = Math.min(screen.width * 0.4 / width, screen.height * 0.6 / height);
+        view.fitScale = fit;
+        view.scale = fit;
+        view.setPreferredSize(new Dimension((int) Math.ceil(width * fit), (int) Math.ceil(height * fit)));
+        frame.pack();
+
+        javax.swing.Timer poll = new javax.swing.Timer(250, e -> view.pollDetail());
+        frame.addWindowListener(new WindowAdapter() {
+            @Override public void windowClosing(WindowEvent e) { frame.dispose(); }
+            @Override public void windowClosed(WindowEvent e) { poll.stop(); }
+        });
+        frame.setVisible(true);
+        poll.start();
+        return frame;
+    }
+
+    /** Wheel zooms about the cursor, drag pans, click shows that spot at 100% in the result window. */
+    private final class View extends Canvas {
+        private static final long serialVersionUID = 1L;
+
+        private final ImagePlus detail;
+        double scale, fitScale;
+        private double ox, oy;               // image coordinates at the top-left corner
+        private int pressX, pressY, lastX, lastY;
+        private boolean dragged;
+        private Rectangle lastSrc;
+        private BufferedImage buffer;
+
+        View(ImagePlus detail) {
+            this.detail = detail;
+            MouseAdapter mouse = new MouseAdapter() {
+                @Override public void mousePressed(MouseEvent e) {
+                    pressX = lastX = e.getX(); pressY = lastY = e.getY();
+                    dragged = false;
+                }
+                @Override public void mouseDragged(MouseEvent e) {
+                    if (Math.abs(e.getX() - pressX) + Math.abs(e.getY() - pressY) > 3) dragged = true;
+                    ox -= (e.getX() - lastX) / scale;
+                    oy -= (e.getY() - lastY) / scale;
+                    lastX = e.getX(); lastY = e.getY();
+                    clampOrigin();
+                    repaint();
+                }
+                @Override public void mouseReleased(MouseEvent e) {
+                    if (!dragged) openDetail((int) (ox + e.getX() / scale), (int) (oy + e.getY() / scale));
+                }
+                @Override public void mouseWheelMoved(MouseWheelEvent e) {
+                    double px = ox + e.getX() / scale, py = oy + e.getY() / scale;
+                    double s = scale * Math.pow(1.25, -e.getPreciseWheelRotation());
+                    scale = Math.max(fitScale * 0.5, Math.min(2.0 / FIRST_FACTOR, s));
+                    ox = px - e.getX() / scale;
+                    oy = py - e.getY() / scale;
+                    clampOrigin();
+                    repaint();
+                }
+            };
+            addMouseListener(mouse);
+            addMouseMotionListener(mouse);
+            addMouseWheelListener(mouse);
+        }
+
+        private void clampOrigin() {
+            double vw = getWidth() / scale, vh = getHeight() / scale;
+            ox = Math.max(-vw / 2, Math.min(width - vw / 2, ox));
+            oy = Math.max(-vh / 2, Math.min(height - vh / 2, oy));
+        }
+
+        private void openDetail(int x, int y) {
+            if (x < 0 || y < 0 || x >= width || y >= height) return;
+            if (detail.getWindow() == null) detail.show();
+            ImageCanvas ic = detail.getCanvas();
+            if (ic == null) return;
+            Dimension d = ic.getSize();
+            int w = Math.min(width, d.width), h = Math.min(height, d.height);
+            int sx = Math.max(0, Math.min(width - w, x - w / 2));
+            int sy = Math.max(0, Math.min(height - h, y - h / 2));
+            ic.setMagnification(1.0);
+            ic.setSourceRect(new Rectangle(sx, sy, w, h));
+            ic.repaint();
+            detail.getWindow().toFront();
+            repaint();
+        }
+
+        // the result window has no viewport listener; repaint when its visible area moved
+        void pollDetail() {
+            ImageCanvas ic = detail.getWindow() != null ? detail.getCanvas() : null;
+            Rectangle src = ic != null ? new Rectangle(ic.getSrcRect()) : null;
+            if (src == null ? lastSrc != null : !src.equals(lastSrc)) {
+                lastSrc = src;
+                repaint();
+            }
+        }
+
+        @Override public void update(Graphics g) { paint(g); }
+
+        @Override public void paint(Graphics g) {
+            int cw = getWidth(), ch = getHeight();
+            if (cw <= 0 || ch <= 0) return;
+            if (buffer == null || buffer.getWidth() != cw || buffer.getHeight() != ch)
+                buffer = new BufferedImage(cw, ch, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = buffer.createGraphics();
+            g2.setColor(Color.DARK_GRAY);
+            g2.fillRect(0, 0, cw, ch);
+
+            int k = levelFor(scale);
+            double s = scale * factors[k];
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    s < 1 ? RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            g2.drawImage(levels[k], new AffineTransform(s, 0, 0, s, -ox * scale, -oy * scale), null);
+
+            if (lastSrc != null) {
+                g2.setColor(Color.YELLOW);
+                g2.drawRect((int) ((lastSrc.x - ox) * scale), (int) ((lastSrc.y - oy) * scale),
+                        Math.max(2, (int) (lastSrc.width * scale)), Math.max(2, (int) (lastSrc.height * scale)));
+            }
+            g2.dispose();
+            g.drawImage(buffer, 0, 0, null);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.leo.histomagnify;
+
+import ij.IJ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * The Python side without any GUI: the shared venv in ~/.histomagnify, the scripts and models
+ * bundled in the plugin JAR, and subprocesses whose output goes to the Log. Used by the plugin
+ * and by {@link HistoMagnifyEngine}; failures are thrown, callers decide how to report them.
+ */
+final class PythonRuntime {
+
+    static final String EVENT_PREFIX = "@@HM ";
+    private static final String REQ_RESOURCE = "/scripts/requirements.txt";
+    private static final boolean IS_WIN = System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("win");
+
+    private PythonRuntime() {}
+
+    /** Set-up failure with a message meant for the user. */
+    static final class SetupException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SetupException(String message) {
+            super(message);
+        }
+    }
+
+    static Path baseDir() {
+        return Paths.get(System.getProperty("user.home")).resolve(".histomagnify");
+    }
+
+    static Path cacheDir() {
+        return baseDir().resolve("cache");
+    }
+
+    static String pythonIn(Path venvDir) {
+        return venvDir.resolve(IS_WIN ? "Scripts\\python.exe" : "bin/python").toString();
+    }
+
+    /** Creates ~/.histomagnify/venv on first use; one caller at a time, others wait and reuse it. */
+    static synchronized Path ensureVenv() throws IOException, InterruptedException {
+        Path baseCache = baseDir();
+        Path venvDir = baseCache.resolve("venv");
+        String pyInVenv = pythonIn(venvDir);
+
+        boolean needCreate = true;
+        if (Files.exists(venvDir)) {
+            if (Files.exists(Paths.get(pyInVenv))) {
+                needCreate = false;
+                IJ.log("[HistoMagnify] Using venv at " + venvDir);
+            } else {
+                IJ.log("[HistoMagnify] Detected incomplete venv, recreating…");
+                try (Stream<Path> walk = Files.walk(venvDir)) {
+                    walk.sorted(Comparator.reverseOrder())
+                            .forEach(p -> { try { Files.deleteIfExists(p); } catch (IOException ignored) {} });
+                } catch (IOException ignored) {}
+            }
+        }
+
+        if (needCreate) {
+            Files.createDirectories(baseCache);
+
+            String[] pyLauncher = choosePythonLauncher();
+            if (pyLauncher == null) {
+                throw new SetupException("Python 3.8+ wasn’t found on this system.\n\n" +
+                        "Install Python 3.8+ (recommended via python.org),\n" +
+                        "then re-run this command.\n\n" +
+                        "Recommended source https://www.python.org/downloads/");
+            }
+
+            int vcode = runAndGetExit(cat(pyLauncher, "-m", "venv", venvDir.toString()), "[venv] ", null);
+            if (vcode != 0) {
+                throw new SetupException("Failed to create a Python virtual environment.\n" +
+                        "Please ensure Python 3.8+ is installed and try again.");
+            }
+
+            // write requirements and install
+            Path req = baseCache.resolve("requirements.txt");
+            try (InputStream in = PythonRuntime.class.getResourceAsStream(REQ_RESOURCE)) {
+                if (in == null) throw new FileNotFoundException("Missing " + REQ_RESOURCE + " in plugin JAR");
+                Files.copy(in, req, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            runAndGetExit(new String[]{pyInVenv, "-m", "pip", "install", "--upgrade", "pip"}, "[pip] ", null);
+            int pcode = runAndGetExit(new String[]{pyInVenv, "-m", "pip", "install", "-r", req.toString()},
+                    "[pip] ", null);
+            if (pcode != 0) {
+                throw new SetupException("Python was found, but package installation failed.\n" +
+                        "Open the Log window for details and check internet access.");
+            }
+        }
+        return venvDir;
+    }
+
+    /** Copies every resource under {@code folderName} (e.g. "scripts/") into {@code dir}. */
+    static void extractFolder(Path dir, String folderName) throws IOException {
+        URL srcUrl = PythonRuntime.class.getProtectionDomain().getCodeSource().getLocation();
+        File src = new File(URLDecoder.decode(srcUrl.getPath(), "UTF-8"));
+        if (src.isDirectory()) {
+            // classes directory (IDE, mvn exec): copy the tree
+            Path root = src.toPath().resolve(folderName);
+            if (!Files.isDirectory(root)) throw new FileNotFoundException(root.toString());
+            try (Stream<Path> walk = Files.walk(root)) {
+                for (Path p : (Iterable<Path>) walk::iterator) {
+                    Path out = dir.resolve(root.relativize(p).toString());
+                    if (Files.isDirectory(p)) Files.createDirectories(out);
+                    else Files.copy(p, out, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            return;
+        }
+        try (JarFile jar = new JarFile(src)) {
+            for (JarEntry entry : Collections.list(jar.entries())) {
+                String name = entry.getName();
+                if (!name.startsWith(folderName)) continue;
+                String rel = name.substring(folderName.length());
+                if (rel.isEmpty()) continue;
+                File out = dir.resolve(rel).toFile();
+                if (entry.isDirectory()) out.mkdirs();
+                else {
+                    out.getParentFile().mkdirs();
+                    try (InputStream in = jar.getInputStream(entry);
+                         OutputStream os = new FileOutputStream(out)) {
+                        byte[] buf = new byte[8192]; int r;
+                        while ((r=in.read(buf))>0) os.write(buf,0,r);
+                    }
+                    if (rel.endsWith(".py")) out.setExecutable(true,false);
+                }
+            }
+        }
+    }
+
+    static File extractResource(Path dir, String resPath, String name) throws IOException {
+        try (InputStream in = PythonRuntime.class.getResourceAsStream(resPath)) {
+            if (in==null) throw new FileNotFoundException(resPath);
+            File out = dir.resolve(name).toFile();
+            out.getParentFile().mkdirs();
+            Files.copy(in, out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return out;
+        }
+    }
+
+    /** Raw subprocess output in the Log (off: structured events, coalesced stdout, stderr only on failure). */
+    static volatile boolean debugOutput = Boolean.getBoolean("histomagnify.debug");
+
+    /** Runs {@code cmd}; lines starting with EVENT_PREFIX go to {@code events} (dropped if null), the rest to the Log. */
+    static int run(String[] cmd, String prefix, File workDir, Consumer<String> events)
+            throws IOException, InterruptedException {
+        boolean debug = debugOutput;
+        ProcessBuilder pb = new ProcessBuilder(cmd).directory(workDir);
+        pb.environment().put("HISTOMAGNIFY_DEBUG", debug ? "1" : "0");
+        // TensorFlow's C++ start-up chatter
+        if (!debug) pb.environment().putIfAbsent("TF_CPP_MIN_LOG_LEVEL", "2");
+        Process p = pb.start();
+        LogChannel log = new LogChannel(prefix, debug);
+        Thread outG = new StreamGobbler(p.getInputStream(), log, events, false);
+        Thread errG = new StreamGobbler(p.getErrorStream(), log, null, true);
+        outG.start();
+        errG.start();
+        int code = p.waitFor();
+        outG.join();
+        errG.join();
+        log.close(code);
+        return code;
+    }
+
+    // prefix == null: output is not read
+    static int runAndGetExit(String[] cmd, String prefix, File workDir)
+            throws IOException, InterruptedException {
+        if (prefix != null) return run(cmd, prefix, workDir, null);
+        Process p = Runtime.getRuntime().exec(cmd, null, workDir);
+        return p.waitFor();
+    }
+
+    private static final class StreamGobbler extends Thread {
+        private final InputStream is;
+        private final LogChannel log;
+        private final Consumer<String> events;
+        private final boolean stderr;
+
+        StreamGobbler(InputStream is, LogChannel log, Consumer<String> events, boolean stderr) {
+            this.is = is; this.log = log; this.events = events; this.stderr = stderr;
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(is))) {
+                String line;
+                while ((line = r.readLine())!=null) {
+                    if (stderr) {
+                        log.err(line);
+                    } else if (line.startsWith(EVENT_PREFIX)) {
+                        String json = line.substring(EVENT_PREFIX.length());
+                        log.event(json);
+                        if (events != null) events.accept(json);
+                    } else {
+                        log.out(line);
+                    }
+                }
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static boolean pythonOK(String... launcher) {
+        //must be 3.8+ and have the venv module
+        String versionCheck = "import sys,importlib.util; " +
+                "sys.exit(0 if sys.version_info[:2]>=(3,8) and importlib.util.find_spec('venv') else 1)";
+        try {
+            return runAndGetExit(cat(launcher, "-c", versionCheck), null, null) == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static String[] choosePythonLauncher() {
+        if (IS_WIN) {
+            if (pythonOK("py","-3"))          return new String[]{"py","-3"};
+            if (pythonOK("py"))               return new String[]{"py"};
+            if (pythonOK("python"))           return new String[]{"python"};
+            if (pythonOK("python3"))          return new String[]{"python3"};
+        } else {
+            if (pythonOK("python3"))          return new String[]{"python3"};
+            if (pythonOK("python"))           return new String[]{"python"};
+        }
+        return null;
+    }
+
+    static String[] cat(String[] a, String... b) {
+        String[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+}
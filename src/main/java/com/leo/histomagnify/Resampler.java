@@ -0,0 +1,101 @@
+package com.leo.histomagnify;
+
+/**
+ * Separable bilinear resampling with Pillow's coefficient layout (triangle filter,
+ * support widened by the scale factor when shrinking), so tiles fed to a
+ * {@link TileModel} match what PIL's {@code resize(..., BILINEAR)} produces in segment.py.
+ * Coefficients are computed once per size pair and reused across tiles.
+ */
+final class Resampler {
+    final int inW, inH, outW, outH;
+
+    private final int[] xMin, xSize, yMin, ySize;
+    private final double[] xK, yK;
+    private final int xKSize, yKSize;
+
+    Resampler(int inW, int inH, int outW, int outH) {
+        this.inW = inW; this.inH = inH;
+        this.outW = outW; this.outH = outH;
+
+        xKSize = kernelSize(inW, outW);
+        yKSize = kernelSize(inH, outH);
+        xMin = new int[outW]; xSize = new int[outW]; xK = new double[outW * xKSize];
+        yMin = new int[outH]; ySize = new int[outH]; yK = new double[outH * yKSize];
+        coeffs(inW, outW, xMin, xSize, xK, xKSize);
+        coeffs(inH, outH, yMin, ySize, yK, yKSize);
+    }
+
+    private static int kernelSize(int in, int out) {
+        double filterScale = Math.max((double) in / out, 1.0);
+        return (int) Math.ceil(filterScale) * 2 + 1;
+    }
+
+    private static void coeffs(int in, int out, int[] min, int[] size, double[] k, int ksize) {
+        double scale = (double) in / out;
+        double filterScale = Math.max(scale, 1.0);
+        double support = filterScale;          // bilinear support = 1.0
+        double ss = 1.0 / filterScale;
+        for (int xx = 0; xx < out; xx++) {
+            double center = (xx + 0.5) * scale;
+            int lo = Math.max((int) (center - support + 0.5), 0);
+            int n = Math.min((int) (center + support + 0.5), in) - lo;
+            double ww = 0;
+            int base = xx * ksize;
+            for (int x = 0; x < n; x++) {
+                double t = Math.abs((x + lo - center + 0.5) * ss);
+                double w = t < 1.0 ? 1.0 - t : 0.0;
+                k[base + x] = w;
+                ww += w;
+            }
+            if (ww != 0) for (int x = 0; x < n; x++) k[base + x] /= ww;
+            min[xx] = lo;
+            size[xx] = n;
+        }
+    }
+
+    /**
+     * Resamples a channel-last plane. With {@code round8} every pass is rounded and
+     * clamped to [0,255], like Pillow's 8-bit ("L") mode; otherwise it behaves like mode "F".
+     */
+    float[] resample(float[] src, int channels, boolean round8) {
+        float[] cur = src;
+        int curW = inW;
+        if (outW != inW) {
+            float[] tmp = new float[outW * inH * channels];
+            for (int y = 0; y < inH; y++) {
+                int rowIn = y * inW * channels;
+                int rowOut = y * outW * channels;
+                for (int xx = 0; xx < outW; xx++) {
+                    int base = xx * xKSize, lo = xMin[xx], n = xSize[xx];
+                    for (int c = 0; c < channels; c++) {
+                        double acc = 0;
+                        for (int k = 0; k < n; k++) acc += cur[rowIn + (lo + k) * channels + c] * xK[base + k];
+                        tmp[rowOut + xx * channels + c] = round8 ? clip8(acc) : (float) acc;
+                    }
+                }
+            }
+            cur = tmp;
+            curW = outW;
+        }
+        if (outH != inH) {
+            float[] tmp = new float[curW * outH * channels];
+            int rowLen = curW * channels;
+            for (int yy = 0; yy < outH; yy++) {
+                int base = yy * yKSize, lo = yMin[yy], n = ySize[yy];
+                int rowOut = yy * rowLen;
+                for (int i = 0; i < rowLen; i++) {
+                    double acc = 0;
+                    for (int k = 0; k < n; k++) acc += cur[(lo + k) * rowLen + i] * yK[base + k];
+                    tmp[rowOut + i] = round8 ? clip8(acc) : (float) acc;
+                }
+            }
+            cur = tmp;
+        }
+        return (cur == src) ? src.clone() : cur;
+    }
+
+    private static float clip8(double v) {
+        double r = Math.floor(v + 0.5);
+        return (float) (r < 0 ? 0 : (r > 255 ? 255 : r));
+    }
+}
@@ -0,0 +1,134 @@
+package com.leo.histomagnify;
+
+import ij.VirtualStack;
+import ij.gui.ImageRoi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * The 2-slice result ([Background, Overlay]) without materialising either slice in RGB.
+ * Both slices show the same compact background (8-bit, or RGB only when the page is RGB);
+ * the labels stay one 8-bit plane, drawn on the Overlay slice by an ImageRoi whose colour
+ * model carries the LUT and the blend alpha. The canvas composites only what is on screen,
+ * and writes to the label plane (progressive rows, final labels) show on the next repaint.
+ */
+public final class ResultStack extends VirtualStack {
+
+    private ImageProcessor background;
+    private final byte[] labels;
+    private final int[][] lut;
+    private final ImageRoi labelRoi;
+
+    public ResultStack(ImageProcessor background, ImageProcessor lbl, int[][] lut) {
+        super(background.getWidth(), background.getHeight());
+        this.background = compact(background);
+        int w = getWidth(), h = getHeight();
+        labels = new byte[w * h];
+        this.lut = lut;
+        setLabels(lbl);
+
+        IndexColorModel cm = OverlayOps.labelColorModel(lut);
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(labels, labels.length),
+                w, h, w, 1, new int[]{0}, null);
+        labelRoi = new LabelRoi(new BufferedImage(cm, raster, false, null));
+        labelRoi.setOpacity(OverlayOps.LABEL_ALPHA);
+        labelRoi.setPosition(2);
+        labelRoi.setName("labels");
+    }
+
+    /** Overlay element that draws the labels on slice 2; add it below legend and contours. */
+    public ImageRoi labelRoi() {
+        return labelRoi;
+    }
+
+    ImageProcessor background() { return background; }
+
+    byte[] labels() { return labels; }
+
+    int[][] lut() { return lut; }
+
+    public void setBackground(ImageProcessor ip) {
+        if (ip.getWidth() != getWidth() || ip.getHeight() != getHeight())
+            throw new IllegalArgumentException("background is " + ip.getWidth() + "x" + ip.getHeight()
+                    + ", result is " + getWidth() + "x" + getHeight());
+        background = compact(ip);
+    }
+
+    /** Replaces all labels; a smaller map (e.g. a coarse preview) is scaled up nearest-neighbour. */
+    public void setLabels(ImageProcessor lbl) {
+        int w = getWidth(), h = getHeight();
+        ImageProcessor ip = lbl.convertToByteProcessor(false);
+        if (ip.getWidth() != w || ip.getHeight() != h) {
+            ip.setInterpolationMethod(ImageProcessor.NONE);
+            ip = ip.resize(w, h);
+        }
+        System.arraycopy((byte[]) ip.getPixels(), 0, labels, 0, labels.length);
+    }
+
+    /** Copies {@code strip} into the label rows starting at {@code y0}. */
+    public void setRows(int y0, ImageProcessor strip) {
+        int w = getWidth();
+        int y1 = Math.min(y0 + strip.getHeight(), getHeight());
+        int sw = Math.min(strip.getWidth(), w);
+        for (int y = y0; y < y1; y++)
+            for (int x = 0; x < sw; x++) labels[y * w + x] = (byte) strip.get(x, y - y0);
+    }
+
+    // 8-bit pages (and the CLAHE output) stay 8-bit; 16/32-bit are scaled to 8-bit
+    private static ImageProcessor compact(ImageProcessor ip) {
+        if (ip instanceof ColorProcessor || ip instanceof ByteProcessor) return ip;
+        return ip.convertToByteProcessor();
+    }
+
+    /**
+     * Draws straight from the shared label plane. Copies (Flatten, Duplicate) go through
+     * ImageJ's RGB conversion, which drops the colour model's alpha, so they are made
+     * zero-transparent instead; label 0 and unknown labels are black there.
+     */
+    private static final class LabelRoi extends ImageRoi {
+        private static final long serialVersionUID = 1L;
+
+        LabelRoi(BufferedImage img) {
+            super(0, 0, img);
+        }
+
+        @Override public boolean getZeroTransparent() { return true; }
+
+        @Override public synchronized Object clone() {
+            ImageRoi copy = (ImageRoi) super.clone();
+            copy.setZeroTransparent(true);
+            return copy;
+        }
+    }
+
+    @Override public int getSize() { return 2; }
+
+    @Override public int size() { return 2; }
+
+    @Override public int getBitDepth() { return background.getBitDepth(); }
+
+    @Override public String getSliceLabel(int n) { return n == 1 ? "Background" : "Overlay"; }
+
+    @Override public ImageProcessor getProcessor(int n) { return background; }
+
+    @Override public Object getPixels(int n) { return background.getPixels(); }
+
+    @Override public void setPixels(Object pixels, int n) { background.setPixels(pixels); }
+
+    @Override public void addSlice(String name) {}
+
+    @Override public void deleteSlice(int n) {}
+
+    @Override public void deleteLastSlice() {}
+
+    @Override public String getFileName(int n) { return null; }
+
+    @Override public int saveChanges(int n) { return -1; }
+}
@@ -0,0 +1,342 @@
+package com.leo.histomagnify;
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Wall time, CPU time and peak memory per stage of one plugin command. Java stages are timed
+ * with {@link #start}; Python stages arrive as {@code stage} events from
+ * {@code src/core/telemetry.py} through {@link #accept}. {@link #finish} shows the summary
+ * table and appends one JSON line per stage to {@code ~/.histomagnify/logs/timings.jsonl}.
+ *
+ * <p>CPU time is process-wide (all threads, as Python's process_time); Java peak memory is the
+ * heap high-water mark during the stage, Python's is the process peak RSS so far. The heap pools
+ * keep one JVM-wide peak, so a stage opening while others run (nested, or on another thread)
+ * folds the peak so far into theirs before resetting it.
+ */
+public final class StageTimer implements Consumer<String> {
+    private static final long LOG_MAX_BYTES = 5L << 20;
+    private static final int LOG_KEEP = 3;
+
+    // Java stages open in any timer, guarded by itself
+    private static final List<Stage> OPEN = new ArrayList<>();
+
+    public static final class Record {
+        public final String stage, source, tag;
+        public double wallMs, cpuMs, peakMb = Double.NaN;
+        public int count;
+
+        Record(String stage, String source, String tag) {
+            this.stage = stage; this.source = source; this.tag = tag;
+        }
+
+        public String label() {
+            return tag == null ? stage : stage + " (" + tag + ")";
+        }
+    }
+
+    /** A running Java stage; close() records it. */
+    public final class Stage implements AutoCloseable {
+        private final Record rec;
+        private final long w0 = System.nanoTime(), c0 = cpuNanos();
+        private final List<String> excluded = new ArrayList<>();
+        private final List<double[]> excludedAtStart = new ArrayList<>();
+        private double peakBeforeResetMb;   // heap peak while open, up to the last reset by another stage
+        private boolean closed;
+
+        private Stage(Record rec) {
+            this.rec = rec;
+            synchronized (OPEN) {
+                if (!OPEN.isEmpty()) {
+                    double peak = heapPeakMb();
+                    for (Stage s : OPEN) s.peakBeforeResetMb = Math.max(s.peakBeforeResetMb, peak);
+                }
+                resetPeaks();
+                OPEN.add(this);
+            }
+        }
+
+        /** Time recorded under {@code stage} (Java side) while this one runs is not counted here. */
+        public Stage excluding(String stage) {
+            excluded.add(stage);
+            excludedAtStart.add(totals(stage));
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            double wall = (System.nanoTime() - w0) / 1e6, cpu = (cpuNanos() - c0) / 1e6;
+            for (int i = 0; i < excluded.size(); i++) {
+                double[] now = totals(excluded.get(i)), then = excludedAtStart.get(i);
+                wall -= now[0] - then[0];
+                cpu -= now[1] - then[1];
+            }
+            double peak;
+            synchronized (OPEN) {
+                peak = Math.max(peakBeforeResetMb, heapPeakMb());
+                OPEN.remove(this);
+            }
+            synchronized (StageTimer.this) {
+                rec.wallMs += Math.max(0, wall);
+                rec.cpuMs += Math.max(0, cpu);
+                rec.peakMb = Double.isNaN(rec.peakMb) ? peak : Math.max(rec.peakMb, peak);
+                rec.count++;
+            }
+        }
+    }
+
+    private final String command;
+    private final String runId = UUID.randomUUID().toString().substring(0, 8);
+    private final Instant started = Instant.now();
+    private final long t0 = System.nanoTime();
+    private final Map<String, String> context = new LinkedHashMap<>();
+    private final List<Record> records = new ArrayList<>();
+
+    public StageTimer(String command) {
+        this.command = command;
+    }
+
+    /** Run-level field written with every log line (magnification, engine, image size...). */
+    public StageTimer put(String key, Object value) {
+        if (value != null) context.put(key, String.valueOf(value));
+        return this;
+    }
+
+    public Stage start(String stage) {
+        return new Stage(record(stage, "java", null));
+    }
+
+    /** The model with every predict() call summed into {@code stage}. */
+    public TileModel timed(String stage, TileModel model) {
+        return timed(stage, null, model);
+    }
+
+    public TileModel timed(String stage, String tag, TileModel model) {
+        Record rec = record(stage, "java", tag);
+        return new TileModel() {
+            @Override public int inputHeight() { return model.inputHeight(); }
+            @Override public int inputWidth() { return model.inputWidth(); }
+            @Override public int numClasses() { return model.numClasses(); }
+            @Override public void close() throws IOException { model.close(); }
+
+            @Override
+            public float[] predict(float[] tile) throws Exception {
+                long w = System.nanoTime(), c = cpuNanos();
+                try {
+                    return model.predict(tile);
+                } finally {
+                    double wall = (System.nanoTime() - w) / 1e6, cpu = (cpuNanos() - c) / 1e6;
+                    synchronized (StageTimer.this) {
+                        rec.wallMs += wall;
+                        rec.cpuMs += cpu;
+                        rec.count++;
+                    }
+                }
+            }
+        };
+    }
+
+    /** Takes {@code stage} events printed by the Python scripts; other events are ignored. */
+    @Override
+    public synchronized void accept(String json) {
+        if (!"stage".equals(HistoMagnify_Plugin.eventField(json, "event"))) return;
+        String name = HistoMagnify_Plugin.eventField(json, "stage");
+        if (name == null) return;
+        Record rec = record(name, "python", HistoMagnify_Plugin.eventField(json, "tag"));
+        rec.wallMs += number(json, "wall_ms", 0);
+        rec.cpuMs += number(json, "cpu_ms", 0);
+        double peak = number(json, "peak_mb", Double.NaN);
+        if (!Double.isNaN(peak)) rec.peakMb = Double.isNaN(rec.peakMb) ? peak : Math.max(rec.peakMb, peak);
+        rec.count += (int) number(json, "count", 1);
+    }
+
+    public synchronized List<Record> records() {
+        return new ArrayList<>(records);
+    }
+
+    /** Appends the run to the rolling log and, if {@code showTable}, shows the summary. */
+    public void finish(boolean showTable) {
+        double totalMs = (System.nanoTime() - t0) / 1e6;
+        List<Record> recs = records();
+        try {
+            appendLog(recs, totalMs);
+        } catch (IOException e) {
+            IJ.log("[HistoMagnify] Could not write timing log: " + e.getMessage());
+        }
+        if (showTable) showTable(recs, totalMs);
+    }
+
+    private void showTable(List<Record> recs, double totalMs) {
+        ResultsTable rt = new ResultsTable();
+        for (Record r : recs) {
+            rt.incrementCounter();
+            rt.addValue("Stage", r.label());
+            rt.addValue("Source", r.source);
+            rt.addValue("Count", r.count);
+            rt.addValue("Wall (ms)", r.wallMs);
+            rt.addValue("CPU (ms)", r.cpuMs);
+            rt.addValue("Peak (MB)", Double.isNaN(r.peakMb) ? "" : String.format(Locale.ROOT, "%.1f", r.peakMb));
+        }
+        rt.incrementCounter();
+        rt.addValue("Stage", "total");
+        rt.addValue("Source", "");
+        rt.addValue("Count", 1);
+        rt.addValue("Wall (ms)", totalMs);
+        rt.addValue("CPU (ms)", "");
+        rt.addValue("Peak (MB)", "");
+        rt.setPrecision(1);
+        rt.show("HistoMagnify – Stage timings (" + command + ")");
+    }
+
+    private void appendLog(List<Record> recs, double totalMs) throws IOException {
+        Path dir = logDir();
+        Files.createDirectories(dir);
+        Path log = dir.resolve("timings.jsonl");
+        if (Files.isRegularFile(log) && Files.size(log) > LOG_MAX_BYTES) rotate(dir);
+
+        StringBuilder head = new StringBuilder();
+        field(head, "ts", started.toString());
+        field(head, "run", runId);
+        field(head, "command", command);
+        field(head, "os", System.getProperty("os.name"));
+        field(head, "java", System.getProperty("java.version"));
+        field(head, "cores", Runtime.getRuntime().availableProcessors());
+        field(head, "max_heap_mb", Runtime.getRuntime().maxMemory() >> 20);
+        for (Map.Entry<String, String> e : context.entrySet()) field(head, e.getKey(), e.getValue());
+
+        try (Writer w = Files.newBufferedWriter(log, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Record r : recs) {
+                StringBuilder sb = new StringBuilder(head);
+                field(sb, "stage", r.stage);
+                field(sb, "source", r.source);
+                if (r.tag != null) field(sb, "tag", r.tag);
+                field(sb, "count", r.count);
+                field(sb, "wall_ms", r.wallMs);
+                field(sb, "cpu_ms", r.cpuMs);
+                field(sb, "peak_mb", r.peakMb);
+                w.write("{" + sb + "}\n");
+            }
+            StringBuilder sb = new StringBuilder(head);
+            field(sb, "stage", "total");
+            field(sb, "source", "java");
+            field(sb, "count", 1);
+            field(sb, "wall_ms", totalMs);
+            w.write("{" + sb + "}\n");
+        }
+    }
+
+    public static Path logDir() {
+        return Paths.get(System.getProperty("user.home")).resolve(".histomagnify").resolve("logs");
+    }
+
+    // timings.jsonl -> timings.1.jsonl -> ... -> timings.<LOG_KEEP>.jsonl (dropped)
+    private static void rotate(Path dir) throws IOException {
+        Files.deleteIfExists(dir.resolve("timings." + LOG_KEEP + ".jsonl"));
+        for (int i = LOG_KEEP - 1; i >= 1; i--) {
+            Path from = dir.resolve("timings." + i + ".jsonl");
+            if (Files.exists(from))
+                Files.move(from, dir.resolve("timings." + (i + 1) + ".jsonl"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(dir.resolve("timings.jsonl"), dir.resolve("timings.1.jsonl"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private synchronized Record record(String stage, String source, String tag) {
+        for (Record r : records) {
+            if (r.stage.equals(stage) && r.source.equals(source) && java.util.Objects.equals(r.tag, tag)) return r;
+        }
+        Record r = new Record(stage, source, tag);
+        records.add(r);
+        return r;
+    }
+
+    private synchronized double[] totals(String stage) {
+        double[] t = new double[2];
+        for (Record r : records) {
+            if (r.stage.equals(stage) && "java".equals(r.source)) {
+                t[0] += r.wallMs;
+                t[1] += r.cpuMs;
+            }
+        }
+        return t;
+    }
+
+    private static double number(String json, String key, double def) {
+        String v = HistoMagnify_Plugin.eventField(json, key);
+        if (v == null) return def;
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    private static void field(StringBuilder sb, String key, Object value) {
+        if (sb.length() > 0) sb.append(',');
+        sb.append('"').append(key).append("\":");
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) sb.append("null");
+            else if (value instanceof Double || value instanceof Float) sb.append(String.format(Locale.ROOT, "%.3f", d));
+            else sb.append(value);
+        } else if (value == null) {
+            sb.append("null");
+        } else {
+            sb.append('"');
+            for (char c : value.toString().toCharArray()) {
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+
+    private static long cpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long t = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            if (t >= 0) return t;
+        }
+        ThreadMXBean th = ManagementFactory.getThreadMXBean();
+        return th.isCurrentThreadCpuTimeSupported() ? th.getCurrentThreadCpuTime() : 0L;
+    }
+
+    private static void resetPeaks() {
+        for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (p.getType() == MemoryType.HEAP && p.isValid()) p.resetPeakUsage();
+        }
+    }
+
+    private static double heapPeakMb() {
+        long sum = 0;
+        for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (p.getType() == MemoryType.HEAP && p.isValid() && p.getPeakUsage() != null) sum += p.getPeakUsage().getUsed();
+        }
+        return sum / (1024.0 * 1024.0);
+    }
+}
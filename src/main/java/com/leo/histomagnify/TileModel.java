@@ -0,0 +1,19 @@
+package com.leo.histomagnify;
+
+import java.io.IOException;
+
+/**
+ * A segmentation network that maps one normalized gray tile (values in [0,1],
+ * row-major, inputHeight x inputWidth) to per-pixel class probabilities laid out
+ * channel-last (index = (y * inputWidth + x) * numClasses + c).
+ */
+public interface TileModel extends AutoCloseable {
+    int inputHeight();
+    int inputWidth();
+    int numClasses();
+
+    float[] predict(float[] tile) throws Exception;
+
+    @Override
+    default void close() throws IOException {}
+}
@@ -0,0 +1,439 @@
+package com.leo.histomagnify;
+
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+/**
+ * JVM port of {@code run_patches} / {@code to_gray8} from the Python scripts: overlapping
+ * tiles over a reflect-padded plane, bilinear resize to model size, window-weighted
+ * probability blending and argmax. Runs entirely in-process on ImageProcessor data.
+ */
+public final class TiledSegmenter {
+
+    private TiledSegmenter() {}
+
+    /** Longest array the VM reliably allocates; the probability accumulator has to fit in one. */
+    static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    public static final class Options {
+        /** Fill tiles without tissue with background instead of running the model. */
+        public boolean skipBlank;
+        /** Plane for the tissue pre-pass (unenhanced); defaults to the model input. */
+        public ByteProcessor tissueRef;
+        /** Tile overlap as a fraction of the tile size, clamped to [0, 0.5]. */
+        public double overlap = 0.5;
+        /** "uniform", "cosine" or "gaussian", see blend_window() in segmentation.py. */
+        public String blend = "cosine";
+        /** "tile", "plane" or "plane-nearest", see run_plane() in segmentation.py. */
+        public String resample = "tile";
+        /** Tile mode only: keep one tile row of probabilities instead of the whole plane (same labels). */
+        public boolean strips;
+    }
+
+    public static final class Result {
+        public final ByteProcessor labels;
+        public final int tiles, skipped;
+
+        Result(ByteProcessor labels, int tiles, int skipped) {
+            this.labels = labels;
+            this.tiles = tiles;
+            this.skipped = skipped;
+        }
+    }
+
+    /**
+     * Same conversion as segment.py's to_gray8 (16-bit >> 8, RGB luma, float min-max). Luma uses
+     * cv2's 14-bit fixed-point weights and rounding (COLOR_RGB2GRAY on 8-bit), so the bytes match.
+     */
+    public static ByteProcessor toGray8(ImageProcessor ip) {
+        int w = ip.getWidth(), h = ip.getHeight();
+        byte[] out = new byte[w * h];
+        if (ip instanceof ByteProcessor) {
+            System.arraycopy((byte[]) ip.getPixels(), 0, out, 0, out.length);
+        } else if (ip instanceof ShortProcessor) {
+            short[] p = (short[]) ip.getPixels();
+            for (int i = 0; i < out.length; i++) out[i] = (byte) ((p[i] & 0xffff) >> 8);
+        } else if (ip instanceof ColorProcessor) {
+            int[] p = (int[]) ip.getPixels();
+            for (int i = 0; i < out.length; i++) {
+                int r = (p[i] >> 16) & 255, g = (p[i] >> 8) & 255, b = p[i] & 255;
+                out[i] = (byte) ((r * 4899 + g * 9617 + b * 1868 + (1 << 13)) >> 14);
+            }
+        } else if (ip instanceof FloatProcessor) {
+            float[] p = (float[]) ip.getPixels();
+            float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+            for (float v : p) {
+                if (Float.isNaN(v)) continue;
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            if (max > min) {
+                float s = (float) (255.0 / ((double) max - min));     // numpy: float32 plane times a weak Python float
+                for (int i = 0; i < out.length; i++) out[i] = (byte) (int) ((p[i] - min) * s);
+            }
+        }
+        return new ByteProcessor(w, h, out);
+    }
+
+    /**
+     * Floats in the probability accumulator {@link #segment} allocates for a W x H plane: W x rows x classes
+     * in tile mode (rows = one tile row with strips), model-scale plane x classes otherwise.
+     */
+    static long accumulatorLength(int W, int H, ModelSpec spec, String resample, boolean strips) {
+        int N = spec.numClasses;
+        if (H < spec.patchHeight || W < spec.patchWidth) return (long) W * H * N;
+        if (resample != null && !"tile".equals(resample)) {
+            long Hm = Math.round(H * (double) spec.modelHeight / spec.patchHeight);
+            long Wm = Math.round(W * (double) spec.modelWidth / spec.patchWidth);
+            if (Hm >= spec.modelHeight && Wm >= spec.modelWidth) return Wm * Hm * N;
+        }
+        return (long) W * (strips ? spec.patchHeight : H) * N;
+    }
+
+    public static Result segment(ByteProcessor gray8, TileModel model, ModelSpec spec, Options opt) throws Exception {
+        if (opt == null) opt = new Options();
+        checkModel(model, spec);
+        int W = gray8.getWidth(), H = gray8.getHeight();
+        long accumulator = accumulatorLength(W, H, spec, opt.resample, opt.strips);
+        if (accumulator > MAX_ARRAY)
+            throw new IllegalArgumentException("A " + W + " x " + H + " plane needs " + accumulator + " class probabilities at once,"
+                    + " more than a Java array holds; use tile strips (resample=tile) or crop the image");
+        byte[] src = (byte[]) gray8.getPixels();
+        int N = spec.numClasses;
+        int PH = spec.patchHeight, PW = spec.patchWidth;
+        int MH = spec.modelHeight, MW = spec.modelWidth;
+
+        Tissue tissue = null;
+        if (opt.skipBlank) {
+            ByteProcessor ref = (opt.tissueRef != null) ? opt.tissueRef : gray8;
+            tissue = tissueMap((byte[]) ref.getPixels(), W, H);
+        }
+
+        if (H < PH || W < PW) {
+            if (tissue != null && tissue.count(0, 0, tissue.ws, tissue.hs) == 0)
+                return new Result(new ByteProcessor(W, H), 1, 1);
+            // small image: resize to model input, run once, upsample probabilities back
+            float[] in = new float[W * H];
+            for (int i = 0; i < in.length; i++) in[i] = src[i] & 0xff;
+            float[] tile = new Resampler(W, H, MW, MH).resample(in, 1, true);
+            for (int i = 0; i < tile.length; i++) tile[i] /= 255f;
+            float[] pred = model.predict(tile);
+            float[] up = new Resampler(MW, MH, W, H).resample(pred, N, false);
+            return new Result(argmax(up, W, H, N), 1, 0);
+        }
+
+        if (opt.resample != null && !"tile".equals(opt.resample)) {
+            int Hm = (int) Math.round(H * (double) MH / PH), Wm = (int) Math.round(W * (double) MW / PW);
+            if (Hm >= MH && Wm >= MW)
+                return segmentPlane(gray8, model, spec, opt, tissue, Wm, Hm, "plane-nearest".equals(opt.resample));
+        }
+
+        double ov = Math.min(Math.max(opt.overlap, 0.0), 0.5);
+        int stepH = Math.max(1, (int) Math.round(PH * (1.0 - ov)));
+        int stepW = Math.max(1, (int) Math.round(PW * (1.0 - ov)));
+        int nH = (int) Math.ceil((H - PH) / (double) stepH) + 1;
+        int nW = (int) Math.ceil((W - PW) / (double) stepW) + 1;
+
+        Resampler down = new Resampler(PW, PH, MW, MH);
+        Resampler up = new Resampler(MW, MH, PW, PH);
+
+        // strips: rows [base, base + rows) are kept; rows above the next tile row are final after each tile row
+        int rows = opt.strips ? PH : H;
+        float[] probs = new float[(int) accumulator];
+        byte[] out = opt.strips ? new byte[W * H] : null;
+        int base = 0;
+        float[] patch = new float[PW * PH];
+        float[] win = blendWindow(PH, PW, opt.blend);
+
+        int skipped = 0;
+        for (int i = 0; i < nH; i++) {
+            for (int j = 0; j < nW; j++) {
+                int y0 = i * stepH, x0 = j * stepW;
+                int y1 = Math.min(y0 + PH, H), x1 = Math.min(x0 + PW, W);
+
+                if (tissue != null && tissue.isBlank(x0, y0, x1, y1)) {
+                    // glass: background class directly, no model call
+                    for (int y = y0; y < y1; y++)
+                        for (int x = x0; x < x1; x++) probs[((y - base) * W + x) * N] += win[(y - y0) * PW + x - x0];
+                    skipped++;
+                    continue;
+                }
+
+                for (int y = 0; y < PH; y++) {
+                    int row = reflect(y0 + y, H) * W;
+                    int o = y * PW;
+                    for (int x = 0; x < PW; x++) patch[o + x] = src[row + reflect(x0 + x, W)] & 0xff;
+                }
+                float[] tile = down.resample(patch, 1, true);
+                for (int k = 0; k < tile.length; k++) tile[k] /= 255f;
+
+                float[] predUp = up.resample(model.predict(tile), N, false);
+
+                for (int y = y0; y < y1; y++) {
+                    int pr = (y - y0) * PW;
+                    for (int x = x0; x < x1; x++) {
+                        float wt = win[pr + x - x0];
+                        int sp = (pr + x - x0) * N;
+                        int dp = ((y - base) * W + x) * N;
+                        for (int c = 0; c < N; c++) probs[dp + c] += predUp[sp + c] * wt;
+                    }
+                }
+            }
+            if (out != null) {
+                int end = (i == nH - 1) ? H : Math.min((i + 1) * stepH, H);
+                int done = (end - base) * W;
+                argmax(probs, out, base * W, done, N);
+                System.arraycopy(probs, done * N, probs, 0, probs.length - done * N);
+                Arrays.fill(probs, probs.length - done * N, probs.length, 0f);
+                base = end;
+            }
+        }
+        // every pixel is covered, so dividing by the per-pixel weight sum would not change the argmax
+        if (out != null) return new Result(new ByteProcessor(W, H, out), nH * nW, skipped);
+        return new Result(argmax(probs, W, H, N), nH * nW, skipped);
+    }
+
+    /** Coarse labels from the plane shrunk by {@code scale}, nearest-upsampled back; see preview_pass() in segment.py. */
+    public static ByteProcessor preview(ByteProcessor gray8, TileModel model, ModelSpec spec, double scale) throws Exception {
+        int W = gray8.getWidth(), H = gray8.getHeight();
+        int ws = Math.max(1, (int) Math.round(W * scale)), hs = Math.max(1, (int) Math.round(H * scale));
+        byte[] src = (byte[]) gray8.getPixels();
+        float[] in = new float[W * H];
+        for (int i = 0; i < in.length; i++) in[i] = src[i] & 0xff;
+        float[] small = new Resampler(W, H, ws, hs).resample(in, 1, true);
+        byte[] b = new byte[small.length];
+        for (int i = 0; i < b.length; i++) b[i] = (byte) (int) small[i];
+
+        Options opt = new Options();
+        opt.overlap = 0.0;
+        opt.blend = "uniform";
+        opt.resample = "plane-nearest";
+        ByteProcessor lab = segment(new ByteProcessor(ws, hs, b), model, spec, opt).labels;
+        lab.setInterpolationMethod(ImageProcessor.NEAREST_NEIGHBOR);
+        return (ByteProcessor) lab.resize(W, H);
+    }
+
+    // plane resized to model scale once, tiled and stitched there, upsampled once at the end
+    private static Result segmentPlane(ByteProcessor gray8, TileModel model, ModelSpec spec, Options opt,
+                                       Tissue tissue, int Wm, int Hm, boolean nearest) throws Exception {
+        int W = gray8.getWidth(), H = gray8.getHeight();
+        int N = spec.numClasses;
+        int MH = spec.modelHeight, MW = spec.modelWidth;
+
+        byte[] src = (byte[]) gray8.getPixels();
+        float[] in = new float[W * H];
+        for (int i = 0; i < in.length; i++) in[i] = src[i] & 0xff;
+        float[] small = new Resampler(W, H, Wm, Hm).resample(in, 1, true);
+        in = null;
+
+        double ov = Math.min(Math.max(opt.overlap, 0.0), 0.5);
+        int stepH = Math.max(1, (int) Math.round(MH * (1.0 - ov)));
+        int stepW = Math.max(1, (int) Math.round(MW * (1.0 - ov)));
+        int nH = (int) Math.ceil((Hm - MH) / (double) stepH) + 1;
+        int nW = (int) Math.ceil((Wm - MW) / (double) stepW) + 1;
+        double sy = H / (double) Hm, sx = W / (double) Wm;
+
+        float[] probs = new float[Wm * Hm * N];   // checked in segment()
+        float[] counts = new float[Wm * Hm];
+        float[] tile = new float[MW * MH];
+        float[] win = blendWindow(MH, MW, opt.blend);
+
+        int skipped = 0;
+        for (int i = 0; i < nH; i++) {
+            for (int j = 0; j < nW; j++) {
+                int y0 = i * stepH, x0 = j * stepW;
+                int y1 = Math.min(y0 + MH, Hm), x1 = Math.min(x0 + MW, Wm);
+
+                float[] pred = null;
+                int fy0 = (int) (y0 * sy), fx0 = (int) (x0 * sx);
+                if (tissue != null && tissue.isBlank(fx0, fy0, Math.min(fx0 + spec.patchWidth, W),
+                        Math.min(fy0 + spec.patchHeight, H))) {
+                    skipped++;
+                } else {
+                    for (int y = 0; y < MH; y++) {
+                        int row = reflect(y0 + y, Hm) * Wm;
+                        int o = y * MW;
+                        for (int x = 0; x < MW; x++) tile[o + x] = small[row + reflect(x0 + x, Wm)] / 255f;
+                    }
+                    pred = model.predict(tile);
+                }
+
+                for (int y = y0; y < y1; y++) {
+                    int pr = (y - y0) * MW;
+                    for (int x = x0; x < x1; x++) {
+                        float wt = win[pr + x - x0];
+                        int dp = y * Wm + x;
+                        counts[dp] += wt;
+                        if (pred == null) {
+                            probs[dp * N] += wt;   // glass: background class
+                        } else {
+                            int sp = (pr + x - x0) * N;
+                            for (int c = 0; c < N; c++) probs[dp * N + c] += pred[sp + c] * wt;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (nearest) {
+            ByteProcessor lab = argmax(probs, Wm, Hm, N);
+            lab.setInterpolationMethod(ImageProcessor.NEAREST_NEIGHBOR);
+            return new Result((ByteProcessor) lab.resize(W, H), nH * nW, skipped);
+        }
+
+        // normalise before interpolating, then a running argmax over per-channel upsamples
+        Resampler up = new Resampler(Wm, Hm, W, H);
+        float[] band = new float[Wm * Hm];
+        float[] best = null;
+        byte[] out = new byte[W * H];
+        for (int c = 0; c < N; c++) {
+            for (int k = 0; k < band.length; k++) band[k] = probs[k * N + c] / counts[k];
+            float[] b = up.resample(band, 1, false);
+            if (best == null) {
+                best = b;
+                continue;
+            }
+            for (int k = 0; k < out.length; k++) {
+                if (b[k] > best[k]) { best[k] = b[k]; out[k] = (byte) c; }
+            }
+        }
+        return new Result(new ByteProcessor(W, H, out), nH * nW, skipped);
+    }
+
+    /** Tissue mask at 1/f resolution, see tissue_map() in segmentation.py. */
+    private static final class Tissue {
+        final int f, ws, hs;
+        final int[] integral;            // (hs+1) x (ws+1) summed-area table
+
+        Tissue(boolean[] mask, int ws, int hs, int f) {
+            this.f = f; this.ws = ws; this.hs = hs;
+            integral = new int[(hs + 1) * (ws + 1)];
+            for (int y = 0; y < hs; y++) {
+                int rowSum = 0;
+                for (int x = 0; x < ws; x++) {
+                    if (mask[y * ws + x]) rowSum++;
+                    integral[(y + 1) * (ws + 1) + x + 1] = integral[y * (ws + 1) + x + 1] + rowSum;
+                }
+            }
+        }
+
+        int count(int xs, int ys, int xe, int ye) {
+            int s = ws + 1;
+            return integral[ye * s + xe] - integral[ys * s + xe] - integral[ye * s + xs] + integral[ys * s + xs];
+        }
+
+        boolean isBlank(int x0, int y0, int x1, int y1) {
+            int ys = Math.min(y0 / f, hs - 1), xs = Math.min(x0 / f, ws - 1);
+            int ye = Math.max(ys + 1, Math.min((int) Math.ceil(y1 / (double) f), hs));
+            int xe = Math.max(xs + 1, Math.min((int) Math.ceil(x1 / (double) f), ws));
+            return count(xs, ys, xe, ye) < 0.01 * (ye - ys) * (xe - xs);
+        }
+    }
+
+    // null when the plane has no clear glass/tissue split, in which case nothing is skipped
+    private static Tissue tissueMap(byte[] g, int W, int H) {
+        int f = Math.max(1, (int) Math.ceil(Math.max(H, W) / 1024.0));
+        int hs = H / f, ws = W / f;
+        if (hs < 2 || ws < 2) return null;
+
+        float[] small = new float[hs * ws];
+        int[] hist = new int[256];
+        for (int y = 0; y < hs; y++) {
+            for (int x = 0; x < ws; x++) {
+                int sum = 0;
+                for (int dy = 0; dy < f; dy++) {
+                    int row = (y * f + dy) * W + x * f;
+                    for (int dx = 0; dx < f; dx++) sum += g[row + dx] & 0xff;
+                }
+                float v = sum / (float) (f * f);
+                small[y * ws + x] = v;
+                hist[Math.min(255, Math.round(v))]++;
+            }
+        }
+        int t = new AutoThresholder().getThreshold(AutoThresholder.Method.Otsu, hist);
+
+        boolean[] lo = new boolean[small.length];
+        double sumLo = 0, sumHi = 0, gLo = 0, gHi = 0;
+        int nLo = 0;
+        for (int i = 0; i < small.length; i++) {
+            lo[i] = small[i] <= t;
+            int x = i % ws, y = i / ws;
+            float grad = (x > 0 ? Math.abs(small[i] - small[i - 1]) : 0f)
+                    + (y > 0 ? Math.abs(small[i] - small[i - ws]) : 0f);
+            if (lo[i]) { sumLo += small[i]; gLo += grad; nLo++; }
+            else       { sumHi += small[i]; gHi += grad; }
+        }
+        int nHi = small.length - nLo;
+        if (nLo == 0 || nHi == 0 || (sumHi / nHi - sumLo / nLo) < 10.0) return null;
+
+        // glass is the smoother class
+        boolean tissueIsLo = (gLo / nLo) >= (gHi / nHi);
+        boolean[] mask = new boolean[lo.length];
+        for (int i = 0; i < lo.length; i++) mask[i] = (lo[i] == tissueIsLo);
+        return new Tissue(mask, ws, hs, f);
+    }
+
+    static float[] blendWindow(int h, int w, String mode) {
+        float[] out = new float[h * w];
+        if (mode == null || "uniform".equals(mode)) {
+            Arrays.fill(out, 1f);
+            return out;
+        }
+        double[] wy = windowAxis(h, mode), wx = windowAxis(w, mode);
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++) out[y * w + x] = (float) Math.max(wy[y] * wx[x], 1e-3);
+        return out;
+    }
+
+    private static double[] windowAxis(int n, String mode) {
+        double[] a = new double[n];
+        for (int i = 0; i < n; i++) {
+            double t = (i + 0.5) / n;
+            if ("cosine".equals(mode)) a[i] = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * t);
+            else if ("gaussian".equals(mode)) a[i] = Math.exp(-((t - 0.5) * (t - 0.5)) / (2.0 * 0.125 * 0.125));
+            else throw new IllegalArgumentException("Unknown blend mode " + mode);
+        }
+        return a;
+    }
+
+    private static void checkModel(TileModel model, ModelSpec spec) {
+        if (model.inputHeight() != spec.modelHeight || model.inputWidth() != spec.modelWidth
+                || model.numClasses() != spec.numClasses) {
+            throw new IllegalArgumentException("Model shape " + model.inputHeight() + "x" + model.inputWidth()
+                    + "x" + model.numClasses() + " does not match " + spec.key);
+        }
+    }
+
+    // numpy 'reflect' padding (edge sample not repeated)
+    static int reflect(int i, int n) {
+        if (n == 1) return 0;
+        int period = 2 * (n - 1);
+        i = Math.abs(i) % period;
+        return i < n ? i : period - i;
+    }
+
+    static ByteProcessor argmax(float[] probs, int w, int h, int n) {
+        byte[] out = new byte[w * h];
+        argmax(probs, out, 0, out.length, n);
+        return new ByteProcessor(w, h, out);
+    }
+
+    // out[off + i] = argmax of probs pixel i, for i in [0, len)
+    private static void argmax(float[] probs, byte[] out, int off, int len, int n) {
+        for (int i = 0; i < len; i++) {
+            int base = i * n, best = 0;
+            float bv = probs[base];
+            for (int c = 1; c < n; c++) {
+                float v = probs[base + c];
+                if (v > bv) { bv = v; best = c; }
+            }
+            out[off + i] = (byte) best;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.leo.histomagnify;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Per-run folders under ~/.histomagnify/work, instead of one temp directory per run that is never removed.
+ *
+ * Each session folder holds a {@code .lock} file; the owning Fiji keeps it locked while the
+ * session exists, so another Fiji on the same account never evicts it. The lock file's
+ * modification time is the session's last use. When the folders together exceed {@link #capMb},
+ * the least recently used sessions are deleted, skipping the ones passed as in use, the ones whose
+ * result window is still open, and the ones locked by another process. Sessions of this Fiji are
+ * deleted when it exits; folders left by a crashed Fiji are unlocked and go first.
+ */
+final class Workspace {
+
+    static volatile long capMb = 4096;
+
+    private static final String LOCK = ".lock";
+    private static final Map<Path, FileChannel> OWN = new LinkedHashMap<>();
+    private static final Map<ImagePlus, Path> WINDOWS = new IdentityHashMap<>();
+    private static boolean hookInstalled;
+
+    private Workspace() {}
+
+    static Path root() {
+        return PythonRuntime.baseDir().resolve("work");
+    }
+
+    /** New session folder, e.g. work/20240131-142501-seg-1a2b; makes room for it first. */
+    static synchronized Path newSession(String kind, Collection<Path> inUse) throws IOException {
+        evict(inUse);
+        Files.createDirectories(root());
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        Path dir;
+        do {
+            dir = root().resolve(stamp + "-" + kind + "-" + Integer.toHexString((int) (Math.random() * 0xffff)));
+        } while (Files.exists(dir));
+        Files.createDirectories(dir);
+        FileChannel ch = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ch.lock();
+        OWN.put(dir, ch);
+        if (!hookInstalled) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Workspace::deleteOwn, "HistoMagnify workspace cleanup"));
+            hookInstalled = true;
+        }
+        return dir;
+    }
+
+    /** Marks the session as just used. */
+    static synchronized void touch(Path session) {
+        if (session == null) return;
+        try {
+            Files.setLastModifiedTime(session.resolve(LOCK), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {}
+    }
+
+    /** Keeps the session while {@code imp} has an open window. */
+    static synchronized void attach(Path session, ImagePlus imp) {
+        if (session != null && imp != null) WINDOWS.put(imp, session);
+    }
+
+    /** Deletes least recently used sessions until the workspace fits in {@link #capMb}. */
+    static synchronized void evict(Collection<Path> inUse) {
+        Path root = root();
+        if (!Files.isDirectory(root)) return;
+        Set<Path> keep = new HashSet<>();
+        for (Path p : inUse) if (p != null) keep.add(p.toAbsolutePath().normalize());
+        WINDOWS.entrySet().removeIf(e -> e.getKey().getWindow() == null);
+        for (Path p : WINDOWS.values()) keep.add(p.toAbsolutePath().normalize());
+
+        List<Path> sessions = new ArrayList<>();
+        Map<Path, Long> size = new LinkedHashMap<>();
+        long total = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(root)) {
+            for (Path dir : ds) {
+                if (!Files.isDirectory(dir)) continue;
+                long s = treeSize(dir);
+                size.put(dir, s);
+                total += s;
+                sessions.add(dir);
+            }
+        } catch (IOException e) {
+            IJ.log("[HistoMagnify] Could not scan workspace: " + e.getMessage());
+            return;
+        }
+        long cap = capMb * 1024L * 1024L;
+        if (total <= cap) return;
+
+        sessions.sort(Comparator.comparingLong(Workspace::lastUsed));
+        int removed = 0;
+        long freed = 0;
+        for (Path dir : sessions) {
+            if (total <= cap) break;
+            if (keep.contains(dir.toAbsolutePath().normalize()) || !release(dir)) continue;
+            deleteTree(dir);
+            total -= size.get(dir);
+            freed += size.get(dir);
+            removed++;
+        }
+        if (removed > 0) {
+            IJ.log("[HistoMagnify] Workspace: removed " + removed + " old session(s), "
+                    + MemoryPlanner.mb(freed) + " MB freed");
+        }
+    }
+
+    /** Deletes a scratch session right away. */
+    static synchronized void discard(Path session) {
+        release(session);
+        deleteTree(session);
+    }
+
+    // Unlocks a session of ours, or checks that no other process holds it; false = leave it alone.
+    private static boolean release(Path dir) {
+        FileChannel own = OWN.remove(dir);
+        if (own != null) {
+            try { own.close(); } catch (IOException ignored) {}
+            return true;
+        }
+        Path lock = dir.resolve(LOCK);
+        if (!Files.exists(lock)) return true;
+        try (FileChannel ch = FileChannel.open(lock, StandardOpenOption.WRITE)) {
+            FileLock l = ch.tryLock();
+            if (l == null) return false;
+            l.release();
+            return true;
+        } catch (OverlappingFileLockException | IOException e) {
+            return false;
+        }
+    }
+
+    private static synchronized void deleteOwn() {
+        for (Path dir : new ArrayList<>(OWN.keySet())) {
+            release(dir);
+            deleteTree(dir);
+        }
+    }
+
+    private static long lastUsed(Path dir) {
+        try {
+            Path lock = dir.resolve(LOCK);
+            return Files.getLastModifiedTime(Files.exists(lock) ? lock : dir).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    static long treeSize(Path dir) {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            return walk.filter(Files::isRegularFile).mapToLong(p -> {
+                try { return Files.size(p); } catch (IOException e) { return 0; }
+            }).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    static void deleteTree(Path dir) {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.sorted(Comparator.reverseOrder())
+                    .forEach(p -> { try { Files.deleteIfExists(p); } catch (IOException ignored) {} });
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,48 @@
+#!/usr/bin/env python3
+"""Export the brightfield Keras models to ONNX for the plugin's native (JVM) engine.
+
+    python export_onnx.py --modeldir <dir with 20x.hdf5/40x.hdf5> --model 20x \
+        --out ~/.histomagnify/models/20x.onnx
+
+Needs tf2onnx in addition to requirements.txt (pip install tf2onnx).
+"""
+import argparse
+import os
+
+from src.core.model_archi import multi_unet_model_trans
+from segment import MODEL_MAP, MODEL_CHANNELS, MODEL_CLASSES, MODEL_PARAMS
+
+
+def main():
+    ap = argparse.ArgumentParser()
+    ap.add_argument('--modeldir', required=True)
+    ap.add_argument('--model', choices=MODEL_MAP.keys(), required=True)
+    ap.add_argument('--out', required=True)
+    ap.add_argument('--opset', type=int, default=17)
+    args = ap.parse_args()
+
+    try:
+        import tensorflow as tf
+        import tf2onnx
+    except ImportError as e:
+        raise SystemExit(f"{e}. Install tf2onnx into the HistoMagnify venv first.")
+
+    params = MODEL_PARAMS[args.model]
+    model = multi_unet_model_trans(
+        n_classes=MODEL_CLASSES[args.model],
+        IMG_HEIGHT=params['MODEL_HEIGHT'],
+        IMG_WIDTH=params['MODEL_WIDTH'],
+        IMG_CHANNELS=MODEL_CHANNELS[args.model]
+    )
+    model.load_weights(os.path.join(args.modeldir, MODEL_MAP[args.model]))
+
+    spec = [tf.TensorSpec((None, params['MODEL_HEIGHT'], params['MODEL_WIDTH'], MODEL_CHANNELS[args.model]),
+                          tf.float32, name='input')]
+    out = os.path.expanduser(args.out)
+    os.makedirs(os.path.dirname(os.path.abspath(out)), exist_ok=True)
+    tf2onnx.convert.from_keras(model, input_signature=spec, opset=args.opset, output_path=out)
+    print(f"ONNX model saved to {out}")
+
+
+if __name__ == '__main__':
+    main()
@@ -3,15 +3,21 @@ import argparse
 import numpy as np
 import tifffile as tiff
 from scipy import ndimage as ndi
-from skimage.morphology import medial_axis
-from skimage.feature import peak_local_max
-from skimage.segmentation import watershed
-from skimage.measure import regionprops, label as sklabel
+from scipy.spatial import cKDTree
+from skimage.measure import regionprops, find_contours, approximate_polygon, label as sklabel
 from scipy.ndimage import binary_fill_holes as _fill_holes
 
+from src.core import rle
+from src.core.columnar import write_columns, write_csv
+from src.core.medial import medial_axis_points
+from src.core.telemetry import capture_warnings, stage
+from src.core.watershed import ws_split
+
 
 
 def _read_plane_bool(path):
+    if isinstance(path, np.ndarray):
+        return path
     a = tiff.imread(path)
     a = np.asarray(a).squeeze()
     if a.ndim > 2:
@@ -19,72 +25,62 @@ def _read_plane_bool(path):
     return (a > 0)
 
 
-def gbm_thickness(mask_path, out_txt, out_csv):
+def _write_points(cols, out_cols, out_csv, fmt):
+    if out_cols:
+        write_columns(out_cols, cols)
+    if out_csv:
+        write_csv(out_csv, cols, fmt)
+
+
+def gbm_thickness(mask_path, out_txt, out_csv=None, out_cols=None, tile=0, halo=32, workers=0, verify=False):
     m = _read_plane_bool(mask_path)
     if not np.any(m):
         with open(out_txt, "w") as f: f.write("nan")
-        open(out_csv, "w").close()
+        _write_points([("x", "i", []), ("y", "i", []), ("diam_px", "f", [])], out_cols, out_csv, "")
         return
 
-    skel, dist = medial_axis(m, return_distance=True)
-    diam_px = 2.0 * dist[skel]
+    # tile 0 = skimage's medial_axis; otherwise the reproducible axis, tiled across processes (src/core/medial.py)
+    ys, xs, dist = medial_axis_points(m, tile=tile, halo=halo, workers=workers, verify=verify)
+    diam_px = 2.0 * dist
     mean_px = float(np.mean(diam_px)) if diam_px.size else float("nan")
 
-    ys, xs = np.nonzero(skel)
-    with open(out_csv, "w") as f:
-        for x, y, d in zip(xs, ys, diam_px):
-            f.write(f"{int(x)},{int(y)},{d:.6f}\n")  #in px
+    _write_points([("x", "i", xs), ("y", "i", ys), ("diam_px", "f", diam_px)],  #in px
+                  out_cols, out_csv, "%d,%d,%.6f")
     with open(out_txt, "w") as f:
         f.write(f"{mean_px:.6f}")
 
 
 
-def ws_split(mask_u8, min_dist, thresh_rel, sigma):
-    mask = mask_u8.astype(bool)
-    if not np.any(mask):
-        return np.zeros_like(mask, dtype=np.uint16)
-
-    dist = ndi.distance_transform_edt(mask)
-
-    sigma = float(sigma)
-    dist_s = ndi.gaussian_filter(dist, sigma=sigma) if sigma > 0.0 else dist
-
-    #prevents 1 px peak
-    md = max(1, int(round(min_dist)))
-    fp = np.ones((2 * md + 1, 2 * md + 1), dtype=bool)
-
-    peaks = peak_local_max(
-        dist_s,
-        labels=mask,
-        footprint=fp,
-        min_distance=md,
-        threshold_rel=float(thresh_rel),
-        exclude_border=False,
-    )
-    markers = np.zeros_like(dist, dtype=np.int32)
-    for i, (r, c) in enumerate(peaks, start=1):
-        markers[r, c] = i
-
-    if markers.max() == 0:
-        return sklabel(mask, connectivity=2).astype(np.uint16)
-
-    grad = ndi.gaussian_gradient_magnitude(dist_s.astype(np.float32), sigma=sigma)
-    labels = watershed(grad, markers=markers, mask=mask)
-    return labels.astype(np.uint16)
-
-
-
-def labels_to_contours(labels_u16):
-    lab = labels_u16.astype(np.int32)
-    h, w = lab.shape
-    edges = np.zeros((h, w), np.uint8)
-
-    edges[1:, :]  |= ((lab[1:, :]  != 0) & (lab[1:, :]  != lab[:-1, :])).astype(np.uint8)
-    edges[:-1, :] |= ((lab[:-1, :] != 0) & (lab[:-1, :] != lab[1:, :])).astype(np.uint8)
-    edges[:, 1:]  |= ((lab[:, 1:]  != 0) & (lab[:, 1:]  != lab[:, :-1])).astype(np.uint8)
-    edges[:, :-1] |= ((lab[:, :-1] != 0) & (lab[:, :-1] != lab[:, 1:])).astype(np.uint8)
-
-    return (edges * 255).astype(np.uint8)
+def labels_to_polygons(labels):
+    """Boundary polygons of every labelled object, as columns for write_columns.
+
+    One row per vertex: object id, ring index within the object (outer boundary and holes),
+    x, y in ImageJ overlay coordinates (pixel centres at +0.5). Rings are traced with
+    marching squares on each object's bounding box and simplified to within 0.5 px, so the
+    size follows the number of objects and their perimeter, not the image area.
+    """
+    obj, ring, xs, ys = [], [], [], []
+    for i, sl in enumerate(ndi.find_objects(labels), start=1):
+        if sl is None:
+            continue
+        y0, x0 = sl[0].start, sl[1].start
+        crop = np.pad(labels[sl] == i, 1).astype(np.uint8)
+        for k, c in enumerate(find_contours(crop, 0.5)):
+            c = approximate_polygon(c, tolerance=0.5)[:-1]      # closed ring; drop the repeated vertex
+            if len(c) < 3:
+                continue
+            obj.append(np.full(len(c), i, np.int32))
+            ring.append(np.full(len(c), k, np.int32))
+            xs.append(c[:, 1] + (x0 - 1 + 0.5))
+            ys.append(c[:, 0] + (y0 - 1 + 0.5))
+    cat = lambda parts, dt: np.concatenate(parts).astype(dt) if parts else np.zeros(0, dt)  # noqa: E731
+    return [("obj", "i", cat(obj, np.int32)), ("ring", "i", cat(ring, np.int32)),
+            ("x", "f", cat(xs, np.float32)), ("y", "f", cat(ys, np.float32))]
+
+
+def _write_contours(path, labels):
+    if path:
+        write_columns(path, labels_to_polygons(labels))
 
 def _merge_holes(mask_bool):
     return _fill_holes(mask_bool).astype(np.uint8)
@@ -110,6 +106,35 @@ def _percentile_bounds(vals, keep_low, keep_high):
 
 
 
+def _split_and_filter(mask, keep_low, keep_high, ws_min_dist, ws_thresh_rel, ws_sigma, ws_tile, ws_halo, workers):
+    """Parents (connected components) and children (watershed objects), filtered by area.
+
+    Returns cc_map, kept_split_labels (int32, original child ids), kept_uns_mask, the ids of
+    kept parents without a kept child, and the number of kept children.
+    """
+    #parents
+    cc_map = sklabel(mask, connectivity=2).astype(np.int32, copy=False)
+    areas_par = np.bincount(cc_map.ravel())[1:]
+
+    #children
+    labels = ws_split(mask, ws_min_dist, ws_thresh_rel, ws_sigma, tile=ws_tile, halo=ws_halo, workers=workers)
+    areas_child = np.bincount(labels.ravel())[1:]
+
+    lo, hi = _percentile_bounds(np.concatenate([areas_par, areas_child]), keep_low, keep_high)
+    kept_par = np.concatenate([[False], (areas_par > lo) & (areas_par < hi)])
+    kept_child = np.concatenate([[False], (areas_child > lo) & (areas_child < hi)])
+
+    # parents holding a kept child are counted through their children
+    fg = labels > 0
+    has_kept_kid = np.zeros(len(kept_par), dtype=bool)
+    has_kept_kid[cc_map[fg][kept_child[labels[fg]]]] = True
+    parents_for_metrics = np.flatnonzero(kept_par & ~has_kept_kid)
+
+    kept_uns_mask = kept_par[cc_map]
+    kept_split_labels = np.where(kept_child[labels], labels, 0).astype(np.int32, copy=False)
+    return cc_map, kept_split_labels, kept_uns_mask, parents_for_metrics, int(kept_child.sum())
+
+
 def nuc_rbc_count(
     mask_path,
     keep_low,
@@ -121,57 +146,29 @@ def nuc_rbc_count(
     out_labels=None,
     out_contours=None,
     out_outer_contours=None,
+    ws_tile=0,
+    ws_halo=64,
+    workers=0,
 ):
     raw = _read_plane_bool(mask_path)
     mask = _merge_holes(raw)
 
     if not np.any(mask):
-        if out_labels: tiff.imwrite(out_labels, np.zeros_like(mask, np.uint16))
-        if out_contours: tiff.imwrite(out_contours, np.zeros_like(mask, np.uint8))
-        if out_outer_contours: tiff.imwrite(out_outer_contours, np.zeros_like(mask, np.uint8))
+        if out_labels: tiff.imwrite(out_labels, np.zeros_like(mask, np.int32))
+        _write_contours(out_contours, np.zeros_like(mask, np.int32))
+        _write_contours(out_outer_contours, np.zeros_like(mask, np.int32))
         with open(out_txt, "w") as f: f.write("0\n")
         return
 
-    #parents
-    cc_map = sklabel(mask, connectivity=2)
-    parent_counts = np.bincount(cc_map.ravel())[1:]
-    parent_ids = list(range(1, len(parent_counts) + 1))
-    areas_par = parent_counts.tolist()
-
-    #children
-    labels = ws_split(mask.astype(np.uint8), ws_min_dist, ws_thresh_rel, ws_sigma).astype(np.uint16)
-    if labels.max() == 0:
-        labels = sklabel(mask, connectivity=2).astype(np.uint16)
-    child_counts = np.bincount(labels.ravel())[1:] if labels.max() > 0 else np.array([], dtype=int)
-    child_ids = list(range(1, len(child_counts) + 1))
-    areas_child = child_counts.tolist()
-
-    all_areas = areas_par + areas_child
-    lo, hi = _percentile_bounds(all_areas, keep_low, keep_high)
-
-    kept_parents  = {pid for (pid, a) in zip(parent_ids, areas_par)  if (a > lo) and (a < hi)}
-    kept_children = {cid for (cid, a) in zip(child_ids,  areas_child) if (a > lo) and (a < hi)}
-
-    frags_by_parent = {}
-    for pid in parent_ids:
-        comp = (cc_map == pid)
-        kids = set(np.unique(labels[comp])) - {0}
-        frags_by_parent[pid] = kids
-
-    parents_with_kept_kids = {p for p, kids in frags_by_parent.items() if len(kept_children.intersection(kids)) > 0}
-    parents_for_metrics = kept_parents - parents_with_kept_kids
-
-    kept_uns_mask     = np.isin(cc_map, list(kept_parents))
-    kept_split_labels = np.where(np.isin(labels, list(kept_children)), labels, 0).astype(np.uint16)
+    cc_map, kept_split_labels, kept_uns_mask, parents_for_metrics, n_children = _split_and_filter(
+        mask, keep_low, keep_high, ws_min_dist, ws_thresh_rel, ws_sigma, ws_tile, ws_halo, workers)
 
     if out_labels:
         tiff.imwrite(out_labels, kept_split_labels)
-    if out_contours:
-        tiff.imwrite(out_contours, labels_to_contours(kept_split_labels))
-    if out_outer_contours:
-        tiff.imwrite(out_outer_contours, labels_to_contours(kept_uns_mask.astype(np.uint16)))
+    _write_contours(out_contours, kept_split_labels)
+    _write_contours(out_outer_contours, np.where(kept_uns_mask, cc_map, 0))
 
-    total = len(kept_children) + len(parents_for_metrics)
+    total = n_children + len(parents_for_metrics)
     with open(out_txt, "w") as f:
         f.write(str(int(total)) + "\n")
 
@@ -184,68 +181,40 @@ def proc_ws_nnd(
     ws_thresh_rel,
     ws_sigma,
     out_txt,
-    out_csv,
+    out_csv=None,
     out_labels=None,
     out_contours=None,
     out_outer_contours=None,
     keep_low=0.0,
     keep_high=0.0,
+    out_cols=None,
+    ws_tile=0,
+    ws_halo=64,
+    workers=0,
 ):
     raw = _read_plane_bool(mask_path)
     mask = _merge_holes(raw)
     if not np.any(mask):
-        if out_labels: tiff.imwrite(out_labels, np.zeros_like(mask, np.uint16))
-        if out_contours: tiff.imwrite(out_contours, np.zeros_like(mask, np.uint8))
-        if out_outer_contours: tiff.imwrite(out_outer_contours, np.zeros_like(mask, np.uint8))
-        if out_csv: open(out_csv, "w").close()
+        if out_labels: tiff.imwrite(out_labels, np.zeros_like(mask, np.int32))
+        _write_contours(out_contours, np.zeros_like(mask, np.int32))
+        _write_contours(out_outer_contours, np.zeros_like(mask, np.int32))
+        _write_points([(k, "f", []) for k in ("x0", "y0", "x1", "y1")], out_cols, out_csv, "")
         with open(out_txt, "w") as f: f.write("nan\n")
         return
 
-    #all pabels
-    cc_map = sklabel(mask, connectivity=2)
-    parent_counts = np.bincount(cc_map.ravel())[1:]
-    parent_ids = list(range(1, len(parent_counts) + 1))
-    areas_par = parent_counts.tolist()
-
-    #child labels
-    labels = ws_split(mask.astype(np.uint8), ws_min_dist, ws_thresh_rel, ws_sigma).astype(np.uint16)
-    if labels.max() == 0:
-        labels = sklabel(mask, connectivity=2).astype(np.uint16)
-    child_counts = np.bincount(labels.ravel())[1:] if labels.max() > 0 else np.array([], dtype=int)
-    child_ids = list(range(1, len(child_counts) + 1))
-    areas_child = child_counts.tolist()
-
-
-    all_areas = areas_par + areas_child
-    lo, hi = _percentile_bounds(all_areas, keep_low, keep_high)
-    kept_parents = {pid for (pid, a) in zip(parent_ids, areas_par)  if (a > lo) and (a < hi)}
-    kept_children = {cid for (cid, a) in zip(child_ids,  areas_child) if (a > lo) and (a < hi)}
-
-    # exclude parent with kept children
-    frags_by_parent = {}
-    for pid in parent_ids:
-        comp = (cc_map == pid)
-        kids = set(np.unique(labels[comp])) - {0}
-        frags_by_parent[pid] = kids
-    parents_with_kept_kids = {p for p, kids in frags_by_parent.items() if len(kept_children.intersection(kids)) > 0}
-    parents_for_metrics = kept_parents - parents_with_kept_kids
-
-    kept_uns_mask = np.isin(cc_map, list(kept_parents))
-    kept_split_labels = np.where(np.isin(labels, list(kept_children)), labels, 0).astype(np.uint16)
+    cc_map, kept_split_labels, kept_uns_mask, parents_for_metrics, _ = _split_and_filter(
+        mask, keep_low, keep_high, ws_min_dist, ws_thresh_rel, ws_sigma, ws_tile, ws_halo, workers)
 
     if out_labels:
         tiff.imwrite(out_labels, kept_split_labels)
-    if out_contours:
-        tiff.imwrite(out_contours, labels_to_contours(kept_split_labels)) # split contours
-    if out_outer_contours:
-        tiff.imwrite(out_outer_contours, labels_to_contours(kept_uns_mask.astype(np.uint16)))  # parent contours
+    _write_contours(out_contours, kept_split_labels)                         # split contours
+    _write_contours(out_outer_contours, np.where(kept_uns_mask, cc_map, 0))  # parent contours
 
     #centroids-children and parents_for_metrics
     cents = []
-    for pid in parents_for_metrics:
-        yy, xx = np.nonzero(cc_map == pid)
-        if len(xx) > 0:
-            cents.append((float(xx.mean()), float(yy.mean())))
+    if len(parents_for_metrics):
+        for y, x in ndi.center_of_mass(mask, cc_map, parents_for_metrics):
+            cents.append((float(x), float(y)))
     for rp in regionprops(kept_split_labels):
         y, x = rp.centroid
         cents.append((float(x), float(y)))
@@ -254,24 +223,27 @@ def proc_ws_nnd(
     thr_max = float(max_pair_px)
     thr_min = float(ws_min_dist)
 
-    if thr_min < thr_max:
-        for i, (x0, y0) in enumerate(cents):
-            best_d, best_j = None, None
-            for j, (x1, y1) in enumerate(cents):
-                if i == j:
-                    continue
-                d = float(np.hypot(x1 - x0, y1 - y0))
-                if (d >= thr_min) and (d < thr_max) and (best_d is None or d < best_d):
-                    best_d, best_j = d, j
-            if best_j is not None:
-                pairs.append((x0, y0, cents[best_j][0], cents[best_j][1]))
-                dists_px.append(best_d)
-
-    # CSV + mean
-    if out_csv:
-        with open(out_csv, "w") as f:
-            for x0, y0, x1, y1 in pairs:
-                f.write(f"{x0:.3f},{y0:.3f},{x1:.3f},{y1:.3f}\n")
+    if thr_min < thr_max and len(cents) > 1:
+        # nearest neighbour in [thr_min, thr_max), ties to the lower index as the pairwise scan did
+        pts = np.asarray(cents, dtype=np.float64)
+        tree = cKDTree(pts)
+        for i, near in enumerate(tree.query_ball_point(pts, r=thr_max * (1 + 1e-9))):
+            js = np.asarray([j for j in near if j != i], dtype=np.intp)
+            if js.size == 0:
+                continue
+            d = np.hypot(pts[js, 0] - pts[i, 0], pts[js, 1] - pts[i, 1])
+            ok = (d >= thr_min) & (d < thr_max)
+            if not ok.any():
+                continue
+            js, d = js[ok], d[ok]
+            k = np.lexsort((js, d))[0]
+            pairs.append((cents[i][0], cents[i][1], cents[js[k]][0], cents[js[k]][1]))
+            dists_px.append(float(d[k]))
+
+    # pairs + mean
+    pa = np.asarray(pairs, dtype=np.float32).reshape(-1, 4)
+    _write_points([(k, "f", pa[:, i]) for i, k in enumerate(("x0", "y0", "x1", "y1"))],
+                  out_cols, out_csv, "%.3f,%.3f,%.3f,%.3f")
 
     if dists_px:
         mean_px = float(np.mean(dists_px)) if dists_px else float("nan")
@@ -287,22 +259,53 @@ def proc_ws_nnd(
 def main():
     ap = argparse.ArgumentParser()
     ap.add_argument("--task", choices=["thickness", "proc", "nuc", "rbc"], required=True)
-    ap.add_argument("--mask", required=True)
+    ap.add_argument("--mask", required=True)             # mask TIFF, or run-length labels (.hmr) with --mask_class
+    ap.add_argument("--mask_class", type=int, default=None)
+    ap.add_argument("--mask_crop", default=None)         # x,y,w,h in label-map pixels (.hmr only)
     ap.add_argument("--max_pair_px", type=float, default=20.0)
     ap.add_argument("--out_txt", required=True)
-    # CSV is required for thickness/proc, optional/ignored for nuc/rbc
+    # per-point output for thickness/proc: binary columns (read by the plugin) and/or CSV export
+    ap.add_argument("--out_cols", required=False, default=None)
     ap.add_argument("--out_csv", required=False, default=None)
     # watershed knobs for PROCESS ONLY
     ap.add_argument("--ws_min_dist", type=float, default=3.28)
     ap.add_argument("--ws_thresh_rel", type=float, default=0.26)
     ap.add_argument("--ws_sigma", type=float, default=0.0)
     ap.add_argument("--out_labels", type=str, default=None)
+    # object boundary polygons (HMC1 columns obj, ring, x, y)
     ap.add_argument("--out_contours", type=str, default=None)
     ap.add_argument("--out_outer_contours", type=str, default=None)
     ap.add_argument("--keep_low", type=float, default=0.0)
     ap.add_argument("--keep_high", type=float, default=0.0)
+    # thickness: medial-axis tile size (0 = skimage single pass, -1 = reproducible single pass), halo in px,
+    # worker processes (0 = all cores)
+    ap.add_argument("--tile", type=int, default=0)
+    ap.add_argument("--halo", type=int, default=32)
+    ap.add_argument("--workers", type=int, default=0)
+    ap.add_argument("--verify_tiles", action="store_true")
+    # nuc/rbc/proc: watershed tiles (0 = auto, -1 = single pass) and halo in px; also uses --workers
+    ap.add_argument("--ws_tile", type=int, default=0)
+    ap.add_argument("--ws_halo", type=int, default=64)
     args = ap.parse_args()
+    capture_warnings()
+
+    with stage("metric_" + args.task):
+        run_task(args)
+
+
+def _class_mask(args):
+    # .hmr: the class is filled straight from its runs, inside the crop only
+    if not args.mask.endswith(rle.SUFFIX):
+        return args.mask
+    if args.mask_class is None:
+        raise SystemExit("--mask_class is required with a run-length label map")
+    crop = tuple(int(v) for v in args.mask_crop.split(",")) if args.mask_crop else None
+    with stage("mask_from_runs"):
+        return rle.read(args.mask).mask(args.mask_class, crop)
+
 
+def run_task(args):
+    args.mask = _class_mask(args)
     if args.task in ("nuc", "rbc"):
         nuc_rbc_count(
            mask_path=args.mask,
@@ -315,20 +318,25 @@ def main():
            out_labels=getattr(args, "out_labels", None),
            out_contours=getattr(args, "out_contours", None),
            out_outer_contours=getattr(args, "out_outer_contours", None),
+           ws_tile=args.ws_tile,
+           ws_halo=args.ws_halo,
+           workers=args.workers,
        )
         return
 
 
-    # tasks below require CSV
-    if args.out_csv is None:
-        raise SystemExit("For task '%s', --out_csv is required." % args.task)
+    # tasks below write per-point output
+    if args.out_cols is None and args.out_csv is None:
+        raise SystemExit("For task '%s', --out_cols or --out_csv is required." % args.task)
 
     if args.task == "thickness":
-        gbm_thickness(args.mask, args.out_txt, args.out_csv)
+        gbm_thickness(args.mask, args.out_txt, args.out_csv, args.out_cols,
+                      tile=args.tile, halo=args.halo, workers=args.workers, verify=args.verify_tiles)
     else:
         proc_ws_nnd(args.mask, args.max_pair_px, args.ws_min_dist, args.ws_thresh_rel, args.ws_sigma,
                     args.out_txt, args.out_csv, args.out_labels, args.out_contours, args.out_outer_contours,
-                    keep_low=args.keep_low, keep_high=args.keep_high)
+                    keep_low=args.keep_low, keep_high=args.keep_high, out_cols=args.out_cols,
+                    ws_tile=args.ws_tile, ws_halo=args.ws_halo, workers=args.workers)
 
 
 
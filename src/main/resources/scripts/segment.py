@@ -3,11 +3,18 @@ import cv2
 import numpy as np
 import tifffile
 import os
+import time
 import argparse
-from PIL import Image, ImageSequence
+import functools
+from PIL import Image
 
 from src.core.model_archi import multi_unet_model_trans
-from src.core.segmentation import run_patches
+from src.core.segmentation import run_patches, BLEND_MODES, RESAMPLE_MODES
+from src.core.backends import (BACKENDS, load_predictor, prepare_predictor, calibration_tiles, calibration_digest,
+                               dice_per_class)
+from src.core.telemetry import capture_warnings, emit, result, stage, warning
+from src.core import memplan, rle, sharding
+from src.core.pages import parse_frame, read_page
 
 MODEL_MAP = {'20x': '20x.hdf5', '40x': '40x.hdf5'}
 MODEL_CHANNELS = {'20x': 1, '40x': 1}
@@ -17,16 +24,21 @@ MODEL_PARAMS = {
     '40x': dict(P_HEIGHT=576, P_WIDTH=768, MODEL_HEIGHT=576, MODEL_WIDTH=768),
 }
 
-def read_page(tif_path, page_index):
-    with Image.open(tif_path) as im:
-        frame = None
-        for i, f in enumerate(ImageSequence.Iterator(im)):
-            if i == page_index:
-                frame = f.copy()
-                break
-    if frame is None:
-        raise RuntimeError(f"Page {page_index} not found")
-    return np.array(frame)
+def worker_model(backend, model_key, weights, cache_dir, compiled, calib_digest, threads):
+    """Model for one sharding worker, TensorFlow pinned to `threads` intra-op threads.
+
+    The parent has exported it already; calib_digest names its int8 calibration.
+    """
+    import tensorflow as tf
+    tf.config.threading.set_intra_op_parallelism_threads(threads)
+    tf.config.threading.set_inter_op_parallelism_threads(1)
+    params = MODEL_PARAMS[model_key]
+    shape = (params['MODEL_HEIGHT'], params['MODEL_WIDTH'], MODEL_CHANNELS[model_key])
+    build = functools.partial(multi_unet_model_trans, n_classes=MODEL_CLASSES[model_key],
+                              IMG_HEIGHT=shape[0], IMG_WIDTH=shape[1], IMG_CHANNELS=shape[2])
+    return load_predictor(backend, build, weights, cache_dir, model_key, input_shape=shape,
+                          compiled=compiled, threads=threads, calib_digest=calib_digest)
+
 
 def to_gray8(arr):
     a = np.asarray(arr)
@@ -63,58 +75,224 @@ def clahe_first_page(arr):
     return clahe.apply(g8)
 
 
+def write_atomic(path, arr):
+    # the plugin may read the file as soon as it sees the event, so never expose a partial write
+    tmp = path + '.part.tif'
+    tifffile.imwrite(tmp, arr)
+    os.replace(tmp, path)
+
+
+def preview_pass(model, g8, params, n_classes, scale, out_dir):
+    # fast coarse labels: the plane shrunk by `scale`, a handful of tiles, nearest upsample back
+    H, W = g8.shape[:2]
+    hs, ws = max(1, int(round(H * scale))), max(1, int(round(W * scale)))
+    small = np.asarray(Image.fromarray(g8).resize((ws, hs), Image.BILINEAR))
+    lab = run_patches(small, model, params['P_HEIGHT'], params['P_WIDTH'], n_classes,
+                      params['MODEL_WIDTH'], params['MODEL_HEIGHT'],
+                      overlap=0.0, blend='uniform', resample='plane-nearest', tag='preview')
+    full = np.asarray(Image.fromarray(lab.astype(np.uint8)).resize((W, H), Image.NEAREST))
+    path = os.path.join(out_dir, 'preview.tif')
+    write_atomic(path, full)
+    emit('preview', path=path, width=W, height=H)
+
+
+def row_emitter(out_dir):
+    def on_rows(y0, y1, labels):
+        path = os.path.join(out_dir, f'rows_{y0:06d}.tif')
+        write_atomic(path, labels)
+        emit('rows', path=path, y0=int(y0), y1=int(y1))
+    return on_rows
+
+
 def main():
     p = argparse.ArgumentParser()
-    p.add_argument('--tif', required=True)
+    p.add_argument('--tif', required=True)              # TIFF, ND2 or any PIL format; only --page is decoded
     p.add_argument('--page', type=int, default=0)
+    p.add_argument('--frame', type=parse_frame, default=None)  # ND2 plane as v,t,z,c (0-based), instead of --page
     p.add_argument('--modeldir', required=True)
     p.add_argument('--model', choices=MODEL_MAP.keys(), required=True)
     p.add_argument('--output', required=True)
+    p.add_argument('--output_rle', default=None)       # run-length labels (.hmr); default: next to --output
     p.add_argument('--enhance', type=int, default=1)   # 1 = CLAHE, 0 = skip
     p.add_argument('--plow',  type=float, default=1.0)
     p.add_argument('--phigh', type=float, default=99.7)
     p.add_argument('--save_enhanced', default=None)
+    p.add_argument('--model_input', default=None)      # already-enhanced 8-bit plane (e.g. CLAHE done in Fiji)
+    p.add_argument('--backend', choices=BACKENDS, default='float32')
+    p.add_argument('--cache_dir', default=None)        # exported graphs and reduced-precision models
+    p.add_argument('--compiled', type=int, default=1)  # float32: cached SavedModel/XLA graph (0 = Keras)
+    p.add_argument('--check_backend', default=None)    # write per-class Dice vs float32 here, then exit
+    p.add_argument('--skip_blank', type=int, default=0)  # 1 = no model call on glass-only tiles
+    p.add_argument('--overlap', type=float, default=0.5)  # tile overlap fraction, 0..0.5
+    p.add_argument('--blend', choices=BLEND_MODES, default='cosine')
+    p.add_argument('--resample', choices=RESAMPLE_MODES, default='tile')  # plane = resize once at model scale
+    p.add_argument('--progress_dir', default=None)     # progressive mode: preview + finished row bands go here
+    p.add_argument('--preview_scale', type=float, default=0.25)
+    p.add_argument('--mem_budget_mb', type=int, default=0)  # 0 = half the physical memory
+    p.add_argument('--workers', type=int, default=1)   # inference processes; 1 = in this process, 0 = one per 4 cores
+    p.add_argument('--threads', type=int, default=0)   # intra-op threads per worker; 0 = cores / workers
 
     args = p.parse_args()
+    capture_warnings()
 
-    plane = read_page(args.tif, args.page)
+    # the source page is decoded only if something needs it: CLAHE here, or the tissue pre-pass
+    plane = None
+    if not args.model_input or args.skip_blank:
+        with stage('decode'):
+            plane = read_page(args.tif, args.page, args.frame)
 
-    if int(args.enhance) == 1:
+    if args.model_input:
+        with stage('decode_model_input'):
+            g8_for_model = to_gray8(tifffile.imread(args.model_input))
+    elif int(args.enhance) == 1:
 
-        g8_for_model = clahe_first_page(plane)
+        with stage('clahe'):
+            g8_for_model = clahe_first_page(plane)
         if args.save_enhanced:
             tifffile.imwrite(args.save_enhanced, g8_for_model)
     else:
         g8_for_model = to_gray8(plane)
 
 
-    tmp_plane = os.path.join(args.modeldir, 'plane.tif')
-    tifffile.imwrite(tmp_plane, g8_for_model)
+    # tissue pre-pass looks at the unenhanced plane; CLAHE lifts glass noise
+    tissue_ref = to_gray8(plane) if args.skip_blank else None
+    plane = None                # only the 8-bit copies are kept
 
     n_classes = MODEL_CLASSES[args.model]
     params    = MODEL_PARAMS[args.model]
+
+    H, W = g8_for_model.shape[:2]
     weights   = os.path.join(args.modeldir, MODEL_MAP[args.model])
+    cache_dir = args.cache_dir or os.path.join(args.modeldir, 'cache')
+
+    workers, threads = sharding.plan_workers(args.workers, args.threads) if args.workers != 1 else (1, 0)
+    if H < params['P_HEIGHT'] or W < params['P_WIDTH']:
+        workers = 1             # a single tile
+    resident = g8_for_model.nbytes + (tissue_ref.nbytes if tissue_ref is not None else 0)
+    plan = memplan.plan(H, W, n_classes, params, args.resample,
+                        args.mem_budget_mb or memplan.default_budget_mb(), resident,
+                        workers, memplan.model_bytes(weights))
+    print(f"Memory plan: {plan.describe()}")
+    if plan.workers < workers:
+        print(f"{workers} workers do not fit the memory budget; inference runs in one process")
+    workers = plan.workers
+    emit('memory_plan', resample=plan.resample, strips=int(plan.strips), acc=np.dtype(plan.acc_dtype).name,
+         workers=plan.workers, est_mb=round(plan.est_bytes / memplan.MB), fits=int(plan.fits),
+         budget_mb=None if plan.budget_bytes is None else round(plan.budget_bytes / memplan.MB))
+    if not plan.fits:
+        raise SystemExit(f"Not enough memory for a {W}x{H} plane: needs ~"
+                         f"{(plan.est_bytes + plan.resident_bytes) / memplan.MB:.0f} MB, budget "
+                         f"{plan.budget_bytes / memplan.MB:.0f} MB. Raise the memory budget in Settings "
+                         f"or segment a smaller region.")
+
+    def build_model():
+        return multi_unet_model_trans(
+            n_classes=n_classes,
+            IMG_HEIGHT=params['MODEL_HEIGHT'],
+            IMG_WIDTH=params['MODEL_WIDTH'],
+            IMG_CHANNELS=MODEL_CHANNELS[args.model]
+        )
+
+    # int8 is calibrated on tiles of this plane, and cached per calibration set
+    calib = None
+    if args.backend == 'int8':
+        calib = calibration_tiles(g8_for_model, params['P_HEIGHT'], params['P_WIDTH'],
+                                  params['MODEL_HEIGHT'], params['MODEL_WIDTH'])
+
+    model_shape = (params['MODEL_HEIGHT'], params['MODEL_WIDTH'], MODEL_CHANNELS[args.model])
+
+    def load_model(backend):
+        with stage('model_load', backend=backend):
+            return load_predictor(backend, build_model, weights, cache_dir, args.model, calib,
+                                  input_shape=model_shape, compiled=bool(args.compiled))
+
+    def segment_with(backend, model=None, on_rows=None, tag=None, shards=None):
+        # sharded runs never call the parent's model
+        if model is None and shards is None:
+            model = load_model(backend)
+        return run_patches(
+            g8_for_model,
+            model,
+            params['P_HEIGHT'],
+            params['P_WIDTH'],
+            n_classes,
+            params['MODEL_WIDTH'],
+            params['MODEL_HEIGHT'],
+            skip_blank=bool(args.skip_blank),
+            tissue_ref=tissue_ref,
+            overlap=args.overlap,
+            blend=args.blend,
+            resample=plan.resample,
+            on_rows=on_rows,
+            tag=tag,
+            strips=plan.strips,
+            acc_dtype=plan.acc_dtype,
+            shards=shards
+        )
+
+    if args.check_backend:
+        check_backend(segment_with, args.backend, n_classes, args.check_backend)
+        return
+
+    # the preview needs a model here; otherwise, when sharding, only the cache is prepared, so
+    # exports and int8 calibration happen once before the workers start
+    model = load_model(args.backend) if args.progress_dir else None
+    if workers > 1:
+        if model is None:
+            with stage('model_prepare', backend=args.backend):
+                try:
+                    prepare_predictor(args.backend, build_model, weights, cache_dir, args.model, calib,
+                                      input_shape=model_shape, compiled=bool(args.compiled))
+                except Exception as e:
+                    warning(f"Model cache not prepared ({type(e).__name__}: {e})")
+        print(f"Inference: {workers} worker processes x {threads} threads")
+    factory = functools.partial(worker_model, args.backend, args.model, weights, cache_dir, bool(args.compiled),
+                                calibration_digest(calib) if calib else None)
+    # finished row bands are run-length encoded as the stitcher hands them out
+    runs = rle.RunWriter()
+    on_rows = runs.add
+    with sharding.worker_pool(factory, workers, threads) as shards:
+        if args.progress_dir:
+            os.makedirs(args.progress_dir, exist_ok=True)
+            with stage('preview'):
+                preview_pass(model, g8_for_model, params, n_classes, args.preview_scale, args.progress_dir)
+            if shards is not None:
+                model = None        # the workers hold their own
+            emit_rows = row_emitter(args.progress_dir)
+
+            def on_rows(y0, y1, labels):
+                runs.add(y0, y1, labels)
+                emit_rows(y0, y1, labels)
+        seg_map = segment_with(args.backend, model, on_rows=on_rows, shards=shards)
+
+    with stage('mask_export'):
+        tifffile.imwrite(args.output, seg_map.astype(np.uint8))
+        rle_out = args.output_rle or rle.rle_path(args.output)
+        seg_runs = runs.finish(seg_map)
+        seg_runs.write(rle_out)
+    print(f"Run-length labels: {len(seg_runs)} runs for {seg_map.size} pixels")
+    result(f"Segmentation saved to {args.output}", path=args.output, runs=rle_out)
+
+
+def check_backend(segment_with, backend, n_classes, report_path):
+    t0 = time.perf_counter()
+    ref = segment_with('float32', tag='float32')
+    t1 = time.perf_counter()
+    test = segment_with(backend, tag=backend)
+    t2 = time.perf_counter()
+    dice = dice_per_class(ref, test, n_classes)
+    agree = float(np.mean(ref == test))
+
+    lines = [f"Backend check: {backend} vs float32",
+             f"Pixel agreement: {agree:.4f}",
+             f"Time float32: {t1 - t0:.1f} s, {backend}: {t2 - t1:.1f} s (includes one-time export)"]
+    for c, d in enumerate(dice):
+        lines.append(f"Class {c} Dice: " + ("n/a (absent)" if np.isnan(d) else f"{d:.4f}"))
+    with open(report_path, 'w') as f:
+        f.write("\n".join(lines) + "\n")
+    for ln in lines:
+        print(ln)
 
-    model = multi_unet_model_trans(
-        n_classes=n_classes,
-        IMG_HEIGHT=params['MODEL_HEIGHT'],
-        IMG_WIDTH=params['MODEL_WIDTH'],
-        IMG_CHANNELS=MODEL_CHANNELS[args.model]
-    )
-    model.load_weights(weights)
-
-    seg_map = run_patches(
-        tmp_plane,
-        model,
-        params['P_HEIGHT'],
-        params['P_WIDTH'],
-        n_classes,
-        params['MODEL_WIDTH'],
-        params['MODEL_HEIGHT']
-    )
-
-    tifffile.imwrite(args.output, seg_map.astype(np.uint8))
-    print(f"Segmentation saved to {args.output}")
 
 if __name__ == '__main__':
     main()
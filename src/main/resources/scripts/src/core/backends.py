@@ -0,0 +1,235 @@
+import hashlib
+import os
+import shutil
+
+import numpy as np
+from PIL import Image
+
+from src.core.telemetry import warning
+
+BACKENDS = ('float32', 'fp16', 'int8')
+
+
+def weights_digest(weights_path):
+    h = hashlib.sha1()
+    with open(weights_path, 'rb') as f:
+        for chunk in iter(lambda: f.read(1 << 20), b''):
+            h.update(chunk)
+    return h.hexdigest()[:16]
+
+
+def calibration_tiles(plane_u8, P_HEIGHT, P_WIDTH, MODEL_HEIGHT, MODEL_WIDTH, n_tiles=16, seed=0):
+    # representative model inputs for int8 calibration, sampled from the plane being segmented
+    H, W = plane_u8.shape[:2]
+    rng = np.random.default_rng(seed)
+    tiles = []
+    for _ in range(n_tiles):
+        y0 = int(rng.integers(0, max(1, H - P_HEIGHT + 1)))
+        x0 = int(rng.integers(0, max(1, W - P_WIDTH + 1)))
+        patch = plane_u8[y0:y0 + P_HEIGHT, x0:x0 + P_WIDTH]
+        im = Image.fromarray(patch.astype(np.uint8)).resize((MODEL_WIDTH, MODEL_HEIGHT), Image.BILINEAR)
+        tiles.append(np.array(im, dtype=np.float32)[None, ..., None] / 255.0)
+    return tiles
+
+
+def calibration_digest(tiles):
+    """Short hash of the int8 calibration inputs, part of the int8 cache key."""
+    h = hashlib.sha1()
+    for t in tiles:
+        h.update(np.ascontiguousarray(t, dtype=np.float32).tobytes())
+    return h.hexdigest()[:12]
+
+
+def export_tflite(model, out_path, mode, calib_tiles=None):
+    import tensorflow as tf
+
+    def _convert(select_ops):
+        conv = tf.lite.TFLiteConverter.from_keras_model(model)
+        conv.optimizations = [tf.lite.Optimize.DEFAULT]
+        if mode == 'fp16':
+            conv.target_spec.supported_types = [tf.float16]
+        elif mode == 'int8':
+            if not calib_tiles:
+                raise RuntimeError("int8 export needs calibration tiles")
+
+            def rep():
+                for t in calib_tiles:
+                    yield [t]
+            conv.representative_dataset = rep
+        if select_ops:
+            # MultiHeadAttention may need TF kernels on older converters
+            conv.target_spec.supported_ops = [tf.lite.OpsSet.TFLITE_BUILTINS, tf.lite.OpsSet.SELECT_TF_OPS]
+        return conv.convert()
+
+    try:
+        blob = _convert(False)
+    except Exception as e:
+        print(f"[backend] builtin-only conversion failed ({e}); retrying with TF select ops")
+        blob = _convert(True)
+
+    tmp = out_path + '.part'
+    with open(tmp, 'wb') as f:
+        f.write(blob)
+    os.replace(tmp, out_path)
+    return out_path
+
+
+class TFLitePredictor:
+    """Drop-in for model.predict() backed by a TFLite interpreter (XNNPACK on CPU)."""
+
+    def __init__(self, tflite_path, num_threads=None):
+        import tensorflow as tf
+        self.interp = tf.lite.Interpreter(model_path=tflite_path, num_threads=num_threads or os.cpu_count())
+        self.interp.allocate_tensors()
+        self.inp = self.interp.get_input_details()[0]
+        self.out = self.interp.get_output_details()[0]
+
+    def _quant_in(self, x):
+        if self.inp['dtype'] == np.float32:
+            return x.astype(np.float32)
+        scale, zero = self.inp['quantization']
+        return np.round(x / scale + zero).astype(self.inp['dtype'])
+
+    def _dequant_out(self, y):
+        if self.out['dtype'] == np.float32:
+            return y
+        scale, zero = self.out['quantization']
+        return (y.astype(np.float32) - zero) * scale
+
+    def predict(self, arr, verbose=0):
+        outs = []
+        for b in range(arr.shape[0]):
+            self.interp.set_tensor(self.inp['index'], self._quant_in(arr[b:b + 1]))
+            self.interp.invoke()
+            outs.append(self._dequant_out(self.interp.get_tensor(self.out['index']))[0])
+        return np.stack(outs, axis=0)
+
+
+def export_savedmodel(model, out_dir, input_shape):
+    """SavedModel with one fixed (1, H, W, C) float32 signature, XLA-compiled ('serve') and plain."""
+    import tensorflow as tf
+    spec = tf.TensorSpec((1,) + tuple(input_shape), tf.float32, name='tile')
+
+    def call(x):
+        return model(x, training=False)
+
+    module = tf.Module()
+    # tracking the variables is enough to save the graphs; the Keras layers are not serialized
+    module.model_variables = list(model.variables)
+    module.serve = tf.function(call, input_signature=[spec], jit_compile=True)
+    module.serve_nojit = tf.function(call, input_signature=[spec])
+
+    tmp = f"{out_dir}.part{os.getpid()}"
+    shutil.rmtree(tmp, ignore_errors=True)
+    tf.saved_model.save(module, tmp)
+    try:
+        os.replace(tmp, out_dir)
+    except OSError:
+        # another process finished the same export first
+        shutil.rmtree(tmp, ignore_errors=True)
+    return out_dir
+
+
+class SavedModelPredictor:
+    """Drop-in for model.predict() backed by the cached graph; one tile per call, so no retracing.
+
+    The XLA graph is compiled on a warm-up tile while loading; if XLA cannot compile it the plain
+    graph is used instead.
+    """
+
+    def __init__(self, path, input_shape):
+        import tensorflow as tf
+        self.tf = tf
+        self.loaded = tf.saved_model.load(path)
+        self.fn = self.loaded.serve
+        warm = tf.zeros((1,) + tuple(input_shape), tf.float32)
+        try:
+            self.fn(warm)
+        except Exception as e:
+            warning(f"XLA compilation failed ({type(e).__name__}); using the uncompiled graph")
+            self.fn = self.loaded.serve_nojit
+            self.fn(warm)
+
+    def predict(self, arr, verbose=0):
+        outs = [self.fn(self.tf.constant(arr[b:b + 1], dtype=self.tf.float32)).numpy()[0]
+                for b in range(arr.shape[0])]
+        return np.stack(outs, axis=0)
+
+
+def prepare_predictor(backend, build_model, weights_path, cache_dir, model_key, calib_tiles=None,
+                      input_shape=None, compiled=True, calib_digest=None):
+    """Export the cache entry load_predictor() would load, without loading it; returns its path.
+
+    None when the backend runs the Keras model directly. The Keras model is only built to export.
+    """
+    if backend == 'float32':
+        if not (compiled and input_shape is not None):
+            return None
+        os.makedirs(cache_dir, exist_ok=True)
+        shape = 'x'.join(str(int(d)) for d in input_shape)
+        sm = os.path.join(cache_dir, f"{model_key}-float32-{weights_digest(weights_path)}-{shape}.savedmodel")
+        if not os.path.isdir(sm):
+            print(f"[backend] Exporting {model_key} graph (one-time)...")
+            model = build_model()
+            model.load_weights(weights_path)
+            export_savedmodel(model, sm, input_shape)
+        return sm
+
+    if backend not in BACKENDS:
+        raise ValueError(f"Unknown backend {backend}")
+
+    name = f"{model_key}-{backend}-{weights_digest(weights_path)}"
+    if backend == 'int8':
+        # the quantisation ranges come from the calibration tiles, so they are part of the key
+        if calib_digest is None:
+            if not calib_tiles:
+                raise RuntimeError("int8 needs calibration tiles")
+            calib_digest = calibration_digest(calib_tiles)
+        name += f"-c{calib_digest}"
+    os.makedirs(cache_dir, exist_ok=True)
+    tfl = os.path.join(cache_dir, name + ".tflite")
+    if not os.path.isfile(tfl):
+        print(f"[backend] Exporting {model_key} to {backend} TFLite (one-time)...")
+        model = build_model()
+        model.load_weights(weights_path)
+        export_tflite(model, tfl, backend, calib_tiles)
+    return tfl
+
+
+def load_predictor(backend, build_model, weights_path, cache_dir, model_key, calib_tiles=None,
+                   input_shape=None, compiled=True, threads=None, calib_digest=None):
+    """Return an object with predict(arr, verbose=0).
+
+    float32 is the model graph exported once per weights file and input shape, cached as
+    <cache_dir>/<model_key>-float32-<digest>-<H>x<W>x<C>.savedmodel and reloaded from there
+    (compiled=False, or no input_shape: the Keras model itself, built and loaded every run).
+    fp16/int8 are exported once per weights file and cached as <cache_dir>/<model_key>-<backend>-<digest>.tflite
+    and run with `threads` interpreter threads (None = all cores). int8 is calibrated on calib_tiles
+    and cached once per calibration set as well (-c<calibration digest>); calib_digest finds an
+    export made from tiles that are not at hand, as in sharding workers.
+    """
+    if backend == 'float32':
+        try:
+            sm = prepare_predictor(backend, build_model, weights_path, cache_dir, model_key,
+                                   input_shape=input_shape, compiled=compiled)
+            if sm is not None:
+                return SavedModelPredictor(sm, input_shape)
+        except Exception as e:
+            warning(f"Cached graph unavailable ({type(e).__name__}: {e}); using the Keras model")
+        model = build_model()
+        model.load_weights(weights_path)
+        return model
+
+    tfl = prepare_predictor(backend, build_model, weights_path, cache_dir, model_key, calib_tiles,
+                            input_shape, compiled, calib_digest)
+    return TFLitePredictor(tfl, num_threads=threads)
+
+
+def dice_per_class(ref, test, n_classes):
+    out = []
+    for c in range(n_classes):
+        a = (ref == c)
+        b = (test == c)
+        denom = int(a.sum()) + int(b.sum())
+        out.append(float('nan') if denom == 0 else 2.0 * int(np.logical_and(a, b).sum()) / denom)
+    return out
@@ -0,0 +1,55 @@
+"""Minimal binary column file shared with the Fiji plugin (ColumnarTable.java).
+
+Layout, all little-endian:
+    b'HMC1'                      magic
+    int32 n_rows, int32 n_cols
+    n_cols x (1 byte type 'i'|'f', 15 bytes ASCII name, NUL padded)
+    column data, one contiguous int32/float32 array per column, in header order
+"""
+import numpy as np
+
+MAGIC = b'HMC1'
+_TYPES = {'i': '<i4', 'f': '<f4'}
+
+
+def write_columns(path, columns):
+    """columns: list of (name, kind, values) with kind 'i' or 'f'."""
+    n = len(columns[0][2]) if columns else 0
+    header = bytearray(MAGIC)
+    header += np.array([n, len(columns)], dtype='<i4').tobytes()
+    arrays = []
+    for name, kind, values in columns:
+        a = np.asarray(values, dtype=_TYPES[kind]).ravel()
+        if a.size != n:
+            raise ValueError(f"column {name} has {a.size} rows, expected {n}")
+        header += kind.encode('ascii') + name.encode('ascii')[:15].ljust(15, b'\0')
+        arrays.append(a)
+    with open(path, 'wb') as f:
+        f.write(bytes(header))
+        for a in arrays:
+            f.write(a.tobytes())
+
+
+def read_columns(path):
+    """Inverse of write_columns: dict name -> numpy array (memory-mapped)."""
+    with open(path, 'rb') as f:
+        head = f.read(12)
+        if head[:4] != MAGIC:
+            raise ValueError(f"{path} is not an HMC1 column file")
+        n, ncols = np.frombuffer(head[4:12], dtype='<i4')
+        specs = [f.read(16) for _ in range(int(ncols))]
+    out, offset = {}, 12 + 16 * int(ncols)
+    for spec in specs:
+        kind = chr(spec[0])
+        name = spec[1:].rstrip(b'\0').decode('ascii')
+        out[name] = np.memmap(path, dtype=_TYPES[kind], mode='r', offset=offset, shape=(int(n),)) \
+            if n > 0 else np.zeros(0, dtype=_TYPES[kind])
+        offset += 4 * int(n)
+    return out
+
+
+def write_csv(path, columns, fmt):
+    """Text export of the same columns, one row per line (fmt is a '%'-style row format)."""
+    with open(path, 'w') as f:
+        for row in zip(*[c[2] for c in columns]):
+            f.write(fmt % row + "\n")
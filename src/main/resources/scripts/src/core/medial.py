@@ -0,0 +1,231 @@
+"""Medial axis: skimage's single pass, or a reproducible variant that can run in tiles.
+
+The default (tile=0) is skimage.morphology.medial_axis, as gbm_thickness has always used.
+
+skimage thins pixels one at a time in order of (distance, cornerness, tie-break) and draws the
+tie-break from an unseeded permutation, so two runs on the same mask can give different
+skeletons. The reproducible variant (tile=-1 in one pass, tile>0 in tiles) uses the same order
+and keep table, with a hash of the pixel's position in the full mask as the tie-break. The
+sequential loop is run in waves: a pixel is decided once every neighbour ranked before it is,
+and a wave's pixels are never neighbours of each other, so the result is the sequential one.
+
+Tiled mode cuts the mask into cores of `tile` px with a `halo` on every side and runs the
+tiles in worker processes. Every decision in a window is tracked for whether it could have
+been changed by the cut: a pixel is tainted if its distance could be shorter through the
+outside than inside the window, if it touches the cut, if a neighbour's rank is tainted, or if
+a neighbour decided before it is tainted. A tile with any tainted pixel in its core is redone
+with the halo doubled, up to the whole mask. The untainted cores therefore hold exactly the
+one-pass points, and the tiled result is the one-pass result.
+"""
+import os
+from concurrent.futures import ProcessPoolExecutor
+
+import numpy as np
+from scipy import ndimage as ndi
+from skimage.morphology import medial_axis
+
+from src.core.telemetry import warning
+
+DEFAULT_TILE = 2048
+DEFAULT_HALO = 32                       # px, at least the largest expected half-thickness
+
+_EIGHT = np.ones((3, 3), bool)
+_OFFSETS = ((-1, -1, 1), (-1, 0, 2), (-1, 1, 4), (0, -1, 8), (0, 1, 32),
+            (1, -1, 64), (1, 0, 128), (1, 1, 256))
+
+
+def _pattern_of(index):
+    return np.array([[index & 2 ** 0, index & 2 ** 1, index & 2 ** 2],
+                     [index & 2 ** 3, index & 2 ** 4, index & 2 ** 5],
+                     [index & 2 ** 6, index & 2 ** 7, index & 2 ** 8]], bool)
+
+
+def _tables():
+    # as skimage.morphology.medial_axis: keep a foreground pixel if removing it changes the
+    # 8-connectivity of its neighbourhood or it has fewer than 3 pixels around; cornerness is
+    # the number of background pixels in the 3x3 neighbourhood
+    centre = (np.arange(512) & 2 ** 4).astype(bool)
+    keep = np.array([ndi.label(_pattern_of(i), _EIGHT)[1] != ndi.label(_pattern_of(i & ~2 ** 4), _EIGHT)[1]
+                     for i in range(512)])
+    few = np.array([np.sum(_pattern_of(i)) < 3 for i in range(512)])
+    table = np.ascontiguousarray(centre & (keep | few), dtype=np.uint8)
+    corner = np.array([9 - np.sum(_pattern_of(i)) for i in range(512)])
+    return table, corner
+
+
+_TABLE, _CORNER = _tables()
+
+
+def _neighbourhood_index(image):
+    image = image.astype(np.int32)
+    idx = np.zeros(image.shape, np.int32)
+    idx[1:, 1:] += image[:-1, :-1]
+    idx[1:, :] += image[:-1, :] * 2
+    idx[1:, :-1] += image[:-1, 1:] * 4
+    idx[:, 1:] += image[:, :-1] * 8
+    idx[:, :] += image * 16
+    idx[:, :-1] += image[:, 1:] * 32
+    idx[:-1, 1:] += image[1:, :-1] * 64
+    idx[:-1, :] += image[1:, :] * 128
+    idx[:-1, :-1] += image[1:, 1:] * 256
+    return idx
+
+
+def _tiebreak(ys, xs, width):
+    # splitmix64 finaliser of the global linear index: a bijection, so no two pixels tie
+    z = ys.astype(np.uint64) * np.uint64(width) + xs.astype(np.uint64) + np.uint64(0x9E3779B97F4A7C15)
+    z = (z ^ (z >> np.uint64(30))) * np.uint64(0xBF58476D1CE4E5B9)
+    z = (z ^ (z >> np.uint64(27))) * np.uint64(0x94D049BB133111EB)
+    return z ^ (z >> np.uint64(31))
+
+
+def _thin(shape, ii, jj, rank, key_taint=None):
+    """skimage's sequential thinning loop over pixels (ii, jj) in order of `rank`, run in waves.
+
+    Returns the kept flags per pixel and, with key_taint (pixels whose rank may be wrong), the
+    taint per pixel as described in the module docstring.
+    """
+    h, w = shape
+    n = len(ii)
+    grid = np.full((h + 2, w + 2), -1, np.int32)       # pixel number, -1 = background or outside
+    grid[ii + 1, jj + 1] = np.arange(n, dtype=np.int32)
+    nb = np.stack([grid[ii + 1 + dy, jj + 1 + dx] for dy, dx, _ in _OFFSETS], axis=1)
+    valid = nb >= 0
+    nb0 = np.where(valid, nb, 0)
+    earlier = valid & (rank[nb0] < rank[:, None])
+    later = valid & ~earlier
+    pending = earlier.sum(axis=1).astype(np.int32)
+    del grid
+
+    state = np.zeros((h + 2, w + 2), np.uint8)
+    state[ii + 1, jj + 1] = 1
+    tainted = None
+    if key_taint is not None:
+        tainted = key_taint | (key_taint[nb0] & valid).any(axis=1)
+
+    ready = np.flatnonzero(pending == 0)
+    while ready.size:
+        y, x = ii[ready] + 1, jj[ready] + 1
+        acc = np.full(ready.size, 16, np.int32)
+        for dy, dx, bit in _OFFSETS:
+            acc += state[y + dy, x + dx] * np.int32(bit)
+        if tainted is not None:
+            e = earlier[ready]
+            tainted[ready] |= (tainted[nb0[ready]] & e).any(axis=1)
+        state[y, x] = _TABLE[acc]
+        targets = nb[ready][later[ready]]
+        np.subtract.at(pending, targets, 1)
+        ready = np.unique(targets[pending[targets] == 0])
+    return state[ii + 1, jj + 1].astype(bool), tainted
+
+
+def _skeleton(mask, y0=0, x0=0, width=None, cuts=None):
+    """Reproducible thinning of `mask`, a window whose top-left is (y0, x0) in a mask `width` wide.
+
+    cuts = (top, bottom, left, right): which window sides are cut out of a larger mask.
+    Returns (ii, jj, distance, keep, taint), one entry per foreground pixel of the window.
+    """
+    h, w = mask.shape
+    width = w if width is None else width
+    distance = ndi.distance_transform_edt(mask) if not mask.all() else np.full(mask.shape, np.inf)
+    corner = _CORNER[_neighbourhood_index(mask)]
+    ii, jj = np.nonzero(mask)
+    d = distance[ii, jj]
+    order = np.lexsort((_tiebreak(ii + y0, jj + x0, width), corner[ii, jj], d))
+    rank = np.empty(len(ii), np.int64)
+    rank[order] = np.arange(len(ii))
+
+    key_taint = None
+    if cuts is not None and any(cuts):
+        top, bottom, left, right = cuts
+        inf = np.full(len(ii), np.inf)
+        # distance to the nearest pixel outside the window, through a cut side
+        reach = np.minimum.reduce([ii + 1.0 if top else inf, h - ii + 0.0 if bottom else inf,
+                                   jj + 1.0 if left else inf, w - jj + 0.0 if right else inf])
+        # reach == 1: touching the cut, so the cornerness (and the loop's neighbourhood) is unknown
+        key_taint = (d > reach) | (reach <= 1.0)
+    keep, taint = _thin(mask.shape, ii, jj, rank, key_taint)
+    if taint is None:
+        taint = np.zeros(len(ii), bool)
+    return ii, jj, d, keep, taint
+
+
+def thin_points(mask):
+    """(ys, xs, distance) of the reproducible medial axis of the whole mask, in row-major order."""
+    ii, jj, d, keep, _ = _skeleton(np.ascontiguousarray(mask, bool))
+    return ii[keep], jj[keep], d[keep]
+
+
+def _tile_job(window, y0, x0, width, core, cuts):
+    """Points of one core and whether all of it is free of the cut. core = (cy0, cy1, cx0, cx1) in `window`."""
+    ii, jj, d, keep, taint = _skeleton(window, y0, x0, width, cuts)
+    cy0, cy1, cx0, cx1 = core
+    inside = (ii >= cy0) & (ii < cy1) & (jj >= cx0) & (jj < cx1)
+    exact = not taint[inside].any()
+    sel = inside & keep
+    return ii[sel] + y0, jj[sel] + x0, d[sel], exact
+
+
+def _tiled(mask, tile, halo, workers):
+    H, W = mask.shape
+    cores = [(y, min(H, y + tile), x, min(W, x + tile)) for y in range(0, H, tile) for x in range(0, W, tile)]
+    halos = {c: int(halo) for c in cores}
+    parts = {}
+    with ProcessPoolExecutor(max_workers=workers or os.cpu_count()) as pool:
+        pending = list(cores)
+        while pending:
+            futures = {}
+            for c in pending:
+                if not mask[c[0]:c[1], c[2]:c[3]].any():
+                    parts[c] = None
+                    continue
+                h = halos[c]
+                y0, y1 = max(0, c[0] - h), min(H, c[1] + h)
+                x0, x1 = max(0, c[2] - h), min(W, c[3] + h)
+                core = (c[0] - y0, c[1] - y0, c[2] - x0, c[3] - x0)
+                cuts = (y0 > 0, y1 < H, x0 > 0, x1 < W)
+                futures[c] = pool.submit(_tile_job, mask[y0:y1, x0:x1], y0, x0, W, core, cuts)
+            pending = []
+            for c, f in futures.items():
+                ys, xs, d, exact = f.result()
+                if exact:
+                    parts[c] = (ys, xs, d)
+                else:
+                    halos[c] *= 2                   # the cut reached the core: redo with a wider halo
+                    pending.append(c)
+
+    found = [p for p in parts.values() if p is not None and len(p[0])]
+    if not found:
+        return np.zeros(0, np.intp), np.zeros(0, np.intp), np.zeros(0, np.float64)
+    ys = np.concatenate([p[0] for p in found])
+    xs = np.concatenate([p[1] for p in found])
+    d = np.concatenate([p[2] for p in found])
+    order = np.argsort(ys.astype(np.int64) * W + xs, kind='stable')
+    return ys[order], xs[order], d[order]
+
+
+def medial_axis_points(mask, tile=0, halo=DEFAULT_HALO, workers=0, verify=False):
+    """(ys, xs, distance) of the medial-axis pixels of a 2-D bool mask, in row-major order.
+
+    tile: 0 = skimage's medial_axis; -1 = the reproducible axis in one pass; >0 = the
+    reproducible axis in cores of this size, across `workers` processes (0 = all cores).
+    halo: initial halo in px. verify (tiled only): also run the single pass and use it if the
+    tiles disagree.
+    """
+    mask = np.ascontiguousarray(mask, bool)
+    H, W = mask.shape
+    if tile == 0:
+        skel, dist = medial_axis(mask, return_distance=True)
+        ys, xs = np.nonzero(skel)
+        return ys, xs, dist[ys, xs]
+    if tile < 0 or (H <= tile and W <= tile):
+        return thin_points(mask)
+
+    pts = _tiled(mask, tile, halo, workers)
+    if verify:
+        ref = thin_points(mask)
+        if not all(np.array_equal(a, b) for a, b in zip(pts, ref)):
+            warning(f"Tiled medial axis differs from the single pass ({len(pts[0])} vs {len(ref[0])} points); "
+                    f"using the single pass")
+            return ref
+    return pts
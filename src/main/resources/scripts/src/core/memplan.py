@@ -0,0 +1,127 @@
+"""Memory plan for segmentation in this process, made before any large array is allocated.
+
+Estimates the working set of run_patches / run_plane from the plane size, class count and
+settings, then takes the first layout on the ladder that fits the budget:
+
+    tile:   full float32  ->  strips float32 (same labels)  ->  strips float16
+    plane:  full float32  ->  full float16  ->  tile strips float32  ->  tile strips float16
+
+With sharding (--workers K) each non-strip layout is tried with K workers first, then in
+one process. K workers add K models, runtimes and chunk buffers, plus the band copies and
+results the parent keeps in flight (see sharding.accumulate).
+
+Strips keep one tile row of probabilities instead of the whole plane (see run_patches).
+The parent's own model and TensorFlow runtime are not included; the plugin's
+MemoryPlanner.java does the same for the Fiji heap.
+"""
+import os
+
+import numpy as np
+
+from src.core.sharding import CHUNKS_PER_WORKER, IN_FLIGHT_PER_WORKER
+
+MB = 1 << 20
+BAND_BYTES = 64 << 20     # row bands used for the final argmax / upsample
+WORKER_RUNTIME_BYTES = 512 * MB     # TensorFlow runtime and interpreter of one worker, besides the model
+
+
+def default_budget_mb():
+    """Half the physical memory, or None (no limit) where that is unknown."""
+    try:
+        return int(os.sysconf('SC_PHYS_PAGES') * os.sysconf('SC_PAGE_SIZE') * 0.5 / MB)
+    except (AttributeError, ValueError, OSError):
+        return None
+
+
+def model_bytes(weights_path):
+    """Memory of one loaded model, taken as the size of its weights file."""
+    try:
+        return os.path.getsize(weights_path)
+    except OSError:
+        return 0
+
+
+class Plan:
+    def __init__(self, resample, strips, acc_dtype, est_bytes, budget_bytes, resident_bytes, workers=1):
+        self.resample = resample
+        self.strips = strips
+        self.acc_dtype = acc_dtype
+        self.workers = workers
+        self.est_bytes = est_bytes
+        self.budget_bytes = budget_bytes
+        self.resident_bytes = resident_bytes
+
+    @property
+    def fits(self):
+        return self.budget_bytes is None or self.resident_bytes + self.est_bytes <= self.budget_bytes
+
+    def describe(self):
+        budget = 'none' if self.budget_bytes is None else f"{self.budget_bytes / MB:.0f} MB"
+        return (f"resample={self.resample}{' (strips)' if self.strips else ''}, workers={self.workers}, "
+                f"accumulator={np.dtype(self.acc_dtype).name}, working set ~{self.est_bytes / MB:.0f} MB "
+                f"+ {self.resident_bytes / MB:.0f} MB planes, budget {budget}")
+
+
+def _sharded(workers, rows, width, src_itemsize, n_classes, tile_h, per_tile, model):
+    # one chunk: its band of the input and its float32 sums (probabilities and weights)
+    chunk_rows = min(rows, -(-rows // (workers * CHUNKS_PER_WORKER)) + tile_h)
+    chunk = chunk_rows * width * (src_itemsize + 4 * (n_classes + 1))
+    parent = IN_FLIGHT_PER_WORKER * workers * chunk
+    return parent + workers * (chunk + per_tile + model + WORKER_RUNTIME_BYTES)
+
+
+def estimate(H, W, n_classes, params, resample, strips=False, acc_dtype=np.float32, workers=1, model=0):
+    """Bytes run_patches allocates for one HxW plane (peak, approximate).
+
+    workers > 1: plus what sharding.accumulate holds in the parent and in each worker, with
+    `model` bytes per worker model.
+    """
+    a = np.dtype(acc_dtype).itemsize
+    N = n_classes
+    PH, PW = params['P_HEIGHT'], params['P_WIDTH']
+    MH, MW = params['MODEL_HEIGHT'], params['MODEL_WIDTH']
+    px = H * W
+    per_tile = 4 * PH * PW * (N + 2) + 4 * MH * MW * (N + 1)
+    band = 3 * min(BAND_BYTES, 4 * px * N)           # float rows, normalised copy, argmax temporaries
+
+    if resample == 'tile':
+        padded = (H + PH) * (W + PW)
+        rows = min(PH, H) if strips else H
+        total = padded + rows * W * (N * a + 4) + px + band + per_tile
+        if workers > 1:
+            total += _sharded(workers, H + PH, W + PW, 1, N, PH, per_tile, model)
+        return total
+
+    Hm = int(round(H * MH / float(PH)))
+    Wm = int(round(W * MW / float(PW)))
+    pm = Hm * Wm
+    resized = px + 4 * pm * 2                        # PIL copy, float plane and its padded copy
+    acc = pm * (N * a + 4)
+    upsample = band
+    total = px + resized + acc + upsample + per_tile
+    if workers > 1:
+        total += _sharded(workers, Hm + MH, Wm + MW, 4, N, MH, per_tile, model)
+    return total
+
+
+def plan(H, W, n_classes, params, resample, budget_mb=None, resident_bytes=0, workers=1, model=0):
+    """First layout that fits budget_mb (None = no limit); the cheapest one if none does.
+
+    workers: sharding workers asked for; strips always run in one process.
+    """
+    budget = None if not budget_mb else int(budget_mb) * MB
+    if resample == 'tile':
+        ladder = [('tile', False, np.float32), ('tile', True, np.float32), ('tile', True, np.float16)]
+    else:
+        ladder = [(resample, False, np.float32), (resample, False, np.float16),
+                  ('tile', True, np.float32), ('tile', True, np.float16)]
+    ladder = [(m, s, dt, 1) for m, s, dt in ladder]
+    if workers > 1:
+        ladder = [(m, s, dt, workers) for m, s, dt, _ in ladder if not s] + ladder
+    chosen = None
+    for mode, strips, dt, k in ladder:
+        chosen = Plan(mode, strips, dt, estimate(H, W, n_classes, params, mode, strips, dt, k, model), budget,
+                      resident_bytes, k)
+        if chosen.fits:
+            break
+    return chosen
@@ -0,0 +1,75 @@
+"""One page of an image file, decoded on its own.
+
+TIFF pages are read through tifffile's page index and ND2 planes through nd2reader, so only
+the requested page is decoded; other formats (PNG, JPEG, ...) go through PIL. Page indices
+are 0-based in file order. An ND2 plane is chosen by frame = (v, t, z, c), 0-based, and read
+as that one channel; a plain page index on an ND2 is the z of the first position, time point
+and channel.
+"""
+import os
+
+import numpy as np
+
+TIFF_EXT = ('.tif', '.tiff')
+ND2_EXT = ('.nd2',)
+ND2_AXES = 'vtzc'
+
+
+def _ext(path):
+    return os.path.splitext(path)[1].lower()
+
+
+def parse_frame(text):
+    """'v,t,z,c' -> (v, t, z, c)"""
+    frame = tuple(int(s) for s in text.split(','))
+    if len(frame) != len(ND2_AXES):
+        raise ValueError(f"frame must be v,t,z,c: {text}")
+    return frame
+
+
+def read_page(path, page_index=0, frame=None):
+    ext = _ext(path)
+    if ext in ND2_EXT:
+        return _nd2_plane(path, frame if frame is not None else (0, 0, page_index, 0))
+    if frame is not None:
+        raise RuntimeError(f"A (v, t, z, c) frame only selects ND2 planes, not {ext} pages")
+    if ext in TIFF_EXT:
+        import tifffile
+        with tifffile.TiffFile(path) as tf:
+            if not 0 <= page_index < len(tf.pages):
+                raise RuntimeError(f"Page {page_index} not found ({len(tf.pages)} pages)")
+            return tf.pages[page_index].asarray()
+    from PIL import Image
+    with Image.open(path) as im:
+        try:
+            im.seek(page_index)
+        except EOFError:
+            raise RuntimeError(f"Page {page_index} not found")
+        return np.array(im)
+
+
+def page_count(path):
+    ext = _ext(path)
+    if ext in TIFF_EXT:
+        import tifffile
+        with tifffile.TiffFile(path) as tf:
+            return len(tf.pages)
+    if ext in ND2_EXT:
+        from nd2reader import ND2Reader
+        with ND2Reader(path) as r:
+            return r.sizes.get('z', 1)
+    from PIL import Image
+    with Image.open(path) as im:
+        return getattr(im, 'n_frames', 1)
+
+
+def _nd2_plane(path, frame):
+    from nd2reader import ND2Reader
+    with ND2Reader(path) as r:
+        sizes = r.sizes
+        for axis, i in zip(ND2_AXES, frame):
+            n = sizes.get(axis, 1)
+            if not 0 <= i < n:
+                raise RuntimeError(f"ND2 {axis}={i} not found ({n} along {axis})")
+        v, t, z, c = frame
+        return np.asarray(r.get_frame_2D(c=c, t=t, z=z, v=v))
@@ -0,0 +1,117 @@
+"""Run-length encoded label maps (.hmr), shared with the Fiji plugin (LabelRuns.java).
+
+An HMC1 column file (see columnar.py) with int32 columns y, x, len, label: one row per run of
+equal labels, in row-major order. Runs never cross the end of an image row and cover every
+pixel, background included, so the width is the total length of row 0's runs and the height
+is the last run's y + 1. Brightfield label maps are long stretches of glass and tissue, so a
+map is a few runs per image row; masks, areas and crops below work on the runs, and only the
+output of a mask is touched per pixel.
+"""
+import os
+
+import numpy as np
+
+from src.core.columnar import read_columns, write_columns
+
+SUFFIX = '.hmr'
+
+
+def rle_path(tif_path):
+    """seg_20x.tif -> seg_20x.hmr"""
+    return str(tif_path).rsplit('.', 1)[0] + SUFFIX
+
+
+def encode_rows(labels, y0=0):
+    """Runs of a band of rows starting at image row y0: (y, x, len, label) int32 arrays."""
+    labels = np.asarray(labels)
+    h, w = labels.shape
+    start = np.ones((h, w), dtype=bool)
+    start[:, 1:] = labels[:, 1:] != labels[:, :-1]
+    ys, xs = np.nonzero(start)
+    # every row begins with a run, so the next start in flat order ends the current run
+    flat = ys * w + xs
+    length = np.diff(np.append(flat, h * w))
+    return (ys.astype(np.int32) + y0, xs.astype(np.int32),
+            length.astype(np.int32), labels[ys, xs].astype(np.int32))
+
+
+class Runs:
+    def __init__(self, y, x, length, label, height, width):
+        self.y, self.x, self.len, self.label = y, x, length, label
+        self.height, self.width = int(height), int(width)
+
+    def __len__(self):
+        return len(self.y)
+
+    def _select(self, crop):
+        # runs clipped to crop = (x, y, w, h): (y, x0, x1, label) with x0 < x1, in crop coordinates
+        if crop is None:
+            return self.y, self.x, self.x + self.len, self.label
+        cx, cy, cw, ch = crop
+        a, b = np.searchsorted(self.y, [cy, cy + ch])
+        y, x0, x1, lab = self.y[a:b], self.x[a:b], self.x[a:b] + self.len[a:b], self.label[a:b]
+        x0, x1 = np.clip(x0 - cx, 0, cw), np.clip(x1 - cx, 0, cw)
+        keep = x1 > x0
+        return y[keep] - cy, x0[keep], x1[keep], lab[keep]
+
+    def areas(self, n_classes, crop=None):
+        """Pixel count per label 0..n_classes-1, optionally inside crop = (x, y, w, h)."""
+        _, x0, x1, lab = self._select(crop)
+        return np.bincount(lab, weights=x1 - x0, minlength=n_classes).astype(np.int64)[:n_classes]
+
+    def mask(self, cls, crop=None):
+        """Boolean mask of one class, the whole map or crop = (x, y, w, h)."""
+        w, h = (self.width, self.height) if crop is None else (crop[2], crop[3])
+        y, x0, x1, lab = self._select(crop)
+        sel = lab == cls
+        y, x0, x1 = y[sel], x0[sel], x1[sel]
+        # +1 at each run start, -1 at its end; two runs of one class never touch, so no index repeats
+        d = np.zeros((h, w + 1), dtype=np.int8)
+        d[y, x0] = 1
+        d[y, x1] = -1
+        return np.cumsum(d[:, :w], axis=1, dtype=np.int8) > 0
+
+    def decode(self):
+        return np.repeat(self.label.astype(np.uint8), self.len).reshape(self.height, self.width)
+
+    def write(self, path):
+        # the plugin may open the file as soon as it exists, so never expose a partial write
+        tmp = path + '.part'
+        write_columns(tmp, [('y', 'i', self.y), ('x', 'i', self.x), ('len', 'i', self.len),
+                            ('label', 'i', self.label)])
+        os.replace(tmp, path)
+
+
+class RunWriter:
+    """Runs collected band by band, as the stitcher hands out finished rows (top to bottom)."""
+
+    def __init__(self):
+        self.parts, self.next_y = [], 0
+
+    def add(self, y0, y1, labels):
+        if y0 != self.next_y:
+            raise ValueError(f"rows {y0}..{y1} out of order, expected {self.next_y}")
+        self.parts.append(encode_rows(labels, y0))
+        self.next_y = y1
+
+    def finish(self, labels):
+        """Runs of the whole map; encodes the rows of `labels` that were not handed in as bands."""
+        H = labels.shape[0]
+        if self.next_y < H:
+            self.add(self.next_y, H, labels[self.next_y:])
+        cols = [np.concatenate(c) for c in zip(*self.parts)]
+        return Runs(*cols, height=H, width=labels.shape[1])
+
+
+def encode(labels):
+    return RunWriter().finish(np.asarray(labels))
+
+
+def read(path):
+    c = read_columns(path)
+    y = np.asarray(c['y'])
+    if len(y) == 0:
+        raise ValueError(f"{path} holds no runs")
+    first = np.searchsorted(y, 1)
+    return Runs(y, np.asarray(c['x']), np.asarray(c['len']), np.asarray(c['label']),
+                height=int(y[-1]) + 1, width=int(np.sum(c['len'][:first])))
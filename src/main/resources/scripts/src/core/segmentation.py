@@ -1,8 +1,14 @@
 import math
 
+import cv2
+
 from skimage.morphology import medial_axis
+from skimage.filters import threshold_otsu
 from PIL import Image
 import numpy as np
+
+from src.core import sharding
+from src.core.telemetry import Accumulator, Progress, VERBOSE
 from keras.utils import normalize
 import tifffile
 
@@ -15,36 +21,138 @@ def compute_avg_thickness(mask, px_size, label=1):
         return 0.0
     return skel, diam, diam.mean()
 
-def run_patches(path, model, P_HEIGHT, P_WIDTH, N_CLASSES, MODEL_WIDTH, MODEL_HEIGHT):
-    arr_large = tifffile.imread(path)
+def tissue_map(ref_u8, max_side=1024, min_sep=10.0):
+    """Otsu split of a downsampled plane into tissue / glass.
+
+    Returns (mask, factor) with mask at 1/factor resolution, or (None, factor) when the
+    plane has no clear two-class structure (then nothing should be skipped). The glass
+    class is the smoother one, so the test works for bright- and dark-background images.
+    """
+    g = np.asarray(ref_u8)
+    if g.ndim == 3:
+        g = g[..., 0]
+    H, W = g.shape
+    f = max(1, int(math.ceil(max(H, W) / float(max_side))))
+    hs, ws = H // f, W // f
+    if hs < 2 or ws < 2:
+        return None, f
+    small = g[:hs * f, :ws * f].reshape(hs, f, ws, f).mean(axis=(1, 3)).astype(np.float32)
+
+    t = threshold_otsu(small)
+    lo = small <= t
+    hi = ~lo
+    if not lo.any() or not hi.any() or (small[hi].mean() - small[lo].mean()) < min_sep:
+        return None, f
+
+    grad = np.zeros_like(small)
+    grad[:, 1:] += np.abs(np.diff(small, axis=1))
+    grad[1:, :] += np.abs(np.diff(small, axis=0))
+    tissue = lo if grad[lo].mean() >= grad[hi].mean() else hi
+    return tissue, f
+
+
+def blank_tiles(tissue, f, origins, P_HEIGHT, P_WIDTH, H, W, min_frac=0.01):
+    """Set of (i, j) tile indices whose footprint holds less than min_frac tissue."""
+    if tissue is None:
+        return set()
+    hs, ws = tissue.shape
+    integ = np.zeros((hs + 1, ws + 1), dtype=np.int64)
+    integ[1:, 1:] = np.cumsum(np.cumsum(tissue, axis=0), axis=1)
+    out = set()
+    for (i, j, y0, x0) in origins:
+        ys, xs = min(y0 // f, hs - 1), min(x0 // f, ws - 1)
+        ye = max(ys + 1, min(int(math.ceil(min(y0 + P_HEIGHT, H) / f)), hs))
+        xe = max(xs + 1, min(int(math.ceil(min(x0 + P_WIDTH, W) / f)), ws))
+        n = integ[ye, xe] - integ[ys, xe] - integ[ye, xs] + integ[ys, xs]
+        if n < min_frac * (ye - ys) * (xe - xs):
+            out.add((i, j))
+    return out
+
+
+BLEND_MODES = ('uniform', 'cosine', 'gaussian')
+
+
+def blend_window(h, w, mode='cosine', floor=1e-3):
+    """Per-pixel tile weight; tapers towards tile edges so neighbours take over there."""
+    if mode == 'uniform':
+        return np.ones((h, w), dtype=np.float32)
+
+    def axis(n):
+        t = (np.arange(n, dtype=np.float32) + 0.5) / n
+        if mode == 'cosine':
+            return 0.5 - 0.5 * np.cos(2.0 * np.pi * t)
+        if mode == 'gaussian':
+            return np.exp(-((t - 0.5) ** 2) / (2.0 * 0.125 ** 2))
+        raise ValueError(f"Unknown blend mode {mode}")
+
+    return np.maximum(np.outer(axis(h), axis(w)), floor).astype(np.float32)
+
+
+def tile_steps(P_HEIGHT, P_WIDTH, overlap):
+    overlap = min(max(float(overlap), 0.0), 0.5)
+    return (max(1, int(round(P_HEIGHT * (1.0 - overlap)))),
+            max(1, int(round(P_WIDTH * (1.0 - overlap)))))
+
+
+RESAMPLE_MODES = ('tile', 'plane', 'plane-nearest')
+
+
+def run_patches(path, model, P_HEIGHT, P_WIDTH, N_CLASSES, MODEL_WIDTH, MODEL_HEIGHT,
+                skip_blank=False, tissue_ref=None, overlap=0.5, blend='cosine', resample='tile',
+                on_rows=None, tag=None, strips=False, acc_dtype=np.float32, shards=None):
+    # on_rows(y0, y1, labels) gets each band of final labels as soon as no later tile touches it
+    # shards: sharding.worker_pool(); tiles run in its worker processes (not combined with strips)
+    # tag labels this call's timing records (see telemetry.py)
+    # strips / acc_dtype: lower-memory accumulation chosen by memplan.plan()
+    infer, stitch = Accumulator('inference', tag=tag), Accumulator('stitching', tag=tag)
+    arr_large = tifffile.imread(path) if isinstance(path, str) else np.asarray(path)
     if arr_large.ndim == 3:
         arr_large = np.moveaxis(arr_large, 0, -1)
         H, W, _ = arr_large.shape
     else:
         H, W= arr_large.shape
 
-        # 50% overlap on patches
-    step_h, step_w = P_HEIGHT // 2, P_WIDTH // 2
+    # overlap in [0, 0.5] of the tile size; 0.5 = every pixel seen ~4 times
+    step_h, step_w = tile_steps(P_HEIGHT, P_WIDTH, overlap)
+
+    tissue, tfac = (None, 1)
+    if skip_blank:
+        tissue, tfac = tissue_map(tissue_ref if tissue_ref is not None else arr_large)
 
     if H < P_HEIGHT or W < P_WIDTH:
+        if skip_blank and tissue is not None and not tissue.any():
+            print("Skipped 1 of 1 tiles (no tissue)")
+            return np.zeros((H, W), dtype=np.uint8)
         # Resize small image to model input size, run once, then upsample back.
         patch_im = Image.fromarray(arr_large.astype(np.uint8)).resize(
             (MODEL_WIDTH, MODEL_HEIGHT), Image.BILINEAR
         )
 
         arr = np.array(patch_im, dtype="float32")[None, ..., None] / 255.0
-        pred = model.predict(arr, verbose=0)[0]  # (MODEL_HEIGHT, MODEL_WIDTH, N_CLASSES)
+        with infer:
+            pred = model.predict(arr, verbose=VERBOSE)[0]  # (MODEL_HEIGHT, MODEL_WIDTH, N_CLASSES)
 
         # upsample logits back to HxW before argmax (match tiled path behavior)
-        up_channels = []
-        for c in range(N_CLASSES):
-            band = Image.fromarray(pred[..., c])
-            band_up = band.resize((W, H), Image.BILINEAR)
-            up_channels.append(np.array(band_up, dtype=np.float32))
-        pred_up = np.stack(up_channels, axis=-1)
+        with stitch:
+            up_channels = []
+            for c in range(N_CLASSES):
+                band = Image.fromarray(pred[..., c])
+                band_up = band.resize((W, H), Image.BILINEAR)
+                up_channels.append(np.array(band_up, dtype=np.float32))
+            pred_up = np.stack(up_channels, axis=-1)
+            recon = np.argmax(pred_up, axis=-1).astype(np.uint8)
+        infer.flush()
+        stitch.flush()
+        return recon
 
-        return np.argmax(pred_up, axis=-1).astype(np.uint8)
 
+    if resample != 'tile':
+        Hm = int(round(H * MODEL_HEIGHT / float(P_HEIGHT)))
+        Wm = int(round(W * MODEL_WIDTH / float(P_WIDTH)))
+        if Hm >= MODEL_HEIGHT and Wm >= MODEL_WIDTH:
+            return run_plane(arr_large, model, P_HEIGHT, P_WIDTH, N_CLASSES, MODEL_WIDTH, MODEL_HEIGHT,
+                             (Hm, Wm), tissue, tfac, overlap, blend, nearest=(resample == 'plane-nearest'),
+                             on_rows=on_rows, infer=infer, stitch=stitch, acc_dtype=acc_dtype, shards=shards)
 
     n_h = math.ceil((H - P_HEIGHT) / step_h) + 1
     n_w = math.ceil((W - P_WIDTH) / step_w) + 1
@@ -59,26 +167,79 @@ def run_patches(path, model, P_HEIGHT, P_WIDTH, N_CLASSES, MODEL_WIDTH, MODEL_HE
     arr_padded = np.pad(arr_large, pad_width, mode='reflect')
 
 
-    probs_acc = np.zeros((H, W, N_CLASSES), dtype=np.float32)
-    counts  = np.zeros((H, W), dtype=np.float32)
+    # strips: only rows [base, base + P_HEIGHT) are kept; rows above the next tile row are final
+    # after each tile row, so the labels come out identical to the full-plane accumulator
+    rows = min(P_HEIGHT, H) if strips else H
+    probs_acc = np.zeros((rows, W, N_CLASSES), dtype=acc_dtype)
+    counts  = np.zeros((rows, W), dtype=np.float32)
+    recon = np.zeros((H, W), dtype=np.uint8)
+    base = 0
+
+    win = blend_window(P_HEIGHT, P_WIDTH, blend)
+
+    origins = [(i, j, i * step_h, j * step_w) for i in range(n_h) for j in range(n_w)]
+    blank = blank_tiles(tissue, tfac, origins, P_HEIGHT, P_WIDTH, H, W) if skip_blank else set()
 
-    for i in range(n_h):
-        for j in range(n_w):
-            y0 = i * step_h
-            x0 = j * step_w
+    def row_done(i, j):
+        nonlocal base
+        if j != n_w - 1 or (on_rows is None and not strips):
+            return
+        a = i * step_h
+        b = H if i == n_h - 1 else min((i + 1) * step_h, H)
+        if b > a:
+            with stitch:
+                recon[a:b] = final_labels(probs_acc[a - base:b - base], counts[a - base:b - base])
+                if strips:
+                    probs_acc[:rows - (b - a)] = probs_acc[b - a:]
+                    probs_acc[rows - (b - a):] = 0
+                    counts[:rows - (b - a)] = counts[b - a:]
+                    counts[rows - (b - a):] = 0
+                    base = b
+            if on_rows is not None:
+                on_rows(a, b, recon[a:b])
 
-            patch_np = arr_padded[y0:y0+P_HEIGHT, x0:x0+P_WIDTH]
-            # resize patch to model size
-            patch_im = Image.fromarray(patch_np.astype(np.uint8))
-            patch_im = patch_im.resize((MODEL_WIDTH, MODEL_HEIGHT), Image.BILINEAR)
+    progress = Progress('tiles', len(origins), tag=tag)
+    pending = origins
+    if shards is not None and not strips:
+        next_row = 0
 
-            # arr = np.array(patch_im, dtype="float32")[None, ..., None]
-            # arr = normalize(arr, axis=1)
-            arr = np.array(patch_im, dtype="float32")[None, ..., None]
-            arr = arr / 255.0
+        def chunk_done(last_i):
+            nonlocal next_row
+            for r in range(next_row, last_i + 1):
+                row_done(r, n_w - 1)
+            next_row = last_i + 1
+        # worker time (model, resizing) and the merges all count as inference here
+        with infer:
+            sharding.accumulate(shards, arr_padded, origins, blank, (P_HEIGHT, P_WIDTH), (MODEL_HEIGHT, MODEL_WIDTH),
+                                H, W, N_CLASSES, win, probs_acc, counts, on_chunk=chunk_done,
+                                progress=progress, verbose=VERBOSE)
+        pending = []
+    for (i, j, y0, x0) in pending:
+        progress.step()
+        if (i, j) in blank:
+            # glass: background class directly, no model call
+            y1, x1 = min(y0 + P_HEIGHT, H), min(x0 + P_WIDTH, W)
+            w = win[:y1 - y0, :x1 - x0]
+            with stitch:
+                probs_acc[y0 - base:y1 - base, x0:x1, 0] += w
+                counts[y0 - base:y1 - base, x0:x1] += w
+            row_done(i, j)
+            continue
 
-            pred = model.predict(arr)[0]  #(MODEL_HEIGHT, MODEL_WIDTH, N_CLASSES)
+        patch_np = arr_padded[y0:y0+P_HEIGHT, x0:x0+P_WIDTH]
+        # resize patch to model size
+        patch_im = Image.fromarray(patch_np.astype(np.uint8))
+        patch_im = patch_im.resize((MODEL_WIDTH, MODEL_HEIGHT), Image.BILINEAR)
 
+        # arr = np.array(patch_im, dtype="float32")[None, ..., None]
+        # arr = normalize(arr, axis=1)
+        arr = np.array(patch_im, dtype="float32")[None, ..., None]
+        arr = arr / 255.0
+
+        with infer:
+            pred = model.predict(arr, verbose=VERBOSE)[0]  #(MODEL_HEIGHT, MODEL_WIDTH, N_CLASSES)
+
+        with stitch:
             # upsample prediction
             up_channels = []
             for c in range(N_CLASSES):
@@ -93,13 +254,170 @@ def run_patches(path, model, P_HEIGHT, P_WIDTH, N_CLASSES, MODEL_WIDTH, MODEL_HE
 
             dy = y1 - y0
             dx = x1 - x0
-            probs_acc[y0:y1, x0:x1] += pred_up[:dy, :dx, :]
-            counts[y0:y1, x0:x1] += 1.0
+            w = win[:dy, :dx]
+            probs_acc[y0 - base:y1 - base, x0:x1] += pred_up[:dy, :dx, :] * w[..., None]
+            counts[y0 - base:y1 - base, x0:x1] += w
+        row_done(i, j)
+
+    if skip_blank:
+        print(f"Skipped {len(blank)} of {len(origins)} tiles (no tissue)")
+
+    if on_rows is None and not strips:
+        # in bands, so no full-plane float copy of the accumulator is made
+        with stitch:
+            band = max(1, (64 << 20) // max(1, W * N_CLASSES * 4))
+            for a in range(0, H, band):
+                b = min(a + band, H)
+                recon[a:b] = final_labels(probs_acc[a:b], counts[a:b])
+    infer.flush(skipped=len(blank))
+    stitch.flush()
+    return recon
+
+
+def final_labels(probs, counts):
+    c = counts[..., None].astype(np.float32)
+    c[c == 0] = 1.0
+    return np.argmax(probs / c, axis=-1).astype(np.uint8)
+
+
+
+def run_plane(arr_large, model, P_HEIGHT, P_WIDTH, N_CLASSES, MODEL_WIDTH, MODEL_HEIGHT,
+              model_shape, tissue=None, tfac=1, overlap=0.5, blend='cosine', nearest=False, on_rows=None,
+              infer=None, stitch=None, acc_dtype=np.float32, shards=None):
+    """Tiling at model resolution.
+
+    The plane is resized to model scale once, tiles go to the model as-is and are
+    stitched at model scale; one upsample (bilinear on the probabilities, or nearest
+    on the labels) brings the result back to HxW. Tile footprints match run_patches().
+    """
+    H, W = arr_large.shape[:2]
+    Hm, Wm = model_shape
+    infer = infer or Accumulator('inference')
+    stitch = stitch or Accumulator('stitching')
+    small = np.asarray(Image.fromarray(arr_large.astype(np.uint8)).resize((Wm, Hm), Image.BILINEAR),
+                       dtype=np.float32) / 255.0
+
+    step_h, step_w = tile_steps(MODEL_HEIGHT, MODEL_WIDTH, overlap)
+    n_h = math.ceil((Hm - MODEL_HEIGHT) / step_h) + 1
+    n_w = math.ceil((Wm - MODEL_WIDTH) / step_w) + 1
+    pad_h = (n_h - 1) * step_h + MODEL_HEIGHT - Hm
+    pad_w = (n_w - 1) * step_w + MODEL_WIDTH - Wm
+    small = np.pad(small, ((0, pad_h), (0, pad_w)), mode='reflect')
+
+    probs_acc = np.zeros((Hm, Wm, N_CLASSES), dtype=acc_dtype)
+    counts = np.zeros((Hm, Wm), dtype=np.float32)
+    win = blend_window(MODEL_HEIGHT, MODEL_WIDTH, blend)
 
-    counts_exp = counts[..., None]
-    counts_exp[counts_exp == 0] = 1.0
+    origins = [(i, j, i * step_h, j * step_w) for i in range(n_h) for j in range(n_w)]
+    blank = set()
+    if tissue is not None:
+        # blank test runs on the full-resolution footprint of each tile
+        sy, sx = H / float(Hm), W / float(Wm)
+        full = [(i, j, int(y0 * sy), int(x0 * sx)) for (i, j, y0, x0) in origins]
+        blank = blank_tiles(tissue, tfac, full, P_HEIGHT, P_WIDTH, H, W)
 
-    avg_probs = probs_acc / counts_exp
-    recon = np.argmax(avg_probs, axis=-1).astype(np.uint8)
+    recon = np.zeros((H, W), dtype=np.uint8)
+    done = 0        # full-resolution rows already written to recon
+    progress = Progress('tiles', len(origins), tag=infer.extra.get('tag'))
+
+    def row_final(i):
+        nonlocal done
+        if on_rows is not None and i < n_h - 1:
+            # model rows above the next tile row are final; emit the output rows that only read those
+            end = rows_ready((i + 1) * step_h, Hm, H, nearest)
+            if end > done:
+                with stitch:
+                    recon[done:end] = upsample_rows(probs_acc, counts, done, end, H, W, nearest)
+                on_rows(done, end, recon[done:end])
+                done = end
+
+    pending = origins
+    if shards is not None:
+        with infer:
+            sharding.accumulate(shards, small, origins, blank, (MODEL_HEIGHT, MODEL_WIDTH),
+                                (MODEL_HEIGHT, MODEL_WIDTH), Hm, Wm, N_CLASSES, win, probs_acc, counts,
+                                on_chunk=row_final, progress=progress, verbose=VERBOSE)
+        pending = []
+    for (i, j, y0, x0) in pending:
+        progress.step()
+        y1, x1 = min(y0 + MODEL_HEIGHT, Hm), min(x0 + MODEL_WIDTH, Wm)
+        w = win[:y1 - y0, :x1 - x0]
+        if (i, j) in blank:
+            with stitch:
+                counts[y0:y1, x0:x1] += w
+                probs_acc[y0:y1, x0:x1, 0] += w
+        else:
+            arr = small[None, y0:y0 + MODEL_HEIGHT, x0:x0 + MODEL_WIDTH, None]
+            with infer:
+                pred = model.predict(arr, verbose=VERBOSE)[0]
+            with stitch:
+                counts[y0:y1, x0:x1] += w
+                probs_acc[y0:y1, x0:x1] += pred[:y1 - y0, :x1 - x0] * w[..., None]
+
+        if j == n_w - 1:
+            row_final(i)
+
+    if tissue is not None:
+        print(f"Skipped {len(blank)} of {len(origins)} tiles (no tissue)")
+
+    # upsample in bands so only one band of HxW float channels is alive at a time
+    band = max(1, (64 << 20) // max(1, W * N_CLASSES * 4))
+    start = done
+    with stitch:
+        for a in range(start, H, band):
+            b = min(a + band, H)
+            recon[a:b] = upsample_rows(probs_acc, counts, a, b, H, W, nearest)
+    infer.flush(skipped=len(blank))
+    stitch.flush()
+    if on_rows is not None and H > start:
+        on_rows(start, H, recon[start:])
     return recon
 
+
+def rows_ready(final_src, Hm, H, nearest):
+    """Number of leading output rows whose interpolation only reads source rows < final_src.
+
+    One row of slack absorbs float rounding at exact row boundaries.
+    """
+    s = Hm / float(H)
+    if nearest:
+        # nearest source row of output y is floor((y + 0.5) * s)
+        return min(H, max(0, int(math.ceil(final_src / s - 0.5)) - 1))
+    # bilinear reads rows floor(sy) and floor(sy) + 1 with sy = (y + 0.5) * s - 0.5
+    return min(H, max(0, int(math.ceil((final_src - 0.5) / s - 0.5)) - 1))
+
+
+def upsample_rows(probs_acc, counts, a, b, H, W, nearest=False):
+    """Rows [a, b) of the HxW label map upsampled from the model-scale accumulator.
+
+    Bilinear matches cv2.resize(INTER_LINEAR) on the normalised probabilities; the
+    vertical pass is done here so a band can be produced on its own.
+    """
+    Hm, Wm, N = probs_acc.shape
+    s = Hm / float(H)
+    ys = np.arange(a, b, dtype=np.float64)
+    if nearest:
+        src = np.minimum(((ys + 0.5) * s).astype(np.int64), Hm - 1)
+        lab = np.argmax(probs_acc[src], axis=-1).astype(np.uint8)
+        xs = np.minimum(((np.arange(W) + 0.5) * (Wm / float(W))).astype(np.int64), Wm - 1)
+        return lab[:, xs]
+
+    sy = (ys + 0.5) * s - 0.5
+    y0 = np.floor(sy).astype(np.int64)
+    fy = (sy - y0).astype(np.float32)
+    fy[y0 < 0] = 0.0
+    y0 = np.clip(y0, 0, Hm - 1)
+    y1 = np.minimum(y0 + 1, Hm - 1)
+
+    lo, hi = int(y0.min()), int(y1.max()) + 1
+    norm = probs_acc[lo:hi] / np.maximum(counts[lo:hi], 1e-6)[..., None]
+    rows = (norm[y0 - lo] * (1.0 - fy)[:, None, None] + norm[y1 - lo] * fy[:, None, None]).astype(np.float32)
+
+    out = np.zeros((b - a, W), dtype=np.uint8)
+    best = np.full((b - a, W), -np.inf, dtype=np.float32)
+    for c in range(N):
+        band = cv2.resize(np.ascontiguousarray(rows[..., c]), (W, b - a), interpolation=cv2.INTER_LINEAR)
+        better = band > best
+        out[better] = c
+        best[better] = band[better]
+    return out
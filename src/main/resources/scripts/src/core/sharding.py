@@ -0,0 +1,141 @@
+"""Tile inference split across worker processes.
+
+The tile grid is cut into chunks of whole tile rows that go, in order, to K spawned worker
+processes. Each worker loads its own model once (from a picklable factory) with its intra-op
+thread count pinned, and does the resizing, the model call and the weighting for its chunk. It
+returns the weighted probability and weight sums of the rows the chunk covers; the parent adds
+them into the accumulator in chunk order, so finished rows can be emitted as chunks come in.
+Chunks are smaller than K equal shares (CHUNKS_PER_WORKER each) so glass-heavy and
+tissue-heavy rows even out. At most IN_FLIGHT_PER_WORKER chunks per worker are submitted
+ahead of the merge, so the parent never holds more band copies and results than that. The sums are the same as the single-process loop's, up to
+float rounding from the order of additions.
+"""
+import math
+import multiprocessing
+import os
+from collections import deque
+from concurrent.futures import ProcessPoolExecutor
+from contextlib import contextmanager, nullcontext
+
+import numpy as np
+from PIL import Image
+
+CHUNKS_PER_WORKER = 4
+IN_FLIGHT_PER_WORKER = 2
+THREAD_VARS = ('OMP_NUM_THREADS', 'MKL_NUM_THREADS', 'OPENBLAS_NUM_THREADS', 'TF_NUM_INTRAOP_THREADS')
+
+_model = None
+
+
+def plan_workers(workers, threads, cores=None):
+    """(K, threads per worker); workers 0 = one per 4 cores, threads 0 = cores / K."""
+    cores = cores or os.cpu_count() or 1
+    if workers <= 0:
+        workers = max(1, cores // 4)
+    if threads <= 0:
+        threads = max(1, cores // workers)
+    return int(workers), int(threads)
+
+
+def _init_worker(factory, threads):
+    global _model
+    for var in THREAD_VARS:
+        os.environ[var] = str(threads)
+    os.environ['TF_NUM_INTEROP_THREADS'] = '1'
+    import cv2
+    cv2.setNumThreads(1)
+    _model = factory(threads)
+
+
+class Shards:
+    def __init__(self, pool, workers, threads):
+        self.pool, self.workers, self.threads = pool, workers, threads
+
+
+@contextmanager
+def worker_pool(factory, workers, threads):
+    """Shards over `workers` processes, each with factory(threads) as its model; None when workers < 2.
+
+    Spawned, not forked: TensorFlow's runtime does not survive a fork.
+    """
+    if workers < 2:
+        yield None
+        return
+    ctx = multiprocessing.get_context('spawn')
+    with ProcessPoolExecutor(max_workers=workers, mp_context=ctx,
+                             initializer=_init_worker, initargs=(factory, threads)) as pool:
+        yield Shards(pool, workers, threads)
+
+
+def _run_chunk(src, y_base, origins, blank, tile, model_tile, H, W, n_classes, win, verbose):
+    """Weighted sums for one chunk: (probs[rows, W, n_classes], weights[rows, W]) from row y_base.
+
+    src holds rows y_base.. of the padded input; tile != model_tile means each tile is resized
+    to the model and its prediction resized back (tile mode), else tiles go in as they are.
+    """
+    th, tw = tile
+    mh, mw = model_tile
+    rows = min(max(y0 for _, _, y0, _ in origins) + th, H) - y_base
+    acc = np.zeros((rows, W, n_classes), dtype=np.float32)
+    cnt = np.zeros((rows, W), dtype=np.float32)
+    resize = (th, tw) != (mh, mw)
+    for (i, j, y0, x0) in origins:
+        y1, x1 = min(y0 + th, H), min(x0 + tw, W)
+        w = win[:y1 - y0, :x1 - x0]
+        ya, yb = y0 - y_base, y1 - y_base
+        if (i, j) in blank:
+            acc[ya:yb, x0:x1, 0] += w
+            cnt[ya:yb, x0:x1] += w
+            continue
+        patch = src[ya:ya + th, x0:x0 + tw]
+        if resize:
+            im = Image.fromarray(patch.astype(np.uint8)).resize((mw, mh), Image.BILINEAR)
+            arr = np.array(im, dtype=np.float32)[None, ..., None] / 255.0
+        else:
+            arr = patch[None, ..., None]
+        pred = _model.predict(arr, verbose=verbose)[0]
+        if resize:
+            pred = np.stack([np.array(Image.fromarray(pred[..., c]).resize((tw, th), Image.BILINEAR),
+                                      dtype=np.float32) for c in range(n_classes)], axis=-1)
+        acc[ya:yb, x0:x1] += pred[:y1 - y0, :x1 - x0] * w[..., None]
+        cnt[ya:yb, x0:x1] += w
+    return acc, cnt
+
+
+def accumulate(shards, src, origins, blank, tile, model_tile, H, W, n_classes, win, probs_acc, counts,
+               on_chunk=None, stitch=None, progress=None, verbose=0):
+    """Runs `origins` (row-major (i, j, y0, x0)) on the pool and adds the sums into probs_acc/counts.
+
+    on_chunk(last_i) is called after the chunk ending with tile row last_i has been added.
+    """
+    by_row = {}
+    for o in origins:
+        by_row.setdefault(o[0], []).append(o)
+    tile_rows = sorted(by_row)
+    n_chunks = min(len(tile_rows), shards.workers * CHUNKS_PER_WORKER)
+    per = int(math.ceil(len(tile_rows) / float(n_chunks)))
+
+    def submit(chunk_rows):
+        chunk = [o for i in chunk_rows for o in by_row[i]]
+        y_base = min(o[2] for o in chunk)
+        y_end = max(o[2] for o in chunk) + tile[0]
+        chunk_blank = {(i, j) for (i, j, _, _) in chunk if (i, j) in blank}
+        f = shards.pool.submit(_run_chunk, np.ascontiguousarray(src[y_base:y_end]), y_base, chunk,
+                               chunk_blank, tile, model_tile, H, W, n_classes, win, verbose)
+        return f, y_base, chunk_rows[-1], len(chunk)
+
+    chunks = deque(tile_rows[c:c + per] for c in range(0, len(tile_rows), per))
+    in_flight = deque()
+    while chunks or in_flight:
+        while chunks and len(in_flight) < shards.workers * IN_FLIGHT_PER_WORKER:
+            in_flight.append(submit(chunks.popleft()))
+        f, y_base, last_i, n = in_flight.popleft()
+        acc, cnt = f.result()
+        with stitch or nullcontext():
+            probs_acc[y_base:y_base + acc.shape[0]] += acc.astype(probs_acc.dtype, copy=False)
+            counts[y_base:y_base + cnt.shape[0]] += cnt
+        del f, acc, cnt
+        if progress is not None:
+            progress.step(n)
+        if on_chunk is not None:
+            on_chunk(last_i)
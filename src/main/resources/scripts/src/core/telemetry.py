@@ -0,0 +1,115 @@
+"""Per-stage timing records for the Fiji plugin.
+
+Each stage reports wall time, process CPU time and the process peak RSS as one
+'@@HM {"event": "stage", ...}' line on stdout; the plugin collects them next to its
+own stages (StageTimer.java). Stages that happen many times (per-tile inference,
+stitching) are summed with Accumulator and reported once with a count. An optional
+'tag' field tells repeated runs of the same stage apart (preview pass, backend check).
+
+The same channel carries 'progress' (tile counters, rate limited here), 'warning' and
+'result' events, so the Log gets one line per warning instead of raw library output.
+Raw output (Keras progress bars, every Python warning) is only wanted in debug mode,
+which the plugin turns on by setting HISTOMAGNIFY_DEBUG=1.
+"""
+import json
+import os
+import sys
+import time
+import warnings
+from contextlib import contextmanager
+
+try:
+    import resource
+except ImportError:     # Windows
+    resource = None
+
+EVENT_PREFIX = '@@HM '
+DEBUG = os.environ.get('HISTOMAGNIFY_DEBUG') == '1'
+VERBOSE = 1 if DEBUG else 0     # for model.predict(verbose=...)
+
+
+def emit(event, **fields):
+    # one machine-readable line for the plugin; everything else on stdout is plain log text
+    print(EVENT_PREFIX + json.dumps(dict(event=event, **fields)), flush=True)
+
+
+def warning(message):
+    emit('warning', message=str(message))
+
+
+def result(message, **fields):
+    emit('result', message=str(message), **fields)
+
+
+def capture_warnings():
+    """Python warnings become 'warning' events (the plugin logs each distinct one once)."""
+    if DEBUG:
+        return
+
+    def show(message, category, filename, lineno, file=None, line=None):
+        warning(f"{category.__name__}: {message}")
+    warnings.showwarning = show
+
+
+class Progress:
+    """Counter for many small steps, reported at most every `interval` s and once at the end."""
+
+    def __init__(self, name, total, interval=0.5, **extra):
+        self.name, self.total, self.interval = name, int(total), interval
+        self.extra = {k: v for k, v in extra.items() if v is not None}
+        self.done = 0
+        self._last = 0.0
+
+    def step(self, n=1):
+        self.done += n
+        now = time.perf_counter()
+        if self.done >= self.total or now - self._last >= self.interval:
+            self._last = now
+            emit('progress', stage=self.name, done=self.done, total=self.total, **self.extra)
+
+
+def peak_rss_mb():
+    if resource is None:
+        return None
+    r = resource.getrusage(resource.RUSAGE_SELF).ru_maxrss
+    return r / (1024.0 * 1024.0) if sys.platform == 'darwin' else r / 1024.0
+
+
+def record(name, wall_s, cpu_s, count=1, **extra):
+    emit('stage', stage=name, wall_ms=round(wall_s * 1000.0, 3), cpu_ms=round(cpu_s * 1000.0, 3),
+         peak_mb=peak_rss_mb(), count=int(count), **extra)
+
+
+@contextmanager
+def stage(name, **extra):
+    w0, c0 = time.perf_counter(), time.process_time()
+    try:
+        yield
+    finally:
+        record(name, time.perf_counter() - w0, time.process_time() - c0, **extra)
+
+
+class Accumulator:
+    """Sums wall/CPU time over many short sections: `with acc: ...`, then acc.flush()."""
+
+    def __init__(self, name, **extra):
+        self.name = name
+        self.extra = {k: v for k, v in extra.items() if v is not None}
+        self.wall = self.cpu = 0.0
+        self.count = 0
+
+    def __enter__(self):
+        self._w0, self._c0 = time.perf_counter(), time.process_time()
+        return self
+
+    def __exit__(self, *exc):
+        self.wall += time.perf_counter() - self._w0
+        self.cpu += time.process_time() - self._c0
+        self.count += 1
+        return False
+
+    def flush(self, **extra):
+        if self.count:
+            record(self.name, self.wall, self.cpu, count=self.count, **dict(self.extra, **extra))
+        self.wall = self.cpu = 0.0
+        self.count = 0
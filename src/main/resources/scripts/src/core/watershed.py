@@ -0,0 +1,204 @@
+"""Distance-transform watershed used to split touching objects, in one pass or in tiles.
+
+Labels are int32, so whole-slide counts are not capped at 65,535.
+
+Tiled mode cuts the mask into cores of `tile` px with a `halo` on every side and runs the
+windows in worker processes. Objects are keyed by the global position of their seed (the
+distance peak they grew from), so an object that crosses a seam gets the same key from both
+tiles and ends up as one object. Keys become consecutive ids in row-major seed order at the end.
+
+A core pixel's label depends on the objects it can reach through the mask and on the distance
+map within two Gaussians (4 sigma each) and the peak footprint of those objects. A window is
+used only if every object within that margin of its core, grown by the margin again, stays clear
+of the cut sides, and no distance there could be shorter through the outside than inside the
+window; otherwise the tile is redone with the halo doubled. So the halo does not have to be
+guessed from the object size, and the tiled labels are the single pass's. A tile whose halo
+would grow past a tile (or the initial halo, if larger) on each side, or whose window would hold
+the whole mask, means one object spans many tiles (dense clusters, process networks); every tile
+would end up running on most of the mask, so the whole mask is split in one pass instead.
+threshold_rel is applied against the maximum over the whole mask, found in a first pass.
+"""
+import os
+from concurrent.futures import ProcessPoolExecutor
+
+import numpy as np
+from scipy import ndimage as ndi
+from skimage.feature import peak_local_max
+from skimage.measure import label as sklabel
+from skimage.segmentation import watershed
+
+AUTO_TILE_PX = 16 * 1024 * 1024         # masks larger than this are tiled when tile=0
+DEFAULT_TILE = 2048
+DEFAULT_HALO = 64                       # px, initial; grown per tile as needed
+
+
+def _smoothed_distance(mask, sigma):
+    dist = ndi.distance_transform_edt(mask)
+    return ndi.gaussian_filter(dist, sigma=sigma) if sigma > 0.0 else dist
+
+
+def _split(mask, min_dist, thresh_rel, sigma, threshold_abs=None):
+    """(labels int32, peaks) for one window; labels is None when no peak passes the threshold."""
+    sigma = float(sigma)
+    dist_s = _smoothed_distance(mask, sigma)
+
+    # prevents 1 px peak
+    md = max(1, int(round(min_dist)))
+    fp = np.ones((2 * md + 1, 2 * md + 1), dtype=bool)
+
+    peaks = peak_local_max(
+        dist_s,
+        labels=mask,
+        footprint=fp,
+        min_distance=md,
+        threshold_abs=threshold_abs,
+        threshold_rel=None if threshold_abs is not None else float(thresh_rel),
+        exclude_border=False,
+    )
+    if len(peaks) == 0:
+        return None, peaks
+    markers = np.zeros(mask.shape, dtype=np.int32)
+    markers[peaks[:, 0], peaks[:, 1]] = np.arange(1, len(peaks) + 1, dtype=np.int32)
+
+    grad = ndi.gaussian_gradient_magnitude(dist_s.astype(np.float32), sigma=sigma)
+    return watershed(grad, markers=markers, mask=mask).astype(np.int32, copy=False), peaks
+
+
+def ws_split(mask_u8, min_dist, thresh_rel, sigma, tile=0, halo=DEFAULT_HALO, workers=0):
+    """int32 labels of the split objects; connected components when no seed is found.
+
+    tile: core size in px; 0 = single pass unless the mask exceeds AUTO_TILE_PX, <0 = never tile.
+    """
+    mask = np.asarray(mask_u8).astype(bool)
+    if not np.any(mask):
+        return np.zeros(mask.shape, dtype=np.int32)
+    H, W = mask.shape
+    if tile == 0:
+        tile = DEFAULT_TILE if H * W > AUTO_TILE_PX else -1
+    if tile < 0 or (H <= tile and W <= tile):
+        labels, _ = _split(mask, min_dist, thresh_rel, sigma)
+    else:
+        labels = _split_tiled(mask, min_dist, thresh_rel, sigma, tile, halo, workers)
+    if labels is None or labels.max() == 0:
+        return sklabel(mask, connectivity=2).astype(np.int32)
+    return labels
+
+
+# ---------------------------------------------------------------- tiled
+
+
+def _margin(sigma, min_dist):
+    # how far one pixel's result reaches: the Gaussian of the distance and the one in the
+    # gradient (4 sigma each, scipy's truncate) and the peak footprint
+    md = max(1, int(round(min_dist)))
+    return int(np.ceil(8.0 * float(sigma))) + md + 2
+
+
+def _window(core, halo, H, W):
+    y, cy1, x, cx1 = core
+    y0, y1 = max(0, y - halo), min(H, cy1 + halo)
+    x0, x1 = max(0, x - halo), min(W, cx1 + halo)
+    return (y0, y1, x0, x1), (y - y0, cy1 - y0, x - x0, cx1 - x0), (y0 > 0, y1 < H, x0 > 0, x1 < W)
+
+
+def _exact(window, core, cuts, margin):
+    """Whether the window's labels and distances on `core` are the single pass's (see the module docstring)."""
+    if not any(cuts):
+        return True
+    h, w = window.shape
+    cy0, cy1, cx0, cx1 = core
+    comps, _ = ndi.label(window, np.ones((3, 3), bool))
+    near = np.unique(comps[max(0, cy0 - margin):cy1 + margin, max(0, cx0 - margin):cx1 + margin])
+    near = near[near > 0]
+    if near.size == 0:
+        return True
+    zone = ndi.maximum_filter(np.isin(comps, near), size=2 * margin + 1)
+    top, bottom, left, right = cuts
+    if (top and zone[0].any()) or (bottom and zone[-1].any()) or (left and zone[:, 0].any()) \
+            or (right and zone[:, -1].any()):
+        return False
+    ii, jj = np.nonzero(zone & window)
+    inf = np.full(len(ii), np.inf)
+    # distance to the nearest pixel outside the window, through a cut side
+    reach = np.minimum.reduce([ii + 1.0 if top else inf, h - ii + 0.0 if bottom else inf,
+                               jj + 1.0 if left else inf, w - jj + 0.0 if right else inf])
+    return bool(np.all(ndi.distance_transform_edt(window)[ii, jj] <= reach))
+
+
+def _core_max(window, core, cuts, sigma, margin):
+    """Maximum smoothed distance over the core's objects, or None when the window is not exact."""
+    if not _exact(window, core, cuts, margin):
+        return None
+    cy0, cy1, cx0, cx1 = core
+    # peak_local_max takes threshold_rel against the maximum over the mask
+    dist_s = _smoothed_distance(window, float(sigma))[cy0:cy1, cx0:cx1]
+    return float(dist_s[window[cy0:cy1, cx0:cx1]].max())
+
+
+def _tile_split(window, y0, x0, W, core, min_dist, thresh_rel, sigma, threshold_abs):
+    """Core labels (window-local marker numbers) and the global seed key of each marker."""
+    labels, peaks = _split(window, min_dist, thresh_rel, sigma, threshold_abs)
+    if labels is None:
+        return None, None
+    cy0, cy1, cx0, cx1 = core
+    keys = (peaks[:, 0].astype(np.int64) + y0) * W + (peaks[:, 1] + x0)
+    return np.ascontiguousarray(labels[cy0:cy1, cx0:cx1]), keys
+
+
+def _split_tiled(mask, min_dist, thresh_rel, sigma, tile, halo, workers):
+    H, W = mask.shape
+    margin = _margin(sigma, min_dist)
+    cores = [(y, min(H, y + tile), x, min(W, x + tile)) for y in range(0, H, tile) for x in range(0, W, tile)]
+    cores = [c for c in cores if mask[c[0]:c[1], c[2]:c[3]].any()]
+    halos = {c: int(halo) for c in cores}
+    max_halo = max(int(tile), int(halo))
+    with ProcessPoolExecutor(max_workers=workers or os.cpu_count()) as pool:
+        # settle each tile's halo on the maxima pass; threshold_rel is relative to the whole
+        # mask's maximum, as in the single pass
+        maxima, pending = [], cores
+        while pending:
+            futures = {}
+            for c in pending:
+                (y0, y1, x0, x1), core, cuts = _window(c, halos[c], H, W)
+                futures[c] = pool.submit(_core_max, mask[y0:y1, x0:x1], core, cuts, sigma, margin)
+            pending = []
+            for c, f in futures.items():
+                m = f.result()
+                if m is not None:
+                    maxima.append(m)
+                    continue
+                halos[c] *= 2                   # an object near the core reaches the cut
+                if halos[c] > max_halo or not any(_window(c, halos[c], H, W)[2]):
+                    for g in futures.values():
+                        g.cancel()
+                    labels, _ = _split(mask, min_dist, thresh_rel, sigma)
+                    return labels
+                pending.append(c)
+        threshold_abs = float(thresh_rel) * max(maxima)
+
+        futures = []
+        for c in cores:
+            (y0, y1, x0, x1), core, _ = _window(c, halos[c], H, W)
+            futures.append(pool.submit(_tile_split, mask[y0:y1, x0:x1], y0, x0, W, core,
+                                       min_dist, thresh_rel, sigma, threshold_abs))
+        parts = [(c, f.result()) for c, f in zip(cores, futures)]
+
+    # seeds that own at least one core pixel, numbered in row-major seed order
+    used = []
+    for _, (lab, keys) in parts:
+        if lab is not None:
+            present = np.unique(lab)
+            used.append(keys[present[present > 0] - 1])
+    if not used:
+        return None
+    all_keys = np.unique(np.concatenate(used))
+
+    out = np.zeros((H, W), dtype=np.int32)
+    for (cy0, cy1, cx0, cx1), (lab, keys) in parts:
+        if lab is None:
+            continue
+        lut = np.zeros(len(keys) + 1, dtype=np.int32)
+        lut[1:] = np.searchsorted(all_keys, keys) + 1
+        lut[1:][~np.isin(keys, all_keys)] = 0
+        out[cy0:cy1, cx0:cx1] = lut[lab]
+    return out
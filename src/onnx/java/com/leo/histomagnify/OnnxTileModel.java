@@ -0,0 +1,56 @@
+package com.leo.histomagnify;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/** ONNX Runtime (CPU) implementation of {@link TileModel}; built with {@code mvn -Ponnx}. */
+public class OnnxTileModel implements TileModel {
+    private final OrtEnvironment env;
+    private final OrtSession session;
+    private final String inputName;
+    private final int height, width, classes;
+
+    public OnnxTileModel(Path onnx, int height, int width, int classes, int threads) throws Exception {
+        this.height = height;
+        this.width = width;
+        this.classes = classes;
+        env = OrtEnvironment.getEnvironment();
+        OrtSession.SessionOptions opts = new OrtSession.SessionOptions();
+        opts.setIntraOpNumThreads(Math.max(1, threads));
+        opts.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+        session = env.createSession(onnx.toString(), opts);
+        inputName = session.getInputNames().iterator().next();
+    }
+
+    @Override public int inputHeight() { return height; }
+    @Override public int inputWidth()  { return width; }
+    @Override public int numClasses()  { return classes; }
+
+    @Override
+    public float[] predict(float[] tile) throws Exception {
+        long[] shape = {1, height, width, 1};
+        try (OnnxTensor in = OnnxTensor.createTensor(env, FloatBuffer.wrap(tile), shape);
+             OrtSession.Result res = session.run(Collections.singletonMap(inputName, in))) {
+            FloatBuffer fb = ((OnnxTensor) res.get(0)).getFloatBuffer();
+            float[] out = new float[height * width * classes];
+            fb.get(out);
+            return out;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            session.close();
+        } catch (OrtException e) {
+            throw new IOException(e);
+        }
+    }
+}
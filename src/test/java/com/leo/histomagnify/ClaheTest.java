@@ -0,0 +1,61 @@
+package com.leo.histomagnify;
+
+import ij.process.ByteProcessor;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/** Clahe against cv2.createCLAHE(2.0, (8, 8)), fixture from src/test/python/clahe_fixture.py. */
+public class ClaheTest {
+
+    @Test
+    public void matchesOpenCvWhenThePlaneIsPadded() throws Exception {
+        assertMatches(203, 157);
+    }
+
+    @Test
+    public void matchesOpenCvOnTheGrid() throws Exception {
+        assertMatches(64, 48);
+    }
+
+    private static void assertMatches(int w, int h) throws IOException {
+        ByteProcessor in = readPgm("/clahe_in_" + w + "x" + h + ".pgm");
+        ByteProcessor cv2 = readPgm("/clahe_cv2_" + w + "x" + h + ".pgm");
+        assertEquals(w, in.getWidth());
+        assertEquals(h, in.getHeight());
+        byte[] got = (byte[]) Clahe.apply(in).getPixels(), want = (byte[]) cv2.getPixels();
+        for (int i = 0; i < want.length; i++) {
+            if (got[i] != want[i])
+                throw new AssertionError("pixel (" + i % w + ", " + i / w + "): " + (got[i] & 0xff) + ", cv2 " + (want[i] & 0xff));
+        }
+    }
+
+    // binary 8-bit PGM as clahe_fixture.py writes it: three header lines, then the pixels
+    private static ByteProcessor readPgm(String resource) throws IOException {
+        try (InputStream in = ClaheTest.class.getResourceAsStream(resource)) {
+            if (in == null) throw new IOException("No test resource " + resource);
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            for (int n; (n = in.read(chunk)) > 0; ) buf.write(chunk, 0, n);
+            byte[] all = buf.toByteArray();
+            int pos = 0;
+            String[] header = new String[3];
+            for (int k = 0; k < 3; k++) {
+                int end = pos;
+                while (all[end] != '\n') end++;
+                header[k] = new String(all, pos, end - pos, StandardCharsets.US_ASCII).trim();
+                pos = end + 1;
+            }
+            if (!"P5".equals(header[0]) || !"255".equals(header[2])) throw new IOException(resource + " is not an 8-bit PGM");
+            String[] size = header[1].split("\\s+");
+            int w = Integer.parseInt(size[0]), h = Integer.parseInt(size[1]);
+            return new ByteProcessor(w, h, Arrays.copyOfRange(all, pos, pos + w * h));
+        }
+    }
+}
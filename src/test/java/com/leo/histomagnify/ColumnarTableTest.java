@@ -0,0 +1,63 @@
+package com.leo.histomagnify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ColumnarTableTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void writeIntsReadsBack() throws Exception {
+        File f = tmp.newFile("t.hmc");
+        int[] a = {1, -2, 3}, b = {Integer.MAX_VALUE, 0, Integer.MIN_VALUE};
+        ColumnarTable.writeInts(f, new String[]{"a", "a_fifteen_chars"}, new int[][]{a, b});
+        assertEquals(12 + 2 * 16 + 2 * 3 * 4, f.length());
+
+        ColumnarTable t = ColumnarTable.read(f);
+        assertEquals(3, t.rows());
+        assertTrue(t.has("a_fifteen_chars"));
+        assertFalse(t.has("b"));
+        IntBuffer col = t.ints("a_fifteen_chars");
+        for (int v : b) assertEquals(v, col.get());
+        assertEquals(-2, t.ints("a").get(1));
+        try {
+            t.floats("a");
+            fail("int column read as float");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void emptyColumnsReadBack() throws Exception {
+        File f = tmp.newFile("empty.hmc");
+        ColumnarTable.writeInts(f, new String[]{"y"}, new int[][]{new int[0]});
+        ColumnarTable t = ColumnarTable.read(f);
+        assertEquals(0, t.rows());
+        assertEquals(0, t.ints("y").remaining());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsColumnsOfUnequalLength() throws Exception {
+        ColumnarTable.writeInts(tmp.newFile("bad.hmc"), new String[]{"a", "b"}, new int[][]{{1, 2}, {1}});
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+        File f = tmp.newFile("x.hmc");
+        Files.write(f.toPath(), "not a column file".getBytes("US-ASCII"));
+        ColumnarTable.read(f);
+    }
+}
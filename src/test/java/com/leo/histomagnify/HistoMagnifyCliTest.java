@@ -0,0 +1,25 @@
+package com.leo.histomagnify;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistoMagnifyCliTest {
+
+    @Test
+    public void stemDropsOnlyTheExtension() {
+        assertEquals("a.1", HistoMagnifyCli.stem(new File("a.1.tif")));
+        assertEquals("slide", HistoMagnifyCli.stem(new File("in/slide.ome.tiff")));
+        assertEquals("noext", HistoMagnifyCli.stem(new File("noext")));
+    }
+
+    @Test
+    public void outputNamesNeverCollide() {
+        assertEquals(Arrays.asList("a.1", "a.2"), HistoMagnifyCli.stems(Arrays.asList("a.1.tif", "a.2.tif")));
+        assertEquals(Arrays.asList("a", "a_3", "a_2", "A_4"),
+                HistoMagnifyCli.stems(Arrays.asList("x/a.tif", "y/a.tif", "a_2.nd2", "z/A.TIF")));
+    }
+}
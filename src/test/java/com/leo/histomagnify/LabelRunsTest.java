@@ -0,0 +1,70 @@
+package com.leo.histomagnify;
+
+import ij.process.ByteProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LabelRunsTest {
+
+    /** The map in src/test/resources/labels.hmr, also read by src/test/python/test_rle.py. */
+    static final byte[] LABELS = {
+            0, 0, 1, 1, 1, 0,
+            2, 2, 2, 2, 2, 2,
+            0, 3, 0, 3, 3, 0,
+            1, 1, 1, 0, 0, 2};
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static ByteProcessor labels() {
+        return new ByteProcessor(6, 4, LABELS.clone());
+    }
+
+    static File fixture() throws Exception {
+        return new File(LabelRunsTest.class.getResource("/labels.hmr").toURI());
+    }
+
+    @Test
+    public void encodeWritesTheSharedFixture() throws Exception {
+        LabelRuns runs = LabelRuns.encode(labels());
+        assertEquals(12, runs.runs());
+        File f = tmp.newFile("seg.hmr");
+        runs.write(f);
+        assertArrayEquals(Files.readAllBytes(fixture().toPath()), Files.readAllBytes(f.toPath()));
+    }
+
+    @Test
+    public void readDecodesTheSharedFixture() throws Exception {
+        LabelRuns runs = LabelRuns.read(fixture());
+        assertEquals(6, runs.width);
+        assertEquals(4, runs.height);
+        assertArrayEquals(LABELS, (byte[]) runs.toProcessor().getPixels());
+    }
+
+    @Test
+    public void areasAndMasksMatchThePixels() throws Exception {
+        LabelRuns runs = LabelRuns.encode(labels());
+        assertArrayEquals(new long[]{8, 6, 7, 3}, runs.areas(4, null));
+        assertArrayEquals(new long[]{1, 0, 3, 2}, runs.areas(4, new Rectangle(1, 1, 3, 2)));
+        assertArrayEquals(new long[]{8, 6}, runs.areas(2, new Rectangle(-5, -5, 100, 100)));
+
+        byte[] m = (byte[]) runs.mask(3, null).getPixels();
+        for (int i = 0; i < LABELS.length; i++) assertEquals("pixel " + i, LABELS[i] == 3 ? 255 : 0, m[i] & 0xff);
+        ByteProcessor crop = runs.mask(3, new Rectangle(1, 1, 3, 2));
+        assertEquals(3, crop.getWidth());
+        assertArrayEquals(new byte[]{0, 0, 0, (byte) 255, 0, (byte) 255}, (byte[]) crop.getPixels());
+    }
+
+    @Test
+    public void pathForSwapsTheExtension() {
+        assertEquals(new File("out", "seg_20x.hmr"), LabelRuns.pathFor(new File("out", "seg_20x.tif")));
+    }
+}
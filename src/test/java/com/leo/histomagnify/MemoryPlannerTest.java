@@ -0,0 +1,30 @@
+package com.leo.histomagnify;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryPlannerTest {
+
+    private static final long PLENTY = 1L << 40;
+
+    @Test
+    public void fullPlaneWithinArrayLimitKeepsTheLayout() {
+        MemoryPlanner.Plan p = MemoryPlanner.planWithin(10000, 10000, ModelSpec.BF_20X, "tile", true, false, false, PLENTY);
+        assertFalse(p.strips);
+        assertTrue(p.fits());
+    }
+
+    /** 25000 x 25000 (20000 x 20000 at model scale) x 6 classes is past Integer.MAX_VALUE floats, however much heap there is. */
+    @Test
+    public void accumulatorPastArrayLimitUsesStrips() {
+        assertTrue(TiledSegmenter.accumulatorLength(25000, 25000, ModelSpec.BF_20X, "tile", false) > TiledSegmenter.MAX_ARRAY);
+        for (String mode : new String[]{"tile", "plane"}) {
+            MemoryPlanner.Plan p = MemoryPlanner.planWithin(25000, 25000, ModelSpec.BF_20X, mode, true, false, false, PLENTY);
+            assertTrue(mode, p.strips);
+            assertTrue(mode, p.fits());
+            assertTrue(TiledSegmenter.accumulatorLength(25000, 25000, ModelSpec.BF_20X, p.resample, p.strips) <= TiledSegmenter.MAX_ARRAY);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.leo.histomagnify;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.process.ByteProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** segment.py must read the plane the plugin shows: {@code pageProcessor} and {@code sourceArgs} agree. */
+public class SourceArgsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // c = 2, z = 3, t = 2, opened from `name`
+    private ImagePlus hyperstack(String name) throws Exception {
+        File f = tmp.newFile(name);
+        ImageStack stack = new ImageStack(4, 3);
+        for (int i = 0; i < 12; i++) stack.addSlice(new ByteProcessor(4, 3));
+        ImagePlus imp = new ImagePlus(name, stack);
+        imp.setDimensions(2, 3, 2);
+        imp.setOpenAsHyperStack(true);
+        FileInfo fi = new FileInfo();
+        fi.directory = f.getParent() + File.separator;
+        fi.fileName = f.getName();
+        imp.setFileInfo(fi);
+        imp.setT(2);
+        return imp;
+    }
+
+    @Test
+    public void nd2FrameIsTheShownPlane() throws Exception {
+        ImagePlus imp = hyperstack("slide.nd2");
+        String[] args = HistoMagnify_Plugin.sourceArgs(imp, 1);
+        assertArrayEquals(new String[]{"--tif", new File(tmp.getRoot(), "slide.nd2").getAbsolutePath(), "--frame", "0,1,1,0"}, args);
+        String[] vtzc = args[3].split(",");
+        int c = Integer.parseInt(vtzc[3]), z = Integer.parseInt(vtzc[2]), t = Integer.parseInt(vtzc[1]);
+        assertEquals(imp.getStackIndex(1, 2, imp.getT()), imp.getStackIndex(c + 1, z + 1, t + 1));
+    }
+
+    @Test
+    public void tiffPageIsTheStackIndex() throws Exception {
+        ImagePlus imp = hyperstack("slide.tif");
+        String[] args = HistoMagnify_Plugin.sourceArgs(imp, 2);
+        assertArrayEquals(new String[]{"--tif", new File(tmp.getRoot(), "slide.tif").getAbsolutePath(), "--page",
+                String.valueOf(imp.getStackIndex(1, 3, 2) - 1)}, args);
+    }
+
+    @Test
+    public void onePositionOfAMultiPositionNd2IsExported() throws Exception {
+        ImagePlus imp = hyperstack("slide.nd2");
+        imp.setTitle("slide.nd2 - XY02");
+        assertNull(HistoMagnify_Plugin.sourceArgs(imp, 0));
+    }
+}
@@ -0,0 +1,30 @@
+package com.leo.histomagnify;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class StageTimerTest {
+
+    private static double peakMb(StageTimer timer, String stage) {
+        for (StageTimer.Record r : timer.records()) if (r.stage.equals(stage)) return r.peakMb;
+        throw new AssertionError("no stage " + stage);
+    }
+
+    /** An inner stage resets the JVM-wide heap peak; the outer stage keeps what it reached before. */
+    @Test
+    public void nestedStageKeepsTheOuterPeak() {
+        StageTimer timer = new StageTimer("test");
+        StageTimer.Stage outer = timer.start("outer");
+        byte[] big = new byte[128 << 20];
+        big[big.length - 1] = 1;
+        double withBig = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024.0 * 1024.0);
+        big = null;
+        System.gc();
+        timer.start("inner").close();
+        outer.close();
+        assertTrue("outer peak " + peakMb(timer, "outer") + " MB, used " + withBig + " MB with the array",
+                peakMb(timer, "outer") >= 128);
+        assertTrue(peakMb(timer, "inner") < peakMb(timer, "outer"));
+    }
+}
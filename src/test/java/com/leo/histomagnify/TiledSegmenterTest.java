@@ -0,0 +1,20 @@
+package com.leo.histomagnify;
+
+import ij.process.ColorProcessor;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TiledSegmenterTest {
+
+    /** cv2.cvtColor(COLOR_RGB2GRAY) on 8-bit, including pixels where float luma rounds the other way. */
+    @Test
+    public void rgbLumaMatchesOpenCv() {
+        int[][] rgb = {{255, 0, 0}, {0, 255, 0}, {0, 0, 255}, {128, 128, 128}, {0, 65, 196}, {0, 130, 28}, {1, 105, 119}};
+        int[] cv2 = {76, 150, 29, 128, 61, 79, 75};
+        ColorProcessor cp = new ColorProcessor(rgb.length, 1);
+        for (int i = 0; i < rgb.length; i++) cp.set(i, 0, (rgb[i][0] << 16) | (rgb[i][1] << 8) | rgb[i][2]);
+        byte[] g = (byte[]) TiledSegmenter.toGray8(cp).getPixels();
+        for (int i = 0; i < rgb.length; i++) assertEquals("pixel " + i, cv2[i], g[i] & 0xff);
+    }
+}
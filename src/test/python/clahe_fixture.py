@@ -0,0 +1,67 @@
+"""Writes the CLAHE fixture in src/test/resources: inputs and cv2.createCLAHE(2.0, (8, 8)) output.
+
+ClaheTest.java checks Clahe.java against these files; test_clahe.py checks them against cv2.
+Run from the HistoMagnify venv (needs opencv) to rewrite them: python src/test/python/clahe_fixture.py
+"""
+import math
+import os
+
+RESOURCES = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', 'resources')
+# (width, height): one side not a multiple of the 8x8 grid (OpenCV pads), one that is;
+# tiles of 26x20 px (clip limit 4) and of 8x6 px (clip limit 1, mostly redistribution)
+SIZES = ((203, 157), (64, 48))
+
+
+def input_path(w, h):
+    return os.path.join(RESOURCES, f'clahe_in_{w}x{h}.pgm')
+
+
+def expected_path(w, h):
+    return os.path.join(RESOURCES, f'clahe_cv2_{w}x{h}.pgm')
+
+
+def make_input(w, h, seed=12345):
+    """Glass on the left, tissue-like blobs and a gradient elsewhere, with noise; row-major bytes."""
+    state = seed
+    out = bytearray(w * h)
+    for y in range(h):
+        for x in range(w):
+            state = (state * 1103515245 + 12345) & 0x7fffffff
+            noise = (state >> 16) % 25 - 12
+            if x < w // 5:
+                v = 225 + noise // 4
+            else:
+                v = 60 + 90 * x / w + 40 * math.sin(x / 9.0) * math.cos(y / 7.0) + noise
+            out[y * w + x] = max(0, min(255, int(v)))
+    return bytes(out)
+
+
+def write_pgm(path, w, h, data):
+    with open(path, 'wb') as f:
+        f.write(b'P5\n%d %d\n255\n' % (w, h))
+        f.write(data)
+
+
+def read_pgm(path):
+    """(w, h, bytes) of a binary 8-bit PGM as written above."""
+    with open(path, 'rb') as f:
+        magic, size, maxval = f.readline(), f.readline(), f.readline()
+        if magic.strip() != b'P5' or maxval.strip() != b'255':
+            raise ValueError(f"{path} is not an 8-bit binary PGM")
+        w, h = (int(v) for v in size.split())
+        return w, h, f.read(w * h)
+
+
+def main():
+    import cv2
+    import numpy as np
+    clahe = cv2.createCLAHE(clipLimit=2.0, tileGridSize=(8, 8))
+    for w, h in SIZES:
+        src = make_input(w, h)
+        write_pgm(input_path(w, h), w, h, src)
+        out = clahe.apply(np.frombuffer(src, np.uint8).reshape(h, w))
+        write_pgm(expected_path(w, h), w, h, out.tobytes())
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,60 @@
+"""Cache keys of exported models (src/core/backends.py)."""
+import os
+import sys
+import tempfile
+import unittest
+
+import numpy as np
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'main', 'resources', 'scripts'))
+
+from src.core import backends  # noqa: E402
+
+
+class FakeModel:
+    def load_weights(self, path):
+        pass
+
+
+class Int8CacheTest(unittest.TestCase):
+
+    def setUp(self):
+        self.dir = tempfile.TemporaryDirectory()
+        self.weights = os.path.join(self.dir.name, '20x.hdf5')
+        with open(self.weights, 'wb') as f:
+            f.write(b'weights')
+        self.exports = []
+        self.real = backends.export_tflite
+
+        def export(model, out_path, mode, calib_tiles=None):
+            self.exports.append(out_path)
+            open(out_path, 'wb').close()
+        backends.export_tflite = export
+
+    def tearDown(self):
+        backends.export_tflite = self.real
+        self.dir.cleanup()
+
+    def prepare(self, tiles=None, digest=None):
+        return backends.prepare_predictor('int8', FakeModel, self.weights, self.dir.name, '20x', tiles,
+                                          calib_digest=digest)
+
+    def test_calibration_set_is_part_of_the_key(self):
+        plane_a = np.tile(np.arange(256, dtype=np.uint8), (300, 2))
+        plane_b = 255 - plane_a
+        tiles_a = backends.calibration_tiles(plane_a, 72, 96, 36, 48, n_tiles=4)
+        tiles_b = backends.calibration_tiles(plane_b, 72, 96, 36, 48, n_tiles=4)
+        a = self.prepare(tiles_a)
+        self.assertNotEqual(self.prepare(tiles_b), a)
+        self.assertEqual(self.prepare(tiles_a), a)
+        self.assertEqual(len(self.exports), 2)
+        # a worker finds the parent's export from the digest alone
+        self.assertEqual(self.prepare(digest=backends.calibration_digest(tiles_a)), a)
+
+    def test_int8_without_calibration_is_an_error(self):
+        with self.assertRaises(RuntimeError):
+            self.prepare()
+
+
+if __name__ == '__main__':
+    unittest.main()
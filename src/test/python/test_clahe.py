@@ -0,0 +1,29 @@
+"""The CLAHE fixture that ClaheTest.java checks Clahe.java against, checked against cv2."""
+import os
+import sys
+import unittest
+
+import numpy as np
+
+sys.path.insert(0, os.path.dirname(os.path.abspath(__file__)))
+
+import clahe_fixture  # noqa: E402
+
+
+class FixtureTest(unittest.TestCase):
+
+    def test_expected_output_is_cv2s(self):
+        import cv2
+        clahe = cv2.createCLAHE(clipLimit=2.0, tileGridSize=(8, 8))
+        for w, h in clahe_fixture.SIZES:
+            with self.subTest(size=(w, h)):
+                _, _, src = clahe_fixture.read_pgm(clahe_fixture.input_path(w, h))
+                self.assertEqual(src, clahe_fixture.make_input(w, h))
+                ew, eh, want = clahe_fixture.read_pgm(clahe_fixture.expected_path(w, h))
+                self.assertEqual((ew, eh), (w, h))
+                got = clahe.apply(np.frombuffer(src, np.uint8).reshape(h, w))
+                np.testing.assert_array_equal(got, np.frombuffer(want, np.uint8).reshape(h, w))
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,46 @@
+"""HMC1 column files (src/core/columnar.py), as read and written by ColumnarTable.java."""
+import os
+import sys
+import tempfile
+import unittest
+
+import numpy as np
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'main', 'resources', 'scripts'))
+
+from src.core.columnar import read_columns, write_columns  # noqa: E402
+
+
+class ColumnarTest(unittest.TestCase):
+
+    def test_round_trip(self):
+        with tempfile.TemporaryDirectory() as d:
+            path = os.path.join(d, 't.hmc')
+            a = np.array([1, -2, 3], np.int32)
+            b = np.array([0.5, -1.25, 3e9], np.float32)
+            write_columns(path, [('a', 'i', a), ('a_fifteen_chars', 'f', b)])
+            self.assertEqual(os.path.getsize(path), 12 + 2 * 16 + 2 * 3 * 4)
+            c = read_columns(path)
+            self.assertEqual(list(c), ['a', 'a_fifteen_chars'])
+            np.testing.assert_array_equal(c['a'], a)
+            np.testing.assert_array_equal(c['a_fifteen_chars'], b)
+
+    def test_empty_columns(self):
+        with tempfile.TemporaryDirectory() as d:
+            path = os.path.join(d, 'empty.hmc')
+            write_columns(path, [('y', 'i', [])])
+            self.assertEqual(len(read_columns(path)['y']), 0)
+
+    def test_rejects_unequal_columns_and_other_files(self):
+        with tempfile.TemporaryDirectory() as d:
+            path = os.path.join(d, 'bad.hmc')
+            with self.assertRaises(ValueError):
+                write_columns(path, [('a', 'i', [1, 2]), ('b', 'i', [1])])
+            with open(path, 'wb') as f:
+                f.write(b'not a column file')
+            with self.assertRaises(ValueError):
+                read_columns(path)
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,103 @@
+"""Tiled vs single-pass medial axis (src/core/medial.py)."""
+import os
+import sys
+import unittest
+
+import numpy as np
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'main', 'resources', 'scripts'))
+
+from src.core import medial  # noqa: E402
+
+
+def membranes(n, width=12, pitch=96, slope=0.0):
+    """Wavy bands of constant width, optionally tilted so they cross tile cuts at an angle."""
+    yy, xx = np.mgrid[0:n, 0:n]
+    m = np.zeros((n, n), dtype=bool)
+    for base in range(pitch // 2, n, pitch):
+        centre = base + 6.0 * np.sin(xx / 23.0) + slope * xx
+        m |= np.abs(yy - centre) < width / 2.0
+    return m
+
+
+def blobs(n, seed=0):
+    rng = np.random.default_rng(seed)
+    yy, xx = np.mgrid[0:n, 0:n]
+    m = np.zeros((n, n), dtype=bool)
+    for _ in range(n // 8):
+        cy, cx = rng.integers(0, n, 2)
+        r = rng.integers(3, 20)
+        m |= (yy - cy) ** 2 + (xx - cx) ** 2 <= r * r
+    return m
+
+
+def sequential(mask):
+    """The plain one-pixel-at-a-time loop (as skimage's _skeletonize_loop) in the reproducible order."""
+    from scipy import ndimage as ndi
+    h, w = mask.shape
+    distance = ndi.distance_transform_edt(mask)
+    corner = medial._CORNER[medial._neighbourhood_index(mask)]
+    ii, jj = np.nonzero(mask)
+    order = np.lexsort((medial._tiebreak(ii, jj, w), corner[ii, jj], distance[ii, jj]))
+    result = mask.astype(np.uint8)
+    for k in order:
+        y, x = ii[k], jj[k]
+        acc = 16
+        for dy, dx, bit in medial._OFFSETS:
+            yy, xx = y + dy, x + dx
+            if 0 <= yy < h and 0 <= xx < w and result[yy, xx]:
+                acc += bit
+        result[y, x] = medial._TABLE[acc]
+    ys, xs = np.nonzero(result)
+    return ys, xs, distance[ys, xs]
+
+
+def assert_same(test, a, b):
+    test.assertEqual(len(a[0]), len(b[0]))
+    for u, v in zip(a, b):
+        np.testing.assert_array_equal(u, v)
+
+
+class WaveOrderTest(unittest.TestCase):
+
+    def test_waves_match_the_sequential_loop(self):
+        for m in (membranes(96, slope=0.3), blobs(96, seed=1), np.ones((20, 30), bool)):
+            m = m.copy()
+            m[0, :] = False                          # at least some background for the distance
+            assert_same(self, medial.thin_points(m), sequential(m))
+
+
+class TiledTest(unittest.TestCase):
+
+    def phantoms(self):
+        return [membranes(300), membranes(300, width=20, slope=0.4), blobs(300, seed=2),
+                membranes(300, width=9, pitch=40) | blobs(300, seed=3)]
+
+    def test_tiles_cutting_membranes_match_the_single_pass(self):
+        for m in self.phantoms():
+            ref = medial.thin_points(m)
+            for tile, halo in ((64, 2), (100, 8), (128, 32)):
+                with self.subTest(tile=tile, halo=halo):
+                    assert_same(self, medial.medial_axis_points(m, tile=tile, halo=halo, workers=2), ref)
+
+    def test_verify_falls_back_to_the_single_pass(self):
+        m = membranes(200)
+        real = medial._tiled
+        try:
+            medial._tiled = lambda mask, tile, halo, workers: tuple(a[:-1] for a in real(mask, tile, halo, workers))
+            pts = medial.medial_axis_points(m, tile=64, halo=4, workers=2, verify=True)
+        finally:
+            medial._tiled = real
+        assert_same(self, pts, medial.thin_points(m))
+
+    def test_default_is_skimage(self):
+        from skimage.morphology import medial_axis
+        m = membranes(200)
+        ys, xs, d = medial.medial_axis_points(m)
+        _, dist = medial_axis(m, return_distance=True)
+        np.testing.assert_array_equal(d, dist[ys, xs])
+        self.assertAlmostEqual(float(np.mean(2 * d)), float(np.mean(2 * medial.thin_points(m)[2])), delta=0.5)
+
+
+if __name__ == '__main__':
+    unittest.main()
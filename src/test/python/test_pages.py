@@ -0,0 +1,74 @@
+"""Page and ND2 plane selection (src/core/pages.py)."""
+import os
+import sys
+import tempfile
+import types
+import unittest
+
+import numpy as np
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'main', 'resources', 'scripts'))
+
+from src.core import pages  # noqa: E402
+
+
+class FakeND2Reader:
+    """nd2reader stand-in: plane (v, t, z, c) is filled with 1000v + 100t + 10z + c."""
+    sizes = {'x': 5, 'y': 4, 'v': 2, 't': 3, 'z': 4, 'c': 3}
+
+    def __init__(self, path):
+        self.path = path
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, *exc):
+        return False
+
+    def get_frame_2D(self, c=0, t=0, z=0, x=0, y=0, v=0):
+        return np.full((self.sizes['y'], self.sizes['x']), 1000 * v + 100 * t + 10 * z + c, np.uint16)
+
+
+class Nd2Test(unittest.TestCase):
+
+    def setUp(self):
+        self.saved = sys.modules.get('nd2reader')
+        sys.modules['nd2reader'] = types.SimpleNamespace(ND2Reader=FakeND2Reader)
+
+    def tearDown(self):
+        if self.saved is None:
+            del sys.modules['nd2reader']
+        else:
+            sys.modules['nd2reader'] = self.saved
+
+    def test_frame_reads_that_single_channel_plane(self):
+        plane = pages.read_page('slide.nd2', frame=pages.parse_frame('1,2,3,1'))
+        self.assertEqual(plane.shape, (4, 5))
+        self.assertTrue((plane == 1231).all())
+
+    def test_page_index_is_z_of_the_first_position_time_and_channel(self):
+        self.assertTrue((pages.read_page('slide.nd2', 2) == 20).all())
+        self.assertEqual(pages.page_count('slide.nd2'), 4)
+
+    def test_out_of_range_frame_is_an_error(self):
+        with self.assertRaises(RuntimeError):
+            pages.read_page('slide.nd2', frame=(0, 0, 0, 3))
+        with self.assertRaises(ValueError):
+            pages.parse_frame('0,1,2')
+
+
+class TiffTest(unittest.TestCase):
+
+    def test_reads_one_page(self):
+        import tifffile
+        with tempfile.TemporaryDirectory() as d:
+            path = os.path.join(d, 'stack.tif')
+            tifffile.imwrite(path, np.arange(3, dtype=np.uint8)[:, None, None] * np.ones((3, 4, 5), np.uint8))
+            self.assertEqual(pages.page_count(path), 3)
+            self.assertTrue((pages.read_page(path, 2) == 2).all())
+            with self.assertRaises(RuntimeError):
+                pages.read_page(path, 0, frame=(0, 0, 0, 0))
+
+
+if __name__ == '__main__':
+    unittest.main()
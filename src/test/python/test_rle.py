@@ -0,0 +1,81 @@
+"""Run-length label maps (src/core/rle.py) and their HMC1 files, as read by LabelRuns.java."""
+import os
+import sys
+import tempfile
+import unittest
+
+import numpy as np
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'main', 'resources', 'scripts'))
+
+from src.core import rle  # noqa: E402
+
+# the map in src/test/resources/labels.hmr, written by LabelRuns.java (see LabelRunsTest)
+FIXTURE = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', 'resources', 'labels.hmr')
+LABELS = np.array([[0, 0, 1, 1, 1, 0],
+                   [2, 2, 2, 2, 2, 2],
+                   [0, 3, 0, 3, 3, 0],
+                   [1, 1, 1, 0, 0, 2]], np.uint8)
+
+
+def random_labels(h=57, w=83, seed=0):
+    rng = np.random.default_rng(seed)
+    # blocky, so runs are longer than one pixel
+    return np.repeat(rng.integers(0, 4, (h, w // 4 + 1)), 4, axis=1)[:, :w].astype(np.uint8)
+
+
+class SharedFileTest(unittest.TestCase):
+
+    def test_encode_writes_the_java_bytes(self):
+        runs = rle.encode(LABELS)
+        self.assertEqual(len(runs), 12)
+        with tempfile.TemporaryDirectory() as d:
+            path = os.path.join(d, 'seg.hmr')
+            runs.write(path)
+            with open(path, 'rb') as a, open(FIXTURE, 'rb') as b:
+                self.assertEqual(a.read(), b.read())
+            self.assertFalse(os.path.exists(path + '.part'))
+
+    def test_read_decodes_the_java_file(self):
+        runs = rle.read(FIXTURE)
+        self.assertEqual((runs.height, runs.width), LABELS.shape)
+        np.testing.assert_array_equal(runs.decode(), LABELS)
+
+
+class RunsTest(unittest.TestCase):
+
+    def test_areas_and_masks_match_the_pixels(self):
+        m = random_labels()
+        runs = rle.encode(m)
+        np.testing.assert_array_equal(runs.areas(4), np.bincount(m.ravel(), minlength=4))
+        crop = (10, 7, 30, 20)
+        sub = m[7:27, 10:40]
+        np.testing.assert_array_equal(runs.areas(4, crop), np.bincount(sub.ravel(), minlength=4))
+        for cls in range(4):
+            np.testing.assert_array_equal(runs.mask(cls), m == cls)
+            np.testing.assert_array_equal(runs.mask(cls, crop), sub == cls)
+
+    def test_bands_match_one_pass(self):
+        m = random_labels(seed=1)
+        w = rle.RunWriter()
+        w.add(0, 10, m[:10])
+        w.add(10, 31, m[10:31])
+        runs = w.finish(m)
+        ref = rle.encode(m)
+        for a, b in ((runs.y, ref.y), (runs.x, ref.x), (runs.len, ref.len), (runs.label, ref.label)):
+            np.testing.assert_array_equal(a, b)
+        np.testing.assert_array_equal(runs.decode(), m)
+        with self.assertRaises(ValueError):
+            rle.RunWriter().add(5, 10, m[5:10])
+
+    def test_round_trip_through_a_file(self):
+        m = random_labels(seed=2)
+        with tempfile.TemporaryDirectory() as d:
+            path = rle.rle_path(os.path.join(d, 'seg_20x.tif'))
+            self.assertTrue(path.endswith('seg_20x.hmr'))
+            rle.encode(m).write(path)
+            np.testing.assert_array_equal(rle.read(path).decode(), m)
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,115 @@
+"""Sharded vs in-process tile inference (src/core/sharding.py) and the memory plan (src/core/memplan.py)."""
+import os
+import sys
+import unittest
+from concurrent.futures import Future
+
+import numpy as np
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'main', 'resources', 'scripts'))
+
+from src.core import memplan, sharding  # noqa: E402
+from src.core.segmentation import run_patches  # noqa: E402
+
+P = dict(P_HEIGHT=48, P_WIDTH=64, MODEL_HEIGHT=36, MODEL_WIDTH=48)
+N = 3
+
+
+class RampModel:
+    """Stands in for the network: class scores that depend smoothly on the pixel values."""
+
+    def predict(self, arr, verbose=0):
+        x = arr[0, ..., 0]
+        return np.stack([x, 1.0 - x, 0.5 + 0.3 * np.sin(7.0 * x)], axis=-1)[None].astype(np.float32)
+
+
+def ramp_model(threads):
+    return RampModel()
+
+
+def plane(h=230, w=300, seed=0):
+    rng = np.random.default_rng(seed)
+    yy, xx = np.mgrid[0:h, 0:w]
+    g = 128 + 90 * np.sin(yy / 17.0) * np.cos(xx / 23.0) + rng.normal(0, 10, (h, w))
+    return np.clip(g, 0, 255).astype(np.uint8)
+
+
+def segment(img, model=None, shards=None, resample='tile'):
+    bands = []
+    labels = run_patches(img, model, P['P_HEIGHT'], P['P_WIDTH'], N, P['MODEL_WIDTH'], P['MODEL_HEIGHT'],
+                         resample=resample, shards=shards, on_rows=lambda a, b, rows: bands.append((a, b)))
+    return labels, bands
+
+
+class InlinePool:
+    """Runs each chunk on submit and records how many results the parent holds at once."""
+
+    def __init__(self):
+        self.submitted, self.merged, self.peak = 0, 0, 0
+
+    def submit(self, fn, *args):
+        self.submitted += 1
+        self.peak = max(self.peak, self.submitted - self.merged)
+        f = Future()
+        f.set_result(fn(*args))
+        return f
+
+
+class ShardingTest(unittest.TestCase):
+
+    def test_worker_processes_match_one_process(self):
+        img = plane()
+        with sharding.worker_pool(ramp_model, 2, 1) as shards:
+            for resample in ('tile', 'plane'):
+                with self.subTest(resample=resample):
+                    ref, ref_bands = segment(img, RampModel(), resample=resample)
+                    got, bands = segment(img, shards=shards, resample=resample)
+                    np.testing.assert_array_equal(got, ref)
+                    self.assertEqual(bands[-1][1], img.shape[0])
+                    self.assertEqual([a for a, _ in bands], sorted(a for a, _ in bands))
+
+    def test_in_flight_chunks_are_capped(self):
+        img = plane(600, 200)
+        pool = InlinePool()
+        shards = sharding.Shards(pool, 2, 1)
+        real = sharding._model
+        sharding._model = RampModel()
+        try:
+            origins = [(i, 0, i * 24, 0) for i in range(24)]
+            H, W = 24 * 24 + 24, 64
+            probs, counts = np.zeros((H, W, N), np.float32), np.zeros((H, W), np.float32)
+
+            def merged(last_i):
+                pool.merged += 1
+            sharding.accumulate(shards, img, origins, set(), (48, 64), (36, 48), H, W, N,
+                                np.ones((48, 64), np.float32), probs, counts, on_chunk=merged)
+        finally:
+            sharding._model = real
+        self.assertEqual(pool.submitted, 2 * sharding.CHUNKS_PER_WORKER)
+        self.assertLessEqual(pool.peak, 2 * sharding.IN_FLIGHT_PER_WORKER)
+        self.assertTrue((counts > 0).all())
+
+
+class MemPlanTest(unittest.TestCase):
+
+    def test_workers_add_models_and_chunks(self):
+        one = memplan.estimate(8000, 8000, N, P, 'tile')
+        four = memplan.estimate(8000, 8000, N, P, 'tile', workers=4, model=100 * memplan.MB)
+        self.assertGreater(four - one, 4 * (100 * memplan.MB + memplan.WORKER_RUNTIME_BYTES))
+
+    def test_falls_back_to_one_process_before_strips(self):
+        one = memplan.estimate(8000, 8000, N, P, 'tile')
+        budget = (one + 10 * memplan.MB) // memplan.MB
+        p = memplan.plan(8000, 8000, N, P, 'tile', budget, workers=4, model=100 * memplan.MB)
+        self.assertEqual((p.workers, p.strips), (1, False))
+        self.assertTrue(p.fits)
+        p = memplan.plan(8000, 8000, N, P, 'tile', None, workers=4, model=100 * memplan.MB)
+        self.assertEqual((p.workers, p.strips), (4, False))
+
+    def test_strips_run_in_one_process(self):
+        p = memplan.plan(8000, 8000, N, P, 'tile', 1, workers=4)
+        self.assertEqual((p.workers, p.strips), (1, True))
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,81 @@
+"""Tiled vs single-pass watershed (src/core/watershed.py)."""
+import os
+import sys
+import unittest
+
+import numpy as np
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'main', 'resources', 'scripts'))
+
+from src.core import watershed  # noqa: E402
+
+
+def blob_pairs(n, seed=0):
+    """Pairs of overlapping discs (radius 5-20) scattered over the field, many across tile seams."""
+    rng = np.random.default_rng(seed)
+    yy, xx = np.mgrid[0:n, 0:n]
+    m = np.zeros((n, n), dtype=bool)
+    for _ in range(n // 12):
+        cy, cx = rng.integers(0, n, 2)
+        r = int(rng.integers(5, 21))
+        a = rng.uniform(0, 2 * np.pi)
+        for oy, ox in ((0.0, 0.0), (1.4 * r * np.sin(a), 1.4 * r * np.cos(a))):
+            m |= (yy - cy - oy) ** 2 + (xx - cx - ox) ** 2 <= r * r
+    return m.astype(np.uint8)
+
+
+def band(n, width=30):
+    """One object longer than any tile, so its halos outgrow the cap and the mask is split in one pass."""
+    m = np.zeros((n, n), dtype=np.uint8)
+    m[n // 2 - width // 2:n // 2 + width // 2, 5:n - 5] = 1
+    m[n // 2 - width:n // 2 + width, n // 3 - width:n // 3 + width] = 1
+    return m
+
+
+def assert_same_objects(test, a, b):
+    """Same partition into objects, whatever the numbering."""
+    np.testing.assert_array_equal(a > 0, b > 0)
+    pairs = np.unique(np.stack([a[a > 0], b[b > 0]]), axis=1)
+    test.assertEqual(len(np.unique(pairs[0])), pairs.shape[1])
+    test.assertEqual(len(np.unique(pairs[1])), pairs.shape[1])
+
+
+class TiledTest(unittest.TestCase):
+    params = dict(min_dist=5, thresh_rel=0.3, sigma=1.0)
+
+    def test_blob_field_across_seams_matches_the_single_pass(self):
+        for seed in (0, 1, 2):
+            m = blob_pairs(320, seed)
+            ref = watershed.ws_split(m, tile=-1, **self.params)
+            self.assertGreater(ref.max(), 10)
+            for tile, halo in ((64, 4), (100, 16), (128, 64)):
+                with self.subTest(seed=seed, tile=tile, halo=halo):
+                    got = watershed.ws_split(m, tile=tile, halo=halo, workers=2, **self.params)
+                    assert_same_objects(self, got, ref)
+
+    def test_objects_longer_than_a_tile_fall_back_to_one_pass(self):
+        m = band(300)
+        ref = watershed.ws_split(m, tile=-1, **self.params)
+        shapes = []
+        real = watershed._split
+
+        def split(mask, *args, **kwargs):
+            shapes.append(mask.shape)           # the parent's calls only; workers have their own list
+            return real(mask, *args, **kwargs)
+        watershed._split = split
+        try:
+            got = watershed.ws_split(m, tile=64, halo=8, workers=2, **self.params)
+        finally:
+            watershed._split = real
+        assert_same_objects(self, got, ref)
+        self.assertEqual(shapes, [m.shape])
+
+    def test_ids_are_consecutive(self):
+        m = blob_pairs(200, seed=3)
+        got = watershed.ws_split(m, tile=64, halo=16, workers=2, **self.params)
+        ids = np.unique(got[got > 0])
+        np.testing.assert_array_equal(ids, np.arange(1, len(ids) + 1))
+
+
+if __name__ == '__main__':
+    unittest.main()